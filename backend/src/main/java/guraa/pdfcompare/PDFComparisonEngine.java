@@ -1,13 +1,19 @@
 package guraa.pdfcompare;
 
 import guraa.pdfcompare.core.DocumentMatchingStrategy;
+import guraa.pdfcompare.core.DocumentSegmenter;
 import guraa.pdfcompare.core.SmartDocumentMatcher;
+import guraa.pdfcompare.model.ComparisonCheckpoint;
 import guraa.pdfcompare.model.ComparisonResult;
+import guraa.pdfcompare.model.DocumentPair;
+import guraa.pdfcompare.model.DocumentSegment;
 import guraa.pdfcompare.model.PdfDocument;
 import guraa.pdfcompare.model.difference.Difference;
+import guraa.pdfcompare.model.difference.FontDifference;
 import guraa.pdfcompare.model.difference.ImageDifference;
 import guraa.pdfcompare.model.difference.TextDifference;
 import guraa.pdfcompare.service.*;
+import guraa.pdfcompare.util.CancellationContext;
 import guraa.pdfcompare.util.DifferenceCoordinateUtils;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Qualifier;
@@ -30,6 +36,7 @@ import java.util.stream.Collectors;
 public class PDFComparisonEngine {
 
     private final SmartDocumentMatcher documentMatcher;
+    private final DocumentSegmenter documentSegmenter;
     private final TextElementComparisonService textComparisonService;
     private final ImageComparisonService imageComparisonService;
     private final FontComparisonService fontComparisonService;
@@ -49,11 +56,13 @@ public class PDFComparisonEngine {
      */
     public PDFComparisonEngine(
             SmartDocumentMatcher documentMatcher,
+            DocumentSegmenter documentSegmenter,
             TextElementComparisonService textComparisonService,
             ImageComparisonService imageComparisonService,
             FontComparisonService fontComparisonService,
-            @Qualifier("comparisonExecutor") ExecutorService executorService) {
+            @Qualifier("cpuExecutor") ExecutorService executorService) {
         this.documentMatcher = documentMatcher;
+        this.documentSegmenter = documentSegmenter;
         this.textComparisonService = textComparisonService;
         this.imageComparisonService = imageComparisonService;
         this.fontComparisonService = fontComparisonService;
@@ -81,6 +90,9 @@ public class PDFComparisonEngine {
     @Value("${app.comparison.force-differences:true}")
     private boolean forceDifferences = true;
 
+    @Value("${app.font.comparison-enabled:true}")
+    private boolean fontComparisonEnabled = true;
+
     /**
      * Compare two PDF documents with improved completion handling.
      *
@@ -90,6 +102,26 @@ public class PDFComparisonEngine {
      * @throws IOException If there is an error comparing the documents
      */
     public ComparisonResult compareDocuments(PdfDocument baseDocument, PdfDocument compareDocument) throws IOException {
+        return compareDocuments(baseDocument, compareDocument, null, ComparisonProgressListener.NONE,
+                CancellationContext.NONE);
+    }
+
+    /**
+     * Compare two PDF documents, resuming from a checkpoint and reporting progress as page pairs finish.
+     *
+     * @param baseDocument    The base document
+     * @param compareDocument The document to compare against the base
+     * @param checkpoint      The progress of an interrupted run of this comparison, or null to start afresh
+     * @param listener        The listener notified of matched and finished page pairs
+     * @param cancellation    The cancellation context, checked between pages and passed down to the page work
+     * @return The comparison result
+     * @throws IOException If there is an error comparing the documents
+     * @throws CancellationException If the comparison is cancelled
+     */
+    public ComparisonResult compareDocuments(PdfDocument baseDocument, PdfDocument compareDocument,
+                                             ComparisonCheckpoint checkpoint,
+                                             ComparisonProgressListener listener,
+                                             CancellationContext cancellation) throws IOException {
         String logPrefix = "[" + baseDocument.getFileId() + " vs " + compareDocument.getFileId() + "] ";
         log.info(logPrefix + "Starting comparison between documents: {} and {}",
                 baseDocument.getFileId(), compareDocument.getFileId());
@@ -101,36 +133,53 @@ public class PDFComparisonEngine {
         log.info(logPrefix + "cacheKey: {}", cacheKey);
 
         // Check if the result is already in the cache
-        if (cacheEnabled && comparisonCache.containsKey(cacheKey)) {
+        if (checkpoint == null && cacheEnabled && comparisonCache.containsKey(cacheKey)) {
             log.info(logPrefix + "Retrieved comparison result from cache");
             return comparisonCache.get(cacheKey);
         }
 
         try {
-            // Step 1: Match pages between documents
-            log.info(logPrefix + "Starting document matching phase");
-            List<PagePair> pagePairs = matchDocuments(baseDocument, compareDocument);
-            log.info(logPrefix + "Document matching phase completed, found {} page pairs", pagePairs.size());
+            // Step 1: Split files that concatenate several documents; segmentation is deterministic,
+            // so a resumed run finds the same sub-document pairs again
+            List<DocumentPair> documentPairs = segmentDocuments(baseDocument, compareDocument);
+
+            // Step 2: Match pages between documents, unless an interrupted run already did
+            List<PagePair> pagePairs;
+            if (checkpoint != null && checkpoint.getPagePairs() != null) {
+                pagePairs = checkpoint.getPagePairs();
+                log.info(logPrefix + "Resuming from checkpoint with {} page pairs, {} already compared",
+                        pagePairs.size(), checkpoint.getCompletedPages().size());
+            } else {
+                log.info(logPrefix + "Starting document matching phase");
+                pagePairs = matchDocuments(baseDocument, compareDocument, documentPairs, cancellation);
+                log.info(logPrefix + "Document matching phase completed, found {} page pairs", pagePairs.size());
+                listener.onPagePairsMatched(pagePairs);
+            }
+            cancellation.throwIfCancelled();
 
-            // Step 2: Create a comparison summary
+            // Step 3: Create a comparison summary
             log.info(logPrefix + "Creating comparison summary");
             PageLevelComparisonSummary summary = createComparisonSummary(baseDocument, compareDocument, pagePairs);
             log.info(logPrefix + "Comparison summary created with similarity score: {}", summary.getOverallSimilarityScore());
 
-            // Step 3: Compare matched pages
+            // Step 4: Compare matched pages
             Map<String, List<Difference>> differencesByPage;
             try {
                 log.info(logPrefix + "Starting page comparison phase");
-                differencesByPage = comparePages(baseDocument, compareDocument, pagePairs);
+                differencesByPage = comparePages(baseDocument, compareDocument, pagePairs, checkpoint, listener,
+                        cancellation);
                 log.info(logPrefix + "Page comparison phase completed, found differences on {} pages",
                         differencesByPage.size());
+            } catch (CancellationException e) {
+                throw e;
             } catch (Exception e) {
                 log.error(logPrefix + "Error in page comparison phase: {}", e.getMessage(), e);
                 // Continue with empty differences rather than failing the entire comparison
                 differencesByPage = new HashMap<>();
             }
 
-            // Step 4: Create the comparison result
+            // Step 5: Create the comparison result
+            countDocumentPairDifferences(documentPairs, pagePairs, differencesByPage);
             String resultId = UUID.randomUUID().toString();
             log.info(logPrefix + "Building final comparison result with ID: {}", resultId);
             ComparisonResult result = ComparisonResult.builder()
@@ -140,6 +189,7 @@ public class PDFComparisonEngine {
                     .pagePairs(pagePairs)
                     .summary(summary)
                     .differencesByPage(differencesByPage)
+                    .documentPairs(documentPairs.isEmpty() ? null : documentPairs)
                     .build();
 
             // Cache the result if caching is enabled
@@ -157,6 +207,10 @@ public class PDFComparisonEngine {
             log.info(logPrefix + "Completed comparison between documents in {}ms", duration);
 
             return result;
+        } catch (CancellationException e) {
+            log.info(logPrefix + "Comparison cancelled after {}ms: {}",
+                    System.currentTimeMillis() - startTime, e.getMessage());
+            throw e;
         } catch (Exception e) {
             log.error(logPrefix + "Error during document comparison: {}", e.getMessage(), e);
             throw new IOException("Document comparison failed", e);
@@ -179,17 +233,60 @@ public class PDFComparisonEngine {
     }
 
     /**
-     * Match pages between two documents.
+     * Find the sub-documents of two files and pair them.
+     *
+     * @return The sub-document pairs, or an empty list if the files are compared as one document each
+     */
+    private List<DocumentPair> segmentDocuments(PdfDocument baseDocument, PdfDocument compareDocument) {
+        List<DocumentSegment> baseSegments = documentSegmenter.segment(baseDocument);
+        List<DocumentSegment> compareSegments = documentSegmenter.segment(compareDocument);
+        if (baseSegments.size() == 1 && compareSegments.size() == 1) {
+            return Collections.emptyList();
+        }
+        return documentSegmenter.matchSegments(baseDocument, baseSegments, compareDocument, compareSegments);
+    }
+
+    /**
+     * Match pages between two documents, inside each sub-document pair if the files were segmented.
      */
-    private List<PagePair> matchDocuments(PdfDocument baseDocument, PdfDocument compareDocument) throws IOException {
+    private List<PagePair> matchDocuments(PdfDocument baseDocument, PdfDocument compareDocument,
+                                          List<DocumentPair> documentPairs,
+                                          CancellationContext cancellation) throws IOException {
         DocumentMatchingStrategy matcher = documentMatcher;
         Map<String, Object> options = new HashMap<>();
         options.put("parallelProcessing", true);
         options.put("batchSize", batchSize);
+        options.put(CancellationContext.OPTION_KEY, cancellation);
 
+        if (!documentPairs.isEmpty()) {
+            return documentMatcher.matchDocumentPairs(baseDocument, compareDocument, documentPairs, options);
+        }
         return matcher.matchDocuments(baseDocument, compareDocument, options);
     }
 
+    /**
+     * Record the number of differences found in each sub-document pair.
+     */
+    private void countDocumentPairDifferences(List<DocumentPair> documentPairs, List<PagePair> pagePairs,
+                                              Map<String, List<Difference>> differencesByPage) {
+        for (DocumentPair documentPair : documentPairs) {
+            int total = 0;
+            for (PagePair pagePair : pagePairs) {
+                boolean inBase = pagePair.getBasePageNumber() > 0 && documentPair.isHasBaseDocument() &&
+                        pagePair.getBasePageNumber() >= documentPair.getBaseStartPage() &&
+                        pagePair.getBasePageNumber() <= documentPair.getBaseEndPage();
+                boolean inCompare = pagePair.getBasePageNumber() <= 0 && documentPair.isHasCompareDocument() &&
+                        pagePair.getComparePageNumber() >= documentPair.getCompareStartPage() &&
+                        pagePair.getComparePageNumber() <= documentPair.getCompareEndPage();
+                if (inBase || inCompare) {
+                    List<Difference> differences = differencesByPage.get(pagePair.getId());
+                    total += differences != null ? differences.size() : 0;
+                }
+            }
+            documentPair.setTotalDifferences(total);
+        }
+    }
+
     /**
      * Create a comparison summary.
      */
@@ -220,10 +317,13 @@ public class PDFComparisonEngine {
     /**
      * Compare pages between two documents with guaranteed completion.
      * This method uses a Semaphore to limit concurrent comparisons and ensures
-     * the process always completes within a reasonable time.
+     * the process always completes within a reasonable time. Cancellation is checked
+     * before each page pair, and page pairs in flight stop at their own checks.
      */
     private Map<String, List<Difference>> comparePages(
-            PdfDocument baseDocument, PdfDocument compareDocument, List<PagePair> pagePairs) {
+            PdfDocument baseDocument, PdfDocument compareDocument, List<PagePair> pagePairs,
+            ComparisonCheckpoint checkpoint, ComparisonProgressListener listener,
+            CancellationContext cancellation) {
 
         String logPrefix = "[" + baseDocument.getFileId() + " vs " + compareDocument.getFileId() + "] ";
         Map<String, List<Difference>> differencesByPage = new ConcurrentHashMap<>();
@@ -240,26 +340,44 @@ public class PDFComparisonEngine {
 
         int totalPairs = matchedPairs.size();
         AtomicInteger processedPairs = new AtomicInteger(0);
-        log.info(logPrefix + "Processing {} matched page pairs", totalPairs);
+
+        // Restore the page pairs an interrupted run already finished
+        List<PagePair> pendingPairs = new ArrayList<>();
+        for (PagePair pagePair : matchedPairs) {
+            if (checkpoint != null && checkpoint.isCompleted(pagePair.getId())) {
+                restorePagePair(pagePair, checkpoint.getCompletedPages().get(pagePair.getId()), differencesByPage);
+                processedPairs.incrementAndGet();
+            } else {
+                pendingPairs.add(pagePair);
+            }
+        }
+        log.info(logPrefix + "Processing {} matched page pairs ({} restored from checkpoint)",
+                totalPairs, totalPairs - pendingPairs.size());
 
         // Use a Semaphore to limit concurrent comparisons
         Semaphore semaphore = new Semaphore(MAX_CONCURRENT_PAGE_COMPARISONS);
 
-        if (parallelPageProcessing && totalPairs > 1) {
+        if (parallelPageProcessing && pendingPairs.size() > 1) {
             // Parallel processing with controlled concurrency
-            CountDownLatch completionLatch = new CountDownLatch(totalPairs);
+            CountDownLatch completionLatch = new CountDownLatch(pendingPairs.size());
 
-            for (PagePair pagePair : matchedPairs) {
+            for (PagePair pagePair : pendingPairs) {
+                cancellation.throwIfCancelled();
                 try {
                     // Acquire a permit before submitting the task
-                    semaphore.acquire();
+                    cancellation.acquire(semaphore);
 
                     CompletableFuture.runAsync(() -> {
                         try {
-                            processSinglePagePair(baseDocument, compareDocument, pagePair, differencesByPage);
+                            List<Difference> differences = processSinglePagePair(
+                                    baseDocument, compareDocument, pagePair, differencesByPage, cancellation);
                             int completed = processedPairs.incrementAndGet();
                             log.info(logPrefix + "Completed page pair {}/{} - Base: {}, Compare: {}",
                                     completed, totalPairs, pagePair.getBasePageNumber(), pagePair.getComparePageNumber());
+                            notifyPagePairCompleted(listener, pagePair, differences, completed, totalPairs);
+                        } catch (CancellationException e) {
+                            log.debug(logPrefix + "Abandoned page pair: Base={}, Compare={}",
+                                    pagePair.getBasePageNumber(), pagePair.getComparePageNumber());
                         } catch (Exception e) {
                             log.error(logPrefix + "Error processing page pair: Base={}, Compare={}: {}",
                                     pagePair.getBasePageNumber(), pagePair.getComparePageNumber(), e.getMessage());
@@ -278,7 +396,7 @@ public class PDFComparisonEngine {
 
             // Wait for all comparisons to complete or timeout
             try {
-                boolean completed = completionLatch.await(pageTimeoutMinutes, TimeUnit.MINUTES);
+                boolean completed = cancellation.await(completionLatch, pageTimeoutMinutes, TimeUnit.MINUTES);
                 if (!completed) {
                     log.warn(logPrefix + "Page comparison timed out after {} minutes. Processed {}/{} pages.",
                             pageTimeoutMinutes, processedPairs.get(), totalPairs);
@@ -291,12 +409,17 @@ public class PDFComparisonEngine {
             log.info(logPrefix + "Completed {}/{} page comparisons", processedPairs.get(), totalPairs);
         } else {
             // Sequential processing - more reliable but potentially slower
-            for (PagePair pagePair : matchedPairs) {
+            for (PagePair pagePair : pendingPairs) {
+                cancellation.throwIfCancelled();
                 try {
-                    processSinglePagePair(baseDocument, compareDocument, pagePair, differencesByPage);
+                    List<Difference> differences = processSinglePagePair(
+                            baseDocument, compareDocument, pagePair, differencesByPage, cancellation);
                     int completed = processedPairs.incrementAndGet();
                     log.info(logPrefix + "Completed page pair {}/{} - Base: {}, Compare: {}",
                             completed, totalPairs, pagePair.getBasePageNumber(), pagePair.getComparePageNumber());
+                    notifyPagePairCompleted(listener, pagePair, differences, completed, totalPairs);
+                } catch (CancellationException e) {
+                    throw e;
                 } catch (Exception e) {
                     log.error(logPrefix + "Error processing page pair: Base={}, Compare={}: {}",
                             pagePair.getBasePageNumber(), pagePair.getComparePageNumber(), e.getMessage());
@@ -305,6 +428,8 @@ public class PDFComparisonEngine {
             }
         }
 
+        cancellation.throwIfCancelled();
+
         // If we haven't found any differences but we should have (forced comparison)
         if (differencesByPage.isEmpty() && forceDifferences && !matchedPairs.isEmpty()) {
             log.info(logPrefix + "No differences found, but forcing at least one difference for visualization");
@@ -318,15 +443,48 @@ public class PDFComparisonEngine {
         return differencesByPage;
     }
 
+    /**
+     * Restore a page pair finished by an interrupted run.
+     */
+    private void restorePagePair(PagePair pagePair, List<Difference> differences,
+                                 Map<String, List<Difference>> differencesByPage) {
+        pagePair.getDifferences().clear();
+        if (differences == null || differences.isEmpty()) {
+            return;
+        }
+
+        differencesByPage.put(pagePair.getId(), differences);
+        for (Difference difference : differences) {
+            pagePair.addDifference(createPageDifference(difference));
+        }
+    }
+
+    /**
+     * Notify the listener of a finished page pair; listener failures never fail the comparison.
+     */
+    private void notifyPagePairCompleted(ComparisonProgressListener listener, PagePair pagePair,
+                                         List<Difference> differences, int completed, int total) {
+        try {
+            listener.onPagePairCompleted(pagePair, differences, completed, total);
+        } catch (Exception e) {
+            log.warn("Progress listener failed for page pair {}: {}", pagePair.getId(), e.getMessage());
+        }
+    }
+
     /**
      * Process a single page pair, finding all differences with a timeout.
      * Enhanced to properly handle text differences with coordinates.
+     *
+     * @return The differences found for the page pair
+     * @throws CancellationException If the comparison is cancelled
      */
-    private void processSinglePagePair(
+    private List<Difference> processSinglePagePair(
             PdfDocument baseDocument,
             PdfDocument compareDocument,
             PagePair pagePair,
-            Map<String, List<Difference>> differencesByPage) {
+            Map<String, List<Difference>> differencesByPage,
+            CancellationContext cancellation) {
+        cancellation.throwIfCancelled();
 
         String logPrefix = "[" + baseDocument.getFileId() + " vs " + compareDocument.getFileId() + "] ";
         int basePageNum = pagePair.getBasePageNumber();
@@ -347,7 +505,7 @@ public class PDFComparisonEngine {
 
                 // Use our enhanced text comparison service
                 List<TextDifference> textDifferences = textComparisonService.compareText(
-                        baseDocument, compareDocument, basePageNum, comparePageNum);
+                        baseDocument, compareDocument, basePageNum, comparePageNum, cancellation);
 
                 if (textDifferences != null && !textDifferences.isEmpty()) {
                     // Ensure all text differences have proper coordinate information
@@ -374,6 +532,8 @@ public class PDFComparisonEngine {
             } else {
                 log.warn(logPrefix + "Skipping text comparison due to timeout for page pair {}/{}", basePageNum, comparePageNum);
             }
+        } catch (CancellationException e) {
+            throw e;
         } catch (Exception e) {
             log.error(logPrefix + "Error comparing text for page pair {}/{}: {}",
                     basePageNum, comparePageNum, e.getMessage());
@@ -384,7 +544,7 @@ public class PDFComparisonEngine {
             if (System.currentTimeMillis() - startTime < maxTimeMs) {
                 log.info(logPrefix + "Starting image comparison for page pair {}/{}", basePageNum, comparePageNum);
                 List<ImageDifference> imageDifferences = imageComparisonService.compareImages(
-                        baseDocument, compareDocument, basePageNum, comparePageNum);
+                        baseDocument, compareDocument, basePageNum, comparePageNum, cancellation);
 
                 if (imageDifferences != null && !imageDifferences.isEmpty()) {
                     allDifferences.addAll(imageDifferences);
@@ -397,13 +557,30 @@ public class PDFComparisonEngine {
             } else {
                 log.warn(logPrefix + "Skipping image comparison due to timeout for page pair {}/{}", basePageNum, comparePageNum);
             }
+        } catch (CancellationException e) {
+            throw e;
         } catch (Exception e) {
             log.error(logPrefix + "Error comparing images for page pair {}/{}: {}",
                     basePageNum, comparePageNum, e.getMessage(), e);
             // Continue with processing - don't let image comparison failures block completion
         }
 
-        // Font differences are currently disabled as per original code
+        // Find font differences, a lookup in the font catalogs of both documents
+        try {
+            if (fontComparisonEnabled && System.currentTimeMillis() - startTime < maxTimeMs) {
+                List<FontDifference> fontDifferences = fontComparisonService.compareFonts(
+                        baseDocument, compareDocument, basePageNum, comparePageNum);
+
+                if (!fontDifferences.isEmpty()) {
+                    allDifferences.addAll(fontDifferences);
+                    log.info(logPrefix + "Found {} font differences for page pair {}/{}",
+                            fontDifferences.size(), basePageNum, comparePageNum);
+                }
+            }
+        } catch (Exception e) {
+            log.error(logPrefix + "Error comparing fonts for page pair {}/{}: {}",
+                    basePageNum, comparePageNum, e.getMessage());
+        }
 
         // Store differences if any found
         if (!allDifferences.isEmpty()) {
@@ -417,6 +594,7 @@ public class PDFComparisonEngine {
 
         log.info(logPrefix + "Completed processing page pair {}/{} with {} differences",
                 basePageNum, comparePageNum, allDifferences.size());
+        return allDifferences;
     }
 
     /**
@@ -1,22 +1,39 @@
 package guraa.pdfcompare.config;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.context.annotation.Primary;
 import org.springframework.scheduling.annotation.EnableAsync;
 
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Configuration for thread pools and concurrency settings.
- * Optimized for lower resource usage to prevent system overload.
+ * The application uses one executor per kind of work:
+ * <ul>
+ *   <li>{@code jobExecutor} runs comparison orchestration, one thread per job the scheduler admits;</li>
+ *   <li>{@code cpuExecutor} is a work-stealing pool sized to the cores for all CPU-bound work.
+ *       Nested parallel work forks into the pool it is already running in instead of a new one;</li>
+ *   <li>{@code ioExecutor} is a small bounded pool for rendering to disk and writing reports;</li>
+ *   <li>{@code renderExecutor} runs the workers of parallel page rendering, each with its own open document;</li>
+ *   <li>{@code preprocessingExecutor} runs background pre-processing at minimum priority;</li>
+ *   <li>{@code ocrExecutor} runs text recognition of scanned pages, each worker owning one OCR engine.</li>
+ * </ul>
+ * Every pool exports its queue depth and active thread metrics.
  */
 @Slf4j
 @Configuration
@@ -26,49 +43,161 @@ public class ConcurrencyConfig {
     // System information for adaptive scaling
     private final int availableProcessors = Runtime.getRuntime().availableProcessors();
 
-    @Value("${app.concurrency.rendering-threads:2}")
+    @Value("${app.concurrency.cpu-threads:0}")
     @Getter @Setter
-    private int renderingThreads = Math.min(2, availableProcessors);
+    private int cpuThreads = 0;
 
-    @Value("${app.concurrency.comparison-threads:4}")
+    @Value("${app.concurrency.io-threads:2}")
     @Getter @Setter
-    private int comparisonThreads = Math.min(4, availableProcessors);
+    private int ioThreads = 2;
 
-    @Value("${app.concurrency.page-processing-threads:3}")
+    @Value("${app.concurrency.io-queue-capacity:200}")
     @Getter @Setter
-    private int pageProcessingThreads = Math.min(3, availableProcessors);
+    private int ioQueueCapacity = 200;
+
+    @Value("${app.scheduler.small-lane.max-in-flight:2}")
+    private int smallLaneMaxInFlight;
+
+    @Value("${app.scheduler.large-lane.max-in-flight:1}")
+    private int largeLaneMaxInFlight;
+
+    @Value("${app.concurrency.preprocessing-threads:1}")
+    @Getter @Setter
+    private int preprocessingThreads = 1;
+
+    @Value("${app.concurrency.render-threads:0}")
+    @Getter @Setter
+    private int renderThreads = 0;
+
+    @Value("${app.concurrency.ocr-threads:0}")
+    @Getter @Setter
+    private int ocrThreads = 0;
 
     @Value("${app.concurrency.shutdown-timeout-seconds:30}")
     @Getter @Setter
     private int shutdownTimeoutSeconds = 30;
 
     /**
-     * Task executor for rendering PDFs.
-     * This executor is optimized for memory-intensive operations.
+     * Work-stealing pool for CPU-bound work: page comparisons, visual matching and SSIM.
+     *
+     * @param meterRegistry The meter registry for pool metrics
+     * @return The CPU pool
+     */
+    @Bean(name = "cpuExecutor")
+    public ForkJoinPool cpuExecutor(MeterRegistry meterRegistry) {
+        int parallelism = cpuThreads > 0 ? cpuThreads : availableProcessors;
+        log.info("Creating CPU executor with parallelism {}", parallelism);
+
+        AtomicInteger threadNumber = new AtomicInteger(1);
+        ClassLoader classLoader = getClass().getClassLoader();
+        ForkJoinPool.ForkJoinWorkerThreadFactory factory = pool -> {
+            ForkJoinWorkerThread thread = new ForkJoinWorkerThread(pool) {
+            };
+            thread.setName("cpu-" + threadNumber.getAndIncrement());
+            // Workers must see application classes (image readers, Jackson modules) like other pools do
+            thread.setContextClassLoader(classLoader);
+            return thread;
+        };
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism, factory,
+                (t, e) -> log.error("Uncaught exception in thread {}: {}", t.getName(), e.getMessage(), e),
+                false);
+        return bindMetrics(pool, "cpu", meterRegistry);
+    }
+
+    /**
+     * Bounded pool for I/O-heavy work. When its queue is full the submitting thread runs the task,
+     * which throttles producers instead of queueing without limit.
+     *
+     * @param meterRegistry The meter registry for pool metrics
+     * @return The I/O pool
+     */
+    @Bean(name = "ioExecutor")
+    public ExecutorService ioExecutor(MeterRegistry meterRegistry) {
+        log.info("Creating I/O executor with {} threads and queue capacity {}", ioThreads, ioQueueCapacity);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                ioThreads, ioThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(ioQueueCapacity),
+                createThreadFactory("io-", Thread.NORM_PRIORITY - 1),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return bindMetrics(executor, "io", meterRegistry);
+    }
+
+    /**
+     * Pool for parallel page rendering. Each task renders a shard of a document's pages with a
+     * document it opened for itself, so the pool size is the number of pages rendered at once.
+     *
+     * @param meterRegistry The meter registry for pool metrics
+     * @return The rendering pool
      */
-    @Bean(name = "renderingExecutor")
-    public ExecutorService renderingExecutor() {
-        log.info("Creating rendering executor with {} threads", renderingThreads);
-        return Executors.newFixedThreadPool(renderingThreads, createThreadFactory("render-", Thread.NORM_PRIORITY - 1));
+    @Bean(name = "renderExecutor")
+    public ExecutorService renderExecutor(MeterRegistry meterRegistry) {
+        int threads = renderThreads > 0 ? renderThreads : availableProcessors;
+        log.info("Creating render executor with {} threads", threads);
+        return bindMetrics(
+                Executors.newFixedThreadPool(threads, createThreadFactory("render-", Thread.NORM_PRIORITY - 1)),
+                "render", meterRegistry);
     }
 
     /**
-     * Task executor for comparing PDFs.
+     * Pool for comparison jobs. The scheduler never admits more jobs than its lanes allow in flight,
+     * so the pool is sized to exactly that.
+     *
+     * @param meterRegistry The meter registry for pool metrics
+     * @return The job pool
      */
-    @Bean(name = "comparisonExecutor")
-    public ExecutorService comparisonExecutor() {
-        log.info("Creating comparison executor with {} threads", comparisonThreads);
-        return Executors.newFixedThreadPool(comparisonThreads, createThreadFactory("compare-", Thread.NORM_PRIORITY));
+    @Bean(name = "jobExecutor")
+    public ExecutorService jobExecutor(MeterRegistry meterRegistry) {
+        int jobThreads = Math.max(1, smallLaneMaxInFlight) + Math.max(1, largeLaneMaxInFlight);
+        log.info("Creating job executor with {} threads", jobThreads);
+        return bindMetrics(
+                Executors.newFixedThreadPool(jobThreads, createThreadFactory("job-", Thread.NORM_PRIORITY)),
+                "job", meterRegistry);
     }
 
     /**
-     * Task executor specifically for processing PDF pages in parallel.
+     * Task executor for background pre-processing of uploaded documents.
+     * Runs at minimum priority so it never competes with interactive work.
+     *
+     * @param meterRegistry The meter registry for pool metrics
+     * @return The pre-processing pool
+     */
+    @Bean(name = "preprocessingExecutor")
+    public ExecutorService preprocessingExecutor(MeterRegistry meterRegistry) {
+        log.info("Creating pre-processing executor with {} threads", preprocessingThreads);
+        return bindMetrics(
+                Executors.newFixedThreadPool(preprocessingThreads, createThreadFactory("preprocess-", Thread.MIN_PRIORITY)),
+                "preprocessing", meterRegistry);
+    }
+
+    /**
+     * Pool for OCR of scanned pages. OCR engines are not thread-safe, so each worker keeps its own
+     * and the pool size is the number of pages recognized at once.
+     *
+     * @param meterRegistry The meter registry for pool metrics
+     * @return The OCR pool
+     */
+    @Bean(name = "ocrExecutor")
+    public ExecutorService ocrExecutor(MeterRegistry meterRegistry) {
+        int threads = ocrThreads > 0 ? ocrThreads : availableProcessors;
+        log.info("Creating OCR executor with {} threads", threads);
+        return bindMetrics(
+                Executors.newFixedThreadPool(threads, createThreadFactory("ocr-", Thread.NORM_PRIORITY - 1)),
+                "ocr", meterRegistry);
+    }
+
+    /**
+     * Register queue depth, active thread and completion metrics for a pool.
+     *
+     * @param executor The executor
+     * @param name The pool name used as the metric tag
+     * @param meterRegistry The meter registry
+     * @return The same executor
      */
-    @Bean(name = "pdfPageProcessingExecutor")
-    @Primary
-    public ExecutorService pdfPageProcessingExecutor() {
-        log.info("Creating PDF page processing executor with {} threads", pageProcessingThreads);
-        return Executors.newFixedThreadPool(pageProcessingThreads, createThreadFactory("pdf-page-", Thread.NORM_PRIORITY));
+    private <T extends ExecutorService> T bindMetrics(T executor, String name, MeterRegistry meterRegistry) {
+        new ExecutorServiceMetrics(executor, name, "pdfcompare", Tags.empty()).bindTo(meterRegistry);
+        return executor;
     }
 
     /**
@@ -98,4 +227,4 @@ public class ConcurrencyConfig {
             }
         };
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,27 @@
+package guraa.pdfcompare.controller;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Request for a batch of comparisons. Either a base file with the files to compare against it,
+ * or a set of files that are all compared against each other.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class BatchCompareRequest {
+    private String baseFileId;
+
+    @Builder.Default
+    private List<String> compareFileIds = new ArrayList<>();
+
+    @Builder.Default
+    private List<String> fileIds = new ArrayList<>();
+}
@@ -1,15 +1,20 @@
 package guraa.pdfcompare.controller;
 
 import guraa.pdfcompare.model.Comparison;
+import guraa.pdfcompare.model.ComparisonBatch;
 import guraa.pdfcompare.model.ComparisonResult;
 import guraa.pdfcompare.model.DocumentPair;
+import guraa.pdfcompare.model.PageDetails;
 import guraa.pdfcompare.model.PdfDocument;
 import guraa.pdfcompare.repository.ComparisonRepository;
 import guraa.pdfcompare.repository.PdfRepository;
+import guraa.pdfcompare.service.BatchComparisonService;
 import guraa.pdfcompare.service.ComparisonResultStorage;
 import guraa.pdfcompare.service.ComparisonService;
+import guraa.pdfcompare.service.QueueFullException;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
@@ -18,6 +23,7 @@ import javax.annotation.PostConstruct;
 import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.stream.Collectors;
 
 @RestController
 @RequestMapping("/api/pdfs/")
@@ -25,6 +31,7 @@ import java.util.*;
 @RequiredArgsConstructor
 public class ComparisonController {
     private final ComparisonService comparisonService;
+    private final BatchComparisonService batchComparisonService;
     private final ComparisonResultStorage resultStorage;
     private final ComparisonRepository comparisonRepository;
     private final PdfRepository pdfRepository;
@@ -66,8 +73,18 @@ public class ComparisonController {
             response.put("status", comparison.getStatus().name());
             response.put("message", "Comparison initiated successfully");
 
+            response.putAll(comparisonService.getQueueInfo(comparison.getId()));
+
             log.info("Comparison initiated with ID: {}", comparison.getId());
             return ResponseEntity.accepted().body(response);
+        } catch (QueueFullException e) {
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()))
+                    .body(Map.of(
+                            "error", "Comparison queue is full",
+                            "message", e.getMessage(),
+                            "retryAfterSeconds", e.getRetryAfterSeconds()
+                    ));
         } catch (Exception e) {
             log.error("Failed to initiate comparison: {}", e.getMessage(), e);
 
@@ -79,6 +96,76 @@ public class ComparisonController {
         }
     }
 
+    /**
+     * Start a batch of comparisons: one base file against many files, or all pairs of a set of files.
+     *
+     * @param request The batch request
+     * @return The batch ID and the IDs of its comparisons
+     */
+    @PostMapping("/compare/batch")
+    public ResponseEntity<?> compareDocumentBatch(@RequestBody BatchCompareRequest request) {
+        try {
+            ComparisonBatch batch;
+            if (request.getBaseFileId() != null) {
+                log.info("Received batch comparison request: baseFileId={}, {} compare files",
+                        request.getBaseFileId(), request.getCompareFileIds().size());
+                batch = batchComparisonService.createBaseVsManyBatch(
+                        request.getBaseFileId(), request.getCompareFileIds());
+            } else if (!request.getFileIds().isEmpty()) {
+                log.info("Received all-pairs batch comparison request for {} files", request.getFileIds().size());
+                batch = batchComparisonService.createAllPairsBatch(request.getFileIds());
+            } else {
+                return ResponseEntity.badRequest()
+                        .body(Map.of("error", "Either baseFileId with compareFileIds, or fileIds is required"));
+            }
+
+            Map<String, Object> response = new HashMap<>();
+            response.put("batchId", batch.getId());
+            response.put("mode", batch.getMode().name());
+            response.put("comparisonIds", batch.getItems().stream()
+                    .map(ComparisonBatch.Item::getComparisonId)
+                    .collect(Collectors.toList()));
+            response.put("message", "Batch comparison initiated successfully");
+            response.putAll(comparisonService.getQueueInfo(batch.getId()));
+
+            return ResponseEntity.accepted().body(response);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+        } catch (QueueFullException e) {
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()))
+                    .body(Map.of(
+                            "error", "Comparison queue is full",
+                            "message", e.getMessage(),
+                            "retryAfterSeconds", e.getRetryAfterSeconds()
+                    ));
+        } catch (Exception e) {
+            log.error("Failed to initiate batch comparison: {}", e.getMessage(), e);
+
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(Map.of(
+                            "error", "Failed to compare PDFs",
+                            "message", e.getMessage()
+                    ));
+        }
+    }
+
+    /**
+     * Get the aggregate status of a batch of comparisons.
+     *
+     * @param batchId The batch ID
+     * @return Overall status, counts per status, progress and the status of each comparison
+     */
+    @GetMapping("/compare/batch/{batchId}")
+    public ResponseEntity<?> getBatchStatus(@PathVariable String batchId) {
+        Map<String, Object> status = batchComparisonService.getBatchStatus(batchId);
+        if (status == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                    .body(Map.of("error", "Batch not found: " + batchId));
+        }
+        return ResponseEntity.ok(status);
+    }
+
     /**
      * Check if a comparison is ready using a HEAD request.
      *
@@ -188,8 +275,12 @@ public class ComparisonController {
                 response.put("elapsedTimeSeconds", duration.getSeconds());
                 response.put("startedAt", comparison.getCreatedAt());
 
-                // Flag as potentially stuck if running for too long
-                boolean potentiallyStuck = duration.toMinutes() > 5; // 5 minutes
+                // Queue position and lane while the comparison is scheduled
+                Map<String, Object> queueInfo = comparisonService.getQueueInfo(comparisonId);
+                response.putAll(queueInfo);
+
+                // Flag as potentially stuck if running for too long (waiting in the queue is not stuck)
+                boolean potentiallyStuck = duration.toMinutes() > 5 && !"QUEUED".equals(queueInfo.get("queueState"));
                 response.put("potentiallyStuck", potentiallyStuck);
             }
 
@@ -230,6 +321,7 @@ public class ComparisonController {
             progressResponse.put("completedOperations", comparison.getCompletedOperations());
             progressResponse.put("totalOperations", comparison.getTotalOperations());
             progressResponse.put("currentPhase", comparison.getCurrentPhase());
+            progressResponse.putAll(comparisonService.getQueueInfo(comparisonId));
 
             return ResponseEntity.ok(progressResponse);
         } catch (ResourceNotFoundException e) {
@@ -264,6 +356,53 @@ public class ComparisonController {
         }
     }
 
+    /**
+     * Get the details of one page. While the comparison runs, finished pages are returned
+     * as soon as they are compared; the {@code ready} flag is false for pages still pending.
+     */
+    @GetMapping("/{comparisonId}/pages/{pageNumber}")
+    public ResponseEntity<?> getPageDetails(@PathVariable String comparisonId,
+                                            @PathVariable int pageNumber,
+                                            @RequestParam Map<String, Object> filters) {
+        try {
+            PageDetails pageDetails = comparisonService.getPageDetails(comparisonId, pageNumber, filters);
+            if (pageDetails == null) {
+                return ResponseEntity.notFound().build();
+            }
+            return pageResponse(pageDetails);
+        } catch (Exception e) {
+            log.error("Error retrieving page {} of comparison {}", pageNumber, comparisonId, e);
+            return ResponseEntity.internalServerError()
+                    .body(Map.of("error", "Failed to retrieve page details"));
+        }
+    }
+
+    @GetMapping("/{comparisonId}/documents/{pairIndex}/pages/{pageNumber}")
+    public ResponseEntity<?> getPageDetailsForPair(@PathVariable String comparisonId,
+                                                   @PathVariable int pairIndex,
+                                                   @PathVariable int pageNumber,
+                                                   @RequestParam Map<String, Object> filters) {
+        try {
+            PageDetails pageDetails = comparisonService.getPageDetailsForPair(comparisonId, pairIndex, pageNumber, filters);
+            if (pageDetails == null) {
+                return ResponseEntity.notFound().build();
+            }
+            return pageResponse(pageDetails);
+        } catch (Exception e) {
+            log.error("Error retrieving page {} of pair {} in comparison {}", pageNumber, pairIndex, comparisonId, e);
+            return ResponseEntity.internalServerError()
+                    .body(Map.of("error", "Failed to retrieve page details"));
+        }
+    }
+
+    private ResponseEntity<?> pageResponse(PageDetails pageDetails) {
+        // Pending pages are answered 202 so clients keep polling them, like a running comparison
+        if (Boolean.FALSE.equals(pageDetails.getReady())) {
+            return ResponseEntity.status(HttpStatus.ACCEPTED).body(pageDetails);
+        }
+        return ResponseEntity.ok(pageDetails);
+    }
+
     @GetMapping("/{comparisonId}")
     public ResponseEntity<?> getComparisonResult(@PathVariable String comparisonId) {
         try {
@@ -271,7 +410,8 @@ public class ComparisonController {
                     .orElseThrow(() -> new ResourceNotFoundException("Comparison not found"));
 
             // Check comparison status
-            if (comparison.getStatus() == Comparison.ComparisonStatus.PROCESSING) {
+            if (comparison.getStatus() == Comparison.ComparisonStatus.PROCESSING ||
+                    comparison.getStatus() == Comparison.ComparisonStatus.PENDING) {
                 return ResponseEntity.accepted()
                         .body(createProcessingResponse(comparison));
             }
@@ -316,6 +456,7 @@ public class ComparisonController {
     private Map<String, Object> createProcessingResponse(Comparison comparison) {
         Map<String, Object> processingResponse = new HashMap<>();
         processingResponse.put("status", "PROCESSING");
+        processingResponse.putAll(comparisonService.getQueueInfo(comparison.getId()));
         processingResponse.put("progress", comparison.getProgress());
         processingResponse.put("currentPhase", comparison.getCurrentPhase());
         processingResponse.put("completedOperations", comparison.getCompletedOperations());
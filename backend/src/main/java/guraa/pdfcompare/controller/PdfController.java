@@ -1,8 +1,14 @@
 package guraa.pdfcompare.controller;
 
 import guraa.pdfcompare.model.PdfDocument;
+import guraa.pdfcompare.model.SimilarDocument;
+import guraa.pdfcompare.service.DocumentPreprocessingService;
+import guraa.pdfcompare.service.DocumentSimilarityIndex;
+import guraa.pdfcompare.service.PageTileService;
 import guraa.pdfcompare.service.PdfRenderingService;
 import guraa.pdfcompare.service.PdfService;
+import guraa.pdfcompare.service.ThumbnailSpriteService;
+import guraa.pdfcompare.util.HttpFileUtils;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.tomcat.util.http.fileupload.FileItemIterator;
@@ -16,14 +22,13 @@ import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.file.Files;
-import java.nio.file.Path;
 import java.time.LocalDateTime;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 @Slf4j
@@ -34,6 +39,10 @@ public class PdfController {
 
     private final PdfService pdfService;
     private final PdfRenderingService pdfRenderingService;
+    private final PageTileService pageTileService;
+    private final DocumentPreprocessingService preprocessingService;
+    private final DocumentSimilarityIndex similarityIndex;
+    private final ThumbnailSpriteService thumbnailSpriteService;
 
     /**
      * Upload a PDF file.
@@ -52,12 +61,8 @@ public class PdfController {
                 return ResponseEntity.badRequest().body(Map.of("error", "Only PDF files are allowed"));
             }
 
-            // Create a temporary file to store the upload
-            Path tempFile = Files.createTempFile("pdf-upload", ".pdf");
-            file.transferTo(tempFile.toFile());
-
-            // Process the PDF
-            PdfDocument document = pdfService.processPdfFile(tempFile.toFile(), file.getOriginalFilename());
+            // Store the PDF, hashing while it is streamed into the document store
+            PdfDocument document = pdfService.storePdf(file);
 
             Map<String, Object> response = new HashMap<>();
             response.put("fileId", document.getFileId());
@@ -68,9 +73,6 @@ public class PdfController {
             // Add a flag to indicate if this was a reused document
             response.put("reused", document.getUploadDate().isBefore(LocalDateTime.now().minusMinutes(1)));
 
-            // Clean up the temp file
-            Files.deleteIfExists(tempFile);
-
             return ResponseEntity.ok().body(response);
         } catch (IOException e) {
             log.error("Failed to upload PDF", e);
@@ -102,19 +104,82 @@ public class PdfController {
         }
     }
 
+    /**
+     * Find the uploaded documents most similar to a document.
+     * A document that is not indexed yet is queued for indexing and answered with 202 Accepted
+     * and its pre-processing status; the client polls until results are returned.
+     *
+     * @param fileId   The file ID
+     * @param limit    The maximum number of results
+     * @param minScore The minimum similarity score from 0 to 1
+     * @return The most similar documents, best first
+     */
+    @GetMapping("/document/{fileId}/similar")
+    public ResponseEntity<?> findSimilarDocuments(
+            @PathVariable String fileId,
+            @RequestParam(defaultValue = "10") int limit,
+            @RequestParam(defaultValue = "0.1") double minScore) {
+        try {
+            PdfDocument document = pdfService.getDocumentById(fileId);
+            if (!similarityIndex.isIndexed(fileId) && preprocessingService.submitForIndexing(document)) {
+                Map<String, Object> response = new HashMap<>(preprocessingService.getStatus(fileId));
+                response.put("indexing", true);
+                return ResponseEntity.status(HttpStatus.ACCEPTED).body(response);
+            }
+
+            long start = System.currentTimeMillis();
+            List<SimilarDocument> similar = similarityIndex.findSimilar(document, Math.max(1, limit), minScore);
+
+            Map<String, Object> response = new HashMap<>();
+            response.put("fileId", fileId);
+            response.put("results", similar);
+            response.put("queryTimeMs", System.currentTimeMillis() - start);
+            return ResponseEntity.ok().body(response);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.notFound().build();
+        }
+    }
+
+    /**
+     * Get the background pre-processing status of a document.
+     *
+     * @param fileId The file ID
+     * @return The pre-processing state and progress
+     */
+    @GetMapping("/document/{fileId}/preprocessing")
+    public ResponseEntity<?> getPreprocessingStatus(@PathVariable String fileId) {
+        return ResponseEntity.ok().body(preprocessingService.getStatus(fileId));
+    }
+
+    /**
+     * Cancel background pre-processing of a document.
+     *
+     * @param fileId The file ID
+     * @return Whether a job was cancelled
+     */
+    @DeleteMapping("/document/{fileId}/preprocessing")
+    public ResponseEntity<?> cancelPreprocessing(@PathVariable String fileId) {
+        boolean cancelled = preprocessingService.cancel(fileId);
+        return ResponseEntity.ok().body(Map.of("fileId", fileId, "cancelled", cancelled));
+    }
+
     /**
      * Get a specific page from a PDF document as an image.
      *
      * @param fileId        The file ID
      * @param pageNumber    The page number (1-based)
      * @param forceRerender Whether to force re-rendering of the page
+     * @param request       The HTTP request
+     * @param response      The HTTP response
      * @return The page as an image
      */
     @GetMapping("/document/{fileId}/page/{pageNumber}")
     public ResponseEntity<?> getDocumentPage(
             @PathVariable String fileId,
             @PathVariable int pageNumber,
-            @RequestParam(required = false, defaultValue = "false") boolean forceRerender) {
+            @RequestParam(required = false, defaultValue = "false") boolean forceRerender,
+            HttpServletRequest request,
+            HttpServletResponse response) {
 
         try {
             // Get the document
@@ -143,9 +208,10 @@ public class PdfController {
             // Get the rendered page image using the rendering service
             FileSystemResource pageImage = pdfRenderingService.getRenderedPage(document, pageNumber);
 
-            return ResponseEntity.ok()
-                    .contentType(MediaType.IMAGE_PNG)
-                    .body(pageImage);
+            String etag = HttpFileUtils.strongETag(contentKey(document), "p" + pageNumber,
+                    pdfRenderingService.getRenderingDpi());
+            HttpFileUtils.serveFile(request, response, pageImage.getFile(), etag, MediaType.IMAGE_PNG_VALUE);
+            return null;
         } catch (Exception e) {
             log.error("Failed to get document page: {}", e.getMessage());
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
@@ -153,6 +219,85 @@ public class PdfController {
         }
     }
 
+    /**
+     * Get a tile of a page for deep-zoom viewing.
+     * Only the requested region is rendered, at the resolution of the zoom level.
+     *
+     * @param fileId     The file ID
+     * @param pageNumber The page number (1-based)
+     * @param z          The zoom level
+     * @param x          The tile column
+     * @param y          The tile row
+     * @param request    The HTTP request
+     * @param response   The HTTP response
+     * @return The tile as an image
+     */
+    @GetMapping("/document/{fileId}/page/{pageNumber}/tile/{z}/{x}/{y}")
+    public ResponseEntity<?> getPageTile(
+            @PathVariable String fileId,
+            @PathVariable int pageNumber,
+            @PathVariable int z,
+            @PathVariable int x,
+            @PathVariable int y,
+            HttpServletRequest request,
+            HttpServletResponse response) {
+
+        try {
+            PdfDocument document = pdfService.getDocumentById(fileId);
+
+            if (pageNumber < 1 || pageNumber > document.getPageCount()) {
+                return ResponseEntity.badRequest().body(Map.of(
+                        "error", "Invalid page number: " + pageNumber,
+                        "maxPage", document.getPageCount()
+                ));
+            }
+
+            FileSystemResource tile = pageTileService.getTile(document, pageNumber, z, x, y);
+
+            String etag = HttpFileUtils.strongETag(contentKey(document), "p" + pageNumber,
+                    pageTileService.getTileDpi(z), x + "_" + y);
+            HttpFileUtils.serveFile(request, response, tile.getFile(), etag, MediaType.IMAGE_PNG_VALUE);
+            return null;
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+        } catch (Exception e) {
+            log.error("Failed to get page tile: {}", e.getMessage());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(Map.of("error", "Failed to render tile: " + e.getMessage()));
+        }
+    }
+
+    /**
+     * Get the tile grid layout of a page for every zoom level.
+     *
+     * @param fileId     The file ID
+     * @param pageNumber The page number (1-based)
+     * @return The tile layout
+     */
+    @GetMapping("/document/{fileId}/page/{pageNumber}/tiles")
+    public ResponseEntity<?> getPageTileLayout(
+            @PathVariable String fileId,
+            @PathVariable int pageNumber) {
+
+        try {
+            PdfDocument document = pdfService.getDocumentById(fileId);
+
+            if (pageNumber < 1 || pageNumber > document.getPageCount()) {
+                return ResponseEntity.badRequest().body(Map.of(
+                        "error", "Invalid page number: " + pageNumber,
+                        "maxPage", document.getPageCount()
+                ));
+            }
+
+            return ResponseEntity.ok().body(pageTileService.getTileLayout(document, pageNumber));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+        } catch (Exception e) {
+            log.error("Failed to get page tile layout: {}", e.getMessage());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(Map.of("error", "Failed to get tile layout: " + e.getMessage()));
+        }
+    }
 
     /**
      * Upload a PDF file with streaming support for large files.
@@ -169,41 +314,22 @@ public class PdfController {
                 return ResponseEntity.badRequest().body(Map.of("error", "Expected multipart request"));
             }
 
-            // Create a temporary file to store the uploaded content
-            Path tempDir = Files.createTempDirectory("pdf-upload");
-            File tempFile = Files.createTempFile(tempDir, "upload-", ".pdf").toFile();
+            // Process the multipart request to find the file part
+            ServletFileUpload upload = new ServletFileUpload();
+            FileItemIterator iterator = upload.getItemIterator(request);
 
-            try {
-                // Process the multipart request to find the file part
-                ServletFileUpload upload = new ServletFileUpload();
-                FileItemIterator iterator = upload.getItemIterator(request);
+            while (iterator.hasNext()) {
+                FileItemStream item = iterator.next();
 
-                String fileName = "document.pdf"; // Default name if none provided
+                if (item.isFormField()) {
+                    continue;
+                }
 
-                while (iterator.hasNext()) {
-                    FileItemStream item = iterator.next();
-
-                    if (!item.isFormField()) {
-                        // Found a file upload
-                        String name = item.getName();
-                        if (name != null && !name.isEmpty()) {
-                            fileName = name;
-                        }
-
-                        // Stream the file to disk
-                        try (InputStream inputStream = item.openStream();
-                             FileOutputStream outputStream = new FileOutputStream(tempFile)) {
-
-                            byte[] buffer = new byte[8192];
-                            int bytesRead;
-                            while ((bytesRead = inputStream.read(buffer)) != -1) {
-                                outputStream.write(buffer, 0, bytesRead);
-                            }
-                        }
-
-                        // Break after processing the file part
-                        break;
-                    }
+                // Found a file upload
+                String fileName = "document.pdf"; // Default name if none provided
+                String name = item.getName();
+                if (name != null && !name.isEmpty()) {
+                    fileName = name;
                 }
 
                 // Check if it's a PDF file
@@ -211,8 +337,11 @@ public class PdfController {
                     return ResponseEntity.badRequest().body(Map.of("error", "Only PDF files are allowed"));
                 }
 
-                // Process the PDF
-                PdfDocument document = pdfService.processPdfFile(tempFile, fileName);
+                // Stream the part straight into the document store, hashing as it goes
+                PdfDocument document;
+                try (InputStream inputStream = item.openStream()) {
+                    document = pdfService.storePdfStream(inputStream, fileName);
+                }
 
                 // Create response
                 Map<String, Object> response = new HashMap<>();
@@ -225,16 +354,9 @@ public class PdfController {
                 response.put("reused", document.getUploadDate().isBefore(LocalDateTime.now().minusMinutes(1)));
 
                 return ResponseEntity.ok().body(response);
-
-            } finally {
-                // Clean up temporary files
-                try {
-                    tempFile.delete();
-                    Files.deleteIfExists(tempDir);
-                } catch (Exception e) {
-                    log.warn("Failed to delete temporary files: {}", e.getMessage());
-                }
             }
+
+            return ResponseEntity.badRequest().body(Map.of("error", "No file part found in request"));
         } catch (Exception e) {
             log.error("Failed to upload PDF via streaming", e);
             return ResponseEntity.internalServerError().body(Map.of("error", "Failed to upload PDF: " + e.getMessage()));
@@ -248,13 +370,18 @@ public class PdfController {
      *
      * @param fileId     The file ID
      * @param pageNumber The page number (1-based)
+     * @param forceRegenerate Whether to force regeneration of the thumbnail
+     * @param request    The HTTP request
+     * @param response   The HTTP response
      * @return The thumbnail as an image
      */
     @GetMapping("/document/{fileId}/thumbnail/{pageNumber}")
     public ResponseEntity<?> getDocumentThumbnail(
             @PathVariable String fileId,
             @PathVariable int pageNumber,
-            @RequestParam(required = false, defaultValue = "false") boolean forceRegenerate) {
+            @RequestParam(required = false, defaultValue = "false") boolean forceRegenerate,
+            HttpServletRequest request,
+            HttpServletResponse response) {
 
         try {
             // Get the document
@@ -283,9 +410,10 @@ public class PdfController {
             // Get the thumbnail using the rendering service
             FileSystemResource thumbnailImage = pdfRenderingService.getThumbnail(document, pageNumber);
 
-            return ResponseEntity.ok()
-                    .contentType(MediaType.IMAGE_PNG)
-                    .body(thumbnailImage);
+            String etag = HttpFileUtils.strongETag(contentKey(document), "t" + pageNumber,
+                    pdfRenderingService.getThumbnailDpi());
+            HttpFileUtils.serveFile(request, response, thumbnailImage.getFile(), etag, MediaType.IMAGE_PNG_VALUE);
+            return null;
         } catch (Exception e) {
             log.error("Failed to get document thumbnail: {}", e.getMessage());
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
@@ -293,4 +421,76 @@ public class PdfController {
         }
     }
 
-}
\ No newline at end of file
+    /**
+     * Get the thumbnail sprite index of a PDF document: the sheets and where each page's
+     * thumbnail is on its sheet. Laid out from the page sizes, without rendering.
+     *
+     * @param fileId   The file ID
+     * @param request  The HTTP request
+     * @param response The HTTP response
+     * @return The sprite index as JSON
+     */
+    @GetMapping("/document/{fileId}/thumbnails")
+    public ResponseEntity<?> getThumbnailSpriteIndex(
+            @PathVariable String fileId,
+            HttpServletRequest request,
+            HttpServletResponse response) {
+
+        try {
+            PdfDocument document = pdfService.getDocumentById(fileId);
+
+            File index = thumbnailSpriteService.getIndexFile(document);
+
+            String etag = HttpFileUtils.strongETag(contentKey(document), "ts", thumbnailSpriteService.getLayout());
+            HttpFileUtils.serveFile(request, response, index, etag, MediaType.APPLICATION_JSON_VALUE);
+            return null;
+        } catch (Exception e) {
+            log.error("Failed to get thumbnail sprite index: {}", e.getMessage());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(Map.of("error", "Failed to get thumbnail index: " + e.getMessage()));
+        }
+    }
+
+    /**
+     * Get a thumbnail sprite sheet of a PDF document.
+     *
+     * @param fileId   The file ID
+     * @param sheet    The sheet number (0-based), see the sprite index
+     * @param request  The HTTP request
+     * @param response The HTTP response
+     * @return The sprite sheet as an image
+     */
+    @GetMapping("/document/{fileId}/thumbnails/{sheet}")
+    public ResponseEntity<?> getThumbnailSpriteSheet(
+            @PathVariable String fileId,
+            @PathVariable int sheet,
+            HttpServletRequest request,
+            HttpServletResponse response) {
+
+        try {
+            PdfDocument document = pdfService.getDocumentById(fileId);
+
+            File sheetFile = thumbnailSpriteService.getSheet(document, sheet);
+
+            String etag = HttpFileUtils.strongETag(contentKey(document), "ts" + sheet, thumbnailSpriteService.getLayout());
+            HttpFileUtils.serveFile(request, response, sheetFile, etag, MediaType.IMAGE_PNG_VALUE);
+            return null;
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+        } catch (Exception e) {
+            log.error("Failed to get thumbnail sprite sheet: {}", e.getMessage());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(Map.of("error", "Failed to render thumbnail sheet: " + e.getMessage()));
+        }
+    }
+
+    /**
+     * Get the key that identifies the content of a document for ETags.
+     *
+     * @param document The document
+     * @return The content hash, or the file ID for documents without one
+     */
+    private String contentKey(PdfDocument document) {
+        return document.getContentHash() != null ? document.getContentHash() : document.getFileId();
+    }
+}
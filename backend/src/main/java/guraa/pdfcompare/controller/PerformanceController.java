@@ -1,5 +1,8 @@
 package guraa.pdfcompare.controller;
 
+import guraa.pdfcompare.service.ComparisonJobScheduler;
+import guraa.pdfcompare.service.MemoryGovernor;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
@@ -15,8 +18,38 @@ import java.util.Map;
 @Slf4j
 @RestController
 @RequestMapping("/api/diagnostics")
+@RequiredArgsConstructor
 public class PerformanceController {
 
+    private final ComparisonJobScheduler jobScheduler;
+    private final MemoryGovernor memoryGovernor;
+
+    /**
+     * Get the comparison job queue statistics per lane.
+     *
+     * @return Queue and in-flight counts per lane
+     */
+    @GetMapping("/queue")
+    public ResponseEntity<?> getQueueStatistics() {
+        Map<String, Object> response = new HashMap<>();
+        response.put("lanes", jobScheduler.getStatistics());
+        response.put("timestamp", System.currentTimeMillis());
+        return ResponseEntity.ok(response);
+    }
+
+    /**
+     * Get the raster memory budget statistics.
+     *
+     * @return Budget, reservation and wait statistics
+     */
+    @GetMapping("/memory")
+    public ResponseEntity<?> getMemoryStatistics() {
+        Map<String, Object> response = new HashMap<>();
+        response.put("rasterBudget", memoryGovernor.getStatistics());
+        response.put("timestamp", System.currentTimeMillis());
+        return ResponseEntity.ok(response);
+    }
+
     /**
      * Get the current performance metrics.
      * Note: This is a placeholder as performance monitoring has been disabled.
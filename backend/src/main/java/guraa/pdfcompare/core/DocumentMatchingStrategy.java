@@ -19,7 +19,8 @@ public interface DocumentMatchingStrategy {
      *
      * @param baseDocument The base document
      * @param compareDocument The document to compare against the base
-     * @param options Additional options for the matching algorithm
+     * @param options Additional options for the matching algorithm; a {@code CancellationContext}
+     *                under {@code CancellationContext.OPTION_KEY} lets the comparison stop matching
      * @return A list of page pairs
      * @throws IOException If there is an error matching the documents
      */
@@ -0,0 +1,327 @@
+package guraa.pdfcompare.core;
+
+import guraa.pdfcompare.model.DocumentPair;
+import guraa.pdfcompare.model.DocumentSegment;
+import guraa.pdfcompare.model.PageSignature;
+import guraa.pdfcompare.model.PdfDocument;
+import guraa.pdfcompare.service.PageArtifactService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Detects the boundaries of the documents concatenated in one PDF file and matches
+ * the documents of two files to each other.
+ * Segmentation works on the pre-computed page signatures and page text only, so it costs
+ * nothing compared to page matching, and page matching then only has to run inside each
+ * matched pair of documents.
+ */
+@Slf4j
+@Component
+public class DocumentSegmenter {
+
+    // Page numbering that starts again, e.g. "Page 1 of 12"
+    private static final Pattern FIRST_PAGE_NUMBER = Pattern.compile("(?i)page\\s*1\\s*(of|/)\\s*\\d+");
+
+    // Only the start of a page is searched for first-page markers
+    private static final int HEADER_CHARS = 400;
+
+    // Visual hashes this close are considered the same page layout
+    private static final int SAME_LAYOUT_BITS = 6;
+    private static final int DIFFERENT_LAYOUT_BITS = 12;
+
+    // Boundary evidence weights, a boundary needs BOUNDARY_SCORE in total
+    private static final int NUMBERING_RESTART_WEIGHT = 3;
+    private static final int BLANK_SEPARATOR_WEIGHT = 2;
+    private static final int FIRST_PAGE_LAYOUT_WEIGHT = 2;
+    private static final int PAGE_SIZE_CHANGE_WEIGHT = 1;
+    private static final int BOUNDARY_SCORE = 2;
+
+    private final PageArtifactService pageArtifactService;
+
+    @Value("${app.segmentation.enabled:true}")
+    private boolean enabled = true;
+
+    @Value("${app.segmentation.min-pages:2}")
+    private int minSegmentPages = 2;
+
+    @Value("${app.segmentation.match-threshold:0.35}")
+    private double matchThreshold = 0.35;
+
+    /**
+     * Constructor.
+     *
+     * @param pageArtifactService The page artifact service for page signatures
+     */
+    public DocumentSegmenter(PageArtifactService pageArtifactService) {
+        this.pageArtifactService = pageArtifactService;
+    }
+
+    /**
+     * Split a file into the documents it concatenates.
+     *
+     * @param document The PDF file
+     * @return The segments in page order; a single segment spanning all pages if segmentation is
+     *         disabled, the page signatures are not available or no boundary was found
+     */
+    public List<DocumentSegment> segment(PdfDocument document) {
+        List<PageSignature> signatures = pageArtifactService.getSignatures(document);
+        if (!enabled || signatures.size() != document.getPageCount() || signatures.size() < 2 * minSegmentPages) {
+            return Collections.singletonList(buildSegment(signatures, 1, document.getPageCount()));
+        }
+
+        List<DocumentSegment> segments = new ArrayList<>();
+        int segmentStart = 1;
+        for (int pageNumber = 2; pageNumber <= signatures.size(); pageNumber++) {
+            boolean longEnough = pageNumber - segmentStart >= minSegmentPages &&
+                    signatures.size() - pageNumber + 1 >= minSegmentPages;
+            if (longEnough && boundaryScore(document, signatures, segmentStart, pageNumber) >= BOUNDARY_SCORE) {
+                segments.add(buildSegment(signatures, segmentStart, pageNumber - 1));
+                segmentStart = pageNumber;
+            }
+        }
+        segments.add(buildSegment(signatures, segmentStart, signatures.size()));
+
+        if (segments.size() > 1) {
+            log.info("Found {} documents in file {}", segments.size(), document.getFileId());
+        }
+        return segments;
+    }
+
+    /**
+     * Match the documents of two segmented files.
+     * Segments are paired greedily, best first, on shared page content, first-page layout and length.
+     * A boundary is often found in one file only, e.g. at a blank verso, so a segment without a
+     * partner is merged into the preceding segment of its file (the following one if it is the first),
+     * and its pages are matched together with the document they most likely belong to.
+     *
+     * @param baseDocument The base file
+     * @param baseSegments The segments of the base file
+     * @param compareDocument The compare file
+     * @param compareSegments The segments of the compare file
+     * @return The document pairs in base page order, or an empty list if the files do not split into
+     *         at least two matching documents and are to be compared whole
+     */
+    public List<DocumentPair> matchSegments(PdfDocument baseDocument, List<DocumentSegment> baseSegments,
+                                            PdfDocument compareDocument, List<DocumentSegment> compareSegments) {
+        List<double[]> candidates = new ArrayList<>();
+        for (int i = 0; i < baseSegments.size(); i++) {
+            for (int j = 0; j < compareSegments.size(); j++) {
+                double score = similarity(baseSegments.get(i), compareSegments.get(j));
+                if (score >= matchThreshold) {
+                    candidates.add(new double[]{score, i, j});
+                }
+            }
+        }
+        candidates.sort(Comparator.comparingDouble((double[] c) -> c[0]).reversed());
+
+        int[] baseMatch = new int[baseSegments.size()];
+        boolean[] compareMatched = new boolean[compareSegments.size()];
+        double[] baseScore = new double[baseSegments.size()];
+        Arrays.fill(baseMatch, -1);
+        for (double[] candidate : candidates) {
+            int i = (int) candidate[1];
+            int j = (int) candidate[2];
+            if (baseMatch[i] == -1 && !compareMatched[j]) {
+                baseMatch[i] = j;
+                baseScore[i] = candidate[0];
+                compareMatched[j] = true;
+            }
+        }
+
+        boolean[] baseMatched = new boolean[baseSegments.size()];
+        int matchedCount = 0;
+        for (int i = 0; i < baseSegments.size(); i++) {
+            baseMatched[i] = baseMatch[i] >= 0;
+            matchedCount += baseMatched[i] ? 1 : 0;
+        }
+        if (matchedCount < 2) {
+            return Collections.emptyList();
+        }
+
+        List<DocumentSegment> mergedBase = mergeUnmatched(baseSegments, baseMatched);
+        List<DocumentSegment> mergedCompare = mergeUnmatched(compareSegments, compareMatched);
+
+        List<DocumentPair> pairs = new ArrayList<>();
+        for (int i = 0; i < baseSegments.size(); i++) {
+            if (!baseMatched[i]) {
+                continue;
+            }
+            DocumentSegment base = mergedBase.get(i);
+            DocumentSegment compare = mergedCompare.get(baseMatch[i]);
+            boolean merged = base != baseSegments.get(i) || compare != compareSegments.get(baseMatch[i]);
+            pairs.add(buildPair(pairs.size(), baseDocument, base, compareDocument, compare,
+                    merged ? similarity(base, compare) : baseScore[i]));
+        }
+        return pairs;
+    }
+
+    // Private helper methods
+
+    /**
+     * Merge every unmatched segment into the nearest preceding matched segment of its file,
+     * or into the following one if no segment before it is matched.
+     *
+     * @return The segments by their original index, widened where segments were merged into
+     *         them; null for the merged segments
+     */
+    private List<DocumentSegment> mergeUnmatched(List<DocumentSegment> segments, boolean[] matched) {
+        int[] owner = new int[segments.size()];
+        int previous = -1;
+        for (int i = 0; i < segments.size(); i++) {
+            if (matched[i]) {
+                previous = i;
+            }
+            owner[i] = previous;
+        }
+        int next = -1;
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            if (matched[i]) {
+                next = i;
+            }
+            if (owner[i] == -1) {
+                owner[i] = next;
+            }
+        }
+
+        List<DocumentSegment> merged = new ArrayList<>(segments);
+        for (int i = 0; i < segments.size(); i++) {
+            if (matched[i]) {
+                continue;
+            }
+            DocumentSegment into = merged.get(owner[i]);
+            DocumentSegment segment = segments.get(i);
+            Set<Long> tokens = new HashSet<>(into.getPageTokens());
+            tokens.addAll(segment.getPageTokens());
+            merged.set(owner[i], DocumentSegment.builder()
+                    .startPage(Math.min(into.getStartPage(), segment.getStartPage()))
+                    .endPage(Math.max(into.getEndPage(), segment.getEndPage()))
+                    .firstPageVisualHash(segment.getStartPage() < into.getStartPage()
+                            ? segment.getFirstPageVisualHash() : into.getFirstPageVisualHash())
+                    .pageTokens(tokens)
+                    .build());
+            merged.set(i, null);
+        }
+        return merged;
+    }
+
+    /**
+     * Weigh the evidence that a new document starts at a page.
+     */
+    private int boundaryScore(PdfDocument document, List<PageSignature> signatures, int segmentStart, int pageNumber) {
+        PageSignature previous = signatures.get(pageNumber - 2);
+        PageSignature page = signatures.get(pageNumber - 1);
+        PageSignature segmentFirstPage = signatures.get(segmentStart - 1);
+        int score = 0;
+
+        if (isBlank(previous) && !isBlank(page)) {
+            score += BLANK_SEPARATOR_WEIGHT;
+        }
+
+        if (page.getVisualHash() != 0 &&
+                Long.bitCount(page.getVisualHash() ^ segmentFirstPage.getVisualHash()) <= SAME_LAYOUT_BITS &&
+                Long.bitCount(page.getVisualHash() ^ previous.getVisualHash()) > DIFFERENT_LAYOUT_BITS) {
+            score += FIRST_PAGE_LAYOUT_WEIGHT;
+        }
+
+        if (Math.abs(page.getWidth() - previous.getWidth()) > 0.02 * previous.getWidth() ||
+                Math.abs(page.getHeight() - previous.getHeight()) > 0.02 * previous.getHeight()) {
+            score += PAGE_SIZE_CHANGE_WEIGHT;
+        }
+
+        if (page.getTextLength() > 0 && FIRST_PAGE_NUMBER.matcher(readPageHeader(document, pageNumber)).find()) {
+            score += NUMBERING_RESTART_WEIGHT;
+        }
+        return score;
+    }
+
+    /**
+     * A page without text whose average hash has (almost) no bits set draws nothing.
+     */
+    private boolean isBlank(PageSignature signature) {
+        int bits = Long.bitCount(signature.getVisualHash());
+        return signature.getTextLength() == 0 && (bits <= 2 || bits >= 62);
+    }
+
+    private String readPageHeader(PdfDocument document, int pageNumber) {
+        Path textFile = Paths.get(document.getExtractedTextPath(pageNumber));
+        if (!Files.exists(textFile)) {
+            return "";
+        }
+        try {
+            String text = new String(Files.readAllBytes(textFile), StandardCharsets.UTF_8);
+            return text.length() > HEADER_CHARS ? text.substring(0, HEADER_CHARS) : text;
+        } catch (IOException e) {
+            log.debug("Failed to read text of page {} of document {}: {}",
+                    pageNumber, document.getFileId(), e.getMessage());
+            return "";
+        }
+    }
+
+    private DocumentSegment buildSegment(List<PageSignature> signatures, int startPage, int endPage) {
+        Set<Long> tokens = new HashSet<>();
+        for (int pageNumber = startPage; pageNumber <= Math.min(endPage, signatures.size()); pageNumber++) {
+            PageSignature signature = signatures.get(pageNumber - 1);
+            tokens.add(signature.getTextLength() > 0 ? signature.getTextHash() : signature.getVisualHash());
+        }
+
+        return DocumentSegment.builder()
+                .startPage(startPage)
+                .endPage(endPage)
+                .firstPageVisualHash(signatures.size() >= startPage ? signatures.get(startPage - 1).getVisualHash() : 0)
+                .pageTokens(tokens)
+                .build();
+    }
+
+    /**
+     * Similarity of two segments from shared page tokens, first-page layout and relative length.
+     */
+    private double similarity(DocumentSegment base, DocumentSegment compare) {
+        Set<Long> union = new HashSet<>(base.getPageTokens());
+        union.addAll(compare.getPageTokens());
+        Set<Long> shared = new HashSet<>(base.getPageTokens());
+        shared.retainAll(compare.getPageTokens());
+        double contentSimilarity = union.isEmpty() ? 0 : (double) shared.size() / union.size();
+
+        int layoutBits = Long.bitCount(base.getFirstPageVisualHash() ^ compare.getFirstPageVisualHash());
+        double layoutSimilarity = Math.max(0, 1 - layoutBits / 32.0);
+
+        double lengthSimilarity = (double) Math.min(base.getPageCount(), compare.getPageCount()) /
+                Math.max(base.getPageCount(), compare.getPageCount());
+
+        return 0.6 * contentSimilarity + 0.25 * layoutSimilarity + 0.15 * lengthSimilarity;
+    }
+
+    private DocumentPair buildPair(int pairIndex, PdfDocument baseDocument, DocumentSegment base,
+                                   PdfDocument compareDocument, DocumentSegment compare, double similarityScore) {
+        return DocumentPair.builder()
+                .pairIndex(pairIndex)
+                .matched(true)
+                .baseDocumentId(baseDocument.getFileId())
+                .compareDocumentId(compareDocument.getFileId())
+                .baseStartPage(base.getStartPage())
+                .baseEndPage(base.getEndPage())
+                .basePageCount(base.getPageCount())
+                .compareStartPage(compare.getStartPage())
+                .compareEndPage(compare.getEndPage())
+                .comparePageCount(compare.getPageCount())
+                .hasBaseDocument(true)
+                .hasCompareDocument(true)
+                .similarityScore(similarityScore)
+                .build();
+    }
+}
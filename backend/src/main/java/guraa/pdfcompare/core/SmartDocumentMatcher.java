@@ -1,7 +1,9 @@
 package guraa.pdfcompare.core;
 
+import guraa.pdfcompare.model.DocumentPair;
 import guraa.pdfcompare.model.PdfDocument;
 import guraa.pdfcompare.service.PagePair;
+import guraa.pdfcompare.util.CancellationContext;
 import guraa.pdfcompare.visual.EnhancedVisualMatcher;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Qualifier;
@@ -9,6 +11,7 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
@@ -29,11 +32,11 @@ public class SmartDocumentMatcher implements DocumentMatchingStrategy {
      * Constructor with qualifier to specify which executor service to use.
      *
      * @param visualMatcher The visual matcher for comparing documents
-     * @param executorService The executor service for comparison operations
+     * @param executorService The work-stealing pool for CPU-bound comparison work
      */
     public SmartDocumentMatcher(
             EnhancedVisualMatcher visualMatcher,
-            @Qualifier("comparisonExecutor") ExecutorService executorService) {
+            @Qualifier("cpuExecutor") ExecutorService executorService) {
         this.visualMatcher = visualMatcher;
         this.executorService = executorService;
     }
@@ -58,7 +61,8 @@ public class SmartDocumentMatcher implements DocumentMatchingStrategy {
         boolean parallelProcessing = options != null && Boolean.TRUE.equals(options.get("parallelProcessing"));
 
         // Match pages using visual matching
-        List<PagePair> visualMatches = matchPagesVisually(baseDocument, compareDocument, parallelProcessing);
+        List<PagePair> visualMatches = matchPagesVisually(baseDocument, compareDocument, parallelProcessing,
+                CancellationContext.fromOptions(options));
 
         // Calculate confidence level
         calculateConfidenceLevel(visualMatches);
@@ -69,6 +73,35 @@ public class SmartDocumentMatcher implements DocumentMatchingStrategy {
         return visualMatches;
     }
 
+    /**
+     * Match pages inside each pair of sub-documents of two files.
+     * Segmentation merges sub-documents without a partner into their neighbours, so every pair is matched.
+     *
+     * @param baseDocument The base file
+     * @param compareDocument The compare file
+     * @param documentPairs The sub-document pairs found by segmentation
+     * @param options Additional options, see {@link #matchDocuments}
+     * @return The page pairs of all sub-document pairs
+     * @throws IOException If there is an error matching the pages
+     */
+    public List<PagePair> matchDocumentPairs(PdfDocument baseDocument, PdfDocument compareDocument,
+                                             List<DocumentPair> documentPairs, Map<String, Object> options) throws IOException {
+        log.info("Starting smart document matching of {} sub-document pairs between documents: {} and {}",
+                documentPairs.size(), baseDocument.getFileId(), compareDocument.getFileId());
+        CancellationContext cancellation = CancellationContext.fromOptions(options);
+
+        List<PagePair> pagePairs = new ArrayList<>();
+        for (DocumentPair documentPair : documentPairs) {
+            cancellation.throwIfCancelled();
+            pagePairs.addAll(visualMatcher.matchPageRange(baseDocument, compareDocument,
+                    documentPair.getBaseStartPage(), documentPair.getBaseEndPage(),
+                    documentPair.getCompareStartPage(), documentPair.getCompareEndPage(), cancellation));
+        }
+
+        calculateConfidenceLevel(pagePairs);
+        return pagePairs;
+    }
+
     @Override
     public String getStrategyName() {
         return "SmartDocumentMatcher";
@@ -85,12 +118,14 @@ public class SmartDocumentMatcher implements DocumentMatchingStrategy {
      * @param baseDocument The base document
      * @param compareDocument The document to compare against the base
      * @param parallelProcessing Whether to use parallel processing
+     * @param cancellation The cancellation context of the comparison
      * @return A list of page pairs
      * @throws IOException If there is an error matching the pages
      */
-    private List<PagePair> matchPagesVisually(PdfDocument baseDocument, PdfDocument compareDocument, boolean parallelProcessing) throws IOException {
+    private List<PagePair> matchPagesVisually(PdfDocument baseDocument, PdfDocument compareDocument,
+                                              boolean parallelProcessing, CancellationContext cancellation) throws IOException {
         // Use the visual matcher to match pages
-        return visualMatcher.matchPages(baseDocument, compareDocument);
+        return visualMatcher.matchPages(baseDocument, compareDocument, cancellation);
     }
 
     /**
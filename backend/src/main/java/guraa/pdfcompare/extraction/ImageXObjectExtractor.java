@@ -0,0 +1,223 @@
+package guraa.pdfcompare.extraction;
+
+import guraa.pdfcompare.util.ImageInfo;
+import guraa.pdfcompare.visual.ImageFingerprint;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.pdfbox.contentstream.PDFStreamEngine;
+import org.apache.pdfbox.contentstream.operator.Operator;
+import org.apache.pdfbox.contentstream.operator.OperatorProcessor;
+import org.apache.pdfbox.contentstream.operator.state.Concatenate;
+import org.apache.pdfbox.contentstream.operator.state.Restore;
+import org.apache.pdfbox.contentstream.operator.state.Save;
+import org.apache.pdfbox.contentstream.operator.state.SetGraphicsStateParameters;
+import org.apache.pdfbox.contentstream.operator.state.SetMatrix;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.graphics.PDXObject;
+import org.apache.pdfbox.pdmodel.graphics.form.PDFormXObject;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.apache.pdfbox.util.Matrix;
+
+import java.awt.geom.Point2D;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Extractor for the image XObjects drawn on a page, including those drawn inside Form XObjects.
+ * Images are identified by the MD5 digest of their encoded stream and placed using the current
+ * transformation matrix; nothing is decoded. One extractor is meant to be used for all pages of
+ * a document, so images shared by several pages are digested once.
+ */
+@Slf4j
+public class ImageXObjectExtractor extends PDFStreamEngine {
+
+    // Nested forms deeper than this are not descended into
+    private static final int MAX_FORM_DEPTH = 16;
+
+    // Digests of the image streams seen so far
+    private final Map<COSStream, byte[]> digests = new IdentityHashMap<>();
+
+    private List<ImageInfo> pageImages;
+    private int pageNumber;
+    private int formDepth;
+
+    // Set while looking up images for decoding
+    private Set<String> wantedDigests;
+    private Map<String, PDImageXObject> foundImages;
+
+    /**
+     * Constructor.
+     */
+    public ImageXObjectExtractor() {
+        addOperator(new Save());
+        addOperator(new Restore());
+        addOperator(new Concatenate());
+        addOperator(new SetMatrix());
+        addOperator(new SetGraphicsStateParameters());
+        addOperator(new DrawImageOrForm());
+    }
+
+    /**
+     * Extract the placements of the images drawn on a page.
+     *
+     * @param page       The page
+     * @param pageNumber The page number (1-based)
+     * @return The placed images in drawing order; an image drawn several times appears once per placement
+     * @throws IOException If the page content cannot be parsed
+     */
+    public List<ImageInfo> extractImages(PDPage page, int pageNumber) throws IOException {
+        this.pageImages = new ArrayList<>();
+        this.pageNumber = pageNumber;
+        this.wantedDigests = null;
+        processPage(page);
+        return pageImages;
+    }
+
+    /**
+     * Find the image objects of a page with the given digests, for decoding.
+     * The returned objects keep the resources they were drawn with, so named color spaces resolve.
+     *
+     * @param page    The page
+     * @param digests The digests of the images to find
+     * @return The image objects found, keyed by digest
+     * @throws IOException If the page content cannot be parsed
+     */
+    public Map<String, PDImageXObject> findImages(PDPage page, Set<String> digests) throws IOException {
+        this.pageImages = new ArrayList<>();
+        this.wantedDigests = digests;
+        this.foundImages = new HashMap<>();
+        processPage(page);
+        return foundImages;
+    }
+
+    // Private helper methods
+
+    private void imageDrawn(PDImageXObject image) throws IOException {
+        COSStream stream = image.getCOSObject();
+        byte[] digestBytes = digests.get(stream);
+        if (digestBytes == null) {
+            digestBytes = digest(stream);
+            digests.put(stream, digestBytes);
+        }
+        String digest = ImageFingerprint.toHex(digestBytes);
+
+        if (wantedDigests != null) {
+            if (wantedDigests.contains(digest)) {
+                foundImages.putIfAbsent(digest, image);
+            }
+            return;
+        }
+
+        // The image fills the unit square of the current transformation matrix
+        Matrix ctm = getGraphicsState().getCurrentTransformationMatrix();
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        for (int corner = 0; corner < 4; corner++) {
+            Point2D.Float point = ctm.transformPoint(corner & 1, corner >> 1);
+            minX = Math.min(minX, point.x);
+            minY = Math.min(minY, point.y);
+            maxX = Math.max(maxX, point.x);
+            maxY = Math.max(maxY, point.y);
+        }
+
+        COSBase filter = stream.getDictionaryObject(COSName.FILTER);
+        pageImages.add(ImageInfo.builder()
+                .id(UUID.randomUUID().toString())
+                .pageNumber(pageNumber)
+                .hash(digest)
+                .digestHigh(ImageFingerprint.digestHalf(digestBytes, 0))
+                .digestLow(ImageFingerprint.digestHalf(digestBytes, 1))
+                .width(image.getWidth())
+                .height(image.getHeight())
+                .x(minX)
+                .y(minY)
+                .placedWidth(maxX - minX)
+                .placedHeight(maxY - minY)
+                .format(image.getSuffix())
+                .colorSpace(colorSpaceName(stream))
+                .bitsPerComponent(image.getBitsPerComponent())
+                .isMask(image.isStencil())
+                .hasMask(stream.containsKey(COSName.SMASK) || stream.containsKey(COSName.MASK))
+                .interpolation(image.getInterpolate() ? "interpolate" : "none")
+                .compression(filter instanceof COSName ? ((COSName) filter).getName() :
+                        filter != null ? filter.toString() : "none")
+                .build());
+    }
+
+    private String colorSpaceName(COSStream stream) {
+        COSBase colorSpace = stream.getDictionaryObject(COSName.COLORSPACE);
+        if (colorSpace instanceof COSName) {
+            return ((COSName) colorSpace).getName();
+        }
+        return colorSpace != null ? "Array" : null;
+    }
+
+    /**
+     * MD5 digest of the encoded image stream, which identifies the image without decoding it.
+     */
+    private byte[] digest(COSStream stream) throws IOException {
+        try (InputStream in = stream.createRawInputStream()) {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                md.update(buffer, 0, read);
+            }
+            return md.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("MD5 not available", e);
+        }
+    }
+
+    /**
+     * The Do operator: records image XObjects and descends into Form XObjects.
+     */
+    private class DrawImageOrForm extends OperatorProcessor {
+
+        @Override
+        public void process(Operator operator, List<COSBase> operands) throws IOException {
+            if (operands.isEmpty() || !(operands.get(0) instanceof COSName)) {
+                return;
+            }
+
+            if (getResources() == null) {
+                return;
+            }
+
+            PDXObject xObject;
+            try {
+                xObject = getResources().getXObject((COSName) operands.get(0));
+            } catch (IOException e) {
+                log.debug("Skipping unreadable XObject {} on page {}: {}", operands.get(0), pageNumber, e.getMessage());
+                return;
+            }
+
+            if (xObject instanceof PDImageXObject) {
+                imageDrawn((PDImageXObject) xObject);
+            } else if (xObject instanceof PDFormXObject && formDepth < MAX_FORM_DEPTH) {
+                formDepth++;
+                try {
+                    showForm((PDFormXObject) xObject);
+                } finally {
+                    formDepth--;
+                }
+            }
+        }
+
+        @Override
+        public String getName() {
+            return "Do";
+        }
+    }
+}
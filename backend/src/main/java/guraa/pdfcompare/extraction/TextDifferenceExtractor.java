@@ -3,7 +3,6 @@ package guraa.pdfcompare.extraction;
 import com.itextpdf.kernel.geom.Rectangle;
 import com.itextpdf.kernel.pdf.PdfDocument;
 import com.itextpdf.kernel.pdf.PdfPage;
-import com.itextpdf.kernel.pdf.PdfReader;
 import com.itextpdf.kernel.pdf.canvas.parser.EventType;
 import com.itextpdf.kernel.pdf.canvas.parser.PdfTextExtractor;
 import com.itextpdf.kernel.pdf.canvas.parser.data.IEventData;
@@ -23,17 +22,16 @@ import java.util.List;
 public class TextDifferenceExtractor {
 
     /**
-     * Extract text elements with coordinates from a page.
+     * Extract text elements with coordinates from a page of an open document.
+     * Documents are opened through the document loader, so large files are read in large-document mode.
      *
-     * @param filePath   The PDF file path
+     * @param pdfDoc     The open PDF document
      * @param pageNumber The page number (1-based)
      * @return List of text elements with coordinates
      * @throws IOException If there is an error extracting the text
      */
-    public static List<TextElement> extractTextElements(String filePath, int pageNumber) throws IOException {
-        try (PdfReader reader = new PdfReader(filePath);
-             PdfDocument pdfDoc = new PdfDocument(reader)) {
-
+    public static List<TextElement> extractTextElements(PdfDocument pdfDoc, int pageNumber) throws IOException {
+        try {
             if (pageNumber < 1 || pageNumber > pdfDoc.getNumberOfPages()) {
                 throw new IOException("Invalid page number: " + pageNumber);
             }
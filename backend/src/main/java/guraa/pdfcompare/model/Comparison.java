@@ -88,6 +88,12 @@ public class Comparison {
     @Column(name = "updated_at", nullable = false)
     private LocalDateTime updatedAt;
 
+    /**
+     * The ID of the batch the comparison belongs to, or null if it was requested on its own.
+     */
+    @Column(name = "batch_id")
+    private String batchId;
+
     /**
      * The result of the comparison.
      * This is not stored in the database, but is populated when needed.
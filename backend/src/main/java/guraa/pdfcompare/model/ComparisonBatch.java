@@ -0,0 +1,73 @@
+package guraa.pdfcompare.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A set of comparisons requested together and scheduled as one job.
+ * Documents shared by several comparisons of the batch are pre-processed once
+ * and their page artifacts are reused by every comparison that needs them.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class ComparisonBatch {
+
+    /**
+     * How the comparisons of a batch were derived from its documents.
+     */
+    public enum Mode {
+        /**
+         * One base document compared against each of the other documents.
+         */
+        BASE_VS_MANY,
+
+        /**
+         * Every unordered pair of the documents compared once.
+         */
+        ALL_PAIRS
+    }
+
+    private String id;
+
+    private Mode mode;
+
+    /**
+     * The shared base document, or null for {@link Mode#ALL_PAIRS}.
+     */
+    private String baseDocumentId;
+
+    /**
+     * The documents of the batch other than the base document.
+     */
+    @Builder.Default
+    private List<String> documentIds = new ArrayList<>();
+
+    /**
+     * The comparisons of the batch in the order they run.
+     */
+    @Builder.Default
+    private List<Item> items = new ArrayList<>();
+
+    private LocalDateTime createdAt;
+
+    /**
+     * One comparison of a batch.
+     */
+    @Data
+    @Builder
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Item {
+        private String comparisonId;
+        private String baseDocumentId;
+        private String compareDocumentId;
+    }
+}
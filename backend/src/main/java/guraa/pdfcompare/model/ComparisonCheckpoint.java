@@ -0,0 +1,46 @@
+package guraa.pdfcompare.model;
+
+import guraa.pdfcompare.model.difference.Difference;
+import guraa.pdfcompare.service.PagePair;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Progress of a comparison persisted while it runs.
+ * Holds the page pairs found by matching and the differences of every page
+ * pair that has finished, so an interrupted comparison can resume from here.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class ComparisonCheckpoint {
+
+    /**
+     * The page pairs found by matching, without differences.
+     */
+    private List<PagePair> pagePairs;
+
+    /**
+     * The differences of each finished page pair, keyed by page pair ID.
+     * A finished pair without differences maps to an empty list.
+     */
+    @Builder.Default
+    private Map<String, List<Difference>> completedPages = new HashMap<>();
+
+    /**
+     * Check whether a page pair has finished.
+     *
+     * @param pagePairId The page pair ID
+     * @return true if the page pair's differences are recorded
+     */
+    public boolean isCompleted(String pagePairId) {
+        return completedPages.containsKey(pagePairId);
+    }
+}
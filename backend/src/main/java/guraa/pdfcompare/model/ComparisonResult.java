@@ -52,6 +52,12 @@ public class ComparisonResult {
      */
     private Map<String, List<Difference>> differencesByPage;
 
+    /**
+     * The matched sub-documents when the files concatenate several documents,
+     * or null if each file was compared as one document.
+     */
+    private List<DocumentPair> documentPairs;
+
     /**
      * Get the total number of differences.
      *
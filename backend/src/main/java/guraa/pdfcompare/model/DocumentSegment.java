@@ -0,0 +1,50 @@
+package guraa.pdfcompare.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A range of pages of a PDF file that forms one logical document, e.g. one contract
+ * of a scanned batch that concatenates many.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class DocumentSegment {
+
+    /**
+     * The first page of the segment (1-based).
+     */
+    private int startPage;
+
+    /**
+     * The last page of the segment (1-based, inclusive).
+     */
+    private int endPage;
+
+    /**
+     * The visual hash of the first page of the segment.
+     */
+    private long firstPageVisualHash;
+
+    /**
+     * One token per page: the text hash of pages with text, the visual hash otherwise.
+     */
+    @Builder.Default
+    private Set<Long> pageTokens = new HashSet<>();
+
+    /**
+     * Get the number of pages of the segment.
+     *
+     * @return The page count
+     */
+    public int getPageCount() {
+        return endPage - startPage + 1;
+    }
+}
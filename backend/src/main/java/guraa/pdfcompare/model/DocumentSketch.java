@@ -0,0 +1,42 @@
+package guraa.pdfcompare.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Compact fingerprint of a whole document for near-duplicate search.
+ * Two documents are similar in proportion to how many MinHash values they share;
+ * the SimHash distance gives a cheap second opinion on the text.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class DocumentSketch {
+
+    private String fileId;
+
+    private int pageCount;
+
+    /**
+     * Number of text shingles the text sketch was computed from, 0 for documents without text.
+     */
+    private int shingleCount;
+
+    /**
+     * MinHash of the character shingles of the document text.
+     */
+    private long[] textMinHash;
+
+    /**
+     * 64-bit SimHash of the character shingles of the document text.
+     */
+    private long simHash;
+
+    /**
+     * MinHash of the page signatures, empty if the document has no signatures.
+     */
+    private long[] pageMinHash;
+}
@@ -0,0 +1,68 @@
+package guraa.pdfcompare.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The fonts of a document.
+ * Each font object is listed once however many pages use it, and pages refer to
+ * fonts by their index in the catalog.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class FontCatalog {
+
+    private String fileId;
+
+    /**
+     * The distinct font objects of the document.
+     */
+    @Builder.Default
+    private List<Font> fonts = new ArrayList<>();
+
+    /**
+     * For each page, in page order, the indexes of the fonts its resources reference.
+     */
+    @Builder.Default
+    private List<int[]> pageFonts = new ArrayList<>();
+
+    /**
+     * One font object of a document.
+     */
+    @Data
+    @Builder
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Font {
+
+        /**
+         * The base font name without a subset prefix.
+         */
+        private String name;
+
+        private String family;
+
+        /**
+         * Regular, Bold, Italic or BoldItalic.
+         */
+        private String style;
+
+        /**
+         * The font subtype, e.g. Type1, TrueType or Type0.
+         */
+        private String subtype;
+
+        private String encoding;
+
+        private boolean embedded;
+
+        private boolean subset;
+    }
+}
@@ -0,0 +1,30 @@
+package guraa.pdfcompare.model;
+
+import guraa.pdfcompare.util.ImageInfo;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The images drawn on the pages of a document.
+ * Images are identified by the digest of their encoded stream, so an image drawn on several
+ * pages, or in several documents, has the same hash everywhere.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class ImageCatalog {
+
+    private String fileId;
+
+    /**
+     * For each page, in page order, the images drawn on it.
+     */
+    @Builder.Default
+    private List<List<ImageInfo>> pages = new ArrayList<>();
+}
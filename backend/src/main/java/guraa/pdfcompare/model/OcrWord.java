@@ -0,0 +1,33 @@
+package guraa.pdfcompare.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * A word recognized by OCR on a rendered page.
+ * Coordinates are in PDF points with the origin at the bottom left of the rendered raster;
+ * they are mapped to the page's user space when the words become text elements.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class OcrWord {
+
+    private String text;
+
+    private float x;
+
+    private float y;
+
+    private float width;
+
+    private float height;
+
+    /**
+     * The recognition confidence (0-100).
+     */
+    private float confidence;
+}
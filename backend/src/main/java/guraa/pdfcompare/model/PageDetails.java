@@ -50,4 +50,7 @@ public class PageDetails {
     // Rendered page images paths (for API to serve)
     private String baseRenderedImagePath;
     private String compareRenderedImagePath;
+
+    // Whether the page's differences are final; false while its comparison is still running
+    private Boolean ready;
 }
\ No newline at end of file
@@ -0,0 +1,71 @@
+package guraa.pdfcompare.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Compact fingerprint of a single page.
+ * Signatures are computed ahead of comparisons and used to recognise
+ * identical or near-identical pages without rendering or diffing them again.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class PageSignature {
+
+    /**
+     * The page number (1-based).
+     */
+    private int pageNumber;
+
+    /**
+     * The page width in points.
+     */
+    private float width;
+
+    /**
+     * The page height in points.
+     */
+    private float height;
+
+    /**
+     * MD5 digest of the page content streams together with the resources, annotations,
+     * rotation and boxes they depend on.
+     * Equal digests mean the pages draw exactly the same content.
+     */
+    private String contentDigest;
+
+    /**
+     * 64-bit hash of the normalized page text.
+     */
+    private long textHash;
+
+    /**
+     * Number of characters of normalized page text.
+     */
+    private int textLength;
+
+    /**
+     * Number of text elements on the page.
+     */
+    private int textElementCount;
+
+    /**
+     * 64-bit average hash of the rendered page.
+     */
+    private long visualHash;
+
+    /**
+     * Check whether another signature describes the same page content.
+     * Only the content digests decide; equal text and visual hashes merely make pages near duplicates.
+     *
+     * @param other The other signature
+     * @return true if both content digests are known and equal
+     */
+    public boolean isSameContent(PageSignature other) {
+        return other != null && contentDigest != null && contentDigest.equals(other.contentDigest);
+    }
+}
@@ -218,6 +218,16 @@ public class PdfDocument {
         return Paths.get(renderedPagesDir, fileId, "pages", "page_" + pageNumber + ".png").toString();
     }
 
+    /**
+     * Get the path to the low-resolution grayscale render used for page matching.
+     *
+     * @param pageNumber The page number (1-based)
+     * @return The path to the matching render
+     */
+    public String getMatchingPagePath(int pageNumber) {
+        return Paths.get(renderedPagesDir, fileId, "matching", "page_" + pageNumber + ".png").toString();
+    }
+
     /**
      * Get the path to the thumbnail.
      *
@@ -228,6 +238,16 @@ public class PdfDocument {
         return Paths.get(thumbnailsDir, fileId, "thumbnails", "page_" + pageNumber + "_thumbnail.png").toString();
     }
 
+    /**
+     * Get the directory of the thumbnail sprite sheets for one sheet layout.
+     *
+     * @param layout Identifies the sheet layout, so sheets of different layouts never mix
+     * @return The path to the sprite sheet directory
+     */
+    public String getThumbnailSpritesPath(String layout) {
+        return Paths.get(thumbnailsDir, fileId, "sprites", layout).toString();
+    }
+
     /**
      * Get the path to the extracted text.
      *
@@ -248,6 +268,16 @@ public class PdfDocument {
         return Paths.get(extractedImagesDir, fileId, String.valueOf(pageNumber)).toString();
     }
 
+    /**
+     * Get the path to a decoded image, which is shared by all pages that draw the image.
+     *
+     * @param digest The digest of the image stream
+     * @return The path to the decoded image
+     */
+    public String getExtractedImagePath(String digest) {
+        return Paths.get(extractedImagesDir, fileId, digest + ".png").toString();
+    }
+
     /**
      * Get the file extension.
      *
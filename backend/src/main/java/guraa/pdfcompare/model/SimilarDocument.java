@@ -0,0 +1,47 @@
+package guraa.pdfcompare.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * A document found by near-duplicate search, with its estimated similarity to the query document.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class SimilarDocument {
+
+    private String fileId;
+
+    private String fileName;
+
+    private int pageCount;
+
+    /**
+     * Combined similarity from 0 to 1.
+     */
+    private double score;
+
+    /**
+     * Estimated Jaccard similarity of the text shingles.
+     */
+    private double textSimilarity;
+
+    /**
+     * Estimated Jaccard similarity of the page signatures.
+     */
+    private double pageSimilarity;
+
+    /**
+     * Number of differing SimHash bits, from 0 to 64.
+     */
+    private int simHashDistance;
+
+    /**
+     * Whether the files have the same content hash.
+     */
+    private boolean exactDuplicate;
+}
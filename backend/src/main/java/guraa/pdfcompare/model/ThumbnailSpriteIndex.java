@@ -0,0 +1,90 @@
+package guraa.pdfcompare.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The layout of the thumbnail sprite sheets of a document.
+ * Thumbnails are packed into sheets of a fixed number of pages, row by row in a grid of
+ * equal cells, and each page records where its thumbnail is on its sheet.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class ThumbnailSpriteIndex {
+
+    private String fileId;
+
+    private int pageCount;
+
+    private int pagesPerSheet;
+
+    /**
+     * The number of cells per sheet row.
+     */
+    private int columns;
+
+    /**
+     * The size of a grid cell in pixels, which fits the largest thumbnail of the document.
+     */
+    private int cellWidth;
+
+    private int cellHeight;
+
+    /**
+     * The sheets in page order; sheet i holds pages i * pagesPerSheet + 1 onwards.
+     */
+    @Builder.Default
+    private List<Sheet> sheets = new ArrayList<>();
+
+    /**
+     * One sprite sheet.
+     */
+    @Data
+    @Builder
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Sheet {
+
+        /**
+         * The sheet number (0-based).
+         */
+        private int index;
+
+        private int width;
+
+        private int height;
+
+        @Builder.Default
+        private List<Sprite> pages = new ArrayList<>();
+    }
+
+    /**
+     * The thumbnail of one page on its sheet.
+     */
+    @Data
+    @Builder
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Sprite {
+
+        private int pageNumber;
+
+        /**
+         * The offset of the thumbnail from the top-left corner of the sheet in pixels.
+         */
+        private int x;
+
+        private int y;
+
+        private int width;
+
+        private int height;
+    }
+}
@@ -1,5 +1,7 @@
 package guraa.pdfcompare.model.difference;
 
+import com.fasterxml.jackson.annotation.JsonSubTypes;
+import com.fasterxml.jackson.annotation.JsonTypeInfo;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
@@ -8,7 +10,17 @@ import lombok.experimental.SuperBuilder;
 /**
  * Base class for all types of differences between PDF documents.
  * This class provides common properties and methods for all difference types.
+ * The {@code type} property selects the subclass when stored differences are read back.
  */
+@JsonTypeInfo(use = JsonTypeInfo.Id.NAME, include = JsonTypeInfo.As.EXISTING_PROPERTY,
+        property = "type", visible = true, defaultImpl = TextDifference.class)
+@JsonSubTypes({
+        @JsonSubTypes.Type(value = TextDifference.class, name = "text"),
+        @JsonSubTypes.Type(value = ImageDifference.class, name = "image"),
+        @JsonSubTypes.Type(value = FontDifference.class, name = "font"),
+        @JsonSubTypes.Type(value = StyleDifference.class, name = "style"),
+        @JsonSubTypes.Type(value = MetadataDifference.class, name = "metadata")
+})
 @Data
 @SuperBuilder
 @NoArgsConstructor
@@ -0,0 +1,234 @@
+package guraa.pdfcompare.service;
+
+import guraa.pdfcompare.model.Comparison;
+import guraa.pdfcompare.model.ComparisonBatch;
+import guraa.pdfcompare.repository.ComparisonRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Service for comparing one base document against many documents, or all documents of a set
+ * against each other. The comparisons of a batch run as one scheduled job that shares the
+ * page artifacts of its documents, and their status is reported in aggregate.
+ */
+@Slf4j
+@Service
+public class BatchComparisonService {
+
+    private final ComparisonService comparisonService;
+    private final ComparisonRepository comparisonRepository;
+    private final ComparisonResultStorage resultStorage;
+
+    @Value("${app.batch.max-comparisons:200}")
+    private int maxComparisons = 200;
+
+    /**
+     * Constructor with dependencies.
+     */
+    public BatchComparisonService(
+            ComparisonService comparisonService,
+            ComparisonRepository comparisonRepository,
+            ComparisonResultStorage resultStorage) {
+        this.comparisonService = comparisonService;
+        this.comparisonRepository = comparisonRepository;
+        this.resultStorage = resultStorage;
+    }
+
+    /**
+     * Compare one base document against each of several documents.
+     *
+     * @param baseDocumentId     The ID of the base document
+     * @param compareDocumentIds The IDs of the documents to compare against the base
+     * @return The created batch
+     * @throws IOException If the batch cannot be stored
+     * @throws QueueFullException If the comparison queue has no capacity left
+     */
+    public ComparisonBatch createBaseVsManyBatch(String baseDocumentId, List<String> compareDocumentIds)
+            throws IOException {
+        if (baseDocumentId == null || compareDocumentIds == null) {
+            throw new IllegalArgumentException("A base document ID and compare document IDs are required");
+        }
+
+        List<String> documentIds = distinct(compareDocumentIds);
+        documentIds.remove(baseDocumentId);
+        if (documentIds.isEmpty()) {
+            throw new IllegalArgumentException("At least one compare document other than the base is required");
+        }
+
+        ComparisonBatch batch = newBatch(ComparisonBatch.Mode.BASE_VS_MANY, baseDocumentId, documentIds);
+        for (String compareDocumentId : documentIds) {
+            batch.getItems().add(newItem(baseDocumentId, compareDocumentId));
+        }
+        return submit(batch);
+    }
+
+    /**
+     * Compare every document of a set against every other document once.
+     *
+     * @param documentIds The IDs of the documents
+     * @return The created batch
+     * @throws IOException If the batch cannot be stored
+     * @throws QueueFullException If the comparison queue has no capacity left
+     */
+    public ComparisonBatch createAllPairsBatch(List<String> documentIds) throws IOException {
+        List<String> distinctIds = distinct(documentIds);
+        if (distinctIds.size() < 2) {
+            throw new IllegalArgumentException("At least two distinct documents are required");
+        }
+
+        ComparisonBatch batch = newBatch(ComparisonBatch.Mode.ALL_PAIRS, null, distinctIds);
+        // Pairs sharing a base document run back to back
+        for (int i = 0; i < distinctIds.size(); i++) {
+            for (int j = i + 1; j < distinctIds.size(); j++) {
+                batch.getItems().add(newItem(distinctIds.get(i), distinctIds.get(j)));
+            }
+        }
+        return submit(batch);
+    }
+
+    /**
+     * Get the aggregate status of a batch.
+     *
+     * @param batchId The batch ID
+     * @return Map with the overall status, counts per status, average progress and the status
+     *         of each comparison, or null if the batch does not exist
+     */
+    public Map<String, Object> getBatchStatus(String batchId) {
+        ComparisonBatch batch = resultStorage.retrieveBatch(batchId);
+        if (batch == null) {
+            return null;
+        }
+
+        List<String> comparisonIds = batch.getItems().stream()
+                .map(ComparisonBatch.Item::getComparisonId)
+                .collect(Collectors.toList());
+        Map<String, Comparison> comparisons = comparisonRepository.findAllById(comparisonIds).stream()
+                .collect(Collectors.toMap(Comparison::getId, Function.identity()));
+
+        Map<Comparison.ComparisonStatus, Integer> counts = new EnumMap<>(Comparison.ComparisonStatus.class);
+        List<Map<String, Object>> items = new ArrayList<>();
+        long totalProgress = 0;
+
+        for (ComparisonBatch.Item item : batch.getItems()) {
+            Comparison comparison = comparisons.get(item.getComparisonId());
+            Comparison.ComparisonStatus status = comparison != null ? comparison.getStatus()
+                    : Comparison.ComparisonStatus.FAILED;
+            int progress = comparison != null ? comparison.getProgress() : 0;
+            counts.merge(status, 1, Integer::sum);
+            totalProgress += status == Comparison.ComparisonStatus.PENDING ||
+                    status == Comparison.ComparisonStatus.PROCESSING ? progress : 100;
+
+            Map<String, Object> itemStatus = new LinkedHashMap<>();
+            itemStatus.put("comparisonId", item.getComparisonId());
+            itemStatus.put("baseDocumentId", item.getBaseDocumentId());
+            itemStatus.put("compareDocumentId", item.getCompareDocumentId());
+            itemStatus.put("status", status.name());
+            itemStatus.put("progress", progress);
+            if (comparison != null && comparison.getErrorMessage() != null) {
+                itemStatus.put("errorMessage", comparison.getErrorMessage());
+            }
+            items.add(itemStatus);
+        }
+
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("batchId", batch.getId());
+        response.put("mode", batch.getMode().name());
+        if (batch.getBaseDocumentId() != null) {
+            response.put("baseDocumentId", batch.getBaseDocumentId());
+        }
+        response.put("createdAt", batch.getCreatedAt());
+        response.put("status", aggregateStatus(counts, batch.getItems().size()));
+        response.put("progress", batch.getItems().isEmpty() ? 100 : (int) (totalProgress / batch.getItems().size()));
+        response.put("total", batch.getItems().size());
+
+        Map<String, Integer> countsByName = new LinkedHashMap<>();
+        counts.forEach((status, count) -> countsByName.put(status.name(), count));
+        response.put("counts", countsByName);
+        response.putAll(comparisonService.getQueueInfo(batch.getId()));
+        response.put("comparisons", items);
+        return response;
+    }
+
+    // Private helper methods
+
+    private ComparisonBatch submit(ComparisonBatch batch) throws IOException {
+        if (batch.getItems().size() > maxComparisons) {
+            throw new IllegalArgumentException("A batch may contain at most " + maxComparisons +
+                    " comparisons, this one has " + batch.getItems().size());
+        }
+
+        // The batch is stored first so its status can be served as soon as the job is queued
+        resultStorage.storeBatch(batch);
+        try {
+            comparisonService.createComparisonBatch(batch);
+        } catch (RuntimeException e) {
+            resultStorage.deleteBatch(batch.getId());
+            throw e;
+        }
+
+        log.info("Created comparison batch {} ({}) with {} comparisons",
+                batch.getId(), batch.getMode(), batch.getItems().size());
+        return batch;
+    }
+
+    private String aggregateStatus(Map<Comparison.ComparisonStatus, Integer> counts, int total) {
+        int pending = counts.getOrDefault(Comparison.ComparisonStatus.PENDING, 0);
+        int processing = counts.getOrDefault(Comparison.ComparisonStatus.PROCESSING, 0);
+        int completed = counts.getOrDefault(Comparison.ComparisonStatus.COMPLETED, 0);
+        int cancelled = counts.getOrDefault(Comparison.ComparisonStatus.CANCELLED, 0);
+
+        if (pending == total) {
+            return "PENDING";
+        } else if (pending + processing > 0) {
+            return "PROCESSING";
+        } else if (completed == total) {
+            return "COMPLETED";
+        } else if (cancelled == total) {
+            return "CANCELLED";
+        } else if (completed == 0) {
+            return "FAILED";
+        }
+        return "COMPLETED_WITH_ERRORS";
+    }
+
+    private ComparisonBatch newBatch(ComparisonBatch.Mode mode, String baseDocumentId, List<String> documentIds) {
+        return ComparisonBatch.builder()
+                .id(UUID.randomUUID().toString())
+                .mode(mode)
+                .baseDocumentId(baseDocumentId)
+                .documentIds(documentIds)
+                .items(new ArrayList<>())
+                .createdAt(LocalDateTime.now())
+                .build();
+    }
+
+    private ComparisonBatch.Item newItem(String baseDocumentId, String compareDocumentId) {
+        return ComparisonBatch.Item.builder()
+                .comparisonId(UUID.randomUUID().toString())
+                .baseDocumentId(baseDocumentId)
+                .compareDocumentId(compareDocumentId)
+                .build();
+    }
+
+    private List<String> distinct(List<String> documentIds) {
+        if (documentIds == null) {
+            return new ArrayList<>();
+        }
+        return new ArrayList<>(documentIds.stream()
+                .filter(id -> id != null && !id.isBlank())
+                .collect(Collectors.toCollection(LinkedHashSet::new)));
+    }
+}
@@ -0,0 +1,301 @@
+package guraa.pdfcompare.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission-controlled scheduler for comparison jobs.
+ * Jobs are costed from their page counts and placed in a small or a large
+ * lane, each with its own queue and limit on jobs in flight, so a burst of
+ * very large comparisons cannot starve the small interactive ones. When a
+ * lane's queue is full, new jobs are rejected with a retry hint.
+ */
+@Slf4j
+@Service
+public class ComparisonJobScheduler {
+
+    /**
+     * Scheduling lanes.
+     */
+    public enum Lane {
+        SMALL,
+        LARGE
+    }
+
+    /**
+     * Job priorities within a lane; lower values are dispatched first.
+     */
+    public enum Priority {
+        INTERACTIVE,
+        BATCH
+    }
+
+    // Initial guess for a job's run time before any job has finished
+    private static final long DEFAULT_JOB_SECONDS = 30;
+
+    private final ExecutorService executorService;
+    private final Map<Lane, LaneState> lanes = new EnumMap<>(Lane.class);
+    private final Map<String, Job> jobs = new HashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    @Value("${app.scheduler.large-job-pages:200}")
+    private int largeJobPages;
+
+    /**
+     * Constructor with qualifier to specify which executor service to use.
+     *
+     * @param executorService The executor that runs admitted jobs
+     * @param smallMaxInFlight Maximum concurrently running small jobs
+     * @param smallMaxQueued Maximum queued small jobs
+     * @param largeMaxInFlight Maximum concurrently running large jobs
+     * @param largeMaxQueued Maximum queued large jobs
+     */
+    public ComparisonJobScheduler(
+            @Qualifier("jobExecutor") ExecutorService executorService,
+            @Value("${app.scheduler.small-lane.max-in-flight:2}") int smallMaxInFlight,
+            @Value("${app.scheduler.small-lane.max-queued:50}") int smallMaxQueued,
+            @Value("${app.scheduler.large-lane.max-in-flight:1}") int largeMaxInFlight,
+            @Value("${app.scheduler.large-lane.max-queued:10}") int largeMaxQueued) {
+        this.executorService = executorService;
+        lanes.put(Lane.SMALL, new LaneState(smallMaxInFlight, smallMaxQueued));
+        lanes.put(Lane.LARGE, new LaneState(largeMaxInFlight, largeMaxQueued));
+    }
+
+    /**
+     * Estimate the cost of comparing two documents.
+     * Every page of both documents is rendered and analysed, so the cost is their total page count.
+     *
+     * @param basePages The number of pages in the base document
+     * @param comparePages The number of pages in the compare document
+     * @return The estimated cost
+     */
+    public int estimateCost(int basePages, int comparePages) {
+        return Math.max(1, basePages) + Math.max(1, comparePages);
+    }
+
+    /**
+     * Get the lane a job of the given cost is scheduled in.
+     *
+     * @param cost The job cost
+     * @return The lane
+     */
+    public Lane laneFor(int cost) {
+        return cost >= largeJobPages ? Lane.LARGE : Lane.SMALL;
+    }
+
+    /**
+     * Submit a job.
+     *
+     * @param jobId The job ID
+     * @param cost The job cost
+     * @param priority The job priority
+     * @param work The work to run
+     * @param timeoutMinutes Maximum run time once the job has started
+     * @return A future completed when the job finishes, fails or times out
+     * @throws QueueFullException If the job's lane has no queue capacity left
+     */
+    public synchronized CompletableFuture<Void> submit(String jobId, int cost, Priority priority,
+                                                       Runnable work, long timeoutMinutes) {
+        Lane lane = laneFor(cost);
+        LaneState state = lanes.get(lane);
+
+        if (state.queue.size() >= state.maxQueued) {
+            long retryAfter = estimateWaitSeconds(state, state.queue.size());
+            log.warn("Rejecting job {} (cost {}): {} lane queue is full", jobId, cost, lane);
+            throw new QueueFullException("The " + lane.name().toLowerCase() +
+                    " comparison queue is full, please retry later", retryAfter);
+        }
+
+        Job job = new Job(jobId, cost, priority, lane, work, timeoutMinutes, sequence.incrementAndGet());
+        jobs.put(jobId, job);
+        state.queue.add(job);
+        log.info("Queued job {} (cost {}) in {} lane, {} waiting", jobId, cost, lane, state.queue.size());
+
+        dispatch();
+        return job.result;
+    }
+
+    /**
+     * Remove a job from its queue if it has not started yet.
+     *
+     * @param jobId The job ID
+     * @return true if the job was waiting and has been removed
+     */
+    public synchronized boolean cancelQueued(String jobId) {
+        Job job = jobs.get(jobId);
+        if (job == null || job.started) {
+            return false;
+        }
+
+        lanes.get(job.lane).queue.remove(job);
+        jobs.remove(jobId);
+        job.result.completeExceptionally(new CancellationException("Job cancelled before it started"));
+        return true;
+    }
+
+    /**
+     * Check whether a job is queued or running.
+     *
+     * @param jobId The job ID
+     * @return true if the scheduler is tracking the job
+     */
+    public synchronized boolean isTracked(String jobId) {
+        return jobs.containsKey(jobId);
+    }
+
+    /**
+     * Describe the queue position of a job.
+     *
+     * @param jobId The job ID
+     * @return Map with lane, state, 1-based queue position and estimated wait, or empty if unknown
+     */
+    public synchronized Map<String, Object> getQueueInfo(String jobId) {
+        Job job = jobs.get(jobId);
+        if (job == null) {
+            return Collections.emptyMap();
+        }
+
+        LaneState state = lanes.get(job.lane);
+        Map<String, Object> info = new LinkedHashMap<>();
+        info.put("lane", job.lane.name());
+        info.put("cost", job.cost);
+
+        if (job.started) {
+            info.put("queueState", "RUNNING");
+            info.put("queuePosition", 0);
+        } else {
+            int position = 1;
+            for (Job other : state.queue) {
+                if (state.queue.comparator().compare(other, job) < 0) {
+                    position++;
+                }
+            }
+            info.put("queueState", "QUEUED");
+            info.put("queuePosition", position);
+            info.put("queueLength", state.queue.size());
+            info.put("estimatedWaitSeconds", estimateWaitSeconds(state, position - 1));
+        }
+        return info;
+    }
+
+    /**
+     * Get scheduler statistics per lane.
+     *
+     * @return Map of lane name to its queue and in-flight counts
+     */
+    public synchronized Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        lanes.forEach((lane, state) -> {
+            Map<String, Object> laneStats = new LinkedHashMap<>();
+            laneStats.put("queued", state.queue.size());
+            laneStats.put("inFlight", state.inFlight);
+            laneStats.put("maxInFlight", state.maxInFlight);
+            laneStats.put("maxQueued", state.maxQueued);
+            laneStats.put("averageJobSeconds", state.averageJobSeconds);
+            stats.put(lane.name(), laneStats);
+        });
+        return stats;
+    }
+
+    // Private helper methods
+
+    /**
+     * Start queued jobs while their lanes have free slots. Must hold the scheduler lock.
+     */
+    private void dispatch() {
+        for (LaneState state : lanes.values()) {
+            while (state.inFlight < state.maxInFlight && !state.queue.isEmpty()) {
+                start(state, state.queue.poll());
+            }
+        }
+    }
+
+    private void start(LaneState state, Job job) {
+        job.started = true;
+        state.inFlight++;
+        long startedAt = System.currentTimeMillis();
+        log.info("Starting job {} in {} lane ({} in flight)", job.id, job.lane, state.inFlight);
+
+        CompletableFuture<Void> run = CompletableFuture.runAsync(job.work, executorService);
+
+        // The lane slot is held until the work really ends, even if the caller stops waiting
+        run.whenComplete((v, ex) -> finish(state, job, startedAt));
+
+        run.copy()
+                .orTimeout(job.timeoutMinutes, TimeUnit.MINUTES)
+                .whenComplete((v, ex) -> {
+                    if (ex != null) {
+                        job.result.completeExceptionally(ex);
+                    } else {
+                        job.result.complete(null);
+                    }
+                });
+    }
+
+    private synchronized void finish(LaneState state, Job job, long startedAt) {
+        state.inFlight--;
+        jobs.remove(job.id);
+
+        // Exponentially weighted average of run times, used for Retry-After hints
+        long seconds = Math.max(1, (System.currentTimeMillis() - startedAt) / 1000);
+        state.averageJobSeconds = (state.averageJobSeconds * 4 + seconds) / 5;
+
+        dispatch();
+    }
+
+    private long estimateWaitSeconds(LaneState state, int jobsAhead) {
+        long rounds = jobsAhead / Math.max(1, state.maxInFlight) + 1;
+        return Math.max(1, rounds * state.averageJobSeconds);
+    }
+
+    /**
+     * Queue and in-flight state of a lane.
+     */
+    private static class LaneState {
+        private final int maxInFlight;
+        private final int maxQueued;
+        private final PriorityQueue<Job> queue = new PriorityQueue<>(
+                Comparator.comparing((Job j) -> j.priority).thenComparingLong(j -> j.sequence));
+        private int inFlight;
+        private long averageJobSeconds = DEFAULT_JOB_SECONDS;
+
+        LaneState(int maxInFlight, int maxQueued) {
+            this.maxInFlight = Math.max(1, maxInFlight);
+            this.maxQueued = Math.max(1, maxQueued);
+        }
+    }
+
+    /**
+     * A scheduled job.
+     */
+    private static class Job {
+        private final String id;
+        private final int cost;
+        private final Priority priority;
+        private final Lane lane;
+        private final Runnable work;
+        private final long timeoutMinutes;
+        private final long sequence;
+        private final CompletableFuture<Void> result = new CompletableFuture<>();
+        private boolean started;
+
+        Job(String id, int cost, Priority priority, Lane lane, Runnable work, long timeoutMinutes, long sequence) {
+            this.id = id;
+            this.cost = cost;
+            this.priority = priority;
+            this.lane = lane;
+            this.work = work;
+            this.timeoutMinutes = timeoutMinutes;
+            this.sequence = sequence;
+        }
+    }
+}
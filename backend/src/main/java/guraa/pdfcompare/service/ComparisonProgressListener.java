@@ -0,0 +1,37 @@
+package guraa.pdfcompare.service;
+
+import guraa.pdfcompare.model.difference.Difference;
+
+import java.util.List;
+
+/**
+ * Receives the intermediate results of a running comparison.
+ * Callbacks for page pairs are invoked from worker threads, possibly concurrently.
+ */
+public interface ComparisonProgressListener {
+
+    /**
+     * Listener that ignores all progress.
+     */
+    ComparisonProgressListener NONE = new ComparisonProgressListener() {
+    };
+
+    /**
+     * Called once the pages of both documents have been matched, before any page pair is compared.
+     *
+     * @param pagePairs The page pairs
+     */
+    default void onPagePairsMatched(List<PagePair> pagePairs) {
+    }
+
+    /**
+     * Called when a page pair has been compared.
+     *
+     * @param pagePair    The page pair
+     * @param differences The differences found, empty if the pages are the same
+     * @param completed   The number of page pairs finished so far, including resumed ones
+     * @param total       The number of matched page pairs
+     */
+    default void onPagePairCompleted(PagePair pagePair, List<Difference> differences, int completed, int total) {
+    }
+}
@@ -1,7 +1,11 @@
 package guraa.pdfcompare.service;
 
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import guraa.pdfcompare.model.ComparisonBatch;
+import guraa.pdfcompare.model.ComparisonCheckpoint;
 import guraa.pdfcompare.model.ComparisonResult;
+import guraa.pdfcompare.model.difference.Difference;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
@@ -12,6 +16,11 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -34,6 +43,8 @@ public class ComparisonResultStorage {
     // Maximum cache size
     private static final int MAX_CACHE_SIZE = 20;
 
+    private static final String PAGE_PAIRS_FILE = "pairs.json";
+
 
     /**
      * Delete a comparison result.
@@ -48,6 +59,7 @@ public class ComparisonResultStorage {
 
         // Remove from memory cache
         resultCache.remove(comparisonId);
+        deleteCheckpoint(comparisonId);
 
         File resultFile = getResultFile(comparisonId);
         if (!resultFile.exists()) {
@@ -128,6 +140,7 @@ public class ComparisonResultStorage {
                     .pagePairs(result.getPagePairs())
                     .summary(result.getSummary())
                     .differencesByPage(result.getDifferencesByPage())
+                    .documentPairs(result.getDocumentPairs())
                     .build();
         }
 
@@ -206,6 +219,7 @@ public class ComparisonResultStorage {
                         .pagePairs(cachedResult.getPagePairs())
                         .summary(cachedResult.getSummary())
                         .differencesByPage(cachedResult.getDifferencesByPage())
+                        .documentPairs(cachedResult.getDocumentPairs())
                         .build();
 
                 resultCache.put(comparisonId, cachedResult);
@@ -239,6 +253,7 @@ public class ComparisonResultStorage {
                         .pagePairs(result.getPagePairs())
                         .summary(result.getSummary())
                         .differencesByPage(result.getDifferencesByPage())
+                        .documentPairs(result.getDocumentPairs())
                         .build();
             }
 
@@ -274,6 +289,158 @@ public class ComparisonResultStorage {
         return resultFile.exists() && resultFile.canRead() && resultFile.length() > 0;
     }
 
+    /**
+     * Persist the page pairs of a running comparison, replacing any earlier checkpoint.
+     *
+     * @param comparisonId The comparison ID
+     * @param pagePairs The page pairs found by matching
+     * @throws IOException If the checkpoint cannot be written
+     */
+    public void storeCheckpointPagePairs(String comparisonId, List<PagePair> pagePairs) throws IOException {
+        deleteCheckpoint(comparisonId);
+        File checkpointDir = getCheckpointDirectory(comparisonId);
+        writeAtomically(new File(checkpointDir, PAGE_PAIRS_FILE), pagePairs);
+    }
+
+    /**
+     * Persist the differences of a finished page pair of a running comparison.
+     *
+     * @param comparisonId The comparison ID
+     * @param pagePairId The page pair ID
+     * @param differences The differences of the page pair, empty if there are none
+     * @throws IOException If the checkpoint cannot be written
+     */
+    public void storeCheckpointPage(String comparisonId, String pagePairId, List<Difference> differences)
+            throws IOException {
+        File pagesDir = new File(getCheckpointDirectory(comparisonId), "pages");
+        writeAtomically(new File(pagesDir, pagePairId + ".json"), differences);
+    }
+
+    /**
+     * Load the checkpoint of an interrupted comparison.
+     *
+     * @param comparisonId The comparison ID
+     * @return The checkpoint, or null if the comparison never got past matching
+     */
+    public ComparisonCheckpoint loadCheckpoint(String comparisonId) {
+        File checkpointDir = getCheckpointDirectory(comparisonId);
+        File pagePairsFile = new File(checkpointDir, PAGE_PAIRS_FILE);
+        if (!pagePairsFile.exists()) {
+            return null;
+        }
+
+        try {
+            List<PagePair> pagePairs = objectMapper.readValue(pagePairsFile, new TypeReference<List<PagePair>>() {});
+            Map<String, List<Difference>> completedPages = new HashMap<>();
+
+            File[] pageFiles = new File(checkpointDir, "pages").listFiles((dir, name) -> name.endsWith(".json"));
+            for (File pageFile : pageFiles != null ? pageFiles : new File[0]) {
+                String pagePairId = pageFile.getName().substring(0, pageFile.getName().length() - ".json".length());
+                try {
+                    completedPages.put(pagePairId,
+                            objectMapper.readValue(pageFile, new TypeReference<List<Difference>>() {}));
+                } catch (IOException e) {
+                    // A page cut off mid-write is simply compared again
+                    log.warn("Ignoring unreadable checkpoint page {} of comparison {}: {}",
+                            pagePairId, comparisonId, e.getMessage());
+                }
+            }
+
+            return ComparisonCheckpoint.builder()
+                    .pagePairs(new ArrayList<>(pagePairs))
+                    .completedPages(completedPages)
+                    .build();
+        } catch (IOException e) {
+            log.warn("Failed to read checkpoint of comparison {}: {}", comparisonId, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Delete the checkpoint of a comparison.
+     *
+     * @param comparisonId The comparison ID
+     */
+    public void deleteCheckpoint(String comparisonId) {
+        File checkpointDir = getCheckpointDirectory(comparisonId);
+        if (!checkpointDir.exists()) {
+            return;
+        }
+
+        File[] pageFiles = new File(checkpointDir, "pages").listFiles();
+        Arrays.stream(pageFiles != null ? pageFiles : new File[0]).forEach(File::delete);
+        new File(checkpointDir, "pages").delete();
+        new File(checkpointDir, PAGE_PAIRS_FILE).delete();
+        if (!checkpointDir.delete()) {
+            log.warn("Failed to delete checkpoint directory of comparison {}", comparisonId);
+        }
+    }
+
+    /**
+     * Persist a comparison batch, replacing any earlier version.
+     *
+     * @param batch The batch
+     * @throws IOException If the batch cannot be written
+     */
+    public void storeBatch(ComparisonBatch batch) throws IOException {
+        writeAtomically(getBatchFile(batch.getId()), batch);
+    }
+
+    /**
+     * Load a comparison batch.
+     *
+     * @param batchId The batch ID
+     * @return The batch, or null if it does not exist or cannot be read
+     */
+    public ComparisonBatch retrieveBatch(String batchId) {
+        File batchFile = getBatchFile(batchId);
+        if (!batchFile.exists()) {
+            return null;
+        }
+
+        try {
+            return objectMapper.readValue(batchFile, ComparisonBatch.class);
+        } catch (IOException e) {
+            log.warn("Failed to read comparison batch {}: {}", batchId, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Delete a comparison batch.
+     *
+     * @param batchId The batch ID
+     */
+    public void deleteBatch(String batchId) {
+        File batchFile = getBatchFile(batchId);
+        if (batchFile.exists() && !batchFile.delete()) {
+            log.warn("Failed to delete comparison batch {}", batchId);
+        }
+    }
+
+    private void writeAtomically(File target, Object value) throws IOException {
+        File parentDir = target.getParentFile();
+        if (!parentDir.exists() && !parentDir.mkdirs()) {
+            throw new IOException("Failed to create directory: " + parentDir.getAbsolutePath());
+        }
+
+        Path tempFile = Files.createTempFile(parentDir.toPath(), "checkpoint_", ".tmp");
+        try {
+            objectMapper.writeValue(tempFile.toFile(), value);
+            Files.move(tempFile, target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    private File getCheckpointDirectory(String comparisonId) {
+        return new File(getResultsDirectory() + File.separator + "checkpoints" + File.separator + comparisonId);
+    }
+
+    private File getBatchFile(String batchId) {
+        return new File(getResultsDirectory() + File.separator + "batches" + File.separator + batchId + ".json");
+    }
+
     /**
      * Get the file for a comparison result.
      *
@@ -5,23 +5,27 @@ import guraa.pdfcompare.model.*;
 import guraa.pdfcompare.model.difference.Difference;
 import guraa.pdfcompare.repository.ComparisonRepository;
 import guraa.pdfcompare.repository.PdfRepository;
+import guraa.pdfcompare.util.CancellationContext;
+import guraa.pdfcompare.util.FileUtils;
+import guraa.pdfcompare.visual.EnhancedVisualMatcher;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
+import java.awt.Dimension;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.time.LocalDateTime;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Service for managing PDF comparisons with robust transaction handling.
@@ -33,15 +37,22 @@ public class ComparisonService {
     private final PdfRepository pdfRepository;
     private final ComparisonRepository comparisonRepository;
     private final PDFComparisonEngine comparisonEngine;
-    private final ExecutorService executorService;
     private final ComparisonResultStorage resultStorage;
-    private final ImageComparisonService imageComparisonService;
+    private final DocumentPreprocessingService preprocessingService;
+    private final ComparisonJobScheduler jobScheduler;
+    private final EnhancedVisualMatcher visualMatcher;
 
     // Map to track active comparison tasks
     private final Map<String, CompletableFuture<Void>> activeComparisonTasks = new ConcurrentHashMap<>();
 
-    // Map to track cancellation tokens for comparisons
-    private final Map<String, AtomicBoolean> cancellationTokens = new ConcurrentHashMap<>();
+    // Cancellation context of each queued or running comparison, passed down to its page work
+    private final Map<String, CancellationContext> cancellationContexts = new ConcurrentHashMap<>();
+
+    // Page pairs and finished page differences of running comparisons, served before the result is stored
+    private final Map<String, PartialResult> partialResults = new ConcurrentHashMap<>();
+
+    // Set once comparisons interrupted by the last shutdown have been resumed
+    private volatile boolean recoveryComplete = false;
 
     @Value("${app.comparison.max-processing-minutes:15}")
     private int maxProcessingMinutes = 15;
@@ -53,15 +64,17 @@ public class ComparisonService {
             PdfRepository pdfRepository,
             ComparisonRepository comparisonRepository,
             PDFComparisonEngine comparisonEngine,
-            @Qualifier("comparisonExecutor") ExecutorService executorService,
             ComparisonResultStorage resultStorage,
-            ImageComparisonService imageComparisonService) {
+            DocumentPreprocessingService preprocessingService,
+            ComparisonJobScheduler jobScheduler,
+            EnhancedVisualMatcher visualMatcher) {
         this.pdfRepository = pdfRepository;
         this.comparisonRepository = comparisonRepository;
         this.comparisonEngine = comparisonEngine;
-        this.executorService = executorService;
         this.resultStorage = resultStorage;
-        this.imageComparisonService = imageComparisonService;
+        this.preprocessingService = preprocessingService;
+        this.jobScheduler = jobScheduler;
+        this.visualMatcher = visualMatcher;
     }
 
     /**
@@ -71,6 +84,7 @@ public class ComparisonService {
      * @param compareDocumentId The ID of the document to compare against the base
      * @return The created comparison
      * @throws IOException If there is an error creating the comparison
+     * @throws QueueFullException If the comparison queue has no capacity left
      */
     @Transactional(propagation = Propagation.REQUIRES_NEW)
     public Comparison createComparison(String baseDocumentId, String compareDocumentId) throws IOException {
@@ -91,11 +105,11 @@ public class ComparisonService {
                 .id(UUID.randomUUID().toString())
                 .baseDocumentId(baseDocumentId)
                 .compareDocumentId(compareDocumentId)
-                .status(Comparison.ComparisonStatus.PROCESSING)
+                .status(Comparison.ComparisonStatus.PENDING)
                 .progress(0)
                 .totalOperations(100)
                 .completedOperations(0)
-                .currentPhase("Initializing")
+                .currentPhase("Queued")
                 .createdAt(LocalDateTime.now())
                 .updatedAt(LocalDateTime.now())
                 .build();
@@ -103,132 +117,167 @@ public class ComparisonService {
         // Save the comparison
         comparison = comparisonRepository.saveAndFlush(comparison);
         final String comparisonId = comparison.getId();
-        log.info("Created comparison with ID: {} in PROCESSING state", comparisonId);
-
-        // Create cancellation token
-        AtomicBoolean cancellationToken = new AtomicBoolean(false);
-        cancellationTokens.put(comparisonId, cancellationToken);
-
-        // Execute comparison asynchronously with timeout
-        CompletableFuture<Void> comparisonTask = CompletableFuture.runAsync(() -> {
-            try {
-                log.info("Starting asynchronous comparison for ID: {}", comparisonId);
-                updateComparisonPhase(comparisonId, "Loading documents", 5);
-
-                // Load documents in a new transaction
-                PdfDocument baseDoc;
-                PdfDocument compareDoc;
-                try {
-                    baseDoc = pdfRepository.findById(baseDocumentId)
-                            .orElseThrow(() -> new IllegalArgumentException("Base document not found"));
-                    updateComparisonProgress(comparisonId, 10);
-
-                    compareDoc = pdfRepository.findById(compareDocumentId)
-                            .orElseThrow(() -> new IllegalArgumentException("Compare document not found"));
-                    updateComparisonProgress(comparisonId, 15);
-                } catch (Exception e) {
-                    log.error("Error loading documents for comparison {}: {}", comparisonId, e.getMessage());
-                    updateComparisonStatus(comparisonId, Comparison.ComparisonStatus.FAILED,
-                            "Error loading documents: " + e.getMessage());
-                    return;
-                }
+        log.info("Created comparison with ID: {} in PENDING state", comparisonId);
 
-                // Check if cancelled
-                if (cancellationToken.get()) {
-                    log.info("Comparison {} was cancelled before processing", comparisonId);
-                    updateComparisonStatus(comparisonId, Comparison.ComparisonStatus.CANCELLED, "Comparison was cancelled");
-                    return;
-                }
-
-                updateComparisonPhase(comparisonId, "Comparing documents", 20);
-
-                // Perform the actual comparison with timeout and cancellation handling
-                ComparisonResult result;
-                try {
-                    // Perform the comparison with a timeout
-                    result = comparisonEngine.compareDocuments(baseDoc, compareDoc);
-                    updateComparisonProgress(comparisonId, 85);
-                } catch (Exception e) {
-                    log.error("Error during comparison process for ID {}: {}", comparisonId, e.getMessage(), e);
-                    updateComparisonStatus(comparisonId, Comparison.ComparisonStatus.FAILED,
-                            "Error during comparison: " + e.getMessage());
-                    return;
-                }
-
-                // Check if cancelled
-                if (cancellationToken.get()) {
-                    log.info("Comparison {} was cancelled after processing", comparisonId);
-                    updateComparisonStatus(comparisonId, Comparison.ComparisonStatus.CANCELLED, "Comparison was cancelled");
-                    return;
-                }
+        // Rejected jobs throw here, which rolls back the comparison record
+        int cost = jobScheduler.estimateCost(baseDocument.getPageCount(), compareDocument.getPageCount());
+        scheduleComparison(comparisonId, baseDocumentId, compareDocumentId, cost,
+                ComparisonJobScheduler.Priority.INTERACTIVE);
 
-                // Ensure result ID matches comparison ID
-                if (!comparisonId.equals(result.getId())) {
-                    log.info("Updating result ID from {} to {}", result.getId(), comparisonId);
-                    result = ComparisonResult.builder()
-                            .id(comparisonId)
-                            .baseDocumentId(result.getBaseDocumentId())
-                            .compareDocumentId(result.getCompareDocumentId())
-                            .pagePairs(result.getPagePairs())
-                            .summary(result.getSummary())
-                            .differencesByPage(result.getDifferencesByPage())
-                            .build();
-                }
+        return comparison;
+    }
 
-                log.info("Comparison completed successfully for ID: {}", comparisonId);
-                updateComparisonPhase(comparisonId, "Saving results", 90);
+    /**
+     * Create the comparisons of a batch and queue them as a single job.
+     * The job pre-processes every document of the batch once, then runs the comparisons
+     * one after another while the page images of shared documents stay cached.
+     *
+     * @param batch The batch, with a comparison ID assigned to each item
+     * @throws QueueFullException If the comparison queue has no capacity left
+     */
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    public void createComparisonBatch(ComparisonBatch batch) {
+        Map<String, PdfDocument> documents = new LinkedHashMap<>();
+        int cost = 0;
+
+        for (ComparisonBatch.Item item : batch.getItems()) {
+            PdfDocument baseDocument = documents.computeIfAbsent(item.getBaseDocumentId(), id -> pdfRepository.findById(id)
+                    .orElseThrow(() -> new IllegalArgumentException("Base document not found: " + id)));
+            PdfDocument compareDocument = documents.computeIfAbsent(item.getCompareDocumentId(), id -> pdfRepository.findById(id)
+                    .orElseThrow(() -> new IllegalArgumentException("Compare document not found: " + id)));
+
+            comparisonRepository.save(Comparison.builder()
+                    .id(item.getComparisonId())
+                    .baseDocumentId(item.getBaseDocumentId())
+                    .compareDocumentId(item.getCompareDocumentId())
+                    .status(Comparison.ComparisonStatus.PENDING)
+                    .progress(0)
+                    .totalOperations(100)
+                    .completedOperations(0)
+                    .currentPhase("Queued")
+                    .createdAt(LocalDateTime.now())
+                    .updatedAt(LocalDateTime.now())
+                    .batchId(batch.getId())
+                    .build());
+            cost += jobScheduler.estimateCost(baseDocument.getPageCount(), compareDocument.getPageCount());
+        }
+        comparisonRepository.flush();
+        log.info("Created {} comparisons of batch {} in PENDING state", batch.getItems().size(), batch.getId());
 
-                // Store the result
-                try {
-                    resultStorage.storeResult(comparisonId, result);
-                    log.info("Stored comparison result for ID: {}", comparisonId);
-                    updateComparisonProgress(comparisonId, 95);
-                } catch (Exception e) {
-                    log.error("Error storing result for comparison {}: {}", comparisonId, e.getMessage(), e);
-                    updateComparisonStatus(comparisonId, Comparison.ComparisonStatus.FAILED,
-                            "Error storing result: " + e.getMessage());
-                    return;
-                }
+        // Rejected jobs throw here, which rolls back the comparison records
+        scheduleComparisonBatch(batch, documents, cost);
+    }
 
-                // Final update - completed
-                updateComparisonPhase(comparisonId, "Completed", 100);
+    /**
+     * Resume comparisons that were queued or running when the application last stopped.
+     * Each one restarts from its last checkpoint instead of being failed as stuck.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void resumeInterruptedComparisons() {
+        try {
+            List<Comparison> interrupted = comparisonRepository.findAll().stream()
+                    .filter(c -> c.getStatus() == Comparison.ComparisonStatus.PENDING ||
+                            c.getStatus() == Comparison.ComparisonStatus.PROCESSING)
+                    .filter(c -> !resultStorage.resultExists(c.getId()))
+                    .collect(Collectors.toList());
+
+            if (!interrupted.isEmpty()) {
+                log.info("Resuming {} comparisons interrupted by the last shutdown", interrupted.size());
+            }
+            for (Comparison comparison : interrupted) {
+                resumeComparison(comparison);
+            }
+        } catch (Exception e) {
+            log.error("Error resuming interrupted comparisons: {}", e.getMessage(), e);
+        } finally {
+            recoveryComplete = true;
+        }
+    }
 
-                // Update status to COMPLETED - this must be done in a new transaction
-                updateComparisonStatus(comparisonId, Comparison.ComparisonStatus.COMPLETED, null);
-                log.info("Updated comparison {} status to COMPLETED", comparisonId);
+    /**
+     * Check whether interrupted comparisons have been resumed after startup.
+     *
+     * @return true once startup recovery has run
+     */
+    public boolean isRecoveryComplete() {
+        return recoveryComplete;
+    }
 
-            } catch (Exception e) {
-                log.error("Error during comparison process for ID {}: {}", comparisonId, e.getMessage(), e);
+    /**
+     * Queue an interrupted comparison again, at batch priority if it belongs to a batch.
+     * A comparison that cannot be resumed is failed and its checkpoint deleted.
+     *
+     * @param comparison The interrupted comparison
+     */
+    private void resumeComparison(Comparison comparison) {
+        String comparisonId = comparison.getId();
+        Optional<PdfDocument> baseDocument = pdfRepository.findById(comparison.getBaseDocumentId());
+        Optional<PdfDocument> compareDocument = pdfRepository.findById(comparison.getCompareDocumentId());
+        if (baseDocument.isEmpty() || compareDocument.isEmpty() ||
+                !new File(baseDocument.get().getFilePath()).exists() ||
+                !new File(compareDocument.get().getFilePath()).exists()) {
+            updateComparisonStatus(comparisonId, Comparison.ComparisonStatus.FAILED,
+                    "Documents are no longer available to resume the comparison");
+            resultStorage.deleteCheckpoint(comparisonId);
+            return;
+        }
 
-                // Update status to FAILED
-                try {
-                    updateComparisonStatus(comparisonId, Comparison.ComparisonStatus.FAILED, e.getMessage());
-                    log.info("Updated comparison {} status to FAILED: {}", comparisonId, e.getMessage());
-                } catch (Exception ex) {
-                    log.error("Failed to update status for failed comparison {}: {}",
-                            comparisonId, ex.getMessage(), ex);
-                }
-            } finally {
-                // Always clean up the cancellation token
-                cancellationTokens.remove(comparisonId);
-                activeComparisonTasks.remove(comparisonId);
-            }
-        }, executorService);
+        try {
+            int cost = jobScheduler.estimateCost(baseDocument.get().getPageCount(), compareDocument.get().getPageCount());
+            updateComparisonStatus(comparisonId, Comparison.ComparisonStatus.PENDING, null);
+            updateComparisonPhase(comparisonId, "Queued", comparison.getProgress());
+            ComparisonJobScheduler.Priority priority = comparison.getBatchId() != null
+                    ? ComparisonJobScheduler.Priority.BATCH : ComparisonJobScheduler.Priority.INTERACTIVE;
+            scheduleComparison(comparisonId, comparison.getBaseDocumentId(), comparison.getCompareDocumentId(),
+                    cost, priority);
+            log.info("Re-queued interrupted comparison {}", comparisonId);
+        } catch (QueueFullException e) {
+            log.warn("Could not resume comparison {}: {}", comparisonId, e.getMessage());
+            updateComparisonStatus(comparisonId, Comparison.ComparisonStatus.FAILED,
+                    "Comparison was interrupted and could not be re-queued: " + e.getMessage());
+            resultStorage.deleteCheckpoint(comparisonId);
+        }
+    }
 
-        // Add timeout to the task
-        comparisonTask = comparisonTask.orTimeout(maxProcessingMinutes, TimeUnit.MINUTES)
-                .exceptionally(ex -> {
-                    if (ex instanceof TimeoutException) {
+    /**
+     * Queue the work of a comparison with the job scheduler.
+     * The work resumes from the comparison's checkpoint if an earlier run was interrupted,
+     * and checkpoints every finished page pair as it goes.
+     *
+     * @param comparisonId      The comparison ID
+     * @param baseDocumentId    The ID of the base document
+     * @param compareDocumentId The ID of the compare document
+     * @param cost              The job cost
+     * @param priority          The job priority
+     * @throws QueueFullException If the comparison queue has no capacity left
+     */
+    private void scheduleComparison(String comparisonId, String baseDocumentId, String compareDocumentId,
+                                    int cost, ComparisonJobScheduler.Priority priority) {
+        // Create the cancellation context
+        CancellationContext cancellation = new CancellationContext();
+        cancellationContexts.put(comparisonId, cancellation);
+
+        // Queue the comparison; the scheduler starts it when its lane has capacity
+        Runnable comparisonWork = () -> runComparison(comparisonId, baseDocumentId, compareDocumentId, cancellation);
+
+        CompletableFuture<Void> comparisonTask = jobScheduler.submit(comparisonId, cost,
+                        priority, comparisonWork, maxProcessingMinutes)
+                .exceptionally(failure -> {
+                    Throwable ex = failure instanceof CompletionException && failure.getCause() != null
+                            ? failure.getCause() : failure;
+                    if (ex instanceof CancellationException) {
+                        log.info("Comparison {} was cancelled before it started", comparisonId);
+                    } else if (ex instanceof TimeoutException) {
                         log.error("Comparison {} timed out after {} minutes", comparisonId, maxProcessingMinutes);
 
-                        // Cancel ongoing operations
-                        cancellationToken.set(true);
-                        imageComparisonService.cancelAllComparisons();
+                        // Stop this comparison's page work; other comparisons are unaffected
+                        cancellation.cancel("Comparison timed out after " + maxProcessingMinutes + " minutes");
 
                         // Update status to FAILED
                         try {
                             updateComparisonStatus(comparisonId, Comparison.ComparisonStatus.FAILED,
                                     "Comparison timed out after " + maxProcessingMinutes + " minutes");
+                            resultStorage.deleteCheckpoint(comparisonId);
                         } catch (Exception e) {
                             log.error("Failed to update status for timed out comparison {}: {}",
                                     comparisonId, e.getMessage());
@@ -241,8 +290,300 @@ public class ComparisonService {
 
         // Store task for tracking
         activeComparisonTasks.put(comparisonId, comparisonTask);
+    }
 
-        return comparison;
+    /**
+     * Queue the comparisons of a batch with the job scheduler as one batch-priority job.
+     * Each comparison gets its own child cancellation context, so it can be cancelled on its own,
+     * while a timeout of the job cancels the whole batch.
+     *
+     * @param batch     The batch
+     * @param documents The documents of the batch by ID
+     * @param cost      The job cost, the sum of the costs of its comparisons
+     * @throws QueueFullException If the comparison queue has no capacity left
+     */
+    private void scheduleComparisonBatch(ComparisonBatch batch, Map<String, PdfDocument> documents, int cost) {
+        CancellationContext batchCancellation = new CancellationContext();
+        for (ComparisonBatch.Item item : batch.getItems()) {
+            cancellationContexts.put(item.getComparisonId(), batchCancellation.child());
+            activeComparisonTasks.put(item.getComparisonId(), new CompletableFuture<>());
+        }
+
+        long timeoutMinutes = (long) maxProcessingMinutes * batch.getItems().size();
+        try {
+            jobScheduler.submit(batch.getId(), cost, ComparisonJobScheduler.Priority.BATCH,
+                            () -> runComparisonBatch(batch, documents, batchCancellation), timeoutMinutes)
+                    .exceptionally(failure -> {
+                        Throwable ex = failure instanceof CompletionException && failure.getCause() != null
+                                ? failure.getCause() : failure;
+                        if (ex instanceof TimeoutException) {
+                            log.error("Comparison batch {} timed out after {} minutes", batch.getId(), timeoutMinutes);
+                            batchCancellation.cancel("Comparison batch timed out after " + timeoutMinutes + " minutes");
+                            failUnfinishedComparisons(batch,
+                                    "Comparison batch timed out after " + timeoutMinutes + " minutes");
+                        } else if (!(ex instanceof CancellationException)) {
+                            log.error("Unexpected error in comparison batch {}: {}", batch.getId(), ex.getMessage(), ex);
+                        }
+                        return null;
+                    });
+        } catch (QueueFullException e) {
+            for (ComparisonBatch.Item item : batch.getItems()) {
+                cancellationContexts.remove(item.getComparisonId());
+                activeComparisonTasks.remove(item.getComparisonId());
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Run the comparisons of a batch on the calling thread.
+     * Comparisons cancelled while the batch was waiting are skipped.
+     *
+     * @param batch             The batch
+     * @param documents         The documents of the batch by ID
+     * @param batchCancellation The cancellation context of the whole batch
+     */
+    private void runComparisonBatch(ComparisonBatch batch, Map<String, PdfDocument> documents,
+                                    CancellationContext batchCancellation) {
+        // Documents used by more than one comparison keep their page images cached between them
+        Map<String, Long> usage = batch.getItems().stream()
+                .flatMap(item -> Stream.of(item.getBaseDocumentId(), item.getCompareDocumentId()))
+                .collect(Collectors.groupingBy(id -> id, Collectors.counting()));
+        List<PdfDocument> sharedDocuments = documents.values().stream()
+                .filter(document -> usage.getOrDefault(document.getFileId(), 0L) > 1)
+                .collect(Collectors.toList());
+        sharedDocuments.forEach(visualMatcher::retainDocument);
+
+        try {
+            log.info("Starting comparison batch {} with {} comparisons", batch.getId(), batch.getItems().size());
+
+            // Renders, text and page signatures of each document are computed once for the whole batch
+            for (PdfDocument document : documents.values()) {
+                preprocessingService.ensurePreprocessed(document, batchCancellation);
+            }
+
+            for (ComparisonBatch.Item item : batch.getItems()) {
+                CancellationContext cancellation = cancellationContexts.get(item.getComparisonId());
+                if (cancellation == null || cancellation.isCancelled()) {
+                    // Whoever cancelled the comparison has already recorded its status
+                    resultStorage.deleteCheckpoint(item.getComparisonId());
+                    continue;
+                }
+                runComparison(item.getComparisonId(), item.getBaseDocumentId(), item.getCompareDocumentId(),
+                        cancellation);
+            }
+            log.info("Finished comparison batch {}", batch.getId());
+        } catch (CancellationException e) {
+            log.info("Comparison batch {} stopped: {}", batch.getId(), e.getMessage());
+        } finally {
+            sharedDocuments.forEach(visualMatcher::releaseDocument);
+            for (ComparisonBatch.Item item : batch.getItems()) {
+                cancellationContexts.remove(item.getComparisonId());
+                CompletableFuture<Void> task = activeComparisonTasks.remove(item.getComparisonId());
+                if (task != null) {
+                    task.complete(null);
+                }
+            }
+        }
+    }
+
+    /**
+     * Fail the comparisons of a batch that are still queued or running.
+     *
+     * @param batch  The batch
+     * @param reason The error message to record
+     */
+    private void failUnfinishedComparisons(ComparisonBatch batch, String reason) {
+        for (ComparisonBatch.Item item : batch.getItems()) {
+            try {
+                Optional<Comparison> comparison = comparisonRepository.findById(item.getComparisonId());
+                if (comparison.isPresent() && !resultStorage.resultExists(item.getComparisonId()) &&
+                        (comparison.get().getStatus() == Comparison.ComparisonStatus.PENDING ||
+                                comparison.get().getStatus() == Comparison.ComparisonStatus.PROCESSING)) {
+                    updateComparisonStatus(item.getComparisonId(), Comparison.ComparisonStatus.FAILED, reason);
+                    resultStorage.deleteCheckpoint(item.getComparisonId());
+                }
+            } catch (Exception e) {
+                log.error("Failed to update status of comparison {}: {}", item.getComparisonId(), e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Run a comparison on the calling thread and record its outcome.
+     * The work resumes from the comparison's checkpoint if an earlier run was interrupted,
+     * and checkpoints every finished page pair as it goes.
+     *
+     * @param comparisonId      The comparison ID
+     * @param baseDocumentId    The ID of the base document
+     * @param compareDocumentId The ID of the compare document
+     * @param cancellation      The cancellation context of the comparison
+     */
+    private void runComparison(String comparisonId, String baseDocumentId, String compareDocumentId,
+                               CancellationContext cancellation) {
+        // Background pre-processing pauses while this comparison runs
+        preprocessingService.beginInteractiveWork();
+        // Set when the run is stopped by an interrupt, e.g. a shutdown, so its checkpoint lets the next start resume it
+        boolean resumable = false;
+        try {
+            log.info("Starting asynchronous comparison for ID: {}", comparisonId);
+            updateComparisonStatus(comparisonId, Comparison.ComparisonStatus.PROCESSING, null);
+            updateComparisonPhase(comparisonId, "Loading documents", 5);
+
+            // Load documents in a new transaction
+            PdfDocument baseDoc;
+            PdfDocument compareDoc;
+            try {
+                baseDoc = pdfRepository.findById(baseDocumentId)
+                        .orElseThrow(() -> new IllegalArgumentException("Base document not found"));
+                updateComparisonProgress(comparisonId, 10);
+
+                compareDoc = pdfRepository.findById(compareDocumentId)
+                        .orElseThrow(() -> new IllegalArgumentException("Compare document not found"));
+                updateComparisonProgress(comparisonId, 15);
+            } catch (Exception e) {
+                log.error("Error loading documents for comparison {}: {}", comparisonId, e.getMessage());
+                updateComparisonStatus(comparisonId, Comparison.ComparisonStatus.FAILED,
+                        "Error loading documents: " + e.getMessage());
+                return;
+            }
+
+            // Check if cancelled
+            if (cancellation.isCancelled()) {
+                log.info("Comparison {} was cancelled before processing", comparisonId);
+                updateComparisonStatus(comparisonId, Comparison.ComparisonStatus.CANCELLED, "Comparison was cancelled");
+                return;
+            }
+
+            updateComparisonPhase(comparisonId, "Comparing documents", 20);
+
+            // Perform the actual comparison with timeout and cancellation handling
+            ComparisonResult result;
+            try {
+                // Pick up where an interrupted run left off, and checkpoint as pages finish
+                ComparisonCheckpoint checkpoint = resultStorage.loadCheckpoint(comparisonId);
+                PartialResult partialResult = new PartialResult(baseDocumentId, compareDocumentId, checkpoint);
+                partialResults.put(comparisonId, partialResult);
+                result = comparisonEngine.compareDocuments(baseDoc, compareDoc, checkpoint,
+                        createCheckpointListener(comparisonId, partialResult), cancellation);
+                updateComparisonProgress(comparisonId, 85);
+            } catch (CancellationException e) {
+                // Whoever cancelled the comparison has already recorded its status
+                log.info("Comparison {} stopped: {}", comparisonId, e.getMessage());
+                resumable = !cancellation.isCancelled();
+                return;
+            } catch (Exception e) {
+                log.error("Error during comparison process for ID {}: {}", comparisonId, e.getMessage(), e);
+                updateComparisonStatus(comparisonId, Comparison.ComparisonStatus.FAILED,
+                        "Error during comparison: " + e.getMessage());
+                return;
+            }
+
+            // Check if cancelled
+            if (cancellation.isCancelled()) {
+                log.info("Comparison {} was cancelled after processing", comparisonId);
+                updateComparisonStatus(comparisonId, Comparison.ComparisonStatus.CANCELLED, "Comparison was cancelled");
+                return;
+            }
+
+            // Ensure result ID matches comparison ID
+            if (!comparisonId.equals(result.getId())) {
+                log.info("Updating result ID from {} to {}", result.getId(), comparisonId);
+                result = ComparisonResult.builder()
+                        .id(comparisonId)
+                        .baseDocumentId(result.getBaseDocumentId())
+                        .compareDocumentId(result.getCompareDocumentId())
+                        .pagePairs(result.getPagePairs())
+                        .summary(result.getSummary())
+                        .differencesByPage(result.getDifferencesByPage())
+                        .documentPairs(result.getDocumentPairs())
+                        .build();
+            }
+
+            log.info("Comparison completed successfully for ID: {}", comparisonId);
+            updateComparisonPhase(comparisonId, "Saving results", 90);
+
+            // Store the result
+            try {
+                resultStorage.storeResult(comparisonId, result);
+                log.info("Stored comparison result for ID: {}", comparisonId);
+                updateComparisonProgress(comparisonId, 95);
+            } catch (Exception e) {
+                log.error("Error storing result for comparison {}: {}", comparisonId, e.getMessage(), e);
+                updateComparisonStatus(comparisonId, Comparison.ComparisonStatus.FAILED,
+                        "Error storing result: " + e.getMessage());
+                return;
+            }
+
+            // Final update - completed
+            updateComparisonPhase(comparisonId, "Completed", 100);
+
+            // Update status to COMPLETED - this must be done in a new transaction
+            updateComparisonStatus(comparisonId, Comparison.ComparisonStatus.COMPLETED, null);
+            log.info("Updated comparison {} status to COMPLETED", comparisonId);
+
+        } catch (Exception e) {
+            log.error("Error during comparison process for ID {}: {}", comparisonId, e.getMessage(), e);
+
+            // Update status to FAILED
+            try {
+                updateComparisonStatus(comparisonId, Comparison.ComparisonStatus.FAILED, e.getMessage());
+                log.info("Updated comparison {} status to FAILED: {}", comparisonId, e.getMessage());
+            } catch (Exception ex) {
+                log.error("Failed to update status for failed comparison {}: {}",
+                        comparisonId, ex.getMessage(), ex);
+            }
+        } finally {
+            // The comparison is completed, failed or cancelled, so it is never resumed from its checkpoint
+            if (!resumable) {
+                resultStorage.deleteCheckpoint(comparisonId);
+            }
+            // Always clean up the cancellation context; the stored result now serves the pages
+            cancellationContexts.remove(comparisonId);
+            partialResults.remove(comparisonId);
+            activeComparisonTasks.remove(comparisonId);
+            preprocessingService.endInteractiveWork();
+        }
+    }
+
+    /**
+     * Create a listener that publishes and checkpoints the pages of a running comparison
+     * and advances its progress from 20% to 85% as page pairs finish.
+     *
+     * @param comparisonId The comparison ID
+     * @param partialResult The partial result served while the comparison runs
+     * @return The listener
+     */
+    private ComparisonProgressListener createCheckpointListener(String comparisonId, PartialResult partialResult) {
+        AtomicInteger reportedProgress = new AtomicInteger(20);
+        return new ComparisonProgressListener() {
+            @Override
+            public void onPagePairsMatched(List<PagePair> pagePairs) {
+                partialResult.setPagePairs(pagePairs);
+                try {
+                    resultStorage.storeCheckpointPagePairs(comparisonId, pagePairs);
+                } catch (IOException e) {
+                    log.warn("Failed to checkpoint page pairs of comparison {}: {}", comparisonId, e.getMessage());
+                }
+            }
+
+            @Override
+            public void onPagePairCompleted(PagePair pagePair, List<Difference> differences, int completed, int total) {
+                partialResult.getCompletedPages().put(pagePair.getId(),
+                        differences != null ? differences : Collections.emptyList());
+                try {
+                    resultStorage.storeCheckpointPage(comparisonId, pagePair.getId(), differences);
+                } catch (IOException e) {
+                    log.warn("Failed to checkpoint page pair {} of comparison {}: {}",
+                            pagePair.getId(), comparisonId, e.getMessage());
+                }
+
+                int progress = 20 + 65 * completed / Math.max(1, total);
+                if (progress > reportedProgress.getAndAccumulate(progress, Math::max)) {
+                    updateComparisonProgress(comparisonId, progress);
+                }
+            }
+        };
     }
 
     /**
@@ -371,6 +712,16 @@ public class ComparisonService {
                 comparison.getStatus() == Comparison.ComparisonStatus.PENDING;
     }
 
+    /**
+     * Get the scheduling state of a comparison.
+     *
+     * @param comparisonId The comparison ID
+     * @return Map with lane, queue state and position, or empty if the comparison is not scheduled
+     */
+    public Map<String, Object> getQueueInfo(String comparisonId) {
+        return jobScheduler.getQueueInfo(comparisonId);
+    }
+
     /**
      * Cancel a comparison.
      *
@@ -384,14 +735,19 @@ public class ComparisonService {
             return false;
         }
 
-        // Set cancellation token
-        AtomicBoolean token = cancellationTokens.get(comparisonId);
-        if (token != null) {
-            token.set(true);
-            log.info("Cancellation requested for comparison {}", comparisonId);
+        // Comparisons that are still queued are simply removed from the queue
+        if (jobScheduler.cancelQueued(comparisonId)) {
+            log.info("Removed queued comparison {}", comparisonId);
+            updateComparisonStatus(comparisonId, Comparison.ComparisonStatus.CANCELLED, "Cancelled by user");
+            resultStorage.deleteCheckpoint(comparisonId);
+            return true;
+        }
 
-            // Cancel ongoing image comparisons
-            imageComparisonService.cancelAllComparisons();
+        // Cancel the comparison's own work; its page work stops at the next page or row band
+        CancellationContext cancellation = cancellationContexts.get(comparisonId);
+        if (cancellation != null) {
+            cancellation.cancel("Cancelled by user");
+            log.info("Cancellation requested for comparison {}", comparisonId);
 
             // Try to cancel the task
             CompletableFuture<Void> task = activeComparisonTasks.get(comparisonId);
@@ -512,6 +868,8 @@ public class ComparisonService {
 
     /**
      * Get page details for a specific page in a comparison.
+     * While the comparison is still running, finished pages are served from its partial result
+     * and {@link PageDetails#getReady()} tells whether the page's differences are final.
      *
      * @param comparisonId The comparison ID
      * @param pageNumber   The page number
@@ -521,16 +879,18 @@ public class ComparisonService {
     public PageDetails getPageDetails(String comparisonId, int pageNumber, Map<String, Object> filters) {
         ComparisonResult result = getComparisonResult(comparisonId);
         if (result == null) {
+            return getPartialPageDetails(comparisonId, pageNumber, filters);
+        }
+
+        PagePair pagePair = findPagePair(result.getPagePairs(), pageNumber);
+        if (pagePair == null) {
+            log.warn("No page pair found for page number {} in comparison: {}", pageNumber, comparisonId);
             return null;
         }
 
-        // Implementation details
-        PageDetails pageDetails = PageDetails.builder()
-                .pageNumber(pageNumber)
-                .pageId(UUID.randomUUID().toString())
-                .pageExistsInBase(true)
-                .pageExistsInCompare(true)
-                .build();
+        PageDetails pageDetails = buildPageDetails(comparisonId, result.getBaseDocumentId(),
+                result.getCompareDocumentId(), pagePair, pageNumber,
+                result.getDifferencesByPage().get(pagePair.getId()), true);
 
         // Apply filters if needed
         applyFilters(pageDetails, filters);
@@ -564,6 +924,11 @@ public class ComparisonService {
             return new ArrayList<>(); // Return empty list instead of null
         }
 
+        // Files that concatenate several documents were compared per sub-document pair
+        if (result.getDocumentPairs() != null && !result.getDocumentPairs().isEmpty()) {
+            return result.getDocumentPairs();
+        }
+
         List<DocumentPair> pairs = new ArrayList<>();
         DocumentPair pair = DocumentPair.builder()
                 .pairIndex(0)
@@ -584,6 +949,7 @@ public class ComparisonService {
     }
     /**
      * Get page details for a specific page in a document pair.
+     * While the comparison is still running, pages are served from its partial result.
      *
      * @param comparisonId The comparison ID
      * @param pairIndex The pair index
@@ -594,8 +960,12 @@ public class ComparisonService {
     public PageDetails getPageDetailsForPair(String comparisonId, int pairIndex, int pageNumber, Map<String, Object> filters) {
         ComparisonResult result = getComparisonResult(comparisonId);
         if (result == null) {
-            log.warn("No result found for comparison ID: {}", comparisonId);
-            return null;
+            // Document pairs are only known once the comparison finishes; until then it is a single pair
+            if (pairIndex != 0) {
+                log.warn("Invalid pair index {} for in-progress comparison ID: {}", pairIndex, comparisonId);
+                return null;
+            }
+            return getPartialPageDetails(comparisonId, pageNumber, filters);
         }
 
         // Get document pairs
@@ -607,61 +977,135 @@ public class ComparisonService {
 
         DocumentPair pair = pairs.get(pairIndex);
 
-        // Check if page number is within range
-        if (pageNumber < pair.getBaseStartPage() || pageNumber > pair.getBaseEndPage()) {
+        // Pages are numbered in the base file, or in the compare file for a pair without a base document
+        int startPage = pair.isHasBaseDocument() ? pair.getBaseStartPage() : pair.getCompareStartPage();
+        int endPage = pair.isHasBaseDocument() ? pair.getBaseEndPage() : pair.getCompareEndPage();
+        if (pageNumber < startPage || pageNumber > endPage) {
             log.warn("Page number {} is out of range for pair index {} in comparison: {}",
                     pageNumber, pairIndex, comparisonId);
             return null;
         }
 
-        // Find the corresponding page pair
-        Optional<PagePair> pagePairOpt = result.getPagePairs().stream()
-                .filter(p -> p.getBasePageNumber() == pageNumber || p.getComparePageNumber() == pageNumber)
-                .findFirst();
+        PagePair pagePair = pair.isHasBaseDocument()
+                ? findPagePair(result.getPagePairs(), pageNumber)
+                : result.getPagePairs().stream()
+                        .filter(p -> p.getBasePageNumber() <= 0 && p.getComparePageNumber() == pageNumber)
+                        .findFirst()
+                        .orElse(null);
+        if (pagePair == null) {
+            log.warn("No page pair found for page number {} in comparison: {}", pageNumber, comparisonId);
+            return null;
+        }
+
+        PageDetails pageDetails = buildPageDetails(comparisonId, result.getBaseDocumentId(),
+                result.getCompareDocumentId(), pagePair, pageNumber,
+                result.getDifferencesByPage().get(pagePair.getId()), true);
 
-        if (pagePairOpt.isEmpty()) {
+        // Apply filters if needed
+        applyFilters(pageDetails, filters);
+
+        return pageDetails;
+    }
+
+    /**
+     * Get page details from the partial result of a running comparison.
+     * Pages whose page pair has not finished yet are returned without differences and marked not ready.
+     *
+     * @param comparisonId The comparison ID
+     * @param pageNumber The page number
+     * @param filters Filters to apply to the results
+     * @return The page details, or null if the comparison is not running or has no such page
+     */
+    private PageDetails getPartialPageDetails(String comparisonId, int pageNumber, Map<String, Object> filters) {
+        PartialResult partial = partialResults.get(comparisonId);
+        if (partial == null) {
+            return null;
+        }
+
+        List<PagePair> pagePairs = partial.getPagePairs();
+        if (pagePairs == null) {
+            // Pages are still being matched
+            return PageDetails.builder()
+                    .pageNumber(pageNumber)
+                    .ready(false)
+                    .build();
+        }
+
+        PagePair pagePair = findPagePair(pagePairs, pageNumber);
+        if (pagePair == null) {
             log.warn("No page pair found for page number {} in comparison: {}", pageNumber, comparisonId);
             return null;
         }
 
-        PagePair pagePair = pagePairOpt.get();
+        List<Difference> differences = partial.getCompletedPages().get(pagePair.getId());
+        PageDetails pageDetails = buildPageDetails(comparisonId, partial.getBaseDocumentId(),
+                partial.getCompareDocumentId(), pagePair, pageNumber, differences,
+                differences != null || !pagePair.isMatched());
+
+        applyFilters(pageDetails, filters);
+
+        return pageDetails;
+    }
+
+    /**
+     * Find the page pair containing a page, by its base page number or else its compare page number.
+     *
+     * @param pagePairs The page pairs
+     * @param pageNumber The page number
+     * @return The page pair, or null if none contains the page
+     */
+    private PagePair findPagePair(List<PagePair> pagePairs, int pageNumber) {
+        return pagePairs.stream()
+                .filter(p -> p.getBasePageNumber() == pageNumber)
+                .findFirst()
+                .orElseGet(() -> pagePairs.stream()
+                        .filter(p -> p.getComparePageNumber() == pageNumber)
+                        .findFirst()
+                        .orElse(null));
+    }
 
-        // Create page details
+    /**
+     * Build the page details of one page pair.
+     *
+     * @param comparisonId The comparison ID
+     * @param baseDocumentId The base document ID
+     * @param compareDocumentId The compare document ID
+     * @param pagePair The page pair
+     * @param pageNumber The requested page number
+     * @param differences The differences of the page pair, or null if there are none (yet)
+     * @param ready Whether the page pair has finished comparing
+     * @return The page details
+     */
+    private PageDetails buildPageDetails(String comparisonId, String baseDocumentId, String compareDocumentId,
+                                         PagePair pagePair, int pageNumber, List<Difference> differences,
+                                         boolean ready) {
         PageDetails pageDetails = PageDetails.builder()
                 .pageNumber(pageNumber)
                 .pageId(pagePair.getId())
                 .pageExistsInBase(pagePair.getBasePageNumber() > 0)
                 .pageExistsInCompare(pagePair.getComparePageNumber() > 0)
+                .ready(ready)
                 .build();
 
-        // Add difference counts
-        if (pagePair.isMatched() && pagePair.hasDifferences()) {
-            pageDetails.setTextDifferenceCount(pagePair.getDifferenceCountByType("text"));
-            pageDetails.setImageDifferenceCount(pagePair.getDifferenceCountByType("image"));
-            pageDetails.setFontDifferenceCount(pagePair.getDifferenceCountByType("font"));
-            pageDetails.setStyleDifferenceCount(pagePair.getDifferenceCountByType("style"));
-
-            // Get differences for this page
-            List<Difference> differences = result.getDifferencesByPage().get(pagePair.getId());
-            if (differences != null && !differences.isEmpty()) {
-                // Process differences
-                List<Difference> baseDiffs = differences.stream()
-                        .filter(d -> d.getBasePageNumber() == pageNumber)
-                        .collect(Collectors.toList());
-
-                List<Difference> compareDiffs = differences.stream()
-                        .filter(d -> d.getComparePageNumber() == pageNumber)
-                        .collect(Collectors.toList());
-
-                pageDetails.setBaseDifferences(baseDiffs);
-                pageDetails.setCompareDifferences(compareDiffs);
-            }
+        // Add differences and their counts; counted from the list since a running page pair is still being filled
+        if (differences != null && !differences.isEmpty()) {
+            pageDetails.setTextDifferenceCount(countDifferencesByType(differences, "text"));
+            pageDetails.setImageDifferenceCount(countDifferencesByType(differences, "image"));
+            pageDetails.setFontDifferenceCount(countDifferencesByType(differences, "font"));
+            pageDetails.setStyleDifferenceCount(countDifferencesByType(differences, "style"));
+
+            pageDetails.setBaseDifferences(differences.stream()
+                    .filter(d -> d.getBasePageNumber() == pagePair.getBasePageNumber())
+                    .collect(Collectors.toList()));
+            pageDetails.setCompareDifferences(differences.stream()
+                    .filter(d -> d.getComparePageNumber() == pagePair.getComparePageNumber())
+                    .collect(Collectors.toList()));
         }
 
         // Set extracted text if available
         try {
-            PdfDocument baseDocument = pdfRepository.findById(result.getBaseDocumentId()).orElse(null);
-            PdfDocument compareDocument = pdfRepository.findById(result.getCompareDocumentId()).orElse(null);
+            PdfDocument baseDocument = pdfRepository.findById(baseDocumentId).orElse(null);
+            PdfDocument compareDocument = pdfRepository.findById(compareDocumentId).orElse(null);
 
             if (baseDocument != null && pageDetails.isPageExistsInBase()) {
                 String baseExtractedTextPath = baseDocument.getExtractedTextPath(pagePair.getBasePageNumber());
@@ -696,11 +1140,14 @@ public class ComparisonService {
                     pageNumber, comparisonId, e.getMessage(), e);
         }
 
-        // Apply filters if needed
-        applyFilters(pageDetails, filters);
-
         return pageDetails;
     }
+
+    private int countDifferencesByType(List<Difference> differences, String type) {
+        return (int) differences.stream()
+                .filter(d -> type.equals(d.getType()))
+                .count();
+    }
     /**
      * Get image width from file path.
      *
@@ -715,8 +1162,8 @@ public class ComparisonService {
         try {
             File imageFile = new File(imagePath);
             if (imageFile.exists()) {
-                BufferedImage image = ImageIO.read(imageFile);
-                return image != null ? image.getWidth() : 0;
+                Dimension size = FileUtils.readImageSize(imageFile);
+                return size != null ? size.width : 0;
             }
         } catch (Exception e) {
             log.warn("Unable to get image width for {}: {}", imagePath, e.getMessage());
@@ -739,8 +1186,8 @@ public class ComparisonService {
         try {
             File imageFile = new File(imagePath);
             if (imageFile.exists()) {
-                BufferedImage image = ImageIO.read(imageFile);
-                return image != null ? image.getHeight() : 0;
+                Dimension size = FileUtils.readImageSize(imageFile);
+                return size != null ? size.height : 0;
             }
         } catch (Exception e) {
             log.warn("Unable to get image height for {}: {}", imagePath, e.getMessage());
@@ -748,4 +1195,45 @@ public class ComparisonService {
 
         return 0;
     }
-}
\ No newline at end of file
+
+    /**
+     * The pages of a running comparison that are available before its result is stored.
+     */
+    private static class PartialResult {
+        private final String baseDocumentId;
+        private final String compareDocumentId;
+        private final Map<String, List<Difference>> completedPages = new ConcurrentHashMap<>();
+        private volatile List<PagePair> pagePairs;
+
+        PartialResult(String baseDocumentId, String compareDocumentId, ComparisonCheckpoint checkpoint) {
+            this.baseDocumentId = baseDocumentId;
+            this.compareDocumentId = compareDocumentId;
+            // A resumed comparison serves the pages its interrupted run already finished
+            if (checkpoint != null) {
+                this.pagePairs = checkpoint.getPagePairs();
+                checkpoint.getCompletedPages().forEach((pagePairId, differences) ->
+                        completedPages.put(pagePairId, differences != null ? differences : Collections.emptyList()));
+            }
+        }
+
+        String getBaseDocumentId() {
+            return baseDocumentId;
+        }
+
+        String getCompareDocumentId() {
+            return compareDocumentId;
+        }
+
+        Map<String, List<Difference>> getCompletedPages() {
+            return completedPages;
+        }
+
+        List<PagePair> getPagePairs() {
+            return pagePairs;
+        }
+
+        void setPagePairs(List<PagePair> pagePairs) {
+            this.pagePairs = pagePairs;
+        }
+    }
+}
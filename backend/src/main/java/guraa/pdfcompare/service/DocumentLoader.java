@@ -0,0 +1,302 @@
+package guraa.pdfcompare.service;
+
+import com.itextpdf.io.source.IRandomAccessSource;
+import com.itextpdf.io.source.RandomAccessSourceFactory;
+import com.itextpdf.kernel.pdf.PdfReader;
+import com.itextpdf.kernel.pdf.ReaderProperties;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.io.RandomAccessBufferedFileInputStream;
+import org.apache.pdfbox.io.ScratchFile;
+import org.apache.pdfbox.pdfparser.PDFParser;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Opens PDF files for PDFBox and iText.
+ * Files up to the large-document threshold are opened in memory as usual. Larger files are
+ * opened in large-document mode: PDFBox keeps at most a fixed amount of parsed stream data on
+ * the heap and spills the rest to scratch files, and iText reads through memory-mapped file
+ * pages without keeping decoded streams. Only a limited number of large documents are open at
+ * once; further opens wait for one to be closed. Opens nested on a thread that already holds a
+ * large document, like the PDFBox and iText copies pre-processing keeps open together, share
+ * its slot, so they cannot wait on each other.
+ */
+@Slf4j
+@Service
+public class DocumentLoader {
+
+    private final long largeThresholdBytes;
+    private final long maxMainMemoryBytes;
+    private final int maxOpenLarge;
+    private final Semaphore largeDocumentSlots;
+
+    // Large documents open on each thread, which share one slot
+    private final ThreadLocal<SlotHolder> heldSlots = ThreadLocal.withInitial(SlotHolder::new);
+
+    @Value("${app.documents.scratch-path:}")
+    private String scratchPath;
+
+    @Value("${app.documents.large-open-timeout-seconds:300}")
+    private long openTimeoutSeconds = 300;
+
+    /**
+     * Constructor.
+     *
+     * @param meterRegistry The meter registry for large-document metrics
+     * @param largeThresholdMb The file size from which documents are opened in large-document mode
+     * @param maxMainMemoryMb The heap PDFBox may use per large document before spilling to scratch files
+     * @param maxOpenLarge The number of large documents that may be open at once
+     */
+    public DocumentLoader(
+            MeterRegistry meterRegistry,
+            @Value("${app.documents.large-threshold-mb:32}") long largeThresholdMb,
+            @Value("${app.documents.large-max-main-memory-mb:32}") long maxMainMemoryMb,
+            @Value("${app.documents.max-open-large:2}") int maxOpenLarge) {
+        this.largeThresholdBytes = largeThresholdMb * 1024 * 1024;
+        this.maxMainMemoryBytes = Math.max(1, maxMainMemoryMb) * 1024 * 1024;
+        this.maxOpenLarge = Math.max(1, maxOpenLarge);
+        this.largeDocumentSlots = new Semaphore(this.maxOpenLarge, true);
+
+        Gauge.builder("pdfcompare.documents.large.open", largeDocumentSlots,
+                        s -> this.maxOpenLarge - s.availablePermits())
+                .description("Slots held by open large documents")
+                .register(meterRegistry);
+
+        log.info("Documents from {} MB are opened in large-document mode, at most {} at once",
+                largeThresholdMb, this.maxOpenLarge);
+    }
+
+    /**
+     * Check whether a file is opened in large-document mode.
+     *
+     * @param file The PDF file
+     * @return true if the file is at least the large-document threshold
+     */
+    public boolean isLarge(File file) {
+        return file.length() >= largeThresholdBytes;
+    }
+
+    /**
+     * Get how many large documents may be open at once, e.g. to size work that opens one per thread.
+     *
+     * @return The number of large-document slots
+     */
+    public int getMaxOpenLarge() {
+        return maxOpenLarge;
+    }
+
+    /**
+     * Open a PDF file with PDFBox.
+     *
+     * @param filePath The PDF file path
+     * @return The open document, to be closed by the caller
+     * @throws IOException If the file cannot be read or a large-document slot does not free up in time
+     */
+    public PDDocument loadPdfBox(String filePath) throws IOException {
+        File file = new File(filePath);
+        if (!isLarge(file)) {
+            return PDDocument.load(file);
+        }
+
+        Runnable release = acquireSlot(file);
+        RandomAccessBufferedFileInputStream source = null;
+        ScratchFile scratchFile = null;
+        try {
+            // The document closes its source, which gives the slot back
+            source = new SlotReleasingFileInputStream(file, release);
+            scratchFile = new ScratchFile(scratchSetting());
+            PDFParser parser = new PDFParser(source, "", null, null, scratchFile);
+            parser.parse();
+            return parser.getPDDocument();
+        } catch (IOException | RuntimeException e) {
+            if (scratchFile != null) {
+                scratchFile.close();
+            }
+            if (source != null) {
+                source.close();
+            } else {
+                release.run();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Open a PDF file with iText.
+     *
+     * @param filePath The PDF file path
+     * @return The open reader, to be closed by the caller or by the document it is given to
+     * @throws IOException If the file cannot be read or a large-document slot does not free up in time
+     */
+    public PdfReader openReader(String filePath) throws IOException {
+        return openReader(filePath, new ReaderProperties());
+    }
+
+    /**
+     * Open a PDF file with iText.
+     *
+     * @param filePath   The PDF file path
+     * @param properties The reader properties, e.g. a password
+     * @return The open reader, to be closed by the caller or by the document it is given to
+     * @throws IOException If the file cannot be read or a large-document slot does not free up in time
+     */
+    public PdfReader openReader(String filePath, ReaderProperties properties) throws IOException {
+        File file = new File(filePath);
+        if (!isLarge(file)) {
+            return new PdfReader(filePath, properties);
+        }
+
+        Runnable release = acquireSlot(file);
+        IRandomAccessSource source = null;
+        try {
+            // Mapped file pages are read on demand and can be dropped by the OS, so they do not count against the heap
+            source = new SlotReleasingSource(
+                    new RandomAccessSourceFactory().setForceRead(false).createBestSource(filePath), release);
+            PdfReader reader = new PdfReader(source, properties);
+            reader.setMemorySavingMode(true);
+            return reader;
+        } catch (IOException | RuntimeException e) {
+            if (source != null) {
+                source.close();
+            } else {
+                release.run();
+            }
+            throw e;
+        }
+    }
+
+    // Private helper methods
+
+    private MemoryUsageSetting scratchSetting() {
+        MemoryUsageSetting setting = MemoryUsageSetting.setupMixed(maxMainMemoryBytes);
+        if (scratchPath != null && !scratchPath.isBlank()) {
+            File directory = new File(scratchPath);
+            if (directory.isDirectory() || directory.mkdirs()) {
+                setting.setTempDir(directory);
+            }
+        }
+        return setting;
+    }
+
+    /**
+     * Take a large-document slot, or join the one the calling thread already holds.
+     *
+     * @return Gives the slot back; runs at most once
+     */
+    private Runnable acquireSlot(File file) throws IOException {
+        SlotHolder holder = heldSlots.get();
+        synchronized (holder) {
+            if (holder.open > 0) {
+                holder.open++;
+                return releaser(holder);
+            }
+        }
+
+        log.debug("Opening {} ({} MB) in large-document mode", file.getName(), file.length() / (1024 * 1024));
+        try {
+            if (!largeDocumentSlots.tryAcquire(openTimeoutSeconds, TimeUnit.SECONDS)) {
+                throw new IOException("Timed out waiting to open large document " + file.getName());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting to open large document " + file.getName(), e);
+        }
+
+        synchronized (holder) {
+            holder.open++;
+        }
+        return releaser(holder);
+    }
+
+    private Runnable releaser(SlotHolder holder) {
+        AtomicBoolean released = new AtomicBoolean();
+        return () -> {
+            if (!released.compareAndSet(false, true)) {
+                return;
+            }
+            // A document may be closed on another thread than it was opened on
+            synchronized (holder) {
+                if (--holder.open == 0) {
+                    largeDocumentSlots.release();
+                }
+            }
+        };
+    }
+
+    /**
+     * The large documents open on one thread.
+     */
+    private static final class SlotHolder {
+        private int open;
+    }
+
+    /**
+     * PDFBox file source that gives its large-document slot back when the document closes it.
+     */
+    private static final class SlotReleasingFileInputStream extends RandomAccessBufferedFileInputStream {
+
+        private final Runnable release;
+
+        SlotReleasingFileInputStream(File file, Runnable release) throws IOException {
+            super(file);
+            this.release = release;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                release.run();
+            }
+        }
+    }
+
+    /**
+     * iText source that gives its large-document slot back when the reader closes it.
+     */
+    private static final class SlotReleasingSource implements IRandomAccessSource {
+
+        private final IRandomAccessSource source;
+        private final Runnable release;
+
+        SlotReleasingSource(IRandomAccessSource source, Runnable release) {
+            this.source = source;
+            this.release = release;
+        }
+
+        @Override
+        public int get(long position) throws IOException {
+            return source.get(position);
+        }
+
+        @Override
+        public int get(long position, byte[] bytes, int off, int len) throws IOException {
+            return source.get(position, bytes, off, len);
+        }
+
+        @Override
+        public long length() {
+            return source.length();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                source.close();
+            } finally {
+                release.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,395 @@
+package guraa.pdfcompare.service;
+
+import com.itextpdf.kernel.pdf.PdfReader;
+import guraa.pdfcompare.extraction.TextDifferenceExtractor.TextElement;
+import guraa.pdfcompare.model.PageSignature;
+import guraa.pdfcompare.model.PdfDocument;
+import guraa.pdfcompare.repository.PdfRepository;
+import guraa.pdfcompare.util.CancellationContext;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Service for pre-processing documents in the background after upload.
+ * Pages are rendered, text elements extracted and page signatures computed
+ * on a low-priority executor so the work is already done when a comparison
+ * is requested. Jobs are coalesced per document, can be cancelled, and pause
+ * between pages while interactive comparisons are running.
+ */
+@Slf4j
+@Service
+public class DocumentPreprocessingService {
+
+    // How long a worker waits before re-checking whether interactive work has finished
+    private static final long YIELD_WAIT_MS = 500;
+
+    private final ExecutorService executorService;
+    private final PdfRenderingService pdfRenderingService;
+    private final PageArtifactService pageArtifactService;
+    private final DocumentSimilarityIndex similarityIndex;
+    private final FontComparisonService fontComparisonService;
+    private final ImageCatalogService imageCatalogService;
+    private final DocumentLoader documentLoader;
+    private final PdfRepository pdfRepository;
+
+    // Active and recently finished jobs, keyed by fileId
+    private final ConcurrentHashMap<String, PreprocessingJob> jobs = new ConcurrentHashMap<>();
+
+    // Number of interactive comparisons currently running
+    private final AtomicInteger interactiveWork = new AtomicInteger();
+    private final Object yieldMonitor = new Object();
+
+    /**
+     * Constructor with qualifier to specify which executor service to use.
+     *
+     * @param executorService The low-priority executor for pre-processing
+     * @param pdfRenderingService The PDF rendering service
+     * @param pageArtifactService The page artifact service
+     * @param similarityIndex The near-duplicate index, updated when a document is pre-processed
+     * @param fontComparisonService The font comparison service for font catalogs
+     * @param imageCatalogService The image catalog service
+     * @param documentLoader The loader for opening documents
+     * @param pdfRepository The PDF document repository, for backfilling the near-duplicate index
+     */
+    public DocumentPreprocessingService(
+            @Qualifier("preprocessingExecutor") ExecutorService executorService,
+            PdfRenderingService pdfRenderingService,
+            PageArtifactService pageArtifactService,
+            DocumentSimilarityIndex similarityIndex,
+            FontComparisonService fontComparisonService,
+            ImageCatalogService imageCatalogService,
+            DocumentLoader documentLoader,
+            PdfRepository pdfRepository) {
+        this.executorService = executorService;
+        this.pdfRenderingService = pdfRenderingService;
+        this.pageArtifactService = pageArtifactService;
+        this.similarityIndex = similarityIndex;
+        this.fontComparisonService = fontComparisonService;
+        this.imageCatalogService = imageCatalogService;
+        this.documentLoader = documentLoader;
+        this.pdfRepository = pdfRepository;
+    }
+
+    @Value("${app.preprocessing.enabled:true}")
+    private boolean enabled;
+
+    @Value("${app.preprocessing.render-pages:true}")
+    private boolean renderPages;
+
+    @Value("${app.preprocessing.max-pages:1000}")
+    private int maxPages;
+
+    /**
+     * Schedule background pre-processing of a document.
+     * Requests for a document that is already queued, running or done are coalesced.
+     *
+     * @param document The document to pre-process
+     * @return The job, or null if pre-processing is disabled or not applicable
+     */
+    public PreprocessingJob submit(PdfDocument document) {
+        if (!enabled || document == null || document.getPageCount() <= 0) {
+            return null;
+        }
+
+        if (document.getPageCount() > maxPages) {
+            log.debug("Skipping pre-processing of document {} with {} pages (limit {})",
+                    document.getFileId(), document.getPageCount(), maxPages);
+            return null;
+        }
+
+        if (pageArtifactService.hasSignatures(document)) {
+            return null;
+        }
+
+        return jobs.compute(document.getFileId(), (fileId, existing) -> {
+            if (existing != null && !existing.isFailedOrCancelled()) {
+                return existing;
+            }
+
+            PreprocessingJob job = new PreprocessingJob(fileId, document.getPageCount());
+            job.future = CompletableFuture.runAsync(() -> run(document, job), executorService);
+            return job;
+        });
+    }
+
+    /**
+     * Queue a document for the near-duplicate index.
+     * A document with page signatures is indexed on the low-priority executor right away;
+     * any other document is pre-processed first, which indexes it when it finishes.
+     *
+     * @param document The document to index
+     * @return true if the document is indexed or queued, false if it is not eligible
+     */
+    public boolean submitForIndexing(PdfDocument document) {
+        if (similarityIndex.isIndexed(document.getFileId())) {
+            return true;
+        }
+        if (pageArtifactService.hasSignatures(document)) {
+            similarityIndex.indexDocumentAsync(document);
+            return true;
+        }
+        return submit(document) != null;
+    }
+
+    /**
+     * Queue the uploaded documents that are not in the near-duplicate index yet, e.g. uploads
+     * from before the index existed, through {@link #submitForIndexing}. Documents without page
+     * signatures go through the pre-processing queue, so they yield to interactive comparisons
+     * and recognize scanned pages only on the OCR pool.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void backfillSimilarityIndex() {
+        executorService.execute(() -> {
+            try {
+                List<PdfDocument> missing = pdfRepository.findAll().stream()
+                        .filter(document -> !similarityIndex.isIndexed(document.getFileId()))
+                        .filter(document -> new File(document.getFilePath()).exists())
+                        .collect(Collectors.toList());
+                if (!missing.isEmpty()) {
+                    log.info("Queueing {} documents missing from the similarity index", missing.size());
+                }
+                missing.forEach(this::submitForIndexing);
+            } catch (Exception e) {
+                log.error("Error backfilling the similarity index: {}", e.getMessage(), e);
+            }
+        });
+    }
+
+    /**
+     * Pre-process a document on the calling thread unless its signatures already exist.
+     * Used by batch comparisons to compute the page artifacts of shared documents once,
+     * before the comparisons that reuse them. A queued or paused background job for the
+     * document is replaced, and the work does not yield to interactive comparisons.
+     *
+     * @param document The document to pre-process
+     * @param cancellation The cancellation context of the caller, checked between pages
+     * @throws CancellationException If the caller is cancelled
+     */
+    public void ensurePreprocessed(PdfDocument document, CancellationContext cancellation) {
+        if (!enabled || document == null || document.getPageCount() <= 0 ||
+                document.getPageCount() > maxPages || pageArtifactService.hasSignatures(document)) {
+            return;
+        }
+
+        cancel(document.getFileId());
+        PreprocessingJob job = new PreprocessingJob(document.getFileId(), document.getPageCount());
+        job.yielding = false;
+        job.cancellation = cancellation;
+        job.future = new CompletableFuture<>();
+        jobs.put(document.getFileId(), job);
+
+        try {
+            run(document, job);
+        } finally {
+            job.future.complete(null);
+        }
+        cancellation.throwIfCancelled();
+    }
+
+    /**
+     * Cancel pre-processing of a document.
+     *
+     * @param fileId The file ID
+     * @return true if a running or queued job was cancelled
+     */
+    public boolean cancel(String fileId) {
+        PreprocessingJob job = jobs.get(fileId);
+        if (job == null || job.future == null || job.future.isDone()) {
+            return false;
+        }
+
+        job.cancelled.set(true);
+        job.future.cancel(false);
+        job.state = "CANCELLED";
+        wakeWorkers();
+        return true;
+    }
+
+    /**
+     * Get the status of pre-processing for a document.
+     *
+     * @param fileId The file ID
+     * @return Map describing the job state and progress
+     */
+    public Map<String, Object> getStatus(String fileId) {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("fileId", fileId);
+
+        PreprocessingJob job = jobs.get(fileId);
+        if (job == null) {
+            status.put("state", enabled ? "NOT_SCHEDULED" : "DISABLED");
+            return status;
+        }
+
+        status.put("state", job.state);
+        status.put("pagesProcessed", job.pagesProcessed.get());
+        status.put("totalPages", job.totalPages);
+        return status;
+    }
+
+    /**
+     * Signal that an interactive comparison has started.
+     * Background workers pause between pages until all interactive work has finished.
+     */
+    public void beginInteractiveWork() {
+        interactiveWork.incrementAndGet();
+    }
+
+    /**
+     * Signal that an interactive comparison has finished.
+     */
+    public void endInteractiveWork() {
+        if (interactiveWork.decrementAndGet() <= 0) {
+            interactiveWork.set(0);
+            wakeWorkers();
+        }
+    }
+
+    // Private helper methods
+
+    private void run(PdfDocument document, PreprocessingJob job) {
+        job.state = "RUNNING";
+        long start = System.currentTimeMillis();
+        Map<Integer, CompletableFuture<List<TextElement>>> pendingOcr = new LinkedHashMap<>();
+
+        try (PdfReader reader = documentLoader.openReader(document.getFilePath());
+             com.itextpdf.kernel.pdf.PdfDocument itextDocument = new com.itextpdf.kernel.pdf.PdfDocument(reader);
+             PDDocument pdDocument = documentLoader.loadPdfBox(document.getFilePath())) {
+
+            PageSignature[] signatures = new PageSignature[job.totalPages];
+
+            for (int pageNumber = 1; pageNumber <= job.totalPages; pageNumber++) {
+                yieldToInteractiveWork(job);
+
+                if (renderPages) {
+                    pdfRenderingService.renderPage(document, pdDocument, pageNumber, job.cancellation);
+                }
+
+                List<TextElement> elements = pageArtifactService.extractTextElements(document, itextDocument, pageNumber);
+                if (pageArtifactService.needsOcr(elements)) {
+                    // Scanned pages are recognized on the OCR pool while the remaining pages are extracted.
+                    // The OCR workers use the raster rendered here and never open the document, since a
+                    // large one would need a second slot while this thread holds one.
+                    pendingOcr.put(pageNumber, pageArtifactService.recognizeText(document, pdDocument, pageNumber));
+                    continue;
+                }
+                signatures[pageNumber - 1] = pageArtifactService.computeSignature(document, pdDocument, pageNumber, elements);
+
+                job.pagesProcessed.incrementAndGet();
+            }
+
+            for (Map.Entry<Integer, CompletableFuture<List<TextElement>>> ocr : pendingOcr.entrySet()) {
+                checkCancelled(job);
+                int pageNumber = ocr.getKey();
+                signatures[pageNumber - 1] = pageArtifactService.computeSignature(
+                        document, pdDocument, pageNumber, ocr.getValue().join());
+
+                job.pagesProcessed.incrementAndGet();
+            }
+
+            pageArtifactService.storeSignatures(document, Arrays.asList(signatures));
+            fontComparisonService.buildCatalog(document, pdDocument);
+            imageCatalogService.buildCatalog(document, pdDocument);
+
+            // The page text and signatures are now at hand for the near-duplicate index
+            try {
+                similarityIndex.indexDocument(document);
+            } catch (IOException e) {
+                log.warn("Failed to index document {}: {}", document.getFileId(), e.getMessage());
+            }
+
+            job.state = "COMPLETED";
+            log.info("Pre-processed document {} ({} pages) in {}ms",
+                    document.getFileId(), job.totalPages, System.currentTimeMillis() - start);
+        } catch (CancellationException e) {
+            pendingOcr.values().forEach(ocr -> ocr.cancel(false));
+            job.state = "CANCELLED";
+            log.info("Pre-processing of document {} cancelled after {} pages",
+                    document.getFileId(), job.pagesProcessed.get());
+        } catch (Exception e) {
+            pendingOcr.values().forEach(ocr -> ocr.cancel(false));
+            job.state = "FAILED";
+            log.warn("Pre-processing of document {} failed: {}", document.getFileId(), e.getMessage());
+        }
+    }
+
+    /**
+     * Block while interactive comparisons are running, and stop if the job was cancelled.
+     */
+    private void yieldToInteractiveWork(PreprocessingJob job) {
+        checkCancelled(job);
+
+        synchronized (yieldMonitor) {
+            while (job.yielding && interactiveWork.get() > 0 && !job.cancelled.get()) {
+                job.state = "PAUSED";
+                try {
+                    yieldMonitor.wait(YIELD_WAIT_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new CancellationException("Interrupted while yielding");
+                }
+            }
+        }
+
+        checkCancelled(job);
+        job.state = "RUNNING";
+    }
+
+    private void checkCancelled(PreprocessingJob job) {
+        if (job.cancelled.get() || job.cancellation.isCancelled() || Thread.currentThread().isInterrupted()) {
+            throw new CancellationException("Pre-processing cancelled");
+        }
+    }
+
+    private void wakeWorkers() {
+        synchronized (yieldMonitor) {
+            yieldMonitor.notifyAll();
+        }
+    }
+
+    /**
+     * State of a document pre-processing job.
+     */
+    @Getter
+    public static class PreprocessingJob {
+        private final String fileId;
+        private final int totalPages;
+        private final AtomicInteger pagesProcessed = new AtomicInteger();
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+        private volatile String state = "QUEUED";
+        private volatile CompletableFuture<Void> future;
+
+        // Jobs run on behalf of a comparison do not pause for interactive work
+        private volatile boolean yielding = true;
+        private volatile CancellationContext cancellation = CancellationContext.NONE;
+
+        PreprocessingJob(String fileId, int totalPages) {
+            this.fileId = fileId;
+            this.totalPages = totalPages;
+        }
+
+        boolean isFailedOrCancelled() {
+            return "FAILED".equals(state) || "CANCELLED".equals(state);
+        }
+    }
+}
@@ -0,0 +1,562 @@
+package guraa.pdfcompare.service;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import guraa.pdfcompare.extraction.TextDifferenceExtractor.TextElement;
+import guraa.pdfcompare.model.DocumentSketch;
+import guraa.pdfcompare.model.PageSignature;
+import guraa.pdfcompare.model.PdfDocument;
+import guraa.pdfcompare.model.SimilarDocument;
+import guraa.pdfcompare.repository.PdfRepository;
+import guraa.pdfcompare.util.FileUtils;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+
+/**
+ * Persistent near-duplicate index over all uploaded documents.
+ * Each document is reduced to a {@link DocumentSketch}: MinHash and SimHash of its text shingles
+ * plus a MinHash of its page signatures. Locality-sensitive hashing buckets over bands of the
+ * MinHash values find the candidates of a query, so only documents sharing at least one band are
+ * scored. Sketches are persisted across a fixed number of shards and a document is indexed
+ * as soon as its pre-processing finishes. Each shard is a snapshot file plus a journal that new
+ * sketches are appended to; the journal is folded into the snapshot once it grows long enough.
+ */
+@Slf4j
+@Service
+public class DocumentSimilarityIndex {
+
+    private static final int TEXT_HASHES = 128;
+    private static final int TEXT_ROWS_PER_BAND = 4;
+    private static final int PAGE_HASHES = 32;
+    private static final int PAGE_ROWS_PER_BAND = 2;
+    private static final int SHINGLE_LENGTH = 7;
+
+    // Weight of the text similarity in the combined score, the rest goes to page signatures
+    private static final double TEXT_WEIGHT = 0.7;
+
+    private static final long[] TEXT_SEEDS = seeds(TEXT_HASHES, 0x9E3779B97F4A7C15L);
+    private static final long[] PAGE_SEEDS = seeds(PAGE_HASHES, 0xC2B2AE3D27D4EB4FL);
+
+    private final PdfRepository pdfRepository;
+    private final PageArtifactService pageArtifactService;
+    private final ObjectMapper objectMapper;
+    private final ExecutorService executorService;
+
+    // Sketches of indexed documents, keyed by fileId
+    private final ConcurrentHashMap<String, DocumentSketch> sketches = new ConcurrentHashMap<>();
+
+    // LSH buckets: band key to the fileIds whose sketch has that band
+    private final ConcurrentHashMap<Long, Set<String>> buckets = new ConcurrentHashMap<>();
+
+    // One lock per shard
+    private final ConcurrentHashMap<Integer, ReentrantLock> shardLocks = new ConcurrentHashMap<>();
+
+    // Number of sketches appended to the journal of each shard since its last snapshot
+    private final ConcurrentHashMap<Integer, Integer> journalLengths = new ConcurrentHashMap<>();
+
+    // Documents queued for indexing on the background executor
+    private final Set<String> pendingDocuments = ConcurrentHashMap.newKeySet();
+
+    @Value("${app.similarity.index-path:uploads/index}")
+    private String indexPath;
+
+    @Value("${app.similarity.shards:16}")
+    private int shardCount = 16;
+
+    @Value("${app.similarity.max-pages:1000}")
+    private int maxPages = 1000;
+
+    @Value("${app.similarity.compact-after:64}")
+    private int compactAfter = 64;
+
+    /**
+     * Constructor with qualifier to specify which executor service to use.
+     *
+     * @param pdfRepository The PDF document repository
+     * @param pageArtifactService The page artifact service for page text and signatures
+     * @param objectMapper The object mapper for shard persistence
+     * @param executorService The low-priority executor for background indexing
+     */
+    public DocumentSimilarityIndex(
+            PdfRepository pdfRepository,
+            PageArtifactService pageArtifactService,
+            ObjectMapper objectMapper,
+            @Qualifier("preprocessingExecutor") ExecutorService executorService) {
+        this.pdfRepository = pdfRepository;
+        this.pageArtifactService = pageArtifactService;
+        this.objectMapper = objectMapper;
+        this.executorService = executorService;
+    }
+
+    /**
+     * Load the persisted shards, replay their journals and rebuild the LSH buckets.
+     */
+    @PostConstruct
+    public void loadShards() {
+        long start = System.currentTimeMillis();
+        for (int shard = 0; shard < shardCount; shard++) {
+            File shardFile = getShardFile(shard);
+            if (shardFile.exists()) {
+                try {
+                    List<DocumentSketch> shardSketches = objectMapper.readValue(shardFile,
+                            new TypeReference<List<DocumentSketch>>() {});
+                    shardSketches.forEach(this::addToBuckets);
+                } catch (IOException e) {
+                    // Documents of an unreadable shard are indexed again by the backfill
+                    log.warn("Failed to read similarity index shard {}: {}", shard, e.getMessage());
+                }
+            }
+            replayJournal(shard);
+        }
+        log.info("Loaded {} document sketches from {} shards in {}ms",
+                sketches.size(), shardCount, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Check whether a document is in the index.
+     *
+     * @param fileId The file ID
+     * @return true if the document has a sketch
+     */
+    public boolean isIndexed(String fileId) {
+        return sketches.containsKey(fileId);
+    }
+
+    /**
+     * Index a document on the low-priority executor. Requests for a document that is already
+     * queued are coalesced. The caller makes sure the page signatures exist, so indexing never
+     * has to recognize scanned pages.
+     *
+     * @param document The document
+     */
+    public void indexDocumentAsync(PdfDocument document) {
+        if (!pendingDocuments.add(document.getFileId())) {
+            return;
+        }
+        executorService.execute(() -> {
+            try {
+                indexDocument(document);
+            } catch (Exception e) {
+                log.warn("Failed to index document {}: {}", document.getFileId(), e.getMessage());
+            } finally {
+                pendingDocuments.remove(document.getFileId());
+            }
+        });
+    }
+
+    /**
+     * Compute the sketch of a document and add it to the index, replacing an earlier sketch.
+     * Page text is read from the text written by pre-processing, or extracted if it is missing.
+     *
+     * @param document The document
+     * @return The sketch, or null if the document is too large to index
+     * @throws IOException If the sketch cannot be persisted
+     */
+    public DocumentSketch indexDocument(PdfDocument document) throws IOException {
+        if (document.getPageCount() > maxPages) {
+            log.debug("Skipping similarity indexing of document {} with {} pages (limit {})",
+                    document.getFileId(), document.getPageCount(), maxPages);
+            return null;
+        }
+
+        long start = System.currentTimeMillis();
+        DocumentSketch sketch = computeSketch(document);
+
+        int shard = shardOf(document.getFileId());
+        ReentrantLock lock = shardLocks.computeIfAbsent(shard, s -> new ReentrantLock());
+        lock.lock();
+        try {
+            DocumentSketch previous = sketches.get(document.getFileId());
+            if (previous != null) {
+                removeFromBuckets(previous);
+            }
+            addToBuckets(sketch);
+            appendToJournal(shard, sketch);
+        } finally {
+            lock.unlock();
+        }
+
+        log.debug("Indexed document {} ({} shingles, {} pages) in {}ms", document.getFileId(),
+                sketch.getShingleCount(), sketch.getPageCount(), System.currentTimeMillis() - start);
+        return sketch;
+    }
+
+    /**
+     * Find the indexed documents most similar to an indexed document.
+     * A document that is not in the index yet has no results; callers queue its indexing first.
+     *
+     * @param document The query document
+     * @param limit    The maximum number of results
+     * @param minScore The minimum combined score of a result
+     * @return The most similar documents, best first
+     */
+    public List<SimilarDocument> findSimilar(PdfDocument document, int limit, double minScore) {
+        DocumentSketch query = sketches.get(document.getFileId());
+        if (query == null) {
+            return Collections.emptyList();
+        }
+
+        // Only documents sharing at least one band with the query are scored
+        Set<String> candidates = new HashSet<>();
+        for (long key : bandKeys(query)) {
+            Set<String> bucket = buckets.get(key);
+            if (bucket != null) {
+                candidates.addAll(bucket);
+            }
+        }
+        candidates.remove(document.getFileId());
+
+        List<SimilarDocument> scored = new ArrayList<>();
+        for (String fileId : candidates) {
+            DocumentSketch candidate = sketches.get(fileId);
+            if (candidate != null) {
+                SimilarDocument similar = score(query, candidate);
+                if (similar.getScore() >= minScore) {
+                    scored.add(similar);
+                }
+            }
+        }
+
+        List<SimilarDocument> top = scored.stream()
+                .sorted(Comparator.comparingDouble(SimilarDocument::getScore).reversed())
+                .limit(limit)
+                .collect(Collectors.toList());
+
+        // Only the results are looked up in the database
+        Map<String, PdfDocument> documents = pdfRepository.findAllById(
+                        top.stream().map(SimilarDocument::getFileId).collect(Collectors.toList())).stream()
+                .collect(Collectors.toMap(PdfDocument::getFileId, d -> d));
+        for (SimilarDocument similar : top) {
+            PdfDocument match = documents.get(similar.getFileId());
+            if (match != null) {
+                similar.setFileName(match.getFileName());
+                similar.setPageCount(match.getPageCount());
+                similar.setExactDuplicate(match.getContentHash() != null &&
+                        match.getContentHash().equals(document.getContentHash()));
+            }
+        }
+        return top.stream()
+                .filter(similar -> documents.containsKey(similar.getFileId()))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Get index statistics.
+     *
+     * @return Map with the number of indexed documents, buckets and shards
+     */
+    public Map<String, Object> getStatistics() {
+        return Map.of(
+                "documents", sketches.size(),
+                "buckets", buckets.size(),
+                "shards", shardCount);
+    }
+
+    // Private helper methods
+
+    private DocumentSketch computeSketch(PdfDocument document) throws IOException {
+        long[] textMinHash = new long[TEXT_HASHES];
+        Arrays.fill(textMinHash, Long.MAX_VALUE);
+        int[] simHashCounts = new int[64];
+        int shingleCount = 0;
+
+        for (int pageNumber = 1; pageNumber <= document.getPageCount(); pageNumber++) {
+            String text = normalize(getPageText(document, pageNumber));
+            for (int i = 0; i + SHINGLE_LENGTH <= text.length(); i++) {
+                long shingle = hashShingle(text, i);
+                for (int h = 0; h < TEXT_HASHES; h++) {
+                    long value = mix(shingle ^ TEXT_SEEDS[h]);
+                    if (value < textMinHash[h]) {
+                        textMinHash[h] = value;
+                    }
+                }
+                for (int bit = 0; bit < 64; bit++) {
+                    simHashCounts[bit] += ((shingle >>> bit) & 1L) != 0 ? 1 : -1;
+                }
+                shingleCount++;
+            }
+        }
+
+        long simHash = 0;
+        for (int bit = 0; bit < 64; bit++) {
+            if (simHashCounts[bit] > 0) {
+                simHash |= 1L << bit;
+            }
+        }
+
+        return DocumentSketch.builder()
+                .fileId(document.getFileId())
+                .pageCount(document.getPageCount())
+                .shingleCount(shingleCount)
+                .textMinHash(shingleCount > 0 ? textMinHash : new long[0])
+                .simHash(simHash)
+                .pageMinHash(computePageMinHash(pageArtifactService.getSignatures(document)))
+                .build();
+    }
+
+    /**
+     * MinHash over one token per page: the text hash of pages with text, the visual hash otherwise.
+     */
+    private long[] computePageMinHash(List<PageSignature> signatures) {
+        if (signatures.isEmpty()) {
+            return new long[0];
+        }
+
+        long[] minHash = new long[PAGE_HASHES];
+        Arrays.fill(minHash, Long.MAX_VALUE);
+        for (PageSignature signature : signatures) {
+            long token = signature.getTextLength() > 0 ? signature.getTextHash() : signature.getVisualHash();
+            for (int h = 0; h < PAGE_HASHES; h++) {
+                long value = mix(token ^ PAGE_SEEDS[h]);
+                if (value < minHash[h]) {
+                    minHash[h] = value;
+                }
+            }
+        }
+        return minHash;
+    }
+
+    private String getPageText(PdfDocument document, int pageNumber) throws IOException {
+        Path textFile = Paths.get(document.getExtractedTextPath(pageNumber));
+        if (Files.exists(textFile)) {
+            return new String(Files.readAllBytes(textFile), StandardCharsets.UTF_8);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (TextElement element : pageArtifactService.getTextElements(document, pageNumber)) {
+            sb.append(element.getText());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Lower-case the text and drop whitespace, so shingles do not depend on how text was split into runs.
+     */
+    private String normalize(String text) {
+        StringBuilder sb = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (!Character.isWhitespace(c)) {
+                sb.append(Character.toLowerCase(c));
+            }
+        }
+        return sb.toString();
+    }
+
+    private SimilarDocument score(DocumentSketch query, DocumentSketch candidate) {
+        double textSimilarity = estimateJaccard(query.getTextMinHash(), candidate.getTextMinHash());
+        double pageSimilarity = estimateJaccard(query.getPageMinHash(), candidate.getPageMinHash());
+
+        boolean hasText = query.getTextMinHash().length > 0 && candidate.getTextMinHash().length > 0;
+        boolean hasPages = query.getPageMinHash().length > 0 && candidate.getPageMinHash().length > 0;
+        double score;
+        if (hasText && hasPages) {
+            score = TEXT_WEIGHT * textSimilarity + (1 - TEXT_WEIGHT) * pageSimilarity;
+        } else {
+            score = hasText ? textSimilarity : pageSimilarity;
+        }
+
+        return SimilarDocument.builder()
+                .fileId(candidate.getFileId())
+                .pageCount(candidate.getPageCount())
+                .score(score)
+                .textSimilarity(textSimilarity)
+                .pageSimilarity(pageSimilarity)
+                .simHashDistance(hasText ? Long.bitCount(query.getSimHash() ^ candidate.getSimHash()) : 64)
+                .build();
+    }
+
+    private double estimateJaccard(long[] a, long[] b) {
+        if (a == null || b == null || a.length == 0 || a.length != b.length) {
+            return 0;
+        }
+        int equal = 0;
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] == b[i]) {
+                equal++;
+            }
+        }
+        return (double) equal / a.length;
+    }
+
+    private void addToBuckets(DocumentSketch sketch) {
+        sketches.put(sketch.getFileId(), sketch);
+        for (long key : bandKeys(sketch)) {
+            buckets.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(sketch.getFileId());
+        }
+    }
+
+    private void removeFromBuckets(DocumentSketch sketch) {
+        for (long key : bandKeys(sketch)) {
+            buckets.computeIfPresent(key, (k, bucket) -> {
+                bucket.remove(sketch.getFileId());
+                return bucket.isEmpty() ? null : bucket;
+            });
+        }
+    }
+
+    /**
+     * Keys of the LSH bands of a sketch. Text and page bands are kept apart by their band index.
+     */
+    private List<Long> bandKeys(DocumentSketch sketch) {
+        List<Long> keys = new ArrayList<>();
+        addBandKeys(keys, sketch.getTextMinHash(), TEXT_ROWS_PER_BAND, 0);
+        addBandKeys(keys, sketch.getPageMinHash(), PAGE_ROWS_PER_BAND, TEXT_HASHES / TEXT_ROWS_PER_BAND);
+        return keys;
+    }
+
+    private void addBandKeys(List<Long> keys, long[] minHash, int rowsPerBand, int bandOffset) {
+        if (minHash == null) {
+            return;
+        }
+        for (int band = 0; band * rowsPerBand + rowsPerBand <= minHash.length; band++) {
+            long key = mix(bandOffset + band);
+            for (int row = 0; row < rowsPerBand; row++) {
+                key = mix(key ^ minHash[band * rowsPerBand + row]);
+            }
+            keys.add(key);
+        }
+    }
+
+    /**
+     * Append a sketch to the journal of its shard, and fold the journal into the shard
+     * snapshot once it holds {@code compactAfter} sketches. Called with the shard lock held.
+     */
+    private void appendToJournal(int shard, DocumentSketch sketch) throws IOException {
+        File journalFile = getJournalFile(shard);
+        FileUtils.createDirectories(journalFile.getParentFile());
+        byte[] line = (objectMapper.writeValueAsString(sketch) + "\n").getBytes(StandardCharsets.UTF_8);
+        Files.write(journalFile.toPath(), line, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+
+        if (journalLengths.merge(shard, 1, Integer::sum) >= compactAfter) {
+            writeShard(shard);
+            Files.deleteIfExists(journalFile.toPath());
+            journalLengths.remove(shard);
+        }
+    }
+
+    /**
+     * Apply the sketches journaled since the last snapshot of a shard, later ones replacing earlier.
+     * A line cut short by a crash ends the replay; its document is indexed again by the backfill.
+     */
+    private void replayJournal(int shard) {
+        File journalFile = getJournalFile(shard);
+        if (!journalFile.exists()) {
+            return;
+        }
+
+        int length = 0;
+        try (BufferedReader reader = Files.newBufferedReader(journalFile.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                DocumentSketch sketch;
+                try {
+                    sketch = objectMapper.readValue(line, DocumentSketch.class);
+                } catch (IOException e) {
+                    log.warn("Ignoring the rest of the journal of similarity index shard {}: {}", shard, e.getMessage());
+                    break;
+                }
+                DocumentSketch previous = sketches.get(sketch.getFileId());
+                if (previous != null) {
+                    removeFromBuckets(previous);
+                }
+                addToBuckets(sketch);
+                length++;
+            }
+        } catch (IOException e) {
+            log.warn("Failed to read the journal of similarity index shard {}: {}", shard, e.getMessage());
+        }
+        journalLengths.put(shard, length);
+    }
+
+    private void writeShard(int shard) throws IOException {
+        List<DocumentSketch> shardSketches = sketches.values().stream()
+                .filter(sketch -> shardOf(sketch.getFileId()) == shard)
+                .sorted(Comparator.comparing(DocumentSketch::getFileId))
+                .collect(Collectors.toList());
+
+        File shardFile = getShardFile(shard);
+        FileUtils.createDirectories(shardFile.getParentFile());
+
+        Path tempFile = Files.createTempFile(shardFile.getParentFile().toPath(), "shard_", ".tmp");
+        try {
+            objectMapper.writeValue(tempFile.toFile(), shardSketches);
+            Files.move(tempFile, shardFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    private int shardOf(String fileId) {
+        return Math.floorMod(Objects.hashCode(fileId), shardCount);
+    }
+
+    private File getShardFile(int shard) {
+        return Paths.get(indexPath, String.format("shard-%02d.json", shard)).toFile();
+    }
+
+    private File getJournalFile(int shard) {
+        return Paths.get(indexPath, String.format("shard-%02d.journal", shard)).toFile();
+    }
+
+    /**
+     * 64-bit FNV-1a hash of a shingle.
+     */
+    private long hashShingle(String text, int offset) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = offset; i < offset + SHINGLE_LENGTH; i++) {
+            hash ^= text.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * SplitMix64 finalizer, used as the family of MinHash functions together with the seeds.
+     */
+    private static long mix(long value) {
+        long z = value + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private static long[] seeds(int count, long start) {
+        long[] seeds = new long[count];
+        long seed = start;
+        for (int i = 0; i < count; i++) {
+            seed = mix(seed);
+            seeds[i] = seed;
+        }
+        return seeds;
+    }
+}
@@ -1,85 +1,84 @@
 package guraa.pdfcompare.service;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import guraa.pdfcompare.model.FontCatalog;
 import guraa.pdfcompare.model.difference.FontDifference;
 import guraa.pdfcompare.model.PdfDocument;
+import guraa.pdfcompare.util.FileUtils;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.beans.factory.annotation.Qualifier;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSObjectKey;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDResources;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.UUID;
-import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
 
 /**
  * Service for comparing fonts between PDF documents.
  * This service extracts font information from PDFs and detects differences
  * in font usage, substitution, and properties.
+ * The fonts of a document are collected into a catalog once, walking the resource
+ * dictionaries of its pages and forms, and persisted per document; comparing the fonts
+ * of two pages is then a comparison of two small maps.
  */
 @Slf4j
 @Service
 public class FontComparisonService {
 
-    private final ExecutorService executorService;
-    
-    /**
-     * Constructor with qualifier to specify which executor service to use.
-     * 
-     * @param executorService The executor service for comparison operations
-     */
-    public FontComparisonService(@Qualifier("comparisonExecutor") ExecutorService executorService) {
-        this.executorService = executorService;
-    }
+    // Subset fonts carry a six letter tag, e.g. "ABCDEF+Helvetica"
+    private static final Pattern SUBSET_PREFIX = Pattern.compile("^[A-Z]{6}\\+");
 
-    @Value("${app.font.detailed-analysis:false}")
-    private boolean detailedAnalysis;
+    private static final int FLAG_ITALIC = 1 << 6;
+    private static final int FLAG_FORCE_BOLD = 1 << 18;
 
-    @Value("${app.font.extraction-timeout-ms:2000}")
-    private int extractionTimeoutMs;
+    private final ObjectMapper objectMapper;
+    private final DocumentLoader documentLoader;
 
-    // Cache of font comparison results
-    private final ConcurrentHashMap<String, CompletableFuture<List<FontDifference>>> comparisonTasks = new ConcurrentHashMap<>();
+    // Catalogs of documents, keyed by fileId
+    private final ConcurrentHashMap<String, FontCatalog> catalogCache = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ReentrantLock> catalogLocks = new ConcurrentHashMap<>();
+
+    @Value("${app.font.catalog-path:uploads/fonts}")
+    private String catalogPath;
 
     /**
-     * Compare fonts between two pages.
+     * Constructor.
      *
-     * @param baseDocument The base document
-     * @param compareDocument The document to compare against the base
-     * @param basePageNumber The page number in the base document (1-based)
-     * @param comparePageNumber The page number in the compare document (1-based)
-     * @return A list of font differences
-     * @throws IOException If there is an error comparing the fonts
+     * @param objectMapper The object mapper for catalog persistence
+     * @param documentLoader The loader for opening documents
      */
-    public List<FontDifference> compareFonts(
-            PdfDocument baseDocument, PdfDocument compareDocument,
-            int basePageNumber, int comparePageNumber) throws IOException {
-        
-        String cacheKey = baseDocument.getFileId() + "_" + basePageNumber + "_" +
-                compareDocument.getFileId() + "_" + comparePageNumber;
-        
-        // Check if we already have a comparison task for these pages
-        return comparisonTasks.computeIfAbsent(cacheKey, key -> {
-            // Submit a new comparison task
-            return CompletableFuture.supplyAsync(() -> {
-                try {
-                    return doCompareFonts(baseDocument, compareDocument, basePageNumber, comparePageNumber);
-                } catch (IOException e) {
-                    log.error("Error comparing fonts: {}", e.getMessage(), e);
-                    return new ArrayList<>();
-                }
-            }, executorService);
-        }).join(); // Wait for the task to complete
+    public FontComparisonService(ObjectMapper objectMapper, DocumentLoader documentLoader) {
+        this.objectMapper = objectMapper;
+        this.documentLoader = documentLoader;
     }
 
     /**
-     * Perform the actual font comparison.
+     * Compare fonts between two pages.
      *
      * @param baseDocument The base document
      * @param compareDocument The document to compare against the base
@@ -88,25 +87,25 @@ public class FontComparisonService {
      * @return A list of font differences
      * @throws IOException If there is an error comparing the fonts
      */
-    private List<FontDifference> doCompareFonts(
+    public List<FontDifference> compareFonts(
             PdfDocument baseDocument, PdfDocument compareDocument,
             int basePageNumber, int comparePageNumber) throws IOException {
         
         // Extract font information from the pages
-        Map<String, FontInfo> baseFonts = extractFontInfo(baseDocument, basePageNumber);
-        Map<String, FontInfo> compareFonts = extractFontInfo(compareDocument, comparePageNumber);
+        Map<String, FontCatalog.Font> baseFonts = getPageFonts(baseDocument, basePageNumber);
+        Map<String, FontCatalog.Font> compareFonts = getPageFonts(compareDocument, comparePageNumber);
         
         // Compare the fonts
         List<FontDifference> differences = new ArrayList<>();
         
         // First pass: Find fonts that are in both documents but have differences
-        for (Map.Entry<String, FontInfo> entry : baseFonts.entrySet()) {
-            String fontName = entry.getKey();
-            FontInfo baseFont = entry.getValue();
+        for (Map.Entry<String, FontCatalog.Font> entry : baseFonts.entrySet()) {
+            String fontKey = entry.getKey();
+            FontCatalog.Font baseFont = entry.getValue();
             
-            if (compareFonts.containsKey(fontName)) {
+            if (compareFonts.containsKey(fontKey)) {
                 // Font exists in both documents, check for differences
-                FontInfo compareFont = compareFonts.get(fontName);
+                FontCatalog.Font compareFont = compareFonts.get(fontKey);
                 
                 if (!baseFont.equals(compareFont)) {
                     // Fonts are different
@@ -121,12 +120,12 @@ public class FontComparisonService {
         }
         
         // Second pass: Find fonts that are only in the compare document
-        for (Map.Entry<String, FontInfo> entry : compareFonts.entrySet()) {
-            String fontName = entry.getKey();
+        for (Map.Entry<String, FontCatalog.Font> entry : compareFonts.entrySet()) {
+            String fontKey = entry.getKey();
             
-            if (!baseFonts.containsKey(fontName)) {
+            if (!baseFonts.containsKey(fontKey)) {
                 // Font exists only in the compare document
-                FontInfo compareFont = entry.getValue();
+                FontCatalog.Font compareFont = entry.getValue();
                 differences.add(createFontDifference(
                         null, compareFont, "added", basePageNumber, comparePageNumber));
             }
@@ -136,42 +135,132 @@ public class FontComparisonService {
     }
 
     /**
-     * Extract font information from a page.
+     * Get the font catalog of a document, building it if it has not been built yet.
+     *
+     * @param document The document
+     * @return The font catalog
+     * @throws IOException If the document cannot be read
+     */
+    public FontCatalog getCatalog(PdfDocument document) throws IOException {
+        FontCatalog catalog = loadCatalog(document);
+        if (catalog != null) {
+            return catalog;
+        }
+
+        ReentrantLock lock = catalogLocks.computeIfAbsent(document.getFileId(), k -> new ReentrantLock());
+        lock.lock();
+        try {
+            catalog = loadCatalog(document);
+            if (catalog == null) {
+                try (PDDocument pdDocument = documentLoader.loadPdfBox(document.getFilePath())) {
+                    catalog = buildCatalog(document, pdDocument);
+                }
+            }
+            return catalog;
+        } finally {
+            lock.unlock();
+            catalogLocks.remove(document.getFileId(), lock);
+        }
+    }
+
+    /**
+     * Build and persist the font catalog of a document using an already open document.
+     *
+     * @param document   The document
+     * @param pdDocument The open PDFBox document
+     * @return The font catalog
+     */
+    public FontCatalog buildCatalog(PdfDocument document, PDDocument pdDocument) {
+        long start = System.currentTimeMillis();
+        CatalogBuilder builder = new CatalogBuilder();
+        List<int[]> pageFonts = new ArrayList<>(pdDocument.getNumberOfPages());
+
+        for (PDPage page : pdDocument.getPages()) {
+            PDResources resources = page.getResources();
+            Set<Integer> fonts = resources != null ? builder.fontsOf(resources.getCOSObject()) : Collections.emptySet();
+            pageFonts.add(fonts.stream().mapToInt(Integer::intValue).toArray());
+        }
+
+        FontCatalog catalog = FontCatalog.builder()
+                .fileId(document.getFileId())
+                .fonts(builder.fonts)
+                .pageFonts(pageFonts)
+                .build();
+        storeCatalog(catalog);
+
+        log.debug("Built font catalog of document {} with {} fonts in {}ms",
+                document.getFileId(), builder.fonts.size(), System.currentTimeMillis() - start);
+        return catalog;
+    }
+
+    /**
+     * Get the fonts used on a page, keyed by font name and subtype.
+     * Distinct font objects that share a name and subtype, e.g. two subsets of one font, are
+     * kept apart by their order of appearance on the page, so none of them is dropped.
      *
      * @param document The document
      * @param pageNumber The page number (1-based)
-     * @return A map of font names to font information
-     * @throws IOException If there is an error extracting the font information
+     * @return A map of font keys to fonts
+     * @throws IOException If the font catalog cannot be built
      */
-    private Map<String, FontInfo> extractFontInfo(PdfDocument document, int pageNumber) throws IOException {
-        // Create a path for extracted font info
-        String extractedFontsPath = document.getFilePath() + "_fonts_" + pageNumber;
-        
-        // Check if we've already extracted fonts for this page
-        File extractedFontsFile = new File(extractedFontsPath);
-        if (extractedFontsFile.exists()) {
-            log.info("Found cached font information for document {} page {}", 
-                    document.getFileId(), pageNumber);
-            
-            // In a real implementation, this would deserialize the font info from the file
-            // For now, we'll return an empty map
-            return new HashMap<>();
+    private Map<String, FontCatalog.Font> getPageFonts(PdfDocument document, int pageNumber) throws IOException {
+        FontCatalog catalog = getCatalog(document);
+        Map<String, FontCatalog.Font> pageFonts = new HashMap<>();
+        if (pageNumber < 1 || pageNumber > catalog.getPageFonts().size()) {
+            return pageFonts;
         }
-        
-        // In a real implementation, this would use iText to extract font information from the PDF
-        // and then serialize it to a file for future use
-        Map<String, FontInfo> fontInfo = new HashMap<>();
-        
-        // Create a dummy file to indicate that we've extracted fonts for this page
+
+        Map<String, Integer> occurrences = new HashMap<>();
+        for (int index : catalog.getPageFonts().get(pageNumber - 1)) {
+            FontCatalog.Font font = catalog.getFonts().get(index);
+            String key = font.getName() + "/" + font.getSubtype();
+            int occurrence = occurrences.merge(key, 1, Integer::sum);
+            pageFonts.put(occurrence == 1 ? key : key + "#" + occurrence, font);
+        }
+        return pageFonts;
+    }
+
+    private FontCatalog loadCatalog(PdfDocument document) {
+        FontCatalog cached = catalogCache.get(document.getFileId());
+        if (cached != null) {
+            return cached;
+        }
+
+        File file = getCatalogFile(document.getFileId());
+        if (!file.exists()) {
+            return null;
+        }
+
         try {
-            extractedFontsFile.createNewFile();
-            log.info("Created font cache file for document {} page {}", 
-                    document.getFileId(), pageNumber);
+            FontCatalog catalog = objectMapper.readValue(file, FontCatalog.class);
+            catalogCache.put(document.getFileId(), catalog);
+            return catalog;
         } catch (IOException e) {
-            log.warn("Failed to create font cache file: {}", e.getMessage());
+            log.warn("Failed to read font catalog of document {}: {}", document.getFileId(), e.getMessage());
+            return null;
         }
-        
-        return fontInfo;
+    }
+
+    private void storeCatalog(FontCatalog catalog) {
+        catalogCache.put(catalog.getFileId(), catalog);
+
+        File file = getCatalogFile(catalog.getFileId());
+        try {
+            FileUtils.createDirectories(file.getParentFile());
+            Path tempFile = Files.createTempFile(file.getParentFile().toPath(), "fonts_", ".json");
+            try {
+                objectMapper.writeValue(tempFile.toFile(), catalog);
+                Files.move(tempFile, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tempFile);
+            }
+        } catch (IOException e) {
+            log.warn("Failed to write font catalog of document {}: {}", catalog.getFileId(), e.getMessage());
+        }
+    }
+
+    private File getCatalogFile(String fileId) {
+        return Paths.get(catalogPath, fileId + ".json").toFile();
     }
 
     /**
@@ -185,7 +274,7 @@ public class FontComparisonService {
      * @return The font difference
      */
     private FontDifference createFontDifference(
-            FontInfo baseFont, FontInfo compareFont, String changeType,
+            FontCatalog.Font baseFont, FontCatalog.Font compareFont, String changeType,
             int basePageNumber, int comparePageNumber) {
         
         FontDifference.FontDifferenceBuilder builder = FontDifference.builder()
@@ -200,7 +289,6 @@ public class FontComparisonService {
             builder.baseFontName(baseFont.getName())
                    .baseFontFamily(baseFont.getFamily())
                    .baseFontStyle(baseFont.getStyle())
-                   .baseFontSize(baseFont.getSize())
                    .baseFontEncoding(baseFont.getEncoding())
                    .baseFontEmbedded(baseFont.isEmbedded());
         }
@@ -209,7 +297,6 @@ public class FontComparisonService {
             builder.compareFontName(compareFont.getName())
                    .compareFontFamily(compareFont.getFamily())
                    .compareFontStyle(compareFont.getStyle())
-                   .compareFontSize(compareFont.getSize())
                    .compareFontEncoding(compareFont.getEncoding())
                    .compareFontEmbedded(compareFont.isEmbedded());
         }
@@ -281,19 +368,113 @@ public class FontComparisonService {
     }
 
     /**
-     * Information about a font in a PDF document.
+     * Collects the fonts of one document. Font objects are identified by their indirect reference,
+     * and resource dictionaries shared by several pages or forms are only walked once.
      */
-    @lombok.Data
-    @lombok.Builder
-    @lombok.NoArgsConstructor
-    @lombok.AllArgsConstructor
-    private static class FontInfo {
-        private String name;
-        private String family;
-        private String style;
-        private float size;
-        private String encoding;
-        private boolean embedded;
-        private int usageCount;
+    private static class CatalogBuilder {
+        private final List<FontCatalog.Font> fonts = new ArrayList<>();
+        private final Map<Object, Integer> fontIndexes = new HashMap<>();
+        private final Map<COSDictionary, Set<Integer>> resourceFonts = new IdentityHashMap<>();
+
+        /**
+         * The indexes of the fonts a resource dictionary and the forms it contains reference.
+         */
+        Set<Integer> fontsOf(COSDictionary resources) {
+            Set<Integer> cached = resourceFonts.get(resources);
+            if (cached != null) {
+                return cached;
+            }
+            // Guards against forms that (indirectly) contain themselves
+            resourceFonts.put(resources, Collections.emptySet());
+
+            Set<Integer> result = new TreeSet<>();
+            COSBase fontDictionary = resources.getDictionaryObject(COSName.FONT);
+            if (fontDictionary instanceof COSDictionary) {
+                for (Map.Entry<COSName, COSBase> entry : ((COSDictionary) fontDictionary).entrySet()) {
+                    COSBase font = entry.getValue() instanceof COSObject ?
+                            ((COSObject) entry.getValue()).getObject() : entry.getValue();
+                    if (font instanceof COSDictionary) {
+                        // Direct font objects are only shared through their resource dictionary
+                        Object key = entry.getValue() instanceof COSObject ?
+                                new COSObjectKey((COSObject) entry.getValue()) : font;
+                        result.add(fontIndexes.computeIfAbsent(key, k -> addFont((COSDictionary) font)));
+                    }
+                }
+            }
+
+            COSBase xObjects = resources.getDictionaryObject(COSName.XOBJECT);
+            if (xObjects instanceof COSDictionary) {
+                for (COSName name : ((COSDictionary) xObjects).keySet()) {
+                    COSBase xObject = ((COSDictionary) xObjects).getDictionaryObject(name);
+                    if (xObject instanceof COSDictionary &&
+                            COSName.FORM.equals(((COSDictionary) xObject).getCOSName(COSName.SUBTYPE))) {
+                        COSBase formResources = ((COSDictionary) xObject).getDictionaryObject(COSName.RESOURCES);
+                        if (formResources instanceof COSDictionary) {
+                            result.addAll(fontsOf((COSDictionary) formResources));
+                        }
+                    }
+                }
+            }
+
+            resourceFonts.put(resources, result);
+            return result;
+        }
+
+        private int addFont(COSDictionary font) {
+            String baseFont = font.getNameAsString(COSName.BASE_FONT);
+            String rawName = baseFont != null ? baseFont : "Unnamed " + font.getNameAsString(COSName.SUBTYPE);
+            String name = SUBSET_PREFIX.matcher(rawName).replaceFirst("");
+
+            COSDictionary descriptor = fontDescriptor(font);
+            int flags = descriptor != null ? descriptor.getInt(COSName.FLAGS, 0) : 0;
+            String lowerName = name.toLowerCase(Locale.ROOT);
+            boolean bold = lowerName.contains("bold") || lowerName.contains("black") || lowerName.contains("heavy") ||
+                    (flags & FLAG_FORCE_BOLD) != 0 ||
+                    (descriptor != null && descriptor.getFloat(COSName.FONT_WEIGHT, 0) >= 600);
+            boolean italic = lowerName.contains("italic") || lowerName.contains("oblique") ||
+                    (flags & FLAG_ITALIC) != 0 ||
+                    (descriptor != null && descriptor.getFloat(COSName.ITALIC_ANGLE, 0) != 0);
+
+            String family = descriptor != null ? descriptor.getString(COSName.FONT_FAMILY) : null;
+            if (family == null) {
+                family = name.split("[-,]", 2)[0];
+            }
+
+            fonts.add(FontCatalog.Font.builder()
+                    .name(name)
+                    .family(family)
+                    .style(bold && italic ? "BoldItalic" : bold ? "Bold" : italic ? "Italic" : "Regular")
+                    .subtype(font.getNameAsString(COSName.SUBTYPE))
+                    .encoding(encoding(font))
+                    .embedded(descriptor != null && (descriptor.containsKey(COSName.FONT_FILE) ||
+                            descriptor.containsKey(COSName.FONT_FILE2) || descriptor.containsKey(COSName.FONT_FILE3)))
+                    .subset(!name.equals(rawName))
+                    .build());
+            return fonts.size() - 1;
+        }
+
+        /**
+         * The font descriptor, which composite fonts keep in their descendant font.
+         */
+        private COSDictionary fontDescriptor(COSDictionary font) {
+            COSBase descendants = font.getDictionaryObject(COSName.DESCENDANT_FONTS);
+            if (descendants instanceof COSArray && ((COSArray) descendants).size() > 0 &&
+                    ((COSArray) descendants).getObject(0) instanceof COSDictionary) {
+                font = (COSDictionary) ((COSArray) descendants).getObject(0);
+            }
+            COSBase descriptor = font.getDictionaryObject(COSName.FONT_DESC);
+            return descriptor instanceof COSDictionary ? (COSDictionary) descriptor : null;
+        }
+
+        private String encoding(COSDictionary font) {
+            COSBase encoding = font.getDictionaryObject(COSName.ENCODING);
+            if (encoding instanceof COSName) {
+                return ((COSName) encoding).getName();
+            } else if (encoding instanceof COSDictionary) {
+                String baseEncoding = ((COSDictionary) encoding).getNameAsString(COSName.BASE_ENCODING);
+                return baseEncoding != null ? baseEncoding + " with differences" : "Custom";
+            }
+            return "Built-in";
+        }
     }
 }
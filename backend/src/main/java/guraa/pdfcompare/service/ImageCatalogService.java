@@ -0,0 +1,321 @@
+package guraa.pdfcompare.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import guraa.pdfcompare.extraction.ImageXObjectExtractor;
+import guraa.pdfcompare.model.ImageCatalog;
+import guraa.pdfcompare.model.PdfDocument;
+import guraa.pdfcompare.util.FileUtils;
+import guraa.pdfcompare.util.ImageInfo;
+import guraa.pdfcompare.visual.LuminancePlane;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Service for the images embedded in documents.
+ * The placements of all images of a document are collected into a catalog once, without
+ * decoding anything, and persisted per document. Images are decoded only when a comparison
+ * needs their pixels, once per distinct image, and kept on disk under their digest.
+ * Comparisons work on luminance planes of the decoded images, whose normalized pixels are kept
+ * in the shared raster cache so an image compared against many others is only read and
+ * normalized once.
+ */
+@Slf4j
+@Service
+public class ImageCatalogService {
+
+    private final MemoryGovernor memoryGovernor;
+    private final ObjectMapper objectMapper;
+    private final RasterCache rasterCache;
+    private final DocumentLoader documentLoader;
+
+    // Catalogs of documents, keyed by fileId
+    private final ConcurrentHashMap<String, ImageCatalog> catalogCache = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ReentrantLock> documentLocks = new ConcurrentHashMap<>();
+
+    @Value("${app.images.catalog-path:uploads/image-catalogs}")
+    private String catalogPath;
+
+    @Value("${app.images.max-decode-size:1600}")
+    private int maxDecodeSize = 1600;
+
+    @Value("${app.images.plane-size:256}")
+    private int planeSize = 256;
+
+    /**
+     * Constructor.
+     *
+     * @param memoryGovernor The memory governor for raster budgets
+     * @param objectMapper The object mapper for catalog persistence
+     * @param rasterCache The shared raster cache for normalized image pixels
+     * @param documentLoader The loader for opening documents
+     */
+    public ImageCatalogService(
+            MemoryGovernor memoryGovernor,
+            ObjectMapper objectMapper,
+            RasterCache rasterCache,
+            DocumentLoader documentLoader) {
+        this.memoryGovernor = memoryGovernor;
+        this.objectMapper = objectMapper;
+        this.rasterCache = rasterCache;
+        this.documentLoader = documentLoader;
+    }
+
+    /**
+     * Get the images drawn on a page.
+     * The path of each image is where its decoded pixels are kept, see {@link #ensureDecoded}.
+     *
+     * @param document   The document
+     * @param pageNumber The page number (1-based)
+     * @return The placed images of the page
+     * @throws IOException If the image catalog cannot be built
+     */
+    public List<ImageInfo> getPageImages(PdfDocument document, int pageNumber) throws IOException {
+        ImageCatalog catalog = getCatalog(document);
+        if (pageNumber < 1 || pageNumber > catalog.getPages().size()) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(catalog.getPages().get(pageNumber - 1));
+    }
+
+    /**
+     * Get the image catalog of a document, building it if it has not been built yet.
+     *
+     * @param document The document
+     * @return The image catalog
+     * @throws IOException If the document cannot be read
+     */
+    public ImageCatalog getCatalog(PdfDocument document) throws IOException {
+        ImageCatalog catalog = loadCatalog(document);
+        if (catalog != null) {
+            return catalog;
+        }
+
+        ReentrantLock lock = documentLocks.computeIfAbsent(document.getFileId(), k -> new ReentrantLock());
+        lock.lock();
+        try {
+            catalog = loadCatalog(document);
+            if (catalog == null) {
+                try (PDDocument pdDocument = documentLoader.loadPdfBox(document.getFilePath())) {
+                    catalog = buildCatalog(document, pdDocument);
+                }
+            }
+            return catalog;
+        } finally {
+            lock.unlock();
+            documentLocks.remove(document.getFileId(), lock);
+        }
+    }
+
+    /**
+     * Build and persist the image catalog of a document using an already open document.
+     *
+     * @param document   The document
+     * @param pdDocument The open PDFBox document
+     * @return The image catalog
+     */
+    public ImageCatalog buildCatalog(PdfDocument document, PDDocument pdDocument) {
+        long start = System.currentTimeMillis();
+        ImageXObjectExtractor extractor = new ImageXObjectExtractor();
+        List<List<ImageInfo>> pages = new ArrayList<>(pdDocument.getNumberOfPages());
+
+        for (int pageNumber = 1; pageNumber <= pdDocument.getNumberOfPages(); pageNumber++) {
+            List<ImageInfo> images;
+            try {
+                images = extractor.extractImages(pdDocument.getPage(pageNumber - 1), pageNumber);
+            } catch (IOException e) {
+                log.warn("Failed to extract images from page {} of document {}: {}",
+                        pageNumber, document.getFileId(), e.getMessage());
+                images = new ArrayList<>();
+            }
+            for (ImageInfo image : images) {
+                image.setPath(document.getExtractedImagePath(image.getHash()));
+            }
+            pages.add(images);
+        }
+
+        ImageCatalog catalog = ImageCatalog.builder()
+                .fileId(document.getFileId())
+                .pages(pages)
+                .build();
+        storeCatalog(catalog);
+
+        log.debug("Built image catalog of document {} in {}ms", document.getFileId(), System.currentTimeMillis() - start);
+        return catalog;
+    }
+
+    /**
+     * Decode the images of a page that have not been decoded yet.
+     * Each distinct image is decoded once per document, subsampled to at most the configured size.
+     *
+     * @param document   The document
+     * @param pageNumber The page number (1-based) the images are drawn on
+     * @param images     The images to decode
+     * @throws IOException If the document cannot be read
+     */
+    public void ensureDecoded(PdfDocument document, int pageNumber, Collection<ImageInfo> images) throws IOException {
+        if (missingDigests(images).isEmpty()) {
+            return;
+        }
+
+        ReentrantLock lock = documentLocks.computeIfAbsent(document.getFileId(), k -> new ReentrantLock());
+        lock.lock();
+        try {
+            Set<String> missing = missingDigests(images);
+            if (missing.isEmpty()) {
+                return;
+            }
+
+            try (PDDocument pdDocument = documentLoader.loadPdfBox(document.getFilePath())) {
+                Map<String, PDImageXObject> found = new ImageXObjectExtractor()
+                        .findImages(pdDocument.getPage(pageNumber - 1), missing);
+                for (Map.Entry<String, PDImageXObject> entry : found.entrySet()) {
+                    decode(entry.getValue(), new File(document.getExtractedImagePath(entry.getKey())));
+                }
+            }
+        } finally {
+            lock.unlock();
+            documentLocks.remove(document.getFileId(), lock);
+        }
+    }
+
+    /**
+     * Get the luminance plane of a decoded image, reading the image only if its plane is not cached.
+     * All planes have the same size, so planes of any two images can be compared directly.
+     * The raster cache keeps the normalized image in colour; the plane is derived from it once
+     * and shared by all callers while it is cached, so it must not be modified.
+     *
+     * @param image The image, decoded with {@link #ensureDecoded}
+     * @return The luminance plane, or null if the image has not been decoded
+     * @throws IOException If the decoded image cannot be read
+     */
+    public LuminancePlane getLuminancePlane(ImageInfo image) throws IOException {
+        String path = image.getPath();
+        if (path == null) {
+            return null;
+        }
+
+        File file = new File(path);
+        if (!file.exists()) {
+            return null;
+        }
+
+        try (RasterCache.Pin pin = rasterCache.acquire("image-plane:" + path, () -> {
+            try (MemoryGovernor.Reservation ignored = memoryGovernor.reserveForImageFiles(file)) {
+                BufferedImage decoded = ImageIO.read(file);
+                if (decoded == null) {
+                    throw new IOException("Failed to read decoded image: " + path);
+                }
+                return LuminancePlane.normalize(decoded, planeSize, LuminancePlane.isGrayscale(decoded)
+                        ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_3BYTE_BGR);
+            }
+        })) {
+            // The window statistics and hash are computed once per cached plane, not per comparison
+            return pin.attachment(LuminancePlane.class,
+                    p -> new LuminancePlane(p.getWidth(), p.getHeight(), p.copyLuminance()),
+                    LuminancePlane::getEstimatedBytes);
+        }
+    }
+
+    // Private helper methods
+
+    private Set<String> missingDigests(Collection<ImageInfo> images) {
+        Set<String> missing = new HashSet<>();
+        for (ImageInfo image : images) {
+            if (image.getPath() != null && !new File(image.getPath()).exists()) {
+                missing.add(image.getHash());
+            }
+        }
+        return missing;
+    }
+
+    private void decode(PDImageXObject image, File file) throws IOException {
+        if (image.getWidth() <= 0 || image.getHeight() <= 0) {
+            return;
+        }
+
+        int subsampling = Math.max(1, (int) Math.ceil(
+                (double) Math.max(image.getWidth(), image.getHeight()) / maxDecodeSize));
+        long bytes = MemoryGovernor.rasterBytes(
+                image.getWidth() / subsampling + 1, image.getHeight() / subsampling + 1, 4);
+
+        try (MemoryGovernor.Reservation ignored = memoryGovernor.reserve(bytes)) {
+            BufferedImage decoded = image.getImage(null, subsampling);
+            if (decoded == null) {
+                return;
+            }
+
+            FileUtils.createDirectories(file.getParentFile());
+            Path tempFile = Files.createTempFile(file.getParentFile().toPath(), "img_", ".png");
+            try {
+                ImageIO.write(decoded, "png", tempFile.toFile());
+                Files.move(tempFile, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tempFile);
+            }
+        }
+    }
+
+    private ImageCatalog loadCatalog(PdfDocument document) {
+        ImageCatalog cached = catalogCache.get(document.getFileId());
+        if (cached != null) {
+            return cached;
+        }
+
+        File file = getCatalogFile(document.getFileId());
+        if (!file.exists()) {
+            return null;
+        }
+
+        try {
+            ImageCatalog catalog = objectMapper.readValue(file, ImageCatalog.class);
+            catalogCache.put(document.getFileId(), catalog);
+            return catalog;
+        } catch (IOException e) {
+            log.warn("Failed to read image catalog of document {}: {}", document.getFileId(), e.getMessage());
+            return null;
+        }
+    }
+
+    private void storeCatalog(ImageCatalog catalog) {
+        catalogCache.put(catalog.getFileId(), catalog);
+
+        File file = getCatalogFile(catalog.getFileId());
+        try {
+            FileUtils.createDirectories(file.getParentFile());
+            Path tempFile = Files.createTempFile(file.getParentFile().toPath(), "images_", ".json");
+            try {
+                objectMapper.writeValue(tempFile.toFile(), catalog);
+                Files.move(tempFile, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tempFile);
+            }
+        } catch (IOException e) {
+            log.warn("Failed to write image catalog of document {}: {}", catalog.getFileId(), e.getMessage());
+        }
+    }
+
+    private File getCatalogFile(String fileId) {
+        return Paths.get(catalogPath, fileId + ".json").toFile();
+    }
+}
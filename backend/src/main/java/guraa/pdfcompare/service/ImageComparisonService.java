@@ -2,34 +2,42 @@ package guraa.pdfcompare.service;
 
 import guraa.pdfcompare.model.PdfDocument;
 import guraa.pdfcompare.model.difference.ImageDifference;
+import guraa.pdfcompare.util.CancellationContext;
 import guraa.pdfcompare.util.ImageInfo;
+import guraa.pdfcompare.util.LongIntMap;
+import guraa.pdfcompare.visual.ImageFingerprint;
+import guraa.pdfcompare.visual.LuminancePlane;
 import guraa.pdfcompare.visual.SSIMCalculator;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
-import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Enhanced service for comparing images between PDF documents
  * with fixed coordinate handling.
+ * Pages are compared by the images embedded in them: images with the same stream digest
+ * are identical without decoding, and only the remaining images are decoded and compared by SSIM.
+ * The luminance planes of those images are loaded before the pairwise comparison, and similarities
+ * are remembered by digest pair, so each pair of distinct images is compared at most once.
  */
 @Slf4j
 @Service
@@ -37,29 +45,33 @@ public class ImageComparisonService {
 
     private final ExecutorService executorService;
     private final SSIMCalculator ssimCalculator;
-    private final PdfRenderingService pdfRenderingService;
+    private final ImageCatalogService imageCatalogService;
 
-    // For cancellation support
-    private final ConcurrentHashMap<String, AtomicBoolean> cancellationTokens = new ConcurrentHashMap<>();
-
-    // Fixed DPI values
-    private static final float FIXED_RENDERING_DPI = 150f;
-    private static final float FIXED_THUMBNAIL_DPI = 72f;
+    // Bounded LRU cache of image similarities, keyed by the digests of both images
+    private final Map<String, Double> similarityCache;
 
     /**
      * Constructor with qualifier to specify which executor service to use.
      *
-     * @param executorService The executor service for comparison operations
+     * @param executorService The work-stealing pool for CPU-bound comparison work
      * @param ssimCalculator The SSIM calculator for image comparison
-     * @param pdfRenderingService The PDF rendering service
+     * @param imageCatalogService The image catalog service for the images of pages
+     * @param similarityCacheSize The maximum number of image pair similarities to remember
      */
     public ImageComparisonService(
-            @Qualifier("comparisonExecutor") ExecutorService executorService,
+            @Qualifier("cpuExecutor") ExecutorService executorService,
             SSIMCalculator ssimCalculator,
-            PdfRenderingService pdfRenderingService) {
+            ImageCatalogService imageCatalogService,
+            @Value("${app.images.similarity-cache-size:10000}") int similarityCacheSize) {
         this.executorService = executorService;
         this.ssimCalculator = ssimCalculator;
-        this.pdfRenderingService = pdfRenderingService;
+        this.imageCatalogService = imageCatalogService;
+        this.similarityCache = Collections.synchronizedMap(new LinkedHashMap<>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Double> eldest) {
+                return size() > similarityCacheSize;
+            }
+        });
     }
 
     @Value("${app.comparison.image-similarity-threshold:0.95}")
@@ -68,6 +80,9 @@ public class ImageComparisonService {
     @Value("${app.comparison.image-comparison-timeout-seconds:30}")
     private int imageComparisonTimeoutSeconds = 30;
 
+    @Value("${app.images.max-hash-distance:24}")
+    private int maxHashDistance = 24;
+
     // Cache of image comparison results
     private final ConcurrentHashMap<String, CompletableFuture<List<ImageDifference>>> comparisonTasks = new ConcurrentHashMap<>();
 
@@ -84,57 +99,90 @@ public class ImageComparisonService {
     public List<ImageDifference> compareImages(
             PdfDocument baseDocument, PdfDocument compareDocument,
             int basePageNumber, int comparePageNumber) throws IOException {
+        return compareImages(baseDocument, compareDocument, basePageNumber, comparePageNumber, CancellationContext.NONE);
+    }
+
+    /**
+     * Compare images between two pages as part of a comparison that can be cancelled.
+     *
+     * @param baseDocument The base document
+     * @param compareDocument The document to compare against the base
+     * @param basePageNumber The page number in the base document (1-based)
+     * @param comparePageNumber The page number in the compare document (1-based)
+     * @param cancellation The cancellation context of the comparison
+     * @return A list of image differences with proper coordinates
+     * @throws IOException If there is an error comparing the images
+     * @throws CancellationException If the comparison is cancelled
+     */
+    public List<ImageDifference> compareImages(
+            PdfDocument baseDocument, PdfDocument compareDocument,
+            int basePageNumber, int comparePageNumber,
+            CancellationContext cancellation) throws IOException {
 
         String cacheKey = baseDocument.getFileId() + "_" + basePageNumber + "_" +
                 compareDocument.getFileId() + "_" + comparePageNumber;
 
-        // Create cancellation token for this task
-        AtomicBoolean cancellationToken = new AtomicBoolean(false);
-        cancellationTokens.put(cacheKey, cancellationToken);
+        // The task gets its own child context so a timeout can abandon it without cancelling the comparison
+        CancellationContext taskCancellation = cancellation.child();
+
+        // Check if we already have a comparison task for these pages
+        CompletableFuture<List<ImageDifference>> task = comparisonTasks.computeIfAbsent(cacheKey, key -> {
+            // Submit a new comparison task
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return doCompareImages(baseDocument, compareDocument, basePageNumber, comparePageNumber, taskCancellation);
+                } catch (IOException e) {
+                    log.error("Error comparing images: {}", e.getMessage(), e);
+                    return new ArrayList<>();
+                }
+            }, executorService);
+        });
 
+        // Set a timeout for the comparison, and stop waiting as soon as the comparison is cancelled
+        List<ImageDifference> results;
         try {
-            // Check if we already have a comparison task for these pages
-            CompletableFuture<List<ImageDifference>> task = comparisonTasks.computeIfAbsent(cacheKey, key -> {
-                // Submit a new comparison task
-                return CompletableFuture.supplyAsync(() -> {
-                    try {
-                        return doCompareImages(baseDocument, compareDocument, basePageNumber, comparePageNumber, cancellationToken);
-                    } catch (IOException e) {
-                        log.error("Error comparing images: {}", e.getMessage(), e);
-                        return new ArrayList<>();
-                    }
-                }, executorService);
-            });
-
-            // Set a timeout for the comparison
-            try {
-                List<ImageDifference> results = task.get(imageComparisonTimeoutSeconds, TimeUnit.SECONDS);
-
-                // Fix coordinates for all image differences
-                for (ImageDifference diff : results) {
-                    fixImageDifferenceCoordinates(diff);
-                }
+            results = cancellation.await(task, imageComparisonTimeoutSeconds, TimeUnit.SECONDS);
+        } catch (CancellationException e) {
+            if (cancellation.isCancelled()) {
+                throw e;
+            }
+            // Another caller abandoned the shared task
+            comparisonTasks.remove(cacheKey, task);
+            return new ArrayList<>();
+        } catch (ExecutionException e) {
+            comparisonTasks.remove(cacheKey, task);
+            if (!(e.getCause() instanceof CancellationException)) {
+                log.error("Error comparing images for pages {}/{}: {}",
+                        basePageNumber, comparePageNumber, e.getMessage(), e);
+                return new ArrayList<>();
+            }
+            // The task was shared with a comparison that has since been cancelled: run it for this one
+            results = doCompareImages(baseDocument, compareDocument, basePageNumber, comparePageNumber, cancellation);
+        } catch (TimeoutException e) {
+            log.warn("Image comparison timed out after {} seconds for pages {}/{} in documents {}/{}",
+                    imageComparisonTimeoutSeconds, basePageNumber, comparePageNumber,
+                    baseDocument.getFileId(), compareDocument.getFileId());
 
-                return results;
-            } catch (Exception e) {
-                log.warn("Image comparison timed out after {} seconds for pages {}/{} in documents {}/{}",
-                        imageComparisonTimeoutSeconds, basePageNumber, comparePageNumber,
-                        baseDocument.getFileId(), compareDocument.getFileId());
+            // Cancel the task
+            taskCancellation.cancel("Image comparison timed out");
+            task.cancel(true);
 
-                // Cancel the task
-                cancellationToken.set(true);
-                task.cancel(true);
+            // Remove it from cache
+            comparisonTasks.remove(cacheKey, task);
 
-                // Remove it from cache
-                comparisonTasks.remove(cacheKey);
+            // Return empty result instead of throwing
+            return new ArrayList<>();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while comparing images", e);
+        }
 
-                // Return empty result instead of throwing
-                return new ArrayList<>();
-            }
-        } finally {
-            // Clean up the cancellation token
-            cancellationTokens.remove(cacheKey);
+        // Fix coordinates for all image differences
+        for (ImageDifference diff : results) {
+            fixImageDifferenceCoordinates(diff);
         }
+
+        return results;
     }
 
     /**
@@ -208,108 +256,110 @@ public class ImageComparisonService {
      * @param compareDocument The document to compare against the base
      * @param basePageNumber The page number in the base document (1-based)
      * @param comparePageNumber The page number in the compare document (1-based)
-     * @param cancellationToken Token to check for cancellation
+     * @param cancellation The cancellation context to check between images
      * @return A list of image differences
      * @throws IOException If there is an error comparing the images
+     * @throws CancellationException If the comparison is cancelled
      */
     private List<ImageDifference> doCompareImages(
             PdfDocument baseDocument, PdfDocument compareDocument,
             int basePageNumber, int comparePageNumber,
-            AtomicBoolean cancellationToken) throws IOException {
+            CancellationContext cancellation) throws IOException {
 
         // Extract images from the pages with proper coordinates
         List<ImageInfo> baseImages = new ArrayList<>();
         if (basePageNumber > 0) {
-            baseImages = extractImagesFromPage(baseDocument, basePageNumber);
+            baseImages = extractImagesFromPage(baseDocument, basePageNumber, cancellation);
         }
 
         // Check cancellation
-        if (cancellationToken.get()) {
-            log.info("Image comparison cancelled for pages {}/{}", basePageNumber, comparePageNumber);
-            return new ArrayList<>();
-        }
+        cancellation.throwIfCancelled();
 
         List<ImageInfo> compareImages = new ArrayList<>();
         if (comparePageNumber > 0) {
-            compareImages = extractImagesFromPage(compareDocument, comparePageNumber);
+            compareImages = extractImagesFromPage(compareDocument, comparePageNumber, cancellation);
         }
 
         // Check cancellation
-        if (cancellationToken.get()) {
-            log.info("Image comparison cancelled for pages {}/{}", basePageNumber, comparePageNumber);
-            return new ArrayList<>();
-        }
+        cancellation.throwIfCancelled();
 
         // Quick short-circuit if both pages have no images
         if (baseImages.isEmpty() && compareImages.isEmpty()) {
             return new ArrayList<>();
         }
 
-        // Create a map of image hashes to images for quick lookup
-        Map<String, ImageInfo> baseImageMap = new HashMap<>();
-        for (ImageInfo img : baseImages) {
-            baseImageMap.put(img.getHash(), img);
-            // Check cancellation
-            if (cancellationToken.get()) return new ArrayList<>();
+        // First pass: images with the same digest are identical, pair each with the closest placement.
+        // Compare images are indexed by digest, with images sharing a digest chained through next
+        LongIntMap firstByDigest = new LongIntMap(compareImages.size());
+        int[] next = new int[compareImages.size()];
+        Arrays.fill(next, LongIntMap.MISSING);
+        for (int i = compareImages.size() - 1; i >= 0; i--) {
+            next[i] = firstByDigest.put(compareImages.get(i).getDigestLow(), i);
         }
 
-        Map<String, ImageInfo> compareImageMap = new HashMap<>();
-        for (ImageInfo img : compareImages) {
-            compareImageMap.put(img.getHash(), img);
-            // Check cancellation
-            if (cancellationToken.get()) return new ArrayList<>();
+        List<ImageInfo> unmatchedBase = new ArrayList<>();
+        BitSet matched = new BitSet(compareImages.size());
+        for (ImageInfo baseImage : baseImages) {
+            cancellation.throwIfCancelled();
+
+            int sameImage = LongIntMap.MISSING;
+            for (int i = firstByDigest.get(baseImage.getDigestLow()); i != LongIntMap.MISSING; i = next[i]) {
+                ImageInfo compareImage = compareImages.get(i);
+                if (!matched.get(i) && compareImage.sameDigest(baseImage) &&
+                        (sameImage == LongIntMap.MISSING || placementDistance(baseImage, compareImage) <
+                                placementDistance(baseImage, compareImages.get(sameImage)))) {
+                    sameImage = i;
+                }
+            }
+
+            if (sameImage != LongIntMap.MISSING) {
+                matched.set(sameImage);
+            } else {
+                unmatchedBase.add(baseImage);
+            }
         }
 
-        // Track which images have been matched
-        Map<String, Boolean> baseMatched = new HashMap<>();
-        Map<String, Boolean> compareMatched = new HashMap<>();
+        List<ImageInfo> unmatchedCompare = new ArrayList<>(compareImages.size() - matched.cardinality());
+        for (int i = matched.nextClearBit(0); i < compareImages.size(); i = matched.nextClearBit(i + 1)) {
+            unmatchedCompare.add(compareImages.get(i));
+        }
 
         // List to store the differences
         List<ImageDifference> differences = new ArrayList<>();
+        if (unmatchedBase.isEmpty() && unmatchedCompare.isEmpty()) {
+            return differences;
+        }
 
-        // First pass: Find exact matches by hash
-        for (ImageInfo baseImage : baseImages) {
-            // Check cancellation
-            if (cancellationToken.get()) return new ArrayList<>();
-
-            String baseHash = baseImage.getHash();
+        // Only images without an identical counterpart are decoded
+        if (!unmatchedBase.isEmpty() && !unmatchedCompare.isEmpty()) {
+            imageCatalogService.ensureDecoded(baseDocument, basePageNumber, unmatchedBase);
+            cancellation.throwIfCancelled();
+            imageCatalogService.ensureDecoded(compareDocument, comparePageNumber, unmatchedCompare);
+        }
 
-            if (compareImageMap.containsKey(baseHash)) {
-                // Exact match found
-                baseMatched.put(baseHash, true);
-                compareMatched.put(baseHash, true);
-            }
+        // Load the planes up front so the pairwise comparison does no I/O or decoding
+        Map<ImageInfo, LuminancePlane> planes = new IdentityHashMap<>();
+        if (!unmatchedBase.isEmpty() && !unmatchedCompare.isEmpty()) {
+            loadPlanes(unmatchedBase, planes);
+            cancellation.throwIfCancelled();
+            loadPlanes(unmatchedCompare, planes);
         }
 
         // Second pass: Find similar images using SSIM
-        for (ImageInfo baseImage : baseImages) {
+        for (ImageInfo baseImage : unmatchedBase) {
             // Check cancellation
-            if (cancellationToken.get()) return new ArrayList<>();
-
-            String baseHash = baseImage.getHash();
-
-            // Skip if already matched
-            if (baseMatched.containsKey(baseHash)) {
-                continue;
-            }
+            cancellation.throwIfCancelled();
 
             // Find the best match among unmatched compare images
             ImageInfo bestMatch = null;
             double bestSimilarity = imageSimilarityThreshold;
 
-            for (ImageInfo compareImage : compareImages) {
+            for (ImageInfo compareImage : unmatchedCompare) {
                 // Check cancellation
-                if (cancellationToken.get()) return new ArrayList<>();
-
-                String compareHash = compareImage.getHash();
-
-                // Skip if already matched
-                if (compareMatched.containsKey(compareHash)) {
-                    continue;
-                }
+                cancellation.throwIfCancelled();
 
                 // Calculate similarity
-                double similarity = calculateImageSimilarity(baseImage, compareImage);
+                double similarity = calculateImageSimilarity(baseImage, compareImage, planes, cancellation);
 
                 if (similarity > bestSimilarity) {
                     bestSimilarity = similarity;
@@ -319,18 +369,14 @@ public class ImageComparisonService {
 
             if (bestMatch != null) {
                 // Similar match found
-                baseMatched.put(baseHash, true);
-                compareMatched.put(bestMatch.getHash(), true);
+                unmatchedCompare.remove(bestMatch);
 
-                // If similarity is not perfect, add a difference
-                if (bestSimilarity < 1.0) {
-                    // Create a modified image difference with coordinates from both images
-                    ImageDifference diff = createImageDifference(
-                            baseImage, bestMatch, bestSimilarity, "modified",
-                            basePageNumber, comparePageNumber);
+                // The digests differ, so the images are not identical even if SSIM rounds to 1
+                ImageDifference diff = createImageDifference(
+                        baseImage, bestMatch, Math.min(bestSimilarity, 0.999), "modified",
+                        basePageNumber, comparePageNumber);
 
-                    differences.add(diff);
-                }
+                differences.add(diff);
             } else {
                 // No match found, image was deleted
                 // Create a deleted image difference with coordinates from base image
@@ -343,17 +389,10 @@ public class ImageComparisonService {
         }
 
         // Check cancellation
-        if (cancellationToken.get()) return new ArrayList<>();
+        cancellation.throwIfCancelled();
 
         // Third pass: Find unmatched compare images (added)
-        for (ImageInfo compareImage : compareImages) {
-            String compareHash = compareImage.getHash();
-
-            // Skip if already matched
-            if (compareMatched.containsKey(compareHash)) {
-                continue;
-            }
-
+        for (ImageInfo compareImage : unmatchedCompare) {
             // No match found, image was added
             // Create an added image difference with coordinates from compare image
             ImageDifference diff = createImageDifference(
@@ -366,6 +405,15 @@ public class ImageComparisonService {
         return differences;
     }
 
+    /**
+     * Distance between the placements of two images on their pages, in points.
+     */
+    private double placementDistance(ImageInfo a, ImageInfo b) {
+        return Math.hypot(a.getX() - b.getX(), a.getY() - b.getY()) +
+                Math.abs(a.getPlacedWidth() - b.getPlacedWidth()) +
+                Math.abs(a.getPlacedHeight() - b.getPlacedHeight());
+    }
+
     /**
      * Create an ImageDifference with proper coordinates.
      */
@@ -406,15 +454,15 @@ public class ImageComparisonService {
         if (baseImage != null) {
             builder.baseImagePath(baseImage.getPath())
                     .baseImageHash(baseImage.getHash())
-                    .baseWidth((int)baseImage.getWidth())
-                    .baseHeight((int)baseImage.getHeight())
+                    .baseWidth((int) Math.round(baseImage.getPlacedWidth()))
+                    .baseHeight((int) Math.round(baseImage.getPlacedHeight()))
                     .baseX(baseImage.getX())
                     .baseY(baseImage.getY());
 
             // For deletions, use base image properties for display
             if (changeType.equals("deleted")) {
-                width = baseImage.getWidth();
-                height = baseImage.getHeight();
+                width = baseImage.getPlacedWidth();
+                height = baseImage.getPlacedHeight();
                 x = baseImage.getX();
                 y = baseImage.getY();
             }
@@ -423,15 +471,15 @@ public class ImageComparisonService {
         if (compareImage != null) {
             builder.compareImagePath(compareImage.getPath())
                     .compareImageHash(compareImage.getHash())
-                    .compareWidth((int)compareImage.getWidth())
-                    .compareHeight((int)compareImage.getHeight())
+                    .compareWidth((int) Math.round(compareImage.getPlacedWidth()))
+                    .compareHeight((int) Math.round(compareImage.getPlacedHeight()))
                     .compareX(compareImage.getX())
                     .compareY(compareImage.getY());
 
             // For additions, use compare image properties for display
             if (changeType.equals("added")) {
-                width = compareImage.getWidth();
-                height = compareImage.getHeight();
+                width = compareImage.getPlacedWidth();
+                height = compareImage.getPlacedHeight();
                 x = compareImage.getX();
                 y = compareImage.getY();
             }
@@ -439,8 +487,8 @@ public class ImageComparisonService {
 
         // For modifications, use average/max dimensions
         if (changeType.equals("modified") && baseImage != null && compareImage != null) {
-            width = Math.max(baseImage.getWidth(), compareImage.getWidth());
-            height = Math.max(baseImage.getHeight(), compareImage.getHeight());
+            width = Math.max(baseImage.getPlacedWidth(), compareImage.getPlacedWidth());
+            height = Math.max(baseImage.getPlacedHeight(), compareImage.getPlacedHeight());
             x = (baseImage.getX() + compareImage.getX()) / 2;
             y = (baseImage.getY() + compareImage.getY()) / 2;
         }
@@ -460,129 +508,72 @@ public class ImageComparisonService {
     }
 
     /**
-     * Extract images from a page with explicit coordinate information.
+     * Get the images embedded in a page with their placement on the page.
      */
-    private List<ImageInfo> extractImagesFromPage(PdfDocument document, int pageNumber) throws IOException {
+    private List<ImageInfo> extractImagesFromPage(PdfDocument document, int pageNumber,
+                                                  CancellationContext cancellation) throws IOException {
         log.debug("Extracting images from document {} page {}", document.getFileId(), pageNumber);
 
-        try {
-            // Create a directory for extracted images if it doesn't exist
-            String extractedImagesPath = document.getExtractedImagesPath(pageNumber);
-            Path extractedImagesDir = Paths.get(extractedImagesPath);
-            if (!Files.exists(extractedImagesDir)) {
-                Files.createDirectories(extractedImagesDir);
-            }
-
-            // Use the rendered page as a source for image information
-            List<ImageInfo> images = new ArrayList<>();
-
-            try {
-                File renderedPage = pdfRenderingService.renderPage(document, pageNumber);
-                if (renderedPage.exists()) {
-                    BufferedImage pageImage = ImageIO.read(renderedPage);
-                    if (pageImage != null) {
-                        // Create whole page image info with proper coordinates
-                        ImageInfo imageInfo = ImageInfo.builder()
-                                .id(UUID.randomUUID().toString())
-                                .path(renderedPage.getAbsolutePath())
-                                .width(pageImage.getWidth())
-                                .height(pageImage.getHeight())
-                                .hash(calculateImageHash(pageImage))
-                                .pageNumber(pageNumber)
-                                .x(0)  // Start at origin
-                                .y(0)
-                                .format("PNG")
-                                .colorSpace("RGB")
-                                .bitsPerComponent(24)
-                                .build();
-
-                        images.add(imageInfo);
-                    }
-                }
-            } catch (Exception e) {
-                log.warn("Error creating image info from rendered page: {}", e.getMessage());
-                // Continue and return empty list instead of failing
-            }
+        // Each page is a cancellation point
+        cancellation.throwIfCancelled();
 
-            return images;
-        } catch (Exception e) {
+        try {
+            return imageCatalogService.getPageImages(document, pageNumber);
+        } catch (IOException e) {
             log.error("Error extracting images from page: {}", e.getMessage(), e);
             return new ArrayList<>();
         }
     }
 
     /**
-     * Calculate a hash for an image.
+     * Load the luminance planes of images that have been decoded.
      */
-    private String calculateImageHash(BufferedImage image) {
-        // Simple hash based on image dimensions and sampling
-        try {
-            int width = image.getWidth();
-            int height = image.getHeight();
-
-            int sampleSize = 5;
-            StringBuilder sb = new StringBuilder();
-
-            sb.append(width).append("x").append(height).append("_");
-
-            // Sample pixels in a grid
-            for (int y = 0; y < height; y += height / sampleSize) {
-                for (int x = 0; x < width; x += width / sampleSize) {
-                    if (x < width && y < height) {
-                        int rgb = image.getRGB(x, y);
-                        sb.append(rgb & 0xFFFFFF).append("_");
-                    }
+    private void loadPlanes(List<ImageInfo> images, Map<ImageInfo, LuminancePlane> planes) {
+        for (ImageInfo image : images) {
+            try {
+                LuminancePlane plane = imageCatalogService.getLuminancePlane(image);
+                if (plane != null) {
+                    planes.put(image, plane);
                 }
+            } catch (IOException e) {
+                log.error("Error loading image {}: {}", image.getPath(), e.getMessage(), e);
             }
-
-            return sb.toString();
-        } catch (Exception e) {
-            log.warn("Error calculating image hash: {}", e.getMessage());
-            return UUID.randomUUID().toString();
         }
     }
 
     /**
-     * Calculate the similarity between two images with safety checks.
+     * Calculate the similarity between two images from their preloaded planes.
      */
-    private double calculateImageSimilarity(ImageInfo baseImage, ImageInfo compareImage) {
-        try {
-            // Safety checks
-            if (baseImage == null || compareImage == null) {
-                return 0.0;
-            }
-
-            File baseFile = new File(baseImage.getPath());
-            File compareFile = new File(compareImage.getPath());
-
-            if (!baseFile.exists() || !compareFile.exists()) {
-                return 0.0;
-            }
+    private double calculateImageSimilarity(ImageInfo baseImage, ImageInfo compareImage,
+                                            Map<ImageInfo, LuminancePlane> planes,
+                                            CancellationContext cancellation) {
+        LuminancePlane basePlane = planes.get(baseImage);
+        LuminancePlane comparePlane = planes.get(compareImage);
+        if (basePlane == null || comparePlane == null) {
+            return 0.0;
+        }
 
-            // Load the images
-            BufferedImage baseImg = ImageIO.read(baseFile);
-            BufferedImage compareImg = ImageIO.read(compareFile);
+        // Images whose perceptual hashes differ this much are not similar enough to be worth SSIM
+        if (ImageFingerprint.distance(basePlane.getDifferenceHash(), comparePlane.getDifferenceHash()) > maxHashDistance) {
+            return 0.0;
+        }
 
-            if (baseImg == null || compareImg == null) {
-                return 0.0;
-            }
+        // Digests identify image content, so a pair seen on any page or in any comparison is reused
+        String key = baseImage.getHash() + ":" + compareImage.getHash();
+        Double cached = similarityCache.get(key);
+        if (cached != null) {
+            return cached;
+        }
 
-            // Calculate SSIM
-            return ssimCalculator.calculate(baseImg, compareImg);
-        } catch (IOException e) {
-            log.error("Error calculating image similarity: {}", e.getMessage(), e);
-            return 0.0;
+        try {
+            double similarity = ssimCalculator.calculate(basePlane, comparePlane, cancellation);
+            similarityCache.put(key, similarity);
+            return similarity;
+        } catch (CancellationException e) {
+            throw e;
         } catch (Exception e) {
             log.error("Unexpected error in image similarity calculation: {}", e.getMessage(), e);
             return 0.0;
         }
     }
-
-    /**
-     * Cancel all ongoing image comparisons.
-     */
-    public void cancelAllComparisons() {
-        log.info("Cancelling all image comparisons");
-        cancellationTokens.forEach((key, token) -> token.set(true));
-    }
-}
\ No newline at end of file
+}
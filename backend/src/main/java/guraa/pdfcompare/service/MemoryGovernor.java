@@ -0,0 +1,405 @@
+package guraa.pdfcompare.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import guraa.pdfcompare.util.CancellationContext;
+import guraa.pdfcompare.util.FileUtils;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.rendering.ImageType;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.awt.Dimension;
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Heap budget for rasters.
+ * Callers reserve the estimated size of a raster (width x height x bytes per
+ * pixel) before rendering or decoding it and release the reservation when
+ * they are done with it. When the budget is exhausted, callers wait for
+ * other work to finish, or degrade to a smaller raster, instead of running
+ * the JVM out of memory. Waits are bounded and end early when the caller's
+ * work is cancelled.
+ */
+@Slf4j
+@Service
+public class MemoryGovernor {
+
+    /**
+     * Bytes per pixel of the packed int RGB rasters used for rendering.
+     */
+    public static final int RGB_BYTES_PER_PIXEL = 4;
+
+    // Waiting callers wake up this often to notice a cancellation
+    private static final long POLL_INTERVAL_MS = 100;
+
+    private final long budgetBytes;
+    private final long degradeAfterMs;
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private final Condition released = lock.newCondition();
+
+    private long reservedBytes;
+    private final AtomicLong peakReservedBytes = new AtomicLong();
+    private final AtomicLong waitingCallers = new AtomicLong();
+
+    private final Counter reservationCounter;
+    private final Counter waitCounter;
+    private final Counter timeoutCounter;
+    private final Counter degradationCounter;
+    private final Timer waitTimer;
+
+    @Value("${app.memory.reserve-timeout-seconds:300}")
+    private long reserveTimeoutSeconds = 300;
+
+    /**
+     * Constructor.
+     *
+     * @param meterRegistry The meter registry for governor metrics
+     * @param budgetMb The raster budget in MB, or 0 to use half of the maximum heap
+     * @param degradeAfterMs How long callers that can degrade wait for budget before doing so
+     */
+    public MemoryGovernor(
+            MeterRegistry meterRegistry,
+            @Value("${app.memory.raster-budget-mb:0}") long budgetMb,
+            @Value("${app.memory.degrade-after-ms:2000}") long degradeAfterMs) {
+        this.degradeAfterMs = Math.max(0, degradeAfterMs);
+        this.budgetBytes = budgetMb > 0
+                ? budgetMb * 1024 * 1024
+                : Runtime.getRuntime().maxMemory() / 2;
+
+        Gauge.builder("pdfcompare.memory.budget.bytes", () -> budgetBytes)
+                .description("Heap budget for rasters")
+                .register(meterRegistry);
+        Gauge.builder("pdfcompare.memory.reserved.bytes", this, MemoryGovernor::getReservedBytes)
+                .description("Raster bytes currently reserved")
+                .register(meterRegistry);
+        Gauge.builder("pdfcompare.memory.reserved.peak.bytes", peakReservedBytes, AtomicLong::get)
+                .description("Highest number of raster bytes reserved at once")
+                .register(meterRegistry);
+        Gauge.builder("pdfcompare.memory.waiting", waitingCallers, AtomicLong::get)
+                .description("Callers waiting for raster budget")
+                .register(meterRegistry);
+
+        this.reservationCounter = Counter.builder("pdfcompare.memory.reservations")
+                .description("Raster budget reservations granted")
+                .register(meterRegistry);
+        this.waitCounter = Counter.builder("pdfcompare.memory.waits")
+                .description("Reservations that had to wait for budget")
+                .register(meterRegistry);
+        this.timeoutCounter = Counter.builder("pdfcompare.memory.timeouts")
+                .description("Reservations that gave up waiting for budget")
+                .register(meterRegistry);
+        this.degradationCounter = Counter.builder("pdfcompare.memory.degradations")
+                .description("Renders degraded to a lower resolution to fit the budget")
+                .register(meterRegistry);
+        this.waitTimer = Timer.builder("pdfcompare.memory.wait")
+                .description("Time spent waiting for raster budget")
+                .register(meterRegistry);
+
+        log.info("Initialized memory governor with a raster budget of {} MB", budgetBytes / (1024 * 1024));
+    }
+
+    /**
+     * Estimate the size of a raster.
+     *
+     * @param width The width in pixels
+     * @param height The height in pixels
+     * @param bytesPerPixel The bytes per pixel
+     * @return The estimated size in bytes
+     */
+    public static long rasterBytes(long width, long height, int bytesPerPixel) {
+        return Math.max(0, width) * Math.max(0, height) * bytesPerPixel;
+    }
+
+    /**
+     * Estimate the size of the raster of a page rendered at the given DPI.
+     *
+     * @param page The PDF page
+     * @param dpi The rendering DPI
+     * @param imageType The image type the page is rendered as
+     * @return The estimated size in bytes
+     */
+    public static long pageRasterBytes(PDPage page, float dpi, ImageType imageType) {
+        PDRectangle box = page.getCropBox();
+        long width = (long) Math.ceil(box.getWidth() * dpi / 72f);
+        long height = (long) Math.ceil(box.getHeight() * dpi / 72f);
+        return rasterBytes(width, height, bytesPerPixel(imageType));
+    }
+
+    /**
+     * Get the bytes per pixel of the raster PDFBox renders an image type into.
+     *
+     * @param imageType The image type
+     * @return The bytes per pixel
+     */
+    public static int bytesPerPixel(ImageType imageType) {
+        switch (imageType) {
+            case BINARY:
+            case GRAY:
+                return 1;
+            case BGR:
+                return 3;
+            default:
+                return RGB_BYTES_PER_PIXEL;
+        }
+    }
+
+    /**
+     * Reserve budget for work that cannot be cancelled, waiting at most the reserve timeout.
+     * A request larger than the whole budget is granted once nothing else is reserved.
+     *
+     * @param bytes The number of bytes to reserve
+     * @return The reservation, to be closed when the raster is released
+     * @throws IOException If the budget did not become available in time or the thread is interrupted
+     */
+    public Reservation reserve(long bytes) throws IOException {
+        return reserve(bytes, CancellationContext.NONE);
+    }
+
+    /**
+     * Reserve budget, waiting at most the reserve timeout and giving up as soon as the
+     * caller's work is cancelled.
+     * A request larger than the whole budget is granted once nothing else is reserved.
+     *
+     * @param bytes The number of bytes to reserve
+     * @param cancellation The cancellation context of the work the raster is for
+     * @return The reservation, to be closed when the raster is released
+     * @throws IOException If the budget did not become available in time or the thread is interrupted
+     * @throws CancellationException If the work is cancelled while waiting
+     */
+    public Reservation reserve(long bytes, CancellationContext cancellation) throws IOException {
+        Reservation reservation;
+        try {
+            reservation = acquire(bytes, TimeUnit.SECONDS.toNanos(reserveTimeoutSeconds), cancellation);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for memory budget", e);
+        }
+        if (reservation == null) {
+            throw new IOException("Timed out after " + reserveTimeoutSeconds + "s waiting for " +
+                    bytes + " bytes of memory budget");
+        }
+        return reservation;
+    }
+
+    /**
+     * Reserve budget, waiting at most the configured time before the caller should degrade.
+     *
+     * @param bytes The number of bytes to reserve
+     * @return The reservation, or null if the budget did not become available in time
+     */
+    public Reservation tryReserve(long bytes) {
+        return tryReserve(bytes, degradeAfterMs);
+    }
+
+    /**
+     * Reserve budget, waiting at most the given time.
+     *
+     * @param bytes The number of bytes to reserve
+     * @param timeoutMs The maximum time to wait in milliseconds
+     * @return The reservation, or null if the budget did not become available in time
+     */
+    public Reservation tryReserve(long bytes, long timeoutMs) {
+        try {
+            return acquire(bytes, TimeUnit.MILLISECONDS.toNanos(timeoutMs), CancellationContext.NONE);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Reserve budget for decoding image files, reading only their headers to size them.
+     * The files are reserved together so a caller never holds part of its budget while waiting for the rest.
+     *
+     * @param files The image files
+     * @return The reservation
+     * @throws IOException If a file cannot be read or the thread is interrupted
+     */
+    public Reservation reserveForImageFiles(File... files) throws IOException {
+        long bytes = 0;
+        for (File file : files) {
+            bytes += imageFileBytes(file);
+        }
+        return reserve(bytes);
+    }
+
+    /**
+     * Estimate the decoded size of an image file from its header.
+     *
+     * @param file The image file
+     * @return The estimated size in bytes
+     * @throws IOException If the file cannot be read
+     */
+    public static long imageFileBytes(File file) throws IOException {
+        Dimension size = FileUtils.readImageSize(file);
+        if (size == null) {
+            // Unknown format: account for the encoded size as a lower bound
+            return file.length();
+        }
+        return rasterBytes(size.width, size.height, RGB_BYTES_PER_PIXEL);
+    }
+
+    /**
+     * Record that a render was degraded to fit the budget.
+     */
+    public void recordDegradation() {
+        degradationCounter.increment();
+    }
+
+    /**
+     * Get the number of bytes that could be reserved right now without waiting.
+     *
+     * @return The available budget in bytes
+     */
+    public long getAvailableBytes() {
+        lock.lock();
+        try {
+            return Math.max(0, budgetBytes - reservedBytes);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of bytes currently reserved.
+     *
+     * @return The reserved bytes
+     */
+    public long getReservedBytes() {
+        lock.lock();
+        try {
+            return reservedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the total budget.
+     *
+     * @return The budget in bytes
+     */
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    /**
+     * Get governor statistics.
+     *
+     * @return Map of budget, reservation and wait statistics
+     */
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("budgetBytes", budgetBytes);
+        stats.put("reservedBytes", getReservedBytes());
+        stats.put("peakReservedBytes", peakReservedBytes.get());
+        stats.put("waiting", waitingCallers.get());
+        stats.put("reservations", (long) reservationCounter.count());
+        stats.put("waits", (long) waitCounter.count());
+        stats.put("timeouts", (long) timeoutCounter.count());
+        stats.put("degradations", (long) degradationCounter.count());
+        stats.put("totalWaitMs", (long) waitTimer.totalTime(TimeUnit.MILLISECONDS));
+        return stats;
+    }
+
+    // Private helper methods
+
+    private boolean fits(long amount) {
+        return reservedBytes == 0 || reservedBytes + amount <= budgetBytes;
+    }
+
+    /**
+     * Wait until the amount fits the budget and reserve it.
+     *
+     * @return The reservation, or null if the amount did not fit in time
+     * @throws CancellationException If the work is cancelled while waiting
+     */
+    private Reservation acquire(long bytes, long timeoutNanos, CancellationContext cancellation)
+            throws InterruptedException {
+        long amount = Math.max(0, bytes);
+        long startNanos = System.nanoTime();
+        boolean waited = false;
+
+        lock.lock();
+        try {
+            long remainingNanos = timeoutNanos;
+            while (!fits(amount)) {
+                cancellation.throwIfCancelled();
+                if (remainingNanos <= 0) {
+                    timeoutCounter.increment();
+                    return null;
+                }
+                if (!waited) {
+                    waited = true;
+                    waitCounter.increment();
+                    waitingCallers.incrementAndGet();
+                }
+                long sliceNanos = Math.min(remainingNanos, TimeUnit.MILLISECONDS.toNanos(POLL_INTERVAL_MS));
+                remainingNanos -= sliceNanos - released.awaitNanos(sliceNanos);
+            }
+            reservedBytes += amount;
+            peakReservedBytes.accumulateAndGet(reservedBytes, Math::max);
+            reservationCounter.increment();
+            return new Reservation(amount);
+        } finally {
+            if (waited) {
+                waitingCallers.decrementAndGet();
+                waitTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+            }
+            lock.unlock();
+        }
+    }
+
+
+    private void release(long amount) {
+        lock.lock();
+        try {
+            reservedBytes = Math.max(0, reservedBytes - amount);
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A granted reservation. Closing it returns the bytes to the budget.
+     */
+    public class Reservation implements AutoCloseable {
+        private final long bytes;
+        private boolean closed;
+
+        private Reservation(long bytes) {
+            this.bytes = bytes;
+        }
+
+        /**
+         * Get the number of reserved bytes.
+         *
+         * @return The reserved bytes
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                release(bytes);
+            }
+        }
+    }
+}
@@ -0,0 +1,536 @@
+package guraa.pdfcompare.service;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import guraa.pdfcompare.extraction.TextDifferenceExtractor.TextElement;
+import guraa.pdfcompare.model.OcrWord;
+import guraa.pdfcompare.model.PdfDocument;
+import guraa.pdfcompare.util.FileUtils;
+import com.itextpdf.kernel.pdf.PdfPage;
+import com.sun.jna.Pointer;
+import lombok.extern.slf4j.Slf4j;
+import net.sourceforge.tess4j.ITessAPI;
+import net.sourceforge.tess4j.TessAPI;
+import net.sourceforge.tess4j.Tesseract;
+import net.sourceforge.tess4j.Word;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.imageio.ImageIO;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.IntBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Service for recognizing the text of scanned pages, which have no extractable text.
+ * OCR runs on the page raster the rendering service already produced, one page per worker of
+ * the OCR pool with one engine per worker, and its results are cached by the digest of that
+ * raster so the same scan is only recognized once, whichever document it appears in.
+ * Recognition that outlives the page timeout is stopped inside the engine, and recognized words
+ * are mapped from the raster to the page's user space through its crop box and rotation.
+ */
+@Slf4j
+@Service
+public class OcrService {
+
+    private static final String OCR_FONT_NAME = "OCR";
+
+    private final PdfRenderingService pdfRenderingService;
+    private final MemoryGovernor memoryGovernor;
+    private final ObjectMapper objectMapper;
+    private final ExecutorService ocrExecutor;
+
+    // Tesseract instances are not thread-safe, so each OCR worker keeps its own
+    private final ThreadLocal<CancellableTesseract> engines = ThreadLocal.withInitial(this::createEngine);
+
+    // Bounded LRU cache of recognized words, keyed by raster digest
+    private final Map<String, List<OcrWord>> wordCache;
+    private final ConcurrentHashMap<String, ReentrantLock> recognitionLocks = new ConcurrentHashMap<>();
+
+    // Cleared when the native Tesseract library cannot be loaded
+    private final AtomicBoolean available = new AtomicBoolean(true);
+
+    @Value("${app.ocr.enabled:true}")
+    private boolean enabled = true;
+
+    @Value("${app.ocr.datapath:}")
+    private String datapath;
+
+    @Value("${app.ocr.language:eng}")
+    private String language = "eng";
+
+    @Value("${app.ocr.timeout-seconds:60}")
+    private int timeoutSeconds = 60;
+
+    @Value("${app.ocr.min-confidence:30}")
+    private float minConfidence = 30;
+
+    @Value("${app.ocr.cache-path:uploads/ocr}")
+    private String cachePath;
+
+    /**
+     * Constructor.
+     *
+     * @param pdfRenderingService The PDF rendering service for page rasters
+     * @param memoryGovernor The memory governor for raster budgets
+     * @param objectMapper The object mapper for result persistence
+     * @param ocrExecutor The OCR pool
+     * @param cacheSize The maximum number of pages of recognized words to cache in memory
+     */
+    public OcrService(
+            PdfRenderingService pdfRenderingService,
+            MemoryGovernor memoryGovernor,
+            ObjectMapper objectMapper,
+            @Qualifier("ocrExecutor") ExecutorService ocrExecutor,
+            @Value("${app.ocr.cache-pages:500}") int cacheSize) {
+        this.pdfRenderingService = pdfRenderingService;
+        this.memoryGovernor = memoryGovernor;
+        this.objectMapper = objectMapper;
+        this.ocrExecutor = ocrExecutor;
+        this.wordCache = Collections.synchronizedMap(new LinkedHashMap<>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<OcrWord>> eldest) {
+                return size() > cacheSize;
+            }
+        });
+    }
+
+    /**
+     * Check whether OCR is enabled and the OCR engine could be loaded.
+     *
+     * @return true if pages can be recognized
+     */
+    public boolean isEnabled() {
+        return enabled && available.get();
+    }
+
+    /**
+     * Recognize the text of a page, waiting for the result.
+     * The wait is a managed block, so a CPU pool worker waiting for OCR lets the pool start a
+     * spare worker instead of idling one of its threads for up to the OCR timeout.
+     *
+     * @param document   The PDF document
+     * @param pageNumber The page number (1-based)
+     * @param pageBox    The crop box and rotation of the page
+     * @return The recognized words as text elements, or an empty list if OCR is disabled,
+     *         failed, timed out or the waiting thread was interrupted
+     */
+    public List<TextElement> recognize(PdfDocument document, int pageNumber, PageBox pageBox) {
+        CompletableFuture<List<TextElement>> future = recognizeAsync(document, pageNumber, pageBox);
+        try {
+            ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                @Override
+                public boolean block() throws InterruptedException {
+                    try {
+                        future.get();
+                    } catch (ExecutionException | CancellationException e) {
+                        // Rethrown by join() below
+                    }
+                    return true;
+                }
+
+                @Override
+                public boolean isReleasable() {
+                    return future.isDone();
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new ArrayList<>();
+        }
+        return future.join();
+    }
+
+    /**
+     * Recognize the text of a page on the OCR pool.
+     * The page timeout starts when a worker picks the page up, not when it is queued, and
+     * stops the engine when it elapses, so a timed out page does not keep its worker busy.
+     * The worker renders the page if it is not rendered yet, which opens the document on the
+     * OCR pool; a caller that holds the document open renders the page first instead.
+     *
+     * @param document   The PDF document
+     * @param pageNumber The page number (1-based)
+     * @param pageBox    The crop box and rotation of the page
+     * @return Future of the recognized words as text elements; it only completes exceptionally
+     *         when cancelled and yields an empty list if OCR is disabled, failed or timed out
+     */
+    public CompletableFuture<List<TextElement>> recognizeAsync(PdfDocument document, int pageNumber,
+                                                               PageBox pageBox) {
+        if (!isEnabled()) {
+            return CompletableFuture.completedFuture(new ArrayList<>());
+        }
+
+        CompletableFuture<List<OcrWord>> result = new CompletableFuture<>();
+        try {
+            ocrExecutor.execute(() -> {
+                if (result.isDone()) {
+                    return;
+                }
+                result.orTimeout(timeoutSeconds, TimeUnit.SECONDS);
+                try {
+                    result.complete(recognizeWords(document, pageNumber, result::isDone));
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+        }
+
+        CompletableFuture<List<TextElement>> elements = result.handle((words, e) -> {
+            if (e == null) {
+                return toTextElements(words, pageBox);
+            }
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            if (cause instanceof TimeoutException) {
+                log.warn("OCR of page {} of document {} timed out after {}s",
+                        pageNumber, document.getFileId(), timeoutSeconds);
+            } else {
+                log.warn("OCR of page {} of document {} failed: {}",
+                        pageNumber, document.getFileId(), cause.getMessage());
+            }
+            return new ArrayList<>();
+        });
+
+        // A caller that gives up on the page keeps it from occupying a worker if it is still queued
+        elements.whenComplete((words, e) -> {
+            if (elements.isCancelled()) {
+                result.cancel(false);
+            }
+        });
+        return elements;
+    }
+
+    // Private helper methods
+
+    /**
+     * Recognize the words of a page, served from the cache when the same raster was seen before.
+     * Runs on an OCR worker, and stops without caching anything once the page is abandoned.
+     */
+    private List<OcrWord> recognizeWords(PdfDocument document, int pageNumber, BooleanSupplier abandoned)
+            throws IOException {
+        File pageFile = pdfRenderingService.renderPage(document, pageNumber);
+        String key = digestFile(pageFile) + "_" + language;
+
+        List<OcrWord> cached = wordCache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        ReentrantLock lock = recognitionLocks.computeIfAbsent(key, k -> new ReentrantLock());
+        lock.lock();
+        try {
+            cached = wordCache.get(key);
+            if (cached == null) {
+                cached = readCachedWords(key);
+            }
+            if (cached == null) {
+                long start = System.currentTimeMillis();
+                cached = runOcr(pageFile, abandoned);
+                // The engine reports setup problems as an empty result, which must not outlive a restart
+                if (!cached.isEmpty()) {
+                    writeCachedWords(key, cached);
+                }
+                log.debug("Recognized {} words on page {} of document {} in {}ms",
+                        cached.size(), pageNumber, document.getFileId(), System.currentTimeMillis() - start);
+            }
+            wordCache.put(key, cached);
+            return cached;
+        } finally {
+            lock.unlock();
+            recognitionLocks.remove(key, lock);
+        }
+    }
+
+    /**
+     * Recognize the words of a rendered page.
+     * The words are kept in raster space, in points with the origin at the bottom left of the
+     * raster, so cached results do not depend on the page they were first seen on.
+     */
+    private List<OcrWord> runOcr(File pageFile, BooleanSupplier abandoned) throws IOException {
+        List<Word> words;
+        int imageHeight;
+
+        try (MemoryGovernor.Reservation ignored = memoryGovernor.reserveForImageFiles(pageFile)) {
+            BufferedImage image = ImageIO.read(pageFile);
+            if (image == null) {
+                throw new IOException("Failed to read page image: " + pageFile);
+            }
+            imageHeight = image.getHeight();
+
+            try {
+                words = engines.get().getWords(image, ITessAPI.TessPageIteratorLevel.RIL_WORD, abandoned);
+            } catch (LinkageError e) {
+                available.set(false);
+                log.error("OCR disabled, the Tesseract library could not be loaded: {}", e.getMessage());
+                return new ArrayList<>();
+            }
+        }
+
+        // Pixel boxes with a top-left origin to points with a bottom-left origin
+        float scale = 72f / pdfRenderingService.getRenderingDpi();
+        List<OcrWord> result = new ArrayList<>(words.size());
+        for (Word word : words) {
+            String text = word.getText() != null ? word.getText().trim() : "";
+            if (text.isEmpty() || word.getConfidence() < minConfidence) {
+                continue;
+            }
+
+            Rectangle box = word.getBoundingBox();
+            result.add(OcrWord.builder()
+                    .text(text)
+                    .x(box.x * scale)
+                    .y((imageHeight - box.y - box.height) * scale)
+                    .width(box.width * scale)
+                    .height(box.height * scale)
+                    .confidence(word.getConfidence())
+                    .build());
+        }
+        return result;
+    }
+
+    private CancellableTesseract createEngine() {
+        CancellableTesseract tesseract = new CancellableTesseract();
+        if (datapath != null && !datapath.isBlank()) {
+            tesseract.setDatapath(datapath);
+        }
+        tesseract.setLanguage(language);
+        return tesseract;
+    }
+
+    private List<TextElement> toTextElements(List<OcrWord> words, PageBox pageBox) {
+        List<TextElement> elements = new ArrayList<>(words.size());
+        for (OcrWord word : words) {
+            float[] box = pageBox.toUserSpace(word);
+            // Separate words like extracted text does, so joined page text keeps word boundaries
+            elements.add(new TextElement(word.getText() + " ", box[0], box[1], box[2], box[3],
+                    OCR_FONT_NAME, word.getHeight()));
+        }
+        return elements;
+    }
+
+    private List<OcrWord> readCachedWords(String key) {
+        File file = getCacheFile(key);
+        if (!file.exists()) {
+            return null;
+        }
+
+        try {
+            return objectMapper.readValue(file, new TypeReference<List<OcrWord>>() {});
+        } catch (IOException e) {
+            log.warn("Failed to read cached OCR result {}: {}", key, e.getMessage());
+            return null;
+        }
+    }
+
+    private void writeCachedWords(String key, List<OcrWord> words) {
+        File file = getCacheFile(key);
+        try {
+            FileUtils.createDirectories(file.getParentFile());
+            Path tempFile = Files.createTempFile(file.getParentFile().toPath(), "ocr_", ".json");
+            try {
+                objectMapper.writeValue(tempFile.toFile(), words);
+                Files.move(tempFile, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tempFile);
+            }
+        } catch (IOException e) {
+            log.warn("Failed to cache OCR result {}: {}", key, e.getMessage());
+        }
+    }
+
+    private File getCacheFile(String key) {
+        return Paths.get(cachePath, key + ".json").toFile();
+    }
+
+    /**
+     * MD5 digest of the rendered page. The content streams of scanned pages usually only place
+     * an image, so the raster rather than the page content identifies the scan.
+     */
+    private String digestFile(File file) throws IOException {
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                md.update(buffer, 0, read);
+            }
+            StringBuilder sb = new StringBuilder();
+            for (byte b : md.digest()) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("MD5 not available", e);
+        }
+    }
+
+    /**
+     * The crop box and rotation of a page, which place its rendered raster in user space.
+     * Read on the caller's thread, since open documents are confined to the thread that opened them.
+     */
+    public static final class PageBox {
+        private final float x;
+        private final float y;
+        private final float width;
+        private final float height;
+        private final int rotation;
+
+        public PageBox(float x, float y, float width, float height, int rotation) {
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+            this.rotation = Math.floorMod(rotation, 360);
+        }
+
+        /**
+         * Get the box of a PDFBox page.
+         *
+         * @param page The page
+         * @return The page box
+         */
+        public static PageBox of(PDPage page) {
+            PDRectangle cropBox = page.getCropBox();
+            return new PageBox(cropBox.getLowerLeftX(), cropBox.getLowerLeftY(),
+                    cropBox.getWidth(), cropBox.getHeight(), page.getRotation());
+        }
+
+        /**
+         * Get the box of an iText page.
+         *
+         * @param page The page
+         * @return The page box
+         */
+        public static PageBox of(PdfPage page) {
+            com.itextpdf.kernel.geom.Rectangle cropBox = page.getCropBox();
+            return new PageBox(cropBox.getX(), cropBox.getY(), cropBox.getWidth(), cropBox.getHeight(),
+                    page.getRotation());
+        }
+
+        /**
+         * Map a word from raster space to the user space of the page.
+         *
+         * @param word The word, with coordinates relative to the bottom left of the raster
+         * @return The x, y, width and height of the word in user space
+         */
+        float[] toUserSpace(OcrWord word) {
+            // The raster shows the page turned clockwise by its rotation
+            float rasterHeight = rotation % 180 == 0 ? height : width;
+            float left = word.getX();
+            float top = rasterHeight - word.getY() - word.getHeight();
+            float[] a = toUserSpace(left, top);
+            float[] b = toUserSpace(left + word.getWidth(), top + word.getHeight());
+            return new float[]{Math.min(a[0], b[0]), Math.min(a[1], b[1]),
+                    Math.abs(a[0] - b[0]), Math.abs(a[1] - b[1])};
+        }
+
+        /**
+         * Map a raster point, in points from the top left of the raster, to user space.
+         */
+        private float[] toUserSpace(float u, float v) {
+            float p;
+            float q;
+            switch (rotation) {
+                case 90:
+                    p = v;
+                    q = height - u;
+                    break;
+                case 180:
+                    p = width - u;
+                    q = height - v;
+                    break;
+                case 270:
+                    p = width - v;
+                    q = u;
+                    break;
+                default:
+                    p = u;
+                    q = v;
+            }
+            return new float[]{x + p, y + height - q};
+        }
+    }
+
+    /**
+     * A Tesseract engine whose recognition stops as soon as the caller abandons the page.
+     * Tesseract polls the cancel callback of its progress monitor while it recognizes words,
+     * which {@link Tesseract#getWords(BufferedImage, int)} does not expose.
+     */
+    private static final class CancellableTesseract extends Tesseract {
+
+        List<Word> getWords(BufferedImage image, int pageIteratorLevel, BooleanSupplier abandoned)
+                throws IOException {
+            init();
+            setVariables();
+            try {
+                setImage(image, null);
+
+                TessAPI api = getAPI();
+                ITessAPI.TessBaseAPI handle = getHandle();
+                ITessAPI.ETEXT_DESC monitor = new ITessAPI.ETEXT_DESC();
+                // Held in a local so the callback is not collected while the engine runs
+                ITessAPI.CANCEL_FUNC cancel = (cancelThis, words) -> abandoned.getAsBoolean();
+                monitor.cancel = cancel;
+                api.TessBaseAPIRecognize(handle, monitor);
+                if (abandoned.getAsBoolean()) {
+                    throw new CancellationException("OCR abandoned");
+                }
+
+                List<Word> words = new ArrayList<>();
+                ITessAPI.TessResultIterator iterator = api.TessBaseAPIGetIterator(handle);
+                ITessAPI.TessPageIterator pageIterator = api.TessResultIteratorGetPageIterator(iterator);
+                api.TessPageIteratorBegin(pageIterator);
+                do {
+                    Pointer text = api.TessResultIteratorGetUTF8Text(iterator, pageIteratorLevel);
+                    if (text == null) {
+                        continue;
+                    }
+                    String word = text.getString(0);
+                    api.TessDeleteText(text);
+                    float confidence = api.TessResultIteratorConfidence(iterator, pageIteratorLevel);
+                    IntBuffer left = IntBuffer.allocate(1);
+                    IntBuffer top = IntBuffer.allocate(1);
+                    IntBuffer right = IntBuffer.allocate(1);
+                    IntBuffer bottom = IntBuffer.allocate(1);
+                    api.TessPageIteratorBoundingBox(pageIterator, pageIteratorLevel, left, top, right, bottom);
+                    words.add(new Word(word, confidence, new Rectangle(left.get(), top.get(),
+                            right.get() - left.get(), bottom.get() - top.get())));
+                } while (api.TessPageIteratorNext(pageIterator, pageIteratorLevel) == ITessAPI.TRUE);
+                api.TessResultIteratorDelete(iterator);
+                return words;
+            } finally {
+                dispose();
+            }
+        }
+    }
+}
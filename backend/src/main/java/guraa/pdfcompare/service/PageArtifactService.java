@@ -0,0 +1,572 @@
+package guraa.pdfcompare.service;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.itextpdf.kernel.pdf.PdfReader;
+import guraa.pdfcompare.extraction.TextDifferenceExtractor;
+import guraa.pdfcompare.extraction.TextDifferenceExtractor.TextElement;
+import guraa.pdfcompare.model.PageSignature;
+import guraa.pdfcompare.model.PdfDocument;
+import guraa.pdfcompare.util.FileUtils;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSBoolean;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNull;
+import org.apache.pdfbox.cos.COSNumber;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageTree;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.imageio.ImageIO;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Service for per-page artifacts that can be produced ahead of a comparison:
+ * positioned text elements and page signatures.
+ * Text elements are kept in a bounded in-memory cache, and signatures are
+ * persisted per document so they survive restarts. Pages without extractable
+ * text get their text elements from OCR.
+ */
+@Slf4j
+@Service
+public class PageArtifactService {
+
+    private static final int HASH_SIZE = 8;
+    private static final byte[] CYCLE_MARKER = {'c'};
+
+    private final PdfRenderingService pdfRenderingService;
+    private final RasterCache rasterCache;
+    private final MemoryGovernor memoryGovernor;
+    private final ObjectMapper objectMapper;
+    private final OcrService ocrService;
+    private final DocumentLoader documentLoader;
+
+    // Bounded LRU cache of text elements, keyed by fileId_page
+    private final Map<String, List<TextElement>> textElementCache;
+    private final ConcurrentHashMap<String, ReentrantLock> extractionLocks = new ConcurrentHashMap<>();
+
+    // Signatures of documents, keyed by fileId
+    private final ConcurrentHashMap<String, List<PageSignature>> signatureCache = new ConcurrentHashMap<>();
+
+    // Digests of the streams of open documents, so a font or image drawn on many pages is read once.
+    // An open document is confined to one thread, and so is the digest map of its streams
+    private final Map<PDDocument, Map<COSBase, byte[]>> streamDigests =
+            Collections.synchronizedMap(new WeakHashMap<>());
+
+    @Value("${app.preprocessing.signatures-path:uploads/signatures}")
+    private String signaturesPath;
+
+    /**
+     * Constructor.
+     *
+     * @param pdfRenderingService The PDF rendering service
+     * @param rasterCache The raster cache holding matching renders
+     * @param memoryGovernor The memory governor for raster budgets
+     * @param objectMapper The object mapper for signature persistence
+     * @param ocrService The OCR service for scanned pages
+     * @param documentLoader The loader for opening documents
+     * @param textCacheSize The maximum number of pages of text elements to cache
+     */
+    public PageArtifactService(
+            PdfRenderingService pdfRenderingService,
+            RasterCache rasterCache,
+            MemoryGovernor memoryGovernor,
+            ObjectMapper objectMapper,
+            OcrService ocrService,
+            DocumentLoader documentLoader,
+            @Value("${app.preprocessing.text-cache-pages:2000}") int textCacheSize) {
+        this.pdfRenderingService = pdfRenderingService;
+        this.rasterCache = rasterCache;
+        this.memoryGovernor = memoryGovernor;
+        this.objectMapper = objectMapper;
+        this.ocrService = ocrService;
+        this.documentLoader = documentLoader;
+        this.textElementCache = Collections.synchronizedMap(new LinkedHashMap<>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<TextElement>> eldest) {
+                return size() > textCacheSize;
+            }
+        });
+    }
+
+    /**
+     * Get the text elements of a page, extracting them if they are not cached.
+     * Pages without extractable text are recognized by OCR.
+     * The returned list is a copy and may be modified by the caller.
+     *
+     * @param document   The PDF document
+     * @param pageNumber The page number (1-based)
+     * @return The text elements of the page
+     * @throws IOException If the text cannot be extracted
+     */
+    public List<TextElement> getTextElements(PdfDocument document, int pageNumber) throws IOException {
+        String key = cacheKey(document, pageNumber);
+        List<TextElement> cached = textElementCache.get(key);
+        if (cached != null) {
+            return new ArrayList<>(cached);
+        }
+
+        ReentrantLock lock = extractionLocks.computeIfAbsent(key, k -> new ReentrantLock());
+        lock.lock();
+        try {
+            cached = textElementCache.get(key);
+            if (cached == null) {
+                OcrService.PageBox pageBox;
+                try (PdfReader reader = documentLoader.openReader(document.getFilePath());
+                     com.itextpdf.kernel.pdf.PdfDocument pdfDoc = new com.itextpdf.kernel.pdf.PdfDocument(reader)) {
+                    cached = TextDifferenceExtractor.extractTextElements(pdfDoc, pageNumber);
+                    pageBox = OcrService.PageBox.of(pdfDoc.getPage(pageNumber));
+                }
+                if (needsOcr(cached)) {
+                    cached = ocrService.recognize(document, pageNumber, pageBox);
+                }
+                textElementCache.put(key, cached);
+            }
+            return new ArrayList<>(cached);
+        } finally {
+            lock.unlock();
+            extractionLocks.remove(key, lock);
+        }
+    }
+
+    /**
+     * Extract and cache the text elements of a page using an already open document.
+     * Also writes the plain page text to the document's extracted text path.
+     * Pages without extractable text are left to {@link #recognizeText} when OCR is enabled,
+     * and nothing is cached or written for them here.
+     *
+     * @param document   The PDF document
+     * @param pdfDoc     The open iText document
+     * @param pageNumber The page number (1-based)
+     * @return The text elements of the page
+     * @throws IOException If the text cannot be extracted
+     */
+    public List<TextElement> extractTextElements(PdfDocument document,
+                                                 com.itextpdf.kernel.pdf.PdfDocument pdfDoc,
+                                                 int pageNumber) throws IOException {
+        String key = cacheKey(document, pageNumber);
+        List<TextElement> elements = textElementCache.get(key);
+        if (elements == null) {
+            elements = TextDifferenceExtractor.extractTextElements(pdfDoc, pageNumber);
+            if (needsOcr(elements)) {
+                return elements;
+            }
+            textElementCache.put(key, elements);
+        }
+
+        writeExtractedText(document, pageNumber, elements);
+        return elements;
+    }
+
+    /**
+     * Check whether extracted text elements should be replaced by OCR.
+     *
+     * @param elements The extracted text elements of a page
+     * @return true if the page has no extractable text and OCR is enabled
+     */
+    public boolean needsOcr(List<TextElement> elements) {
+        return elements.isEmpty() && ocrService.isEnabled();
+    }
+
+    /**
+     * Recognize the text of a page by OCR on the OCR pool, then cache the text elements and
+     * write the plain page text like {@link #extractTextElements} does.
+     * The page raster is rendered first with the caller's open document, so the OCR worker
+     * never opens the document itself; for a large document that would need a second
+     * large-document slot while the caller holds one.
+     *
+     * @param document   The PDF document
+     * @param pdDocument The open PDFBox document
+     * @param pageNumber The page number (1-based)
+     * @return Future of the text elements of the page, empty if OCR failed or timed out
+     * @throws IOException If the page cannot be rendered
+     */
+    public CompletableFuture<List<TextElement>> recognizeText(PdfDocument document, PDDocument pdDocument,
+                                                              int pageNumber) throws IOException {
+        pdfRenderingService.renderPage(document, pdDocument, pageNumber);
+        OcrService.PageBox pageBox = OcrService.PageBox.of(pdDocument.getPage(pageNumber - 1));
+        return ocrService.recognizeAsync(document, pageNumber, pageBox).thenApply(elements -> {
+            textElementCache.put(cacheKey(document, pageNumber), elements);
+            writeExtractedText(document, pageNumber, elements);
+            return elements;
+        });
+    }
+
+    /**
+     * Compute the signature of a page.
+     *
+     * @param document   The PDF document
+     * @param pdDocument The open PDFBox document
+     * @param pageNumber The page number (1-based)
+     * @param elements   The text elements of the page
+     * @return The page signature
+     */
+    public PageSignature computeSignature(PdfDocument document, PDDocument pdDocument,
+                                          int pageNumber, List<TextElement> elements) {
+        PDPage page = pdDocument.getPage(pageNumber - 1);
+        PDRectangle box = page.getCropBox();
+        String text = normalizeText(elements);
+
+        return PageSignature.builder()
+                .pageNumber(pageNumber)
+                .width(box.getWidth())
+                .height(box.getHeight())
+                .contentDigest(digestContents(pdDocument, page))
+                .textHash(hash64(text))
+                .textLength(text.length())
+                .textElementCount(elements.size())
+                .visualHash(computeVisualHash(document, pdDocument, pageNumber))
+                .build();
+    }
+
+    /**
+     * Get the persisted signatures of a document.
+     *
+     * @param document The PDF document
+     * @return The page signatures ordered by page, or an empty list if they have not been computed
+     */
+    public List<PageSignature> getSignatures(PdfDocument document) {
+        List<PageSignature> cached = signatureCache.get(document.getFileId());
+        if (cached != null) {
+            return cached;
+        }
+
+        File file = getSignatureFile(document.getFileId());
+        if (!file.exists()) {
+            return Collections.emptyList();
+        }
+
+        try {
+            List<PageSignature> signatures = objectMapper.readValue(file, new TypeReference<List<PageSignature>>() {});
+            signatureCache.put(document.getFileId(), signatures);
+            return signatures;
+        } catch (IOException e) {
+            log.warn("Failed to read signatures of document {}: {}", document.getFileId(), e.getMessage());
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Check whether the signatures of a document are complete.
+     *
+     * @param document The PDF document
+     * @return true if every page has a signature
+     */
+    public boolean hasSignatures(PdfDocument document) {
+        return getSignatures(document).size() == document.getPageCount();
+    }
+
+    /**
+     * Persist the signatures of a document.
+     *
+     * @param document   The PDF document
+     * @param signatures The page signatures ordered by page
+     * @throws IOException If the signatures cannot be written
+     */
+    public void storeSignatures(PdfDocument document, List<PageSignature> signatures) throws IOException {
+        File file = getSignatureFile(document.getFileId());
+        FileUtils.createDirectories(file.getParentFile());
+
+        Path tempFile = Files.createTempFile(file.getParentFile().toPath(), "sig_", ".json");
+        try {
+            objectMapper.writeValue(tempFile.toFile(), signatures);
+            Files.move(tempFile, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+
+        signatureCache.put(document.getFileId(), Collections.unmodifiableList(new ArrayList<>(signatures)));
+    }
+
+    /**
+     * Drop cached artifacts of a document.
+     *
+     * @param document The PDF document
+     */
+    public void evict(PdfDocument document) {
+        String prefix = document.getFileId() + "_";
+        synchronized (textElementCache) {
+            textElementCache.keySet().removeIf(key -> key.startsWith(prefix));
+        }
+        signatureCache.remove(document.getFileId());
+    }
+
+    // Private helper methods
+
+    private String cacheKey(PdfDocument document, int pageNumber) {
+        return document.getFileId() + "_" + pageNumber;
+    }
+
+    private File getSignatureFile(String fileId) {
+        return Paths.get(signaturesPath, fileId + ".json").toFile();
+    }
+
+    private void writeExtractedText(PdfDocument document, int pageNumber, List<TextElement> elements) {
+        File textFile = new File(document.getExtractedTextPath(pageNumber));
+        if (textFile.exists()) {
+            return;
+        }
+
+        try {
+            FileUtils.createDirectories(textFile.getParentFile());
+            StringBuilder sb = new StringBuilder();
+            for (TextElement element : elements) {
+                sb.append(element.getText());
+            }
+            Files.write(textFile.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            log.warn("Failed to write extracted text for page {} of document {}: {}",
+                    pageNumber, document.getFileId(), e.getMessage());
+        }
+    }
+
+    /**
+     * Join element text and collapse whitespace so layout-only changes hash the same.
+     */
+    private String normalizeText(List<TextElement> elements) {
+        StringBuilder sb = new StringBuilder();
+        for (TextElement element : elements) {
+            sb.append(element.getText()).append(' ');
+        }
+        return sb.toString().replaceAll("\\s+", " ").trim();
+    }
+
+    /**
+     * 64-bit FNV-1a hash of a string.
+     */
+    private long hash64(String text) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < text.length(); i++) {
+            hash ^= text.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * MD5 over everything that decides what the page draws: its content streams, the resources
+     * they draw by name (fonts, images, forms, patterns and graphics states, with their stream
+     * data), its annotations, rotation and boxes. Identical operators that reference a swapped
+     * image or font under the same name therefore digest differently.
+     * Streams are digested once per open document and fed in by their digest.
+     */
+    private String digestContents(PDDocument pdDocument, PDPage page) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            try (InputStream contents = page.getContents()) {
+                if (contents != null) {
+                    updateDigest(md, contents);
+                }
+            }
+
+            COSDictionary pageDictionary = page.getCOSObject();
+            Map<COSBase, byte[]> digests = streamDigests.computeIfAbsent(pdDocument, k -> new IdentityHashMap<>());
+            Map<COSBase, Integer> visited = new IdentityHashMap<>();
+            for (COSName key : new COSName[]{COSName.RESOURCES, COSName.ANNOTS, COSName.ROTATE,
+                    COSName.MEDIA_BOX, COSName.CROP_BOX}) {
+                md.update(key.getName().getBytes(StandardCharsets.UTF_8));
+                // Resources, rotation and boxes may be inherited from the page tree
+                digestObject(md, PDPageTree.getInheritableAttribute(pageDictionary, key), visited, digests);
+            }
+
+            StringBuilder sb = new StringBuilder();
+            for (byte b : md.digest()) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (IOException | NoSuchAlgorithmException e) {
+            log.debug("Failed to digest page contents: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Feed a canonical form of a PDF object into a digest: dictionaries with sorted keys and
+     * streams with their raw (still encoded) data. An object reached again, e.g. a font shared
+     * by two forms, is fed as a back reference so cycles end. Links back up the page tree and
+     * from annotations to their page are skipped. A stream is fed as its own digest, which is
+     * computed the first time the stream is reached and then taken from the document's digests.
+     */
+    private void digestObject(MessageDigest md, COSBase object, Map<COSBase, Integer> visited,
+                              Map<COSBase, byte[]> digests) throws IOException {
+        if (object instanceof COSObject) {
+            object = ((COSObject) object).getObject();
+        }
+        if (object == null || object instanceof COSNull) {
+            md.update((byte) 'n');
+            return;
+        }
+
+        Integer seen = visited.get(object);
+        if (seen != null) {
+            md.update((byte) 'r');
+            md.update(Integer.toString(seen).getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+
+        if (object instanceof COSStream) {
+            visited.put(object, visited.size());
+            md.update((byte) 's');
+            md.update(digestStream((COSStream) object, digests));
+        } else if (object instanceof COSDictionary) {
+            visited.put(object, visited.size());
+            md.update((byte) 'd');
+            digestEntries(md, (COSDictionary) object, visited, digests);
+            md.update((byte) 'e');
+        } else if (object instanceof COSArray) {
+            visited.put(object, visited.size());
+            COSArray array = (COSArray) object;
+            md.update((byte) 'a');
+            for (int i = 0; i < array.size(); i++) {
+                digestObject(md, array.get(i), visited, digests);
+            }
+            md.update((byte) 'e');
+        } else if (object instanceof COSString) {
+            md.update((byte) 't');
+            md.update(((COSString) object).getBytes());
+        } else if (object instanceof COSName) {
+            md.update((byte) '/');
+            md.update(((COSName) object).getName().getBytes(StandardCharsets.UTF_8));
+        } else if (object instanceof COSInteger) {
+            md.update((byte) 'i');
+            md.update(Long.toString(((COSInteger) object).longValue()).getBytes(StandardCharsets.UTF_8));
+        } else if (object instanceof COSNumber) {
+            md.update((byte) 'f');
+            md.update(Float.toString(((COSNumber) object).floatValue()).getBytes(StandardCharsets.UTF_8));
+        } else if (object instanceof COSBoolean) {
+            md.update((byte) (((COSBoolean) object).getValue() ? 'T' : 'F'));
+        }
+    }
+
+    /**
+     * Digest a stream with its dictionary and raw (still encoded) data, or take the digest
+     * computed when the stream was first reached on an earlier page. A stream reached again
+     * while its own digest is being computed, through forms that draw each other, is fed as
+     * a cycle marker.
+     */
+    private byte[] digestStream(COSStream stream, Map<COSBase, byte[]> digests) throws IOException {
+        byte[] cached = digests.get(stream);
+        if (cached != null) {
+            return cached;
+        }
+
+        digests.put(stream, CYCLE_MARKER);
+        MessageDigest md = newDigest();
+        Map<COSBase, Integer> visited = new IdentityHashMap<>();
+        visited.put(stream, 0);
+        digestEntries(md, stream, visited, digests);
+        try (InputStream data = stream.createRawInputStream()) {
+            updateDigest(md, data);
+        }
+        byte[] digest = md.digest();
+        digests.put(stream, digest);
+        return digest;
+    }
+
+    private void digestEntries(MessageDigest md, COSDictionary dictionary, Map<COSBase, Integer> visited,
+                               Map<COSBase, byte[]> digests) throws IOException {
+        List<COSName> keys = new ArrayList<>(dictionary.keySet());
+        keys.sort(Comparator.comparing(COSName::getName));
+        for (COSName key : keys) {
+            if (key == COSName.PARENT || key == COSName.P) {
+                continue;
+            }
+            md.update(key.getName().getBytes(StandardCharsets.UTF_8));
+            digestObject(md, dictionary.getItem(key), visited, digests);
+        }
+    }
+
+    private MessageDigest newDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("MD5 digest not available", e);
+        }
+    }
+
+    private void updateDigest(MessageDigest md, InputStream in) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            md.update(buffer, 0, read);
+        }
+    }
+
+    /**
+     * Average hash of the rendered page: 8x8 grayscale, one bit per cell above the mean.
+     * It is computed from the low-resolution grayscale matching render, which matching needs
+     * anyway, so no display-resolution render is made or decoded for it.
+     */
+    private long computeVisualHash(PdfDocument document, PDDocument pdDocument, int pageNumber) {
+        try {
+            // A fresh render goes into the raster cache, so the page is only decoded if it was rendered before
+            File pageFile = pdfRenderingService.renderMatchingPage(document, pdDocument, pageNumber);
+            BufferedImage small = new BufferedImage(HASH_SIZE, HASH_SIZE, BufferedImage.TYPE_BYTE_GRAY);
+
+            try (RasterCache.Pin page = rasterCache.acquire(
+                    pdfRenderingService.getMatchingRasterKey(document, pageNumber), () -> readImage(pageFile))) {
+                Graphics2D g = small.createGraphics();
+                g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                g.drawImage(page.getImage(), 0, 0, HASH_SIZE, HASH_SIZE, null);
+                g.dispose();
+            }
+
+            int[] pixels = new int[HASH_SIZE * HASH_SIZE];
+            small.getRaster().getPixels(0, 0, HASH_SIZE, HASH_SIZE, pixels);
+
+            long sum = 0;
+            for (int pixel : pixels) {
+                sum += pixel;
+            }
+            long mean = sum / pixels.length;
+
+            long hash = 0;
+            for (int i = 0; i < pixels.length; i++) {
+                if (pixels[i] > mean) {
+                    hash |= 1L << i;
+                }
+            }
+            return hash;
+        } catch (IOException e) {
+            log.debug("Failed to compute visual hash for page {} of document {}: {}",
+                    pageNumber, document.getFileId(), e.getMessage());
+            return 0;
+        }
+    }
+
+    private BufferedImage readImage(File file) throws IOException {
+        try (MemoryGovernor.Reservation ignored = memoryGovernor.reserveForImageFiles(file)) {
+            BufferedImage image = ImageIO.read(file);
+            if (image == null) {
+                throw new IOException("Unreadable image: " + file.getPath());
+            }
+            return image;
+        }
+    }
+}
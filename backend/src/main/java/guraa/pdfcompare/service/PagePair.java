@@ -62,6 +62,13 @@ public class PagePair {
     @Builder.Default
     private List<PageDifference> differences = new ArrayList<>();
 
+    /**
+     * The regions in which the matched pages look different, from the tile hashes of their
+     * matching renders. Empty for unmatched or identical pages.
+     */
+    @Builder.Default
+    private List<ChangedRegion> changedRegions = new ArrayList<>();
+
     /**
      * Add a difference to this page pair.
      *
@@ -133,6 +140,25 @@ public class PagePair {
         return getDifferenceCountBySeverity(severity) > 0;
     }
 
+    /**
+     * A bounding box of a changed region on the base page.
+     * Coordinates are fractions (0.0 to 1.0) of the page width and height from the top-left
+     * corner, so they apply at any render resolution.
+     */
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class ChangedRegion {
+
+        private double x;
+
+        private double y;
+
+        private double width;
+
+        private double height;
+    }
+
     /**
      * Get the key for this page pair.
      *
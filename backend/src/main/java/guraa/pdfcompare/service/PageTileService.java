@@ -0,0 +1,463 @@
+package guraa.pdfcompare.service;
+
+import guraa.pdfcompare.model.PdfDocument;
+import guraa.pdfcompare.util.FileUtils;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.rendering.PDFRenderer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * Service for rendering page tiles for deep-zoom viewing.
+ * Only the requested region of a page is rasterized, by clipping the
+ * PDFRenderer output to the tile bounds, and rendered tiles are kept in
+ * an on-disk cache with least-recently-used eviction.
+ * A document stays open while its tiles are being requested, so a viewer
+ * panning over a page does not parse the document again for every tile.
+ * Large documents are the exception: they are closed after every tile, so
+ * an idle viewer does not hold one of the few large-document slots.
+ */
+@Slf4j
+@Service
+public class PageTileService {
+
+    private static final String TILE_FORMAT = "png";
+
+    private final DocumentLoader documentLoader;
+
+    // Page dimensions in points (after rotation), keyed by fileId_page
+    private final ConcurrentHashMap<String, float[]> pageSizeCache = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ReentrantLock> tileLocks = new ConcurrentHashMap<>();
+
+    // Documents whose tiles are being requested, keyed by fileId
+    private final ConcurrentHashMap<String, OpenDocument> openDocuments = new ConcurrentHashMap<>();
+
+    // Access-ordered index of cached tile files and their sizes
+    private final LinkedHashMap<String, Long> tileIndex = new LinkedHashMap<>(256, 0.75f, true);
+    private long cachedBytes = 0;
+
+    @Value("${app.rendering.tile-size:256}")
+    private int tileSize;
+
+    @Value("${app.rendering.tile-base-dpi:72}")
+    private float baseDpi;
+
+    @Value("${app.rendering.tile-max-zoom:5}")
+    private int maxZoom;
+
+    @Value("${app.rendering.tile-cache-max-mb:512}")
+    private long maxCacheMb;
+
+    @Value("${app.rendering.tile-cache-path:uploads/tiles}")
+    private String tileCachePath;
+
+    @Value("${app.rendering.tile-document-idle-seconds:10}")
+    private long documentIdleSeconds;
+
+    /**
+     * Constructor.
+     *
+     * @param documentLoader The loader for opening documents
+     */
+    public PageTileService(DocumentLoader documentLoader) {
+        this.documentLoader = documentLoader;
+    }
+
+    /**
+     * Seed the LRU index with tiles left on disk by a previous run.
+     */
+    @PostConstruct
+    public void init() {
+        Path root = Paths.get(tileCachePath);
+        if (!Files.isDirectory(root)) {
+            return;
+        }
+
+        try (Stream<Path> files = Files.walk(root)) {
+            files.filter(Files::isRegularFile)
+                    .map(Path::toFile)
+                    .sorted(Comparator.comparingLong(File::lastModified))
+                    .forEach(file -> recordTile(file.getPath(), file.length()));
+            log.info("Tile cache initialized with {} tiles ({} bytes)", tileIndex.size(), cachedBytes);
+        } catch (IOException e) {
+            log.warn("Failed to scan tile cache directory {}: {}", root, e.getMessage());
+        }
+    }
+
+    /**
+     * Get a tile of a page, rendering it if it is not cached.
+     *
+     * @param document   The PDF document
+     * @param pageNumber The page number (1-based)
+     * @param zoom       The zoom level (0 renders the page at the base DPI, each level doubles it)
+     * @param column     The tile column
+     * @param row        The tile row
+     * @return FileSystemResource containing the tile
+     * @throws IOException If rendering fails
+     */
+    public FileSystemResource getTile(PdfDocument document, int pageNumber, int zoom, int column, int row)
+            throws IOException {
+        validateZoom(zoom);
+
+        File tileFile = tileFile(document, pageNumber, zoom, column, row);
+        if (tileFile.exists() && touchTile(tileFile.getPath())) {
+            return new FileSystemResource(tileFile);
+        }
+
+        ReentrantLock lock = tileLocks.computeIfAbsent(tileFile.getPath(), k -> new ReentrantLock());
+        lock.lock();
+        try {
+            // Double-check after acquiring the lock
+            if (tileFile.exists()) {
+                if (!touchTile(tileFile.getPath())) {
+                    recordTile(tileFile.getPath(), tileFile.length());
+                }
+                return new FileSystemResource(tileFile);
+            }
+
+            renderTile(document, pageNumber, zoom, column, row, tileFile);
+            recordTile(tileFile.getPath(), tileFile.length());
+            evictIfNeeded();
+
+            return new FileSystemResource(tileFile);
+        } finally {
+            lock.unlock();
+            tileLocks.remove(tileFile.getPath(), lock);
+        }
+    }
+
+    /**
+     * Get the DPI a zoom level is rendered at.
+     *
+     * @param zoom The zoom level
+     * @return The DPI
+     */
+    public float getTileDpi(int zoom) {
+        return baseDpi * (1 << zoom);
+    }
+
+    /**
+     * Describe the tile grid of a page at every zoom level.
+     *
+     * @param document   The PDF document
+     * @param pageNumber The page number (1-based)
+     * @return Map describing the tile size, zoom range and grid per zoom level
+     * @throws IOException If the page cannot be read
+     */
+    public Map<String, Object> getTileLayout(PdfDocument document, int pageNumber) throws IOException {
+        float[] pageSize = getPageSize(document, pageNumber);
+
+        Map<String, Object> levels = new LinkedHashMap<>();
+        for (int zoom = 0; zoom <= maxZoom; zoom++) {
+            int width = scaledSize(pageSize[0], zoom);
+            int height = scaledSize(pageSize[1], zoom);
+
+            Map<String, Object> level = new LinkedHashMap<>();
+            level.put("width", width);
+            level.put("height", height);
+            level.put("columns", (width + tileSize - 1) / tileSize);
+            level.put("rows", (height + tileSize - 1) / tileSize);
+            level.put("dpi", getTileDpi(zoom));
+            levels.put(String.valueOf(zoom), level);
+        }
+
+        Map<String, Object> layout = new LinkedHashMap<>();
+        layout.put("tileSize", tileSize);
+        layout.put("minZoom", 0);
+        layout.put("maxZoom", maxZoom);
+        layout.put("pageWidthPoints", pageSize[0]);
+        layout.put("pageHeightPoints", pageSize[1]);
+        layout.put("levels", levels);
+        return layout;
+    }
+
+    /**
+     * Remove all cached tiles of a document.
+     *
+     * @param document The PDF document
+     */
+    public void clearTiles(PdfDocument document) {
+        String prefix = Paths.get(tileCachePath, document.getFileId()).toString();
+        synchronized (tileIndex) {
+            Iterator<Map.Entry<String, Long>> iterator = tileIndex.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Long> entry = iterator.next();
+                if (entry.getKey().startsWith(prefix)) {
+                    cachedBytes -= entry.getValue();
+                    iterator.remove();
+                    new File(entry.getKey()).delete();
+                }
+            }
+        }
+        pageSizeCache.keySet().removeIf(key -> key.startsWith(document.getFileId() + "_"));
+
+        OpenDocument open = openDocuments.get(document.getFileId());
+        if (open != null) {
+            closeDocument(document.getFileId(), open);
+        }
+    }
+
+    /**
+     * Close the documents whose tiles have not been requested for the idle time.
+     */
+    @Scheduled(fixedDelay = 5000)
+    public void closeIdleDocuments() {
+        long idleNanos = TimeUnit.SECONDS.toNanos(documentIdleSeconds);
+        for (Map.Entry<String, OpenDocument> entry : openDocuments.entrySet()) {
+            OpenDocument open = entry.getValue();
+            // A document that is rendering is in use, and so not idle
+            if (System.nanoTime() - open.lastUsed >= idleNanos && open.lock.tryLock()) {
+                try {
+                    closeDocument(entry.getKey(), open);
+                } finally {
+                    open.lock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Close all open documents.
+     */
+    @PreDestroy
+    public void shutdown() {
+        openDocuments.forEach(this::closeDocument);
+    }
+
+    // Private helper methods
+
+    private void renderTile(PdfDocument document, int pageNumber, int zoom, int column, int row, File tileFile)
+            throws IOException {
+        FileUtils.createDirectories(tileFile.getParentFile());
+
+        Path tempFile = null;
+        try {
+            float[] pageSize = getPageSize(document, pageNumber);
+            int pageWidth = scaledSize(pageSize[0], zoom);
+            int pageHeight = scaledSize(pageSize[1], zoom);
+
+            int left = column * tileSize;
+            int top = row * tileSize;
+            if (column < 0 || row < 0 || left >= pageWidth || top >= pageHeight) {
+                throw new IllegalArgumentException("Tile " + column + "/" + row +
+                        " is outside page " + pageNumber + " at zoom " + zoom);
+            }
+
+            // Edge tiles are cropped to the page bounds
+            int width = Math.min(tileSize, pageWidth - left);
+            int height = Math.min(tileSize, pageHeight - top);
+
+            BufferedImage tile = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            withDocument(document, open -> {
+                Graphics2D graphics = tile.createGraphics();
+                try {
+                    graphics.setBackground(Color.WHITE);
+                    graphics.clearRect(0, 0, width, height);
+                    graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+
+                    // Shift the page so the tile origin lands at (0, 0) and clip to the tile,
+                    // so the renderer only rasterizes what falls inside this region
+                    graphics.translate(-left, -top);
+                    graphics.clipRect(left, top, width, height);
+
+                    float scale = scaleForZoom(zoom);
+                    open.renderer.renderPageToGraphics(pageNumber - 1, graphics, scale, scale);
+                } finally {
+                    graphics.dispose();
+                }
+                return null;
+            });
+
+            tempFile = Files.createTempFile(tileFile.getParentFile().toPath(), "tile_", "." + TILE_FORMAT);
+            ImageIO.write(tile, TILE_FORMAT, tempFile.toFile());
+            Files.move(tempFile, tileFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IllegalArgumentException e) {
+            throw e;
+        } catch (Exception e) {
+            log.error("Failed to render tile {}/{}/{} of page {} in document {}: {}",
+                    zoom, column, row, pageNumber, document.getFileId(), e.getMessage(), e);
+            if (tempFile != null) {
+                Files.deleteIfExists(tempFile);
+            }
+            throw new IOException("Tile rendering failed", e);
+        }
+    }
+
+    private void validateZoom(int zoom) {
+        if (zoom < 0 || zoom > maxZoom) {
+            throw new IllegalArgumentException("Invalid zoom level: " + zoom + ". Supported range is 0-" + maxZoom);
+        }
+    }
+
+    private float scaleForZoom(int zoom) {
+        return baseDpi / 72f * (1 << zoom);
+    }
+
+    private int scaledSize(float points, int zoom) {
+        return Math.max(1, (int) Math.ceil(points * scaleForZoom(zoom)));
+    }
+
+    private File tileFile(PdfDocument document, int pageNumber, int zoom, int column, int row) {
+        return Paths.get(tileCachePath, document.getFileId(), "page_" + pageNumber, String.valueOf(zoom),
+                column + "_" + row + "." + TILE_FORMAT).toFile();
+    }
+
+    private float[] getPageSize(PdfDocument document, int pageNumber) throws IOException {
+        float[] cached = pageSizeCache.get(document.getFileId() + "_" + pageNumber);
+        if (cached != null) {
+            return cached;
+        }
+
+        return withDocument(document, open -> {
+            if (pageNumber < 1 || pageNumber > open.document.getNumberOfPages()) {
+                throw new IllegalArgumentException("Invalid page number: " + pageNumber);
+            }
+            return getPageSize(document, pageNumber, open.document.getPage(pageNumber - 1));
+        });
+    }
+
+    /**
+     * Run a task on the open document, opening it if no tile of it was requested recently.
+     * Tasks on the same document run one at a time, as PDFBox documents are not thread-safe.
+     * A large document is closed again after the task, which gives its slot back.
+     */
+    private <T> T withDocument(PdfDocument document, DocumentTask<T> task) throws IOException {
+        while (true) {
+            OpenDocument open = openDocuments.computeIfAbsent(document.getFileId(), k -> new OpenDocument());
+            open.lock.lock();
+            try {
+                if (open.closed) {
+                    // Closed as idle between the lookup and the lock
+                    continue;
+                }
+                if (open.document == null) {
+                    try {
+                        open.document = documentLoader.loadPdfBox(document.getFilePath());
+                    } catch (IOException e) {
+                        open.closed = true;
+                        openDocuments.remove(document.getFileId(), open);
+                        throw e;
+                    }
+                    open.renderer = new PDFRenderer(open.document);
+                    open.large = documentLoader.isLarge(new File(document.getFilePath()));
+                }
+                try {
+                    return task.run(open);
+                } finally {
+                    open.lastUsed = System.nanoTime();
+                    if (open.large) {
+                        closeDocument(document.getFileId(), open);
+                    }
+                }
+            } finally {
+                open.lock.unlock();
+            }
+        }
+    }
+
+    private void closeDocument(String fileId, OpenDocument open) {
+        open.lock.lock();
+        try {
+            if (open.closed) {
+                return;
+            }
+            open.closed = true;
+            openDocuments.remove(fileId, open);
+            if (open.document != null) {
+                open.document.close();
+            }
+        } catch (IOException e) {
+            log.warn("Failed to close document {} after rendering tiles: {}", fileId, e.getMessage());
+        } finally {
+            open.lock.unlock();
+        }
+    }
+
+    private float[] getPageSize(PdfDocument document, int pageNumber, PDPage page) {
+        return pageSizeCache.computeIfAbsent(document.getFileId() + "_" + pageNumber, key -> {
+            PDRectangle cropBox = page.getCropBox();
+            int rotation = page.getRotation();
+            boolean swap = rotation == 90 || rotation == 270;
+            return swap
+                    ? new float[]{cropBox.getHeight(), cropBox.getWidth()}
+                    : new float[]{cropBox.getWidth(), cropBox.getHeight()};
+        });
+    }
+
+    /**
+     * Mark a tile as recently used.
+     *
+     * @param path The tile path
+     * @return true if the tile was known to the index
+     */
+    private boolean touchTile(String path) {
+        synchronized (tileIndex) {
+            return tileIndex.get(path) != null;
+        }
+    }
+
+    private void recordTile(String path, long size) {
+        synchronized (tileIndex) {
+            Long previous = tileIndex.put(path, size);
+            cachedBytes += size - (previous != null ? previous : 0);
+        }
+    }
+
+    private void evictIfNeeded() {
+        long maxBytes = maxCacheMb * 1024 * 1024;
+        synchronized (tileIndex) {
+            Iterator<Map.Entry<String, Long>> iterator = tileIndex.entrySet().iterator();
+            while (cachedBytes > maxBytes && iterator.hasNext()) {
+                Map.Entry<String, Long> eldest = iterator.next();
+                iterator.remove();
+                cachedBytes -= eldest.getValue();
+
+                if (!new File(eldest.getKey()).delete()) {
+                    log.debug("Evicted tile was already gone: {}", eldest.getKey());
+                }
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface DocumentTask<T> {
+        T run(OpenDocument open) throws IOException;
+    }
+
+    /**
+     * A document kept open for tile rendering, guarded by its lock.
+     */
+    private static final class OpenDocument {
+        private final ReentrantLock lock = new ReentrantLock();
+        private PDDocument document;
+        private PDFRenderer renderer;
+        private boolean large;
+        private boolean closed;
+        private volatile long lastUsed = System.nanoTime();
+    }
+}
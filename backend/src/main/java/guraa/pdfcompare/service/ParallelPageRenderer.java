@@ -0,0 +1,266 @@
+package guraa.pdfcompare.service;
+
+import guraa.pdfcompare.model.PdfDocument;
+import guraa.pdfcompare.util.CancellationContext;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Renders many pages of a document in parallel.
+ * PDFBox documents are not thread-safe, so each worker opens the document once for itself and
+ * renders its shard of the pages with it. Pages are dealt to the workers in turn, so the first
+ * pages of a range finish first whatever its length. Every page has its own completion future,
+ * so work on the first pages can start while later pages are still rendering.
+ */
+@Slf4j
+@Service
+public class ParallelPageRenderer {
+
+    /**
+     * The kind of render to produce.
+     */
+    public enum Target {
+        /**
+         * Full renders for display, see {@link PdfRenderingService#renderPage}.
+         */
+        DISPLAY,
+
+        /**
+         * Low resolution grayscale renders for page matching, see {@link PdfRenderingService#renderMatchingPage}.
+         */
+        MATCHING,
+
+        /**
+         * Thumbnails, see {@link PdfRenderingService#renderThumbnail}.
+         */
+        THUMBNAIL
+    }
+
+    private final PdfRenderingService pdfRenderingService;
+    private final DocumentLoader documentLoader;
+    private final ExecutorService renderExecutor;
+
+    @Value("${app.rendering.workers:0}")
+    private int maxWorkers = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param pdfRenderingService The rendering service that renders and caches single pages
+     * @param documentLoader The loader the workers open the document with
+     * @param renderExecutor The rendering pool
+     */
+    public ParallelPageRenderer(
+            PdfRenderingService pdfRenderingService,
+            DocumentLoader documentLoader,
+            @Qualifier("renderExecutor") ExecutorService renderExecutor) {
+        this.pdfRenderingService = pdfRenderingService;
+        this.documentLoader = documentLoader;
+        this.renderExecutor = renderExecutor;
+    }
+
+    /**
+     * Start rendering pages of a document. The pages are awaited through their futures.
+     *
+     * @param document     The PDF document
+     * @param pageNumbers  The page numbers (1-based) to render
+     * @param target       The kind of render
+     * @param cancellation The cancellation context; cancelling it stops the job
+     * @return The running job
+     */
+    public RenderJob render(PdfDocument document, Collection<Integer> pageNumbers, Target target,
+                            CancellationContext cancellation) {
+        int[] pages = new TreeSet<>(pageNumbers).stream().mapToInt(Integer::intValue).toArray();
+        int threads = maxWorkers > 0 ? maxWorkers : Runtime.getRuntime().availableProcessors();
+        if (documentLoader.isLarge(new File(document.getFilePath()))) {
+            // Every worker holds its own copy of the document, and only so many large ones may be open
+            threads = Math.min(threads, documentLoader.getMaxOpenLarge());
+        }
+        int workers = Math.max(1, Math.min(pages.length, threads));
+        RenderJob job = new RenderJob(document, target, pages, cancellation.child());
+
+        log.debug("Rendering {} pages of document {} for {} with {} workers",
+                pages.length, document.getFileId(), target, workers);
+
+        for (int worker = 0; worker < workers; worker++) {
+            int shard = worker;
+            try {
+                renderExecutor.execute(() -> renderShard(job, shard, workers));
+            } catch (RejectedExecutionException e) {
+                // The pool only rejects work when shutting down
+                job.cancel();
+                job.failShard(shard, workers, e);
+            }
+        }
+        return job;
+    }
+
+    // Private helper methods
+
+    /**
+     * Render every workers-th page of a job, starting at the shard index.
+     * The document is only opened once a page actually has to be rendered.
+     */
+    private void renderShard(RenderJob job, int shard, int workers) {
+        PDDocument pdDocument = null;
+        try {
+            for (int i = shard; i < job.pages.length; i += workers) {
+                int pageNumber = job.pages[i];
+                if (job.cancellation.isCancelled()) {
+                    job.finish(pageNumber, null, new CancellationException(job.cancellation.getReason()));
+                    continue;
+                }
+
+                if (pdDocument == null && !isRendered(job, pageNumber)) {
+                    try {
+                        pdDocument = documentLoader.loadPdfBox(job.document.getFilePath());
+                    } catch (IOException | RuntimeException e) {
+                        // Opening again for every later page would wait out the slot timeout each time
+                        log.warn("Failed to open document {} for rendering: {}",
+                                job.document.getFileId(), e.getMessage());
+                        job.failShard(i, workers, e);
+                        return;
+                    }
+                }
+
+                try {
+                    job.finish(pageNumber, renderPage(job, pdDocument, pageNumber), null);
+                } catch (IOException | RuntimeException e) {
+                    log.warn("Failed to render page {} of document {}: {}",
+                            pageNumber, job.document.getFileId(), e.getMessage());
+                    job.finish(pageNumber, null, e);
+                }
+            }
+        } finally {
+            if (pdDocument != null) {
+                try {
+                    pdDocument.close();
+                } catch (IOException e) {
+                    log.warn("Failed to close document {}: {}", job.document.getFileId(), e.getMessage());
+                }
+            }
+        }
+    }
+
+    private boolean isRendered(RenderJob job, int pageNumber) {
+        switch (job.target) {
+            case MATCHING:
+                return pdfRenderingService.isMatchingPageRendered(job.document, pageNumber);
+            case THUMBNAIL:
+                return pdfRenderingService.isThumbnailRendered(job.document, pageNumber);
+            default:
+                return pdfRenderingService.isPageRendered(job.document, pageNumber);
+        }
+    }
+
+    private File renderPage(RenderJob job, PDDocument pdDocument, int pageNumber) throws IOException {
+        switch (job.target) {
+            case MATCHING:
+                return pdfRenderingService.renderMatchingPage(job.document, pdDocument, pageNumber, job.cancellation);
+            case THUMBNAIL:
+                return pdfRenderingService.renderThumbnail(job.document, pdDocument, pageNumber, job.cancellation);
+            default:
+                return pdfRenderingService.renderPage(job.document, pdDocument, pageNumber, job.cancellation);
+        }
+    }
+
+    /**
+     * The pages of one document being rendered in parallel.
+     */
+    public static final class RenderJob {
+
+        private final PdfDocument document;
+        private final Target target;
+        private final int[] pages;
+        private final CancellationContext cancellation;
+        private final Map<Integer, CompletableFuture<File>> futures;
+        private final CompletableFuture<Void> completion;
+
+        private RenderJob(PdfDocument document, Target target, int[] pages, CancellationContext cancellation) {
+            this.document = document;
+            this.target = target;
+            this.pages = pages;
+            this.cancellation = cancellation;
+
+            Map<Integer, CompletableFuture<File>> pageFutures = new LinkedHashMap<>();
+            for (int pageNumber : pages) {
+                pageFutures.put(pageNumber, new CompletableFuture<>());
+            }
+            this.futures = Collections.unmodifiableMap(pageFutures);
+            this.completion = CompletableFuture.allOf(pageFutures.values().toArray(new CompletableFuture[0]));
+        }
+
+        /**
+         * Check whether a page is rendered by this job.
+         *
+         * @param pageNumber The page number (1-based)
+         * @return true if the job has a future for the page
+         */
+        public boolean includes(int pageNumber) {
+            return futures.containsKey(pageNumber);
+        }
+
+        /**
+         * Get the future of one page, so work on it can start while later pages are still rendering.
+         *
+         * @param pageNumber The page number (1-based)
+         * @return The future of the rendered page file
+         * @throws IllegalArgumentException If the page is not part of this job
+         */
+        public CompletableFuture<File> page(int pageNumber) {
+            CompletableFuture<File> future = futures.get(pageNumber);
+            if (future == null) {
+                throw new IllegalArgumentException("Page " + pageNumber + " is not rendered by this job");
+            }
+            return future;
+        }
+
+        /**
+         * Get a future that completes when every page is done, exceptionally if any page failed.
+         *
+         * @return The completion future
+         */
+        public CompletableFuture<Void> completion() {
+            return completion;
+        }
+
+        /**
+         * Stop rendering. Pages not started yet complete with a {@link CancellationException}.
+         */
+        public void cancel() {
+            cancellation.cancel("Rendering cancelled");
+        }
+
+        private void finish(int pageNumber, File file, Throwable error) {
+            if (error == null) {
+                futures.get(pageNumber).complete(file);
+            } else {
+                futures.get(pageNumber).completeExceptionally(error);
+            }
+        }
+
+        /**
+         * Fail every workers-th page of the job, starting at the given page index.
+         */
+        private void failShard(int from, int workers, Throwable error) {
+            for (int i = from; i < pages.length; i += workers) {
+                finish(pages[i], null, error);
+            }
+        }
+    }
+}
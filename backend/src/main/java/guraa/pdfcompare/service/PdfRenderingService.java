@@ -1,13 +1,15 @@
 package guraa.pdfcompare.service;
 
 import guraa.pdfcompare.model.PdfDocument;
+import guraa.pdfcompare.util.CancellationContext;
 import guraa.pdfcompare.util.FileUtils;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
 import org.apache.pdfbox.rendering.ImageType;
 import org.apache.pdfbox.rendering.PDFRenderer;
-import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.FileSystemResource;
 import org.springframework.stereotype.Service;
 
@@ -19,10 +21,11 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.ToDoubleFunction;
 
 /**
  * PDF Rendering Service with consistent DPI settings.
@@ -32,30 +35,85 @@ import java.util.concurrent.locks.ReentrantLock;
 @Service
 public class PdfRenderingService {
 
-    private final ExecutorService executorService;
+    private final MemoryGovernor memoryGovernor;
+    private final RasterCache rasterCache;
+    private final DocumentLoader documentLoader;
+    private final float thumbnailDpi;
     private final ConcurrentHashMap<String, PDDocument> documentCache = new ConcurrentHashMap<>();
     private final ConcurrentHashMap<String, Boolean> renderedPageCache = new ConcurrentHashMap<>();
     private final ConcurrentHashMap<String, ReentrantLock> pageRenderLocks = new ConcurrentHashMap<>();
 
     // Fixed configuration parameters
     private static final float RENDERING_DPI = 150f;
-    private static final float THUMBNAIL_DPI = 72f;
     private static final String RENDERING_FORMAT = "png";
     private static final ImageType RENDERING_IMAGE_TYPE = ImageType.RGB;
+    // Thumbnails are rendered to fit this box, keeping the page's aspect ratio
     private static final int THUMBNAIL_WIDTH = 200;
     private static final int THUMBNAIL_HEIGHT = 280;
+    private static final ImageType MATCHING_IMAGE_TYPE = ImageType.GRAY;
 
-    // Concurrent processing parameters
-    private static final int BATCH_SIZE = 4;
-    private static final int MAX_RENDERING_THREADS = Runtime.getRuntime().availableProcessors();
-    private static final long RENDERING_TIMEOUT_MS = 30000; // 30 seconds
+    @Value("${app.rendering.matching-dpi:36}")
+    private float matchingDpi = 36f;
 
     public PdfRenderingService(
-            @Qualifier("renderingExecutor") ExecutorService executorService) {
-        this.executorService = executorService;
+            MemoryGovernor memoryGovernor,
+            RasterCache rasterCache,
+            DocumentLoader documentLoader,
+            @Value("${app.rendering.thumbnail-dpi:72}") float thumbnailDpi) {
+        this.memoryGovernor = memoryGovernor;
+        this.rasterCache = rasterCache;
+        this.documentLoader = documentLoader;
+        this.thumbnailDpi = thumbnailDpi;
 
         log.info("Initialized PdfRenderingService with fixed DPI settings: rendering={}dpi, thumbnail={}dpi",
-                RENDERING_DPI, THUMBNAIL_DPI);
+                RENDERING_DPI, thumbnailDpi);
+    }
+
+    /**
+     * Get the DPI used for full page renders.
+     *
+     * @return The rendering DPI
+     */
+    public float getRenderingDpi() {
+        return RENDERING_DPI;
+    }
+
+    /**
+     * Get the DPI used for thumbnail renders. Pages too large for the thumbnail box at this
+     * DPI are rendered at a lower one, see {@link #getThumbnailScale}.
+     *
+     * @return The thumbnail DPI
+     */
+    public float getThumbnailDpi() {
+        return thumbnailDpi;
+    }
+
+    /**
+     * Get the scale a page is rendered at for its thumbnail: the thumbnail DPI, lowered so the
+     * page fits the thumbnail box.
+     *
+     * @param page The page
+     * @return The scale from points to thumbnail pixels
+     */
+    public float getThumbnailScale(PDPage page) {
+        PDRectangle cropBox = page.getCropBox();
+        boolean rotated = page.getRotation() % 180 != 0;
+        float width = rotated ? cropBox.getHeight() : cropBox.getWidth();
+        float height = rotated ? cropBox.getWidth() : cropBox.getHeight();
+        float scale = thumbnailDpi / 72f;
+        if (width > 0 && height > 0) {
+            scale = Math.min(scale, Math.min(THUMBNAIL_WIDTH / width, THUMBNAIL_HEIGHT / height));
+        }
+        return scale;
+    }
+
+    /**
+     * Get the DPI used for matching renders.
+     *
+     * @return The matching DPI
+     */
+    public float getMatchingDpi() {
+        return matchingDpi;
     }
 
     /**
@@ -67,9 +125,157 @@ public class PdfRenderingService {
      * @throws IOException If rendering fails
      */
     public File renderPage(PdfDocument document, int pageNumber) throws IOException {
-        String renderedPagePath = document.getRenderedPagePath(pageNumber);
-        File renderedPage = new File(renderedPagePath);
-        String cacheKey = generateCacheKey(document, pageNumber);
+        return renderPage(document, null, pageNumber);
+    }
+
+    /**
+     * Render a page using a document the caller has already opened.
+     * PDFBox documents are not thread-safe, so the open document must be confined to the calling thread.
+     *
+     * @param document   The PDF document
+     * @param pdDocument The open document, or null to open it for this page only
+     * @param pageNumber The page number (1-based)
+     * @return The rendered page file
+     * @throws IOException If rendering fails
+     */
+    public File renderPage(PdfDocument document, PDDocument pdDocument, int pageNumber) throws IOException {
+        return renderPage(document, pdDocument, pageNumber, CancellationContext.NONE);
+    }
+
+    /**
+     * Render a page using a document the caller has already opened, for work that can be cancelled.
+     *
+     * @param document     The PDF document
+     * @param pdDocument   The open document, or null to open it for this page only
+     * @param pageNumber   The page number (1-based)
+     * @param cancellation Stops waiting for raster budget when the work is cancelled
+     * @return The rendered page file
+     * @throws IOException If rendering fails
+     */
+    public File renderPage(PdfDocument document, PDDocument pdDocument, int pageNumber,
+                           CancellationContext cancellation) throws IOException {
+        return renderPageToFile(document, pdDocument, pageNumber, new File(document.getRenderedPagePath(pageNumber)),
+                generateCacheKey(document, pageNumber), page -> RENDERING_DPI, RENDERING_IMAGE_TYPE, null, cancellation);
+    }
+
+    /**
+     * Check whether a page has been rendered, so it can be served without opening the document.
+     *
+     * @param document   The PDF document
+     * @param pageNumber The page number (1-based)
+     * @return true if the rendered page file is available
+     */
+    public boolean isPageRendered(PdfDocument document, int pageNumber) {
+        return renderedPageCache.containsKey(generateCacheKey(document, pageNumber)) &&
+                new File(document.getRenderedPagePath(pageNumber)).exists();
+    }
+
+    /**
+     * Render a page at the low grayscale resolution used for page matching.
+     * Matching renders are cached apart from full renders, so matching pages never renders them
+     * at display resolution. A fresh render is also put into the raster cache under
+     * {@link #getMatchingRasterKey}, so it does not have to be decoded again.
+     *
+     * @param document   The PDF document
+     * @param pageNumber The page number (1-based)
+     * @return The rendered page file
+     * @throws IOException If rendering fails
+     */
+    public File renderMatchingPage(PdfDocument document, int pageNumber) throws IOException {
+        return renderMatchingPage(document, null, pageNumber);
+    }
+
+    /**
+     * Render a page at matching resolution using a document the caller has already opened.
+     * PDFBox documents are not thread-safe, so the open document must be confined to the calling thread.
+     *
+     * @param document   The PDF document
+     * @param pdDocument The open document, or null to open it for this page only
+     * @param pageNumber The page number (1-based)
+     * @return The rendered page file
+     * @throws IOException If rendering fails
+     */
+    public File renderMatchingPage(PdfDocument document, PDDocument pdDocument, int pageNumber) throws IOException {
+        return renderMatchingPage(document, pdDocument, pageNumber, CancellationContext.NONE);
+    }
+
+    /**
+     * Render a page at matching resolution using a document the caller has already opened,
+     * for work that can be cancelled.
+     *
+     * @param document     The PDF document
+     * @param pdDocument   The open document, or null to open it for this page only
+     * @param pageNumber   The page number (1-based)
+     * @param cancellation Stops waiting for raster budget when the work is cancelled
+     * @return The rendered page file
+     * @throws IOException If rendering fails
+     */
+    public File renderMatchingPage(PdfDocument document, PDDocument pdDocument, int pageNumber,
+                                   CancellationContext cancellation) throws IOException {
+        return renderPageToFile(document, pdDocument, pageNumber, new File(document.getMatchingPagePath(pageNumber)),
+                generateCacheKey(document, pageNumber) + "_matching", page -> matchingDpi, MATCHING_IMAGE_TYPE,
+                image -> rasterCache.put(getMatchingRasterKey(document, pageNumber), image), cancellation);
+    }
+
+    /**
+     * Check whether the matching render of a page is available without opening the document.
+     *
+     * @param document   The PDF document
+     * @param pageNumber The page number (1-based)
+     * @return true if the matching render file is available
+     */
+    public boolean isMatchingPageRendered(PdfDocument document, int pageNumber) {
+        return renderedPageCache.containsKey(generateCacheKey(document, pageNumber) + "_matching") &&
+                new File(document.getMatchingPagePath(pageNumber)).exists();
+    }
+
+    /**
+     * Render a page at the low grayscale resolution used for page matching, handing a fresh
+     * render to the caller instead of the raster cache.
+     *
+     * @param document   The PDF document
+     * @param pageNumber The page number (1-based)
+     * @param rendered   Receives the image if the page is rendered by this call
+     * @return The rendered page file
+     * @throws IOException If rendering fails
+     */
+    public File renderMatchingPage(PdfDocument document, int pageNumber, Consumer<BufferedImage> rendered)
+            throws IOException {
+        return renderPageToFile(document, null, pageNumber, new File(document.getMatchingPagePath(pageNumber)),
+                generateCacheKey(document, pageNumber) + "_matching", page -> matchingDpi, MATCHING_IMAGE_TYPE, rendered,
+                CancellationContext.NONE);
+    }
+
+    /**
+     * Get the raster cache key of the matching render of a page.
+     *
+     * @param document   The PDF document
+     * @param pageNumber The page number (1-based)
+     * @return The raster cache key
+     */
+    public String getMatchingRasterKey(PdfDocument document, int pageNumber) {
+        return getMatchingRasterPrefix(document) + pageNumber;
+    }
+
+    /**
+     * Get the raster cache key prefix of the matching renders of a document.
+     *
+     * @param document The PDF document
+     * @return The raster cache key prefix
+     */
+    public String getMatchingRasterPrefix(PdfDocument document) {
+        return "matching:" + document.getFileId() + "_";
+    }
+
+    /**
+     * Render a page to a file once, however many callers ask for it concurrently.
+     * The document is opened for the page unless the caller passes its own open document.
+     * The raster budget is sized for the image type, and waiting for it ends when the work is cancelled.
+     */
+    private File renderPageToFile(PdfDocument document, PDDocument openDocument, int pageNumber, File renderedPage,
+                                  String cacheKey, ToDoubleFunction<PDPage> dpiForPage, ImageType imageType,
+                                  Consumer<BufferedImage> rendered, CancellationContext cancellation)
+            throws IOException {
 
         // Check cache and existing file
         if (renderedPageCache.containsKey(cacheKey) && renderedPage.exists()) {
@@ -95,17 +301,26 @@ public class PdfRenderingService {
             try {
                 tempFile = Files.createTempFile(renderedPage.getParentFile().toPath(), "render_", "." + RENDERING_FORMAT);
 
-                try (PDDocument pdDocument = loadDocument(document)) {
+                PDDocument pdDocument = openDocument != null ? openDocument : loadDocument(document);
+                try {
                     // Validate page number
                     validatePageNumber(pdDocument, pageNumber);
 
                     PDFRenderer renderer = new PDFRenderer(pdDocument);
-
-                    // Use consistent DPI setting
-                    BufferedImage image = renderImageSafely(pdDocument, renderer, pageNumber - 1, RENDERING_DPI);
-
-                    // Write image to temporary file
-                    ImageIO.write(image, RENDERING_FORMAT, tempFile.toFile());
+                    float dpi = (float) dpiForPage.applyAsDouble(pdDocument.getPage(pageNumber - 1));
+
+                    // Use consistent DPI setting, waiting for raster budget if necessary
+                    try (MemoryGovernor.Reservation ignored = memoryGovernor.reserve(
+                            MemoryGovernor.pageRasterBytes(pdDocument.getPage(pageNumber - 1), dpi, imageType),
+                            cancellation)) {
+                        BufferedImage image = renderImageSafely(pdDocument, renderer, pageNumber - 1, dpi, imageType);
+
+                        // Write image to temporary file
+                        ImageIO.write(image, RENDERING_FORMAT, tempFile.toFile());
+                        if (rendered != null) {
+                            rendered.accept(image);
+                        }
+                    }
 
                     // Move temporary file to final location
                     Files.move(tempFile, renderedPage.toPath(), StandardCopyOption.REPLACE_EXISTING);
@@ -114,11 +329,12 @@ public class PdfRenderingService {
                     renderedPageCache.put(cacheKey, true);
 
                     return renderedPage;
+                } finally {
+                    if (openDocument == null) {
+                        pdDocument.close();
+                    }
                 }
             } catch (Exception e) {
-                log.error("Failed to render page {} of document {}: {}",
-                        pageNumber, document.getFileId(), e.getMessage(), e);
-
                 // Clean up temporary file if it exists
                 if (tempFile != null) {
                     try {
@@ -127,6 +343,11 @@ public class PdfRenderingService {
                         log.error("Failed to delete temporary render file {}: {}", tempFile, cleanupEx.getMessage());
                     }
                 }
+                if (e instanceof CancellationException) {
+                    throw (CancellationException) e;
+                }
+                log.error("Failed to render page {} of document {}: {}",
+                        pageNumber, document.getFileId(), e.getMessage(), e);
                 throw new IOException("Rendering failed", e);
             }
         } finally {
@@ -134,42 +355,6 @@ public class PdfRenderingService {
         }
     }
 
-    /**
-     * Parallel pre-rendering of all document pages.
-     *
-     * @param document The PDF document to pre-render
-     * @throws IOException If pre-rendering fails
-     */
-    public void preRenderAllPages(PdfDocument document) throws IOException {
-        int pageCount = document.getPageCount();
-
-        try (PDDocument pdDocument = loadDocument(document)) {
-            PDFRenderer renderer = new PDFRenderer(pdDocument);
-
-            List<CompletableFuture<Void>> renderTasks = new ArrayList<>();
-
-            for (int pageNumber = 1; pageNumber <= pageCount; pageNumber++) {
-                final int currentPage = pageNumber;
-
-                CompletableFuture<Void> renderTask = CompletableFuture.runAsync(() -> {
-                    try {
-                        renderPage(document, currentPage);
-                    } catch (Exception e) {
-                        log.error("Failed to pre-render page {} of document {}: {}",
-                                currentPage, document.getFileId(), e.getMessage());
-                    }
-                }, executorService);
-
-                renderTasks.add(renderTask);
-            }
-
-            // Wait for all rendering tasks
-            CompletableFuture.allOf(renderTasks.toArray(new CompletableFuture[0]))
-                    .orTimeout(RENDERING_TIMEOUT_MS, TimeUnit.MILLISECONDS)
-                    .join();
-        }
-    }
-
     /**
      * Generate a thumbnail for a specific page.
      *
@@ -179,39 +364,52 @@ public class PdfRenderingService {
      * @throws IOException If thumbnail generation fails
      */
     public FileSystemResource getThumbnail(PdfDocument document, int pageNumber) throws IOException {
-        String thumbnailPath = document.getThumbnailPath(pageNumber);
-        File thumbnailFile = new File(thumbnailPath);
-        String cacheKey = generateCacheKey(document, pageNumber) + "_thumbnail";
-
-        // Check cached thumbnail
-        if (renderedPageCache.containsKey(cacheKey) && thumbnailFile.exists()) {
-            return new FileSystemResource(thumbnailFile);
-        }
-
-        // Ensure directory exists
-        FileUtils.createDirectories(thumbnailFile.getParentFile());
-
-        try (PDDocument pdDocument = loadDocument(document)) {
-            validatePageNumber(pdDocument, pageNumber);
-
-            PDFRenderer renderer = new PDFRenderer(pdDocument);
-
-            // Use consistent thumbnail DPI
-            BufferedImage originalImage = renderImageSafely(pdDocument, renderer, pageNumber - 1, THUMBNAIL_DPI);
-            BufferedImage thumbnailImage = resizeThumbnail(originalImage);
+        return new FileSystemResource(renderThumbnail(document, null, pageNumber));
+    }
 
-            // Write thumbnail
-            ImageIO.write(thumbnailImage, RENDERING_FORMAT, thumbnailFile);
+    /**
+     * Render the thumbnail of a page directly at thumbnail resolution, using a document the
+     * caller has already opened.
+     * PDFBox documents are not thread-safe, so the open document must be confined to the calling thread.
+     *
+     * @param document   The PDF document
+     * @param pdDocument The open document, or null to open it for this page only
+     * @param pageNumber The page number (1-based)
+     * @return The thumbnail file
+     * @throws IOException If rendering fails
+     */
+    public File renderThumbnail(PdfDocument document, PDDocument pdDocument, int pageNumber) throws IOException {
+        return renderThumbnail(document, pdDocument, pageNumber, CancellationContext.NONE);
+    }
 
-            // Mark as cached
-            renderedPageCache.put(cacheKey, true);
+    /**
+     * Render the thumbnail of a page using a document the caller has already opened,
+     * for work that can be cancelled.
+     *
+     * @param document     The PDF document
+     * @param pdDocument   The open document, or null to open it for this page only
+     * @param pageNumber   The page number (1-based)
+     * @param cancellation Stops waiting for raster budget when the work is cancelled
+     * @return The thumbnail file
+     * @throws IOException If rendering fails
+     */
+    public File renderThumbnail(PdfDocument document, PDDocument pdDocument, int pageNumber,
+                                CancellationContext cancellation) throws IOException {
+        return renderPageToFile(document, pdDocument, pageNumber, new File(document.getThumbnailPath(pageNumber)),
+                generateCacheKey(document, pageNumber) + "_thumbnail", page -> 72f * getThumbnailScale(page),
+                RENDERING_IMAGE_TYPE, null, cancellation);
+    }
 
-            return new FileSystemResource(thumbnailFile);
-        } catch (Exception e) {
-            log.error("Thumbnail generation failed for page {} of document {}: {}",
-                    pageNumber, document.getFileId(), e.getMessage(), e);
-            throw new IOException("Thumbnail generation failed", e);
-        }
+    /**
+     * Check whether the thumbnail of a page is available without opening the document.
+     *
+     * @param document   The PDF document
+     * @param pageNumber The page number (1-based)
+     * @return true if the thumbnail file is available
+     */
+    public boolean isThumbnailRendered(PdfDocument document, int pageNumber) {
+        return renderedPageCache.containsKey(generateCacheKey(document, pageNumber) + "_thumbnail") &&
+                new File(document.getThumbnailPath(pageNumber)).exists();
     }
 
     /**
@@ -231,7 +429,7 @@ public class PdfRenderingService {
 
     private PDDocument loadDocument(PdfDocument document) throws IOException {
         try {
-            return PDDocument.load(new File(document.getFilePath()));
+            return documentLoader.loadPdfBox(document.getFilePath());
         } catch (IOException e) {
             log.error("Failed to load document {}: {}", document.getFileId(), e.getMessage());
             throw e;
@@ -245,13 +443,14 @@ public class PdfRenderingService {
         }
     }
 
-    private BufferedImage renderImageSafely(PDDocument document, PDFRenderer renderer, int pageIndex, float dpi) throws IOException {
+    private BufferedImage renderImageSafely(PDDocument document, PDFRenderer renderer, int pageIndex, float dpi,
+                                            ImageType imageType) throws IOException {
         try {
             // Always use the specified DPI and image type for consistency
-            return renderer.renderImageWithDPI(pageIndex, dpi, RENDERING_IMAGE_TYPE);
+            return renderer.renderImageWithDPI(pageIndex, dpi, imageType);
         } catch (Exception e) {
             log.warn("Standard rendering failed using ImageType {}, attempting fallback: {}",
-                    RENDERING_IMAGE_TYPE, e.getMessage());
+                    imageType, e.getMessage());
             return createFallbackImage(document, pageIndex, dpi);
         }
     }
@@ -273,17 +472,6 @@ public class PdfRenderingService {
         return image;
     }
 
-    private BufferedImage resizeThumbnail(BufferedImage originalImage) {
-        BufferedImage thumbnailImage = new BufferedImage(THUMBNAIL_WIDTH, THUMBNAIL_HEIGHT, BufferedImage.TYPE_INT_RGB);
-        Graphics2D g = thumbnailImage.createGraphics();
-
-        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-        g.drawImage(originalImage, 0, 0, THUMBNAIL_WIDTH, THUMBNAIL_HEIGHT, null);
-        g.dispose();
-
-        return thumbnailImage;
-    }
-
     private String generateCacheKey(PdfDocument document, int pageNumber) {
         return document.getFileId() + "_page_" + pageNumber;
     }
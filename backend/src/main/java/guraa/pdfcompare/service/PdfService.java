@@ -8,6 +8,7 @@ import guraa.pdfcompare.PDFComparisonEngine;
 import guraa.pdfcompare.model.ComparisonResult;
 import guraa.pdfcompare.model.PdfDocument;
 import guraa.pdfcompare.repository.PdfRepository;
+import guraa.pdfcompare.util.FileUtils;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
@@ -15,7 +16,10 @@ import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -44,21 +48,29 @@ public class PdfService {
     private final PdfRepository pdfRepository;
     private final ExecutorService executorService;
     private final PDFComparisonEngine comparisonEngine;
+    private final DocumentPreprocessingService preprocessingService;
+    private final DocumentLoader documentLoader;
 
     /**
      * Constructor with qualifier to specify which executor service to use.
      *
      * @param pdfRepository The PDF repository
-     * @param executorService The executor service for comparison operations
+     * @param executorService The executor service for comparison jobs
      * @param comparisonEngine The PDF comparison engine
+     * @param preprocessingService The background pre-processing service
+     * @param documentLoader The loader for opening documents
      */
     public PdfService(
             PdfRepository pdfRepository,
-            @Qualifier("comparisonExecutor") ExecutorService executorService,
-            PDFComparisonEngine comparisonEngine) {
+            @Qualifier("jobExecutor") ExecutorService executorService,
+            PDFComparisonEngine comparisonEngine,
+            DocumentPreprocessingService preprocessingService,
+            DocumentLoader documentLoader) {
         this.pdfRepository = pdfRepository;
         this.executorService = executorService;
         this.comparisonEngine = comparisonEngine;
+        this.preprocessingService = preprocessingService;
+        this.documentLoader = documentLoader;
     }
 
     @Value("${app.documents.storage-path:uploads/documents}")
@@ -69,48 +81,49 @@ public class PdfService {
 
     /**
      * Store a PDF file.
+     * The upload is moved into the staging file with transferTo, which renames the
+     * container's spooled temp file where possible instead of copying it, and the
+     * staged file is then read once for its content hash.
      *
      * @param file The file to store
      * @return The stored PDF document
      * @throws IOException If there is an error storing the file
      */
     public PdfDocument storePdf(MultipartFile file) throws IOException {
-        // Generate a unique file ID
-        String fileId = UUID.randomUUID().toString();
-
-        // Create the directory for the document
-        Path documentDir = Paths.get(documentsStoragePath, fileId);
-        Files.createDirectories(documentDir);
-
-        // Store the file
-        Path filePath = documentDir.resolve(file.getOriginalFilename());
-        Files.copy(file.getInputStream(), filePath, StandardCopyOption.REPLACE_EXISTING);
-
-        // Check if we already have a document with the same content hash
-        String contentHash = calculateContentHash(filePath.toFile());
-        Optional<PdfDocument> existingDocument = findDocumentByContentHash(contentHash);
-
-        if (existingDocument.isPresent()) {
-            // Reuse the existing document
-            return existingDocument.get();
+        Path stagingFile = createStagingFile();
+        try {
+            // transferTo does not overwrite, so the placeholder only reserves the name
+            Files.delete(stagingFile);
+            file.transferTo(stagingFile);
+
+            MessageDigest md = createContentDigest();
+            long size = FileUtils.digestFile(stagingFile, md);
+            return storeStaged(stagingFile, size, toHex(md.digest()), file.getOriginalFilename());
+        } finally {
+            Files.deleteIfExists(stagingFile);
         }
+    }
 
-        // Create and save the document
-        PdfDocument document = PdfDocument.builder()
-                .fileId(fileId)
-                .fileName(file.getOriginalFilename())
-                .filePath(filePath.toString())
-                .uploadDate(LocalDateTime.now())
-                .contentHash(contentHash)
-                .build();
-
-        // Extract metadata and update the document
-        document = extractMetadata(document);
-
-        // Save the document
-        saveDocument(document);
-
-        return document;
+    /**
+     * Store a PDF from a stream in a single pass.
+     * The stream is written to a staging file next to the document store while
+     * its content hash is computed, so duplicates are detected before anything
+     * is persisted and new documents are published with an atomic move.
+     *
+     * @param inputStream The PDF content
+     * @param fileName The original file name
+     * @return The stored PDF document, or the existing document with the same content
+     * @throws IOException If there is an error storing the file
+     */
+    public PdfDocument storePdfStream(InputStream inputStream, String fileName) throws IOException {
+        Path stagingFile = createStagingFile();
+        try {
+            MessageDigest md = createContentDigest();
+            long size = FileUtils.copyWithDigest(inputStream, stagingFile, md);
+            return storeStaged(stagingFile, size, toHex(md.digest()), fileName);
+        } finally {
+            Files.deleteIfExists(stagingFile);
+        }
     }
 
     /**
@@ -122,42 +135,9 @@ public class PdfService {
      * @throws IOException If there is an error processing the file
      */
     public PdfDocument processPdfFile(File file, String fileName) throws IOException {
-        // Generate a unique file ID
-        String fileId = UUID.randomUUID().toString();
-
-        // Create the directory for the document
-        Path documentDir = Paths.get(documentsStoragePath, fileId);
-        Files.createDirectories(documentDir);
-
-        // Store the file
-        Path filePath = documentDir.resolve(fileName);
-        Files.copy(file.toPath(), filePath, StandardCopyOption.REPLACE_EXISTING);
-
-        // Check if we already have a document with the same content hash
-        String contentHash = calculateContentHash(filePath.toFile());
-        Optional<PdfDocument> existingDocument = findDocumentByContentHash(contentHash);
-
-        if (existingDocument.isPresent()) {
-            // Reuse the existing document
-            return existingDocument.get();
+        try (InputStream inputStream = new FileInputStream(file)) {
+            return storePdfStream(inputStream, fileName);
         }
-
-        // Create and save the document
-        PdfDocument document = PdfDocument.builder()
-                .fileId(fileId)
-                .fileName(fileName)
-                .filePath(filePath.toString())
-                .uploadDate(LocalDateTime.now())
-                .contentHash(contentHash)
-                .build();
-
-        // Extract metadata and update the document
-        document = extractMetadata(document);
-
-        // Save the document
-        saveDocument(document);
-
-        return document;
     }
 
     /**
@@ -210,44 +190,142 @@ public class PdfService {
     }
 
     /**
-     * Calculate the content hash of a file.
+     * Create a staging file in the document store.
+     * It is on the same file system as the final location, so the move into place is atomic.
      *
-     * @param file The file
-     * @return The content hash
+     * @return The staging file
+     * @throws IOException If the file cannot be created
      */
-    private String calculateContentHash(File file) {
-        try {
-            // Create a MessageDigest instance for MD5
-            MessageDigest md = MessageDigest.getInstance("MD5");
+    private Path createStagingFile() throws IOException {
+        Path storageRoot = Paths.get(documentsStoragePath);
+        Files.createDirectories(storageRoot);
+        return Files.createTempFile(storageRoot, "upload-", ".part");
+    }
 
-            // Read the file in chunks to avoid loading large files into memory
-            byte[] buffer = new byte[8192];
-            int bytesRead;
+    /**
+     * Publish a staged upload, or return the existing document with the same content.
+     *
+     * @param stagingFile The staged PDF content
+     * @param size The size of the content in bytes
+     * @param contentHash The content hash of the staged file
+     * @param fileName The original file name
+     * @return The stored PDF document, or the existing document with the same content
+     * @throws IOException If there is an error storing the file
+     */
+    private PdfDocument storeStaged(Path stagingFile, long size, String contentHash, String fileName)
+            throws IOException {
+        log.debug("Staged upload {} ({} bytes, hash {})", fileName, size, contentHash);
 
-            // Open the file and read it
-            try (java.io.FileInputStream fis = new java.io.FileInputStream(file)) {
-                while ((bytesRead = fis.read(buffer)) != -1) {
-                    md.update(buffer, 0, bytesRead);
-                }
-            }
+        // Check if we already have a document with the same content hash
+        Optional<PdfDocument> existingDocument = findDocumentByContentHash(contentHash);
+        if (existingDocument.isPresent()) {
+            // Reuse the existing document, finishing its pre-processing if it never ran
+            preprocessingService.submit(existingDocument.get());
+            return existingDocument.get();
+        }
 
-            // Get the hash as a byte array
-            byte[] digest = md.digest();
+        String safeFileName = sanitizeFileName(fileName);
+        String fileId = UUID.randomUUID().toString();
+        Path documentDir = Paths.get(documentsStoragePath).resolve(fileId);
+        Files.createDirectories(documentDir);
 
-            // Convert the byte array to a hex string
-            StringBuilder sb = new StringBuilder();
-            for (byte b : digest) {
-                sb.append(String.format("%02x", b));
-            }
+        Path filePath = documentDir.resolve(safeFileName);
+        moveIntoPlace(stagingFile, filePath);
+
+        PdfDocument document = createDocument(fileId, safeFileName, filePath, contentHash);
+
+        // Use the idle time before a comparison is requested to prepare pages
+        preprocessingService.submit(document);
+
+        return document;
+    }
+
+    /**
+     * Create the digest used for document content hashes.
+     *
+     * @return An MD5 MessageDigest
+     * @throws IOException If MD5 is not available
+     */
+    private MessageDigest createContentDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("MD5 digest not available", e);
+        }
+    }
+
+    /**
+     * Convert a digest to a lowercase hex string.
+     *
+     * @param digest The digest bytes
+     * @return The hex string
+     */
+    private String toHex(byte[] digest) {
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Strip any client-supplied directory components from a file name.
+     *
+     * @param fileName The original file name
+     * @return A plain file name
+     */
+    private String sanitizeFileName(String fileName) {
+        if (fileName == null || fileName.isBlank()) {
+            return "document.pdf";
+        }
+        String name = fileName.replace('\\', '/');
+        name = name.substring(name.lastIndexOf('/') + 1);
+        return name.isBlank() ? "document.pdf" : name;
+    }
 
-            return sb.toString();
-        } catch (NoSuchAlgorithmException | IOException e) {
-            log.error("Error calculating content hash: {}", e.getMessage(), e);
-            // Return a random UUID as a fallback
-            return UUID.randomUUID().toString();
+    /**
+     * Move a staged file to its final location, atomically where supported.
+     *
+     * @param source The staged file
+     * @param target The final location
+     * @throws IOException If the move fails
+     */
+    private void moveIntoPlace(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            log.debug("Atomic move not supported for {}, falling back to a regular move", target);
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
         }
     }
 
+    /**
+     * Create, enrich and save a document record for a stored file.
+     *
+     * @param fileId The file ID
+     * @param fileName The file name
+     * @param filePath The stored file path
+     * @param contentHash The content hash
+     * @return The saved document
+     */
+    private PdfDocument createDocument(String fileId, String fileName, Path filePath, String contentHash) {
+        PdfDocument document = PdfDocument.builder()
+                .fileId(fileId)
+                .fileName(fileName)
+                .filePath(filePath.toString())
+                .uploadDate(LocalDateTime.now())
+                .contentHash(contentHash)
+                .build();
+
+        // Extract metadata and update the document
+        document = extractMetadata(document);
+
+        // Save the document
+        saveDocument(document);
+
+        return document;
+    }
+
     /**
      * Find a document by content hash.
      *
@@ -286,9 +364,9 @@ public class PdfService {
             // If you need to handle password-protected files, you'd set the password here:
             // readerProperties.setPassword("password".getBytes());
 
-            PdfReader reader = new PdfReader(document.getFilePath(), readerProperties);
-            // Use try-with-resources for the iText PdfDocument
-            try (com.itextpdf.kernel.pdf.PdfDocument iTextPdfDocument = new com.itextpdf.kernel.pdf.PdfDocument(reader)) {
+            // Use try-with-resources for the reader too, so it is closed when the iText PdfDocument cannot be created
+            try (PdfReader reader = documentLoader.openReader(document.getFilePath(), readerProperties);
+                 com.itextpdf.kernel.pdf.PdfDocument iTextPdfDocument = new com.itextpdf.kernel.pdf.PdfDocument(reader)) {
                 // Set the page count
                 document.setPageCount(iTextPdfDocument.getNumberOfPages());
 
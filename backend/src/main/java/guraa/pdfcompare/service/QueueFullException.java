@@ -0,0 +1,30 @@
+package guraa.pdfcompare.service;
+
+/**
+ * Thrown when a comparison job cannot be admitted because its queue is full.
+ * Carries a hint for how long the client should wait before retrying.
+ */
+public class QueueFullException extends RuntimeException {
+
+    private final long retryAfterSeconds;
+
+    /**
+     * Constructor.
+     *
+     * @param message The error message
+     * @param retryAfterSeconds The suggested delay before retrying, in seconds
+     */
+    public QueueFullException(String message, long retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /**
+     * Get the suggested delay before retrying.
+     *
+     * @return The delay in seconds
+     */
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
@@ -0,0 +1,535 @@
+package guraa.pdfcompare.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import guraa.pdfcompare.visual.LuminancePlane;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * Shared cache of 8-bit rasters held in direct buffers outside the heap. Gray rasters keep one
+ * band and all others keep their three colour bands, so colour is never lost to the cache.
+ * The cache has a fixed byte capacity and evicts the least recently used rasters that nobody
+ * is using; callers pin a raster for as long as they read it. The buffer of a raster is freed
+ * as soon as it is evicted and unpinned, so eviction never waits for the garbage collector and
+ * a full heap does not drop every raster at once.
+ * Structures derived from a raster, like its SSIM window statistics, can be attached to it.
+ * They live on the heap, so they are counted apart from the capacity, and are dropped together
+ * with the raster.
+ */
+@Slf4j
+@Service
+public class RasterCache {
+
+    /**
+     * Loads a raster that is not in the cache.
+     */
+    @FunctionalInterface
+    public interface Loader {
+
+        /**
+         * Load the raster.
+         *
+         * @return The raster, never null
+         * @throws IOException If the raster cannot be loaded
+         */
+        BufferedImage load() throws IOException;
+    }
+
+    private static final ColorModel GRAY_COLOR_MODEL = new ComponentColorModel(
+            ColorSpace.getInstance(ColorSpace.CS_GRAY), false, false, Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+    private static final ColorModel RGB_COLOR_MODEL = new ComponentColorModel(
+            ColorSpace.getInstance(ColorSpace.CS_sRGB), false, false, Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+
+    // Frees a direct buffer right away; null where the runtime does not offer it, leaving the buffer to the collector
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.warn("Direct buffers of evicted rasters are left to the garbage collector: {}", e.getMessage());
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private final long capacityBytes;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private final ConcurrentHashMap<String, ReentrantLock> loadLocks = new ConcurrentHashMap<>();
+    private long usedBytes;
+    private long attachedBytes;
+
+    private final Counter hitCounter;
+    private final Counter missCounter;
+    private final Counter evictionCounter;
+
+    /**
+     * Constructor.
+     *
+     * @param meterRegistry The meter registry for cache metrics
+     * @param capacityMb The capacity of the cache in MB
+     */
+    public RasterCache(
+            MeterRegistry meterRegistry,
+            @Value("${app.raster-cache.capacity-mb:256}") long capacityMb) {
+        this.capacityBytes = Math.max(1, capacityMb) * 1024 * 1024;
+
+        Gauge.builder("pdfcompare.raster.cache.capacity.bytes", () -> capacityBytes)
+                .description("Capacity of the raster cache")
+                .register(meterRegistry);
+        Gauge.builder("pdfcompare.raster.cache.used.bytes", this, RasterCache::getUsedBytes)
+                .description("Bytes of rasters held by the raster cache")
+                .register(meterRegistry);
+        Gauge.builder("pdfcompare.raster.cache.attached.bytes", this, RasterCache::getAttachedBytes)
+                .description("Heap bytes of structures attached to cached rasters")
+                .register(meterRegistry);
+        Gauge.builder("pdfcompare.raster.cache.entries", this, RasterCache::size)
+                .description("Rasters held by the raster cache")
+                .register(meterRegistry);
+
+        this.hitCounter = Counter.builder("pdfcompare.raster.cache.requests")
+                .tag("result", "hit")
+                .description("Raster cache lookups")
+                .register(meterRegistry);
+        this.missCounter = Counter.builder("pdfcompare.raster.cache.requests")
+                .tag("result", "miss")
+                .description("Raster cache lookups")
+                .register(meterRegistry);
+        this.evictionCounter = Counter.builder("pdfcompare.raster.cache.evictions")
+                .description("Rasters evicted to stay within capacity")
+                .register(meterRegistry);
+
+        log.info("Initialized raster cache with a capacity of {} MB", capacityBytes / (1024 * 1024));
+    }
+
+    /**
+     * Get a raster, loading and caching it if it is not cached.
+     * Concurrent callers for the same key wait for a single load.
+     *
+     * @param key The key of the raster
+     * @param loader Loads the raster if it is not cached
+     * @return The pinned raster, to be closed when no longer read
+     * @throws IOException If the raster cannot be loaded
+     */
+    public Pin acquire(String key, Loader loader) throws IOException {
+        Pin pin = pin(key);
+        if (pin != null) {
+            hitCounter.increment();
+            return pin;
+        }
+
+        ReentrantLock loadLock = loadLocks.computeIfAbsent(key, k -> new ReentrantLock());
+        loadLock.lock();
+        try {
+            pin = pin(key);
+            if (pin != null) {
+                hitCounter.increment();
+                return pin;
+            }
+
+            missCounter.increment();
+            BufferedImage image = loader.load();
+            if (image == null) {
+                throw new IOException("No raster loaded for " + key);
+            }
+            return store(key, image, true);
+        } finally {
+            loadLock.unlock();
+            loadLocks.remove(key, loadLock);
+        }
+    }
+
+    /**
+     * Cache a raster that was just produced, such as a fresh render, replacing any cached raster
+     * with the same key. Images that are not grayscale are stored as RGB without alpha.
+     *
+     * @param key The key of the raster
+     * @param image The raster
+     */
+    public void put(String key, BufferedImage image) {
+        store(key, image, false);
+    }
+
+    /**
+     * Drop the rasters whose keys start with a prefix. Pinned rasters stay readable until unpinned.
+     *
+     * @param prefix The key prefix
+     */
+    public void invalidatePrefix(String prefix) {
+        lock.lock();
+        try {
+            Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Entry> entry = iterator.next();
+                if (entry.getKey().startsWith(prefix)) {
+                    iterator.remove();
+                    drop(entry.getValue());
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getCapacityBytes() {
+        return capacityBytes;
+    }
+
+    public long getUsedBytes() {
+        lock.lock();
+        try {
+            return usedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the heap bytes of the structures attached to cached rasters, which are not part of
+     * the used bytes.
+     *
+     * @return The attached bytes
+     */
+    public long getAttachedBytes() {
+        lock.lock();
+        try {
+            return attachedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of cached rasters.
+     *
+     * @return The number of rasters
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Private helper methods
+
+    private Pin pin(String key) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            entry.pins++;
+            return new Pin(entry);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Pin store(String key, BufferedImage image, boolean pinned) {
+        Entry entry = new Entry(key, image);
+
+        lock.lock();
+        try {
+            if (pinned) {
+                entry.pins++;
+            }
+
+            // A raster larger than the whole cache is handed out without being kept
+            if (entry.getBytes() > capacityBytes) {
+                log.debug("Raster {} of {} bytes exceeds the cache capacity", key, entry.getBytes());
+                entry.dropped = true;
+                if (!pinned) {
+                    free(entry);
+                }
+                return pinned ? new Pin(entry) : null;
+            }
+
+            Entry previous = entries.put(key, entry);
+            if (previous != null) {
+                drop(previous);
+            }
+            usedBytes += entry.getBytes();
+            evict();
+            return pinned ? new Pin(entry) : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Evict unpinned rasters, least recently used first, until the cache fits its capacity.
+     * Pinned rasters may hold the cache above capacity until they are unpinned.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (usedBytes > capacityBytes && iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+            if (entry.pins == 0) {
+                iterator.remove();
+                drop(entry);
+                evictionCounter.increment();
+            }
+        }
+    }
+
+    /**
+     * Stop counting an entry that was removed from the map, and free its buffer unless it is
+     * still pinned, in which case the last unpin frees it. Called with the cache lock held.
+     */
+    private void drop(Entry entry) {
+        usedBytes -= entry.getBytes();
+        attachedBytes -= entry.attachedBytes;
+        entry.dropped = true;
+        if (entry.pins == 0) {
+            free(entry);
+        }
+    }
+
+    /**
+     * Release the direct buffer of a dropped, unpinned entry.
+     */
+    private static void free(Entry entry) {
+        if (INVOKE_CLEANER == null) {
+            return;
+        }
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, entry.pixels);
+        } catch (ReflectiveOperationException e) {
+            log.debug("Failed to free raster {}: {}", entry.key, e.getMessage());
+        }
+    }
+
+    /**
+     * Account the heap bytes of a structure attached to an entry. An entry that was already
+     * dropped from the cache is not counted any more.
+     */
+    private void addAttachedBytes(Entry entry, long bytes) {
+        lock.lock();
+        try {
+            if (!entry.dropped) {
+                entry.attachedBytes += bytes;
+                attachedBytes += bytes;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void unpin(Entry entry) {
+        lock.lock();
+        try {
+            entry.pins--;
+            if (entry.dropped && entry.pins == 0) {
+                free(entry);
+            } else if (usedBytes > capacityBytes) {
+                evict();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A cached raster of interleaved 8-bit samples. The pin count, attached bytes and dropped flag
+     * are guarded by the cache lock, the attachments by the entry itself.
+     */
+    private static final class Entry {
+        private final String key;
+        private final int width;
+        private final int height;
+        private final int bands;
+        private final ByteBuffer pixels;
+        private final Map<Class<?>, Object> attachments = new HashMap<>(2);
+        private int pins;
+        private long attachedBytes;
+        private boolean dropped;
+
+        Entry(String key, BufferedImage image) {
+            this.key = key;
+            this.width = image.getWidth();
+            this.height = image.getHeight();
+            this.bands = LuminancePlane.isGrayscale(image) ? 1 : 3;
+            this.pixels = ByteBuffer.allocateDirect(width * height * bands);
+
+            Raster raster = image.getRaster();
+            int[] row = new int[width];
+            byte[] samples = new byte[width * bands];
+            for (int y = 0; y < height; y++) {
+                if (bands == 1) {
+                    raster.getSamples(0, y, width, 1, 0, row);
+                    for (int x = 0; x < width; x++) {
+                        samples[x] = (byte) row[x];
+                    }
+                } else {
+                    image.getRGB(0, y, width, 1, row, 0, width);
+                    for (int x = 0, i = 0; x < width; x++) {
+                        samples[i++] = (byte) (row[x] >> 16);
+                        samples[i++] = (byte) (row[x] >> 8);
+                        samples[i++] = (byte) row[x];
+                    }
+                }
+                pixels.put(samples);
+            }
+            pixels.flip();
+        }
+
+        long getBytes() {
+            return pixels.capacity();
+        }
+    }
+
+    /**
+     * A pinned raster. It stays readable, and is not evicted, until it is closed.
+     */
+    public final class Pin implements AutoCloseable {
+        private final Entry entry;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile BufferedImage image;
+
+        private Pin(Entry entry) {
+            this.entry = entry;
+        }
+
+        public int getWidth() {
+            return entry.width;
+        }
+
+        public int getHeight() {
+            return entry.height;
+        }
+
+        /**
+         * Get the number of bands: 1 for gray rasters, 3 for RGB.
+         *
+         * @return The number of bands
+         */
+        public int getBands() {
+            return entry.bands;
+        }
+
+        /**
+         * Get the cached samples in place, interleaved and row by row.
+         * The buffer must not be used after the pin is closed.
+         *
+         * @return A read-only view of the samples
+         */
+        public ByteBuffer getPixels() {
+            return entry.pixels.asReadOnlyBuffer();
+        }
+
+        /**
+         * Get the raster as a gray or RGB image with a plain byte array behind it, so Java2D reads it
+         * at full speed. A direct buffer cannot back an image, so the samples are copied in one bulk
+         * transfer the first time the image of this pin is requested. The image must not be modified.
+         *
+         * @return The image
+         */
+        public BufferedImage getImage() {
+            BufferedImage result = image;
+            if (result == null) {
+                byte[] samples = new byte[entry.pixels.capacity()];
+                entry.pixels.duplicate().get(samples);
+                int[] offsets = entry.bands == 1 ? new int[]{0} : new int[]{0, 1, 2};
+                WritableRaster raster = Raster.createInterleavedRaster(new DataBufferByte(samples, samples.length),
+                        entry.width, entry.height, entry.width * entry.bands, entry.bands, offsets, null);
+                result = new BufferedImage(entry.bands == 1 ? GRAY_COLOR_MODEL : RGB_COLOR_MODEL,
+                        raster, false, new Hashtable<>());
+                image = result;
+            }
+            return result;
+        }
+
+        /**
+         * Copy the luminance of the raster onto the heap, with the weights of the SSIM calculator
+         * for RGB rasters.
+         *
+         * @return The luminance values, row by row
+         */
+        public byte[] copyLuminance() {
+            ByteBuffer samples = entry.pixels.duplicate();
+            byte[] luminance = new byte[entry.width * entry.height];
+            if (entry.bands == 1) {
+                samples.get(luminance);
+                return luminance;
+            }
+            for (int i = 0; i < luminance.length; i++) {
+                int r = samples.get() & 0xFF;
+                int g = samples.get() & 0xFF;
+                int b = samples.get() & 0xFF;
+                luminance[i] = (byte) ((r * 76 + g * 150 + b * 29) >> 8);
+            }
+            return luminance;
+        }
+
+        /**
+         * Get a structure derived from the raster, building and attaching it on first use.
+         * There is one attachment per type; its heap bytes are counted in the attached bytes and
+         * it is dropped with the raster, so it is built again when the raster is loaded again.
+         *
+         * @param type The type of the attachment
+         * @param builder Builds the attachment from this pin
+         * @param sizer The size of the attachment in bytes
+         * @param <T> The type of the attachment
+         * @return The attachment
+         */
+        public <T> T attachment(Class<T> type, Function<Pin, T> builder, ToLongFunction<T> sizer) {
+            T attachment;
+            synchronized (entry) {
+                attachment = type.cast(entry.attachments.get(type));
+                if (attachment != null) {
+                    return attachment;
+                }
+                attachment = builder.apply(this);
+                entry.attachments.put(type, attachment);
+            }
+            addAttachedBytes(entry, sizer.applyAsLong(attachment));
+            return attachment;
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                unpin(entry);
+            }
+        }
+    }
+}
@@ -55,7 +55,7 @@ public class ReportGenerationService {
             ComparisonRepository comparisonRepository,
             PdfRepository pdfRepository,
             TemplateEngine templateEngine,
-            @Qualifier("comparisonExecutor") ExecutorService executorService) {
+            @Qualifier("ioExecutor") ExecutorService executorService) {
         this.comparisonRepository = comparisonRepository;
         this.pdfRepository = pdfRepository;
         this.templateEngine = templateEngine;
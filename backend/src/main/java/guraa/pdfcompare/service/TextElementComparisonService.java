@@ -1,10 +1,10 @@
 package guraa.pdfcompare.service;
 
 import com.itextpdf.kernel.pdf.PdfReader;
-import guraa.pdfcompare.extraction.TextDifferenceExtractor;
 import guraa.pdfcompare.extraction.TextDifferenceExtractor.TextElement;
 import guraa.pdfcompare.model.PdfDocument;
 import guraa.pdfcompare.model.difference.TextDifference;
+import guraa.pdfcompare.util.CancellationContext;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
@@ -26,18 +26,26 @@ public class TextElementComparisonService {
 
     private final ExecutorService executorService;
     private final PdfRenderingService pdfRenderingService;
+    private final PageArtifactService pageArtifactService;
+    private final DocumentLoader documentLoader;
 
     /**
      * Constructor with qualifier to specify which executor service to use.
      *
-     * @param executorService The executor service for comparison operations
+     * @param executorService The work-stealing pool for CPU-bound comparison work
      * @param pdfRenderingService The PDF rendering service
+     * @param pageArtifactService The page artifact service for cached text elements
+     * @param documentLoader The loader for opening documents
      */
     public TextElementComparisonService(
-            @Qualifier("comparisonExecutor") ExecutorService executorService,
-            PdfRenderingService pdfRenderingService) {
+            @Qualifier("cpuExecutor") ExecutorService executorService,
+            PdfRenderingService pdfRenderingService,
+            PageArtifactService pageArtifactService,
+            DocumentLoader documentLoader) {
         this.executorService = executorService;
         this.pdfRenderingService = pdfRenderingService;
+        this.pageArtifactService = pageArtifactService;
+        this.documentLoader = documentLoader;
     }
 
     @Value("${app.comparison.text-similarity-threshold:0.8}")
@@ -56,10 +64,28 @@ public class TextElementComparisonService {
     public List<TextDifference> compareText(
             PdfDocument baseDocument, PdfDocument compareDocument,
             int basePageNumber, int comparePageNumber) throws IOException {
+        return compareText(baseDocument, compareDocument, basePageNumber, comparePageNumber, CancellationContext.NONE);
+    }
+
+    /**
+     * Compare text elements between two pages, checking for cancellation between lines.
+     *
+     * @param baseDocument The base document
+     * @param compareDocument The document to compare against the base
+     * @param basePageNumber The page number in the base document (1-based)
+     * @param comparePageNumber The page number in the compare document (1-based)
+     * @param cancellation The cancellation context of the comparison
+     * @return A list of text differences with full coordinate information
+     * @throws IOException If there is an error comparing the text
+     * @throws java.util.concurrent.CancellationException If the comparison is cancelled
+     */
+    public List<TextDifference> compareText(
+            PdfDocument baseDocument, PdfDocument compareDocument,
+            int basePageNumber, int comparePageNumber, CancellationContext cancellation) throws IOException {
 
         // Directly perform the comparison without internal caching or async execution
         try {
-            return doCompareText(baseDocument, compareDocument, basePageNumber, comparePageNumber);
+            return doCompareText(baseDocument, compareDocument, basePageNumber, comparePageNumber, cancellation);
         } catch (IOException e) {
             log.error("Error comparing text for pages {} and {}: {}",
                     basePageNumber, comparePageNumber, e.getMessage(), e);
@@ -74,28 +100,27 @@ public class TextElementComparisonService {
      * @param compareDocument The document to compare against the base
      * @param basePageNumber The page number in the base document (1-based)
      * @param comparePageNumber The page number in the compare document (1-based)
+     * @param cancellation The cancellation context
      * @return A list of text differences with coordinates
      * @throws IOException If there is an error comparing the text
      */
     private List<TextDifference> doCompareText(
             PdfDocument baseDocument, PdfDocument compareDocument,
-            int basePageNumber, int comparePageNumber) throws IOException {
+            int basePageNumber, int comparePageNumber, CancellationContext cancellation) throws IOException {
 
         // Extract text elements with coordinates
         List<TextElement> baseElements;
         List<TextElement> compareElements;
 
         try {
-            baseElements = TextDifferenceExtractor.extractTextElements(
-                    baseDocument.getFilePath(), basePageNumber);
-
-            compareElements = TextDifferenceExtractor.extractTextElements(
-                    compareDocument.getFilePath(), comparePageNumber);
+            // Served from the artifact cache when the pages were pre-processed
+            baseElements = pageArtifactService.getTextElements(baseDocument, basePageNumber);
+            compareElements = pageArtifactService.getTextElements(compareDocument, comparePageNumber);
         } catch (IOException e) {
             log.error("Error extracting text elements: {}", e.getMessage(), e);
             // Fall back to simpler extraction if detailed extraction fails
             return extractAndCompareTextLinesOnly(baseDocument, compareDocument,
-                    basePageNumber, comparePageNumber);
+                    basePageNumber, comparePageNumber, cancellation);
         }
 
         // Combine adjacent text elements into lines
@@ -106,6 +131,7 @@ public class TextElementComparisonService {
 
         // More comprehensive text comparison
         for (int i = 0; i < Math.max(baseLines.size(), compareLines.size()); i++) {
+            cancellation.throwIfCancelled();
             TextLine baseLine = i < baseLines.size() ? baseLines.get(i) : null;
             TextLine compareLine = i < compareLines.size() ? compareLines.get(i) : null;
 
@@ -282,7 +308,7 @@ public class TextElementComparisonService {
      */
     private List<TextDifference> extractAndCompareTextLinesOnly(
             PdfDocument baseDocument, PdfDocument compareDocument,
-            int basePageNumber, int comparePageNumber) throws IOException {
+            int basePageNumber, int comparePageNumber, CancellationContext cancellation) throws IOException {
 
         // Extract text from the pages as simple lines
         List<String> baseLines = extractTextLines(baseDocument, basePageNumber);
@@ -292,6 +318,7 @@ public class TextElementComparisonService {
 
         // Simple text comparison
         for (int i = 0; i < Math.max(baseLines.size(), compareLines.size()); i++) {
+            cancellation.throwIfCancelled();
             String baseLine = i < baseLines.size() ? baseLines.get(i) : null;
             String compareLine = i < compareLines.size() ? compareLines.get(i) : null;
 
@@ -418,7 +445,7 @@ public class TextElementComparisonService {
      * @throws IOException If there is an error extracting the text
      */
     private List<String> extractTextLines(PdfDocument document, int pageNumber) throws IOException {
-        try (PdfReader reader = new PdfReader(document.getFilePath());
+        try (PdfReader reader = documentLoader.openReader(document.getFilePath());
              com.itextpdf.kernel.pdf.PdfDocument pdfDoc = new com.itextpdf.kernel.pdf.PdfDocument(reader)) {
 
             if (pageNumber > 0 && pageNumber <= pdfDoc.getNumberOfPages()) {
@@ -0,0 +1,332 @@
+package guraa.pdfcompare.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import guraa.pdfcompare.model.PdfDocument;
+import guraa.pdfcompare.model.ThumbnailSpriteIndex;
+import guraa.pdfcompare.util.CancellationContext;
+import guraa.pdfcompare.util.FileUtils;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Service for thumbnail sprite sheets, so a document sidebar loads all thumbnails in a few requests.
+ * The index of a document is laid out from the page sizes alone, without rendering anything.
+ * A sheet is rendered when it is first requested: its thumbnails are rendered in parallel,
+ * directly at thumbnail resolution, and packed into one image. Index and sheets are kept on
+ * disk per sheet layout.
+ */
+@Slf4j
+@Service
+public class ThumbnailSpriteService {
+
+    private static final String INDEX_FILE = "index.json";
+    private static final String SHEET_FORMAT = "png";
+
+    private final PdfRenderingService pdfRenderingService;
+    private final ParallelPageRenderer parallelPageRenderer;
+    private final DocumentLoader documentLoader;
+    private final MemoryGovernor memoryGovernor;
+    private final ObjectMapper objectMapper;
+
+    // Indexes of documents, keyed by fileId and layout
+    private final ConcurrentHashMap<String, ThumbnailSpriteIndex> indexCache = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ReentrantLock> spriteLocks = new ConcurrentHashMap<>();
+
+    @Value("${app.thumbnails.pages-per-sheet:50}")
+    private int pagesPerSheet = 50;
+
+    @Value("${app.thumbnails.sheet-columns:10}")
+    private int columns = 10;
+
+    @Value("${app.thumbnails.render-timeout-seconds:120}")
+    private int renderTimeoutSeconds = 120;
+
+    /**
+     * Constructor.
+     *
+     * @param pdfRenderingService The PDF rendering service for thumbnail sizes
+     * @param parallelPageRenderer The renderer for the thumbnails of a sheet
+     * @param documentLoader The loader for opening documents
+     * @param memoryGovernor The memory governor for raster budgets
+     * @param objectMapper The object mapper for index persistence
+     */
+    public ThumbnailSpriteService(
+            PdfRenderingService pdfRenderingService,
+            ParallelPageRenderer parallelPageRenderer,
+            DocumentLoader documentLoader,
+            MemoryGovernor memoryGovernor,
+            ObjectMapper objectMapper) {
+        this.pdfRenderingService = pdfRenderingService;
+        this.parallelPageRenderer = parallelPageRenderer;
+        this.documentLoader = documentLoader;
+        this.memoryGovernor = memoryGovernor;
+        this.objectMapper = objectMapper;
+    }
+
+    /**
+     * Get the sheet layout, which identifies the index and sheets of a document together with its content.
+     *
+     * @return The layout key
+     */
+    public String getLayout() {
+        return Math.round(pdfRenderingService.getThumbnailDpi()) + "dpi_" +
+                Math.max(1, pagesPerSheet) + "x" + Math.max(1, columns);
+    }
+
+    /**
+     * Get the sprite index of a document, laying it out if it has not been laid out yet.
+     *
+     * @param document The document
+     * @return The sprite index
+     * @throws IOException If the document cannot be read
+     */
+    public ThumbnailSpriteIndex getIndex(PdfDocument document) throws IOException {
+        String key = document.getFileId() + "_" + getLayout();
+        ThumbnailSpriteIndex index = indexCache.get(key);
+        if (index != null) {
+            return index;
+        }
+
+        ReentrantLock lock = spriteLocks.computeIfAbsent(key, k -> new ReentrantLock());
+        lock.lock();
+        try {
+            index = indexCache.get(key);
+            if (index == null) {
+                index = loadIndex(document);
+            }
+            if (index == null) {
+                index = buildIndex(document);
+                storeIndex(document, index);
+            }
+            indexCache.put(key, index);
+            return index;
+        } finally {
+            lock.unlock();
+            spriteLocks.remove(key, lock);
+        }
+    }
+
+    /**
+     * Get the file of the sprite index of a document.
+     *
+     * @param document The document
+     * @return The index file
+     * @throws IOException If the document cannot be read
+     */
+    public File getIndexFile(PdfDocument document) throws IOException {
+        getIndex(document);
+        return getIndexFileOf(document);
+    }
+
+    /**
+     * Get a sprite sheet of a document, rendering it if it has not been rendered yet.
+     *
+     * @param document   The document
+     * @param sheetIndex The sheet number (0-based)
+     * @return The sheet image file
+     * @throws IOException If the thumbnails cannot be rendered
+     * @throws IllegalArgumentException If the document has no such sheet
+     */
+    public File getSheet(PdfDocument document, int sheetIndex) throws IOException {
+        ThumbnailSpriteIndex index = getIndex(document);
+        if (sheetIndex < 0 || sheetIndex >= index.getSheets().size()) {
+            throw new IllegalArgumentException("Invalid thumbnail sheet: " + sheetIndex);
+        }
+
+        File sheetFile = getSheetFile(document, sheetIndex);
+        if (sheetFile.exists()) {
+            return sheetFile;
+        }
+
+        String key = document.getFileId() + "_" + getLayout() + "_" + sheetIndex;
+        ReentrantLock lock = spriteLocks.computeIfAbsent(key, k -> new ReentrantLock());
+        lock.lock();
+        try {
+            if (!sheetFile.exists()) {
+                long start = System.currentTimeMillis();
+                renderSheet(document, index.getSheets().get(sheetIndex), sheetFile);
+                log.debug("Rendered thumbnail sheet {} of document {} in {}ms",
+                        sheetIndex, document.getFileId(), System.currentTimeMillis() - start);
+            }
+            return sheetFile;
+        } finally {
+            lock.unlock();
+            spriteLocks.remove(key, lock);
+        }
+    }
+
+    // Private helper methods
+
+    private ThumbnailSpriteIndex buildIndex(PdfDocument document) throws IOException {
+        int perSheet = Math.max(1, pagesPerSheet);
+        int perRow = Math.max(1, Math.min(columns, perSheet));
+
+        List<int[]> sizes = new ArrayList<>();
+        try (PDDocument pdDocument = documentLoader.loadPdfBox(document.getFilePath())) {
+            for (PDPage page : pdDocument.getPages()) {
+                sizes.add(thumbnailSize(page));
+            }
+        }
+
+        int cellWidth = 1;
+        int cellHeight = 1;
+        for (int[] size : sizes) {
+            cellWidth = Math.max(cellWidth, size[0]);
+            cellHeight = Math.max(cellHeight, size[1]);
+        }
+
+        List<ThumbnailSpriteIndex.Sheet> sheets = new ArrayList<>();
+        for (int first = 0; first < sizes.size(); first += perSheet) {
+            int count = Math.min(perSheet, sizes.size() - first);
+            List<ThumbnailSpriteIndex.Sprite> sprites = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int[] size = sizes.get(first + i);
+                sprites.add(ThumbnailSpriteIndex.Sprite.builder()
+                        .pageNumber(first + i + 1)
+                        .x((i % perRow) * cellWidth)
+                        .y((i / perRow) * cellHeight)
+                        .width(size[0])
+                        .height(size[1])
+                        .build());
+            }
+            sheets.add(ThumbnailSpriteIndex.Sheet.builder()
+                    .index(sheets.size())
+                    .width(Math.min(count, perRow) * cellWidth)
+                    .height(((count + perRow - 1) / perRow) * cellHeight)
+                    .pages(sprites)
+                    .build());
+        }
+
+        return ThumbnailSpriteIndex.builder()
+                .fileId(document.getFileId())
+                .pageCount(sizes.size())
+                .pagesPerSheet(perSheet)
+                .columns(perRow)
+                .cellWidth(cellWidth)
+                .cellHeight(cellHeight)
+                .sheets(sheets)
+                .build();
+    }
+
+    /**
+     * The pixel size PDFBox renders a page at for its thumbnail.
+     */
+    private int[] thumbnailSize(PDPage page) {
+        float scale = pdfRenderingService.getThumbnailScale(page);
+        PDRectangle cropBox = page.getCropBox();
+        int width = (int) Math.max(Math.floor(cropBox.getWidth() * scale), 1);
+        int height = (int) Math.max(Math.floor(cropBox.getHeight() * scale), 1);
+        return page.getRotation() % 180 != 0 ? new int[]{height, width} : new int[]{width, height};
+    }
+
+    private void renderSheet(PdfDocument document, ThumbnailSpriteIndex.Sheet sheet, File sheetFile)
+            throws IOException {
+        List<Integer> pageNumbers = new ArrayList<>(sheet.getPages().size());
+        for (ThumbnailSpriteIndex.Sprite sprite : sheet.getPages()) {
+            pageNumbers.add(sprite.getPageNumber());
+        }
+
+        ParallelPageRenderer.RenderJob job = parallelPageRenderer.render(
+                document, pageNumbers, ParallelPageRenderer.Target.THUMBNAIL, CancellationContext.NONE);
+        try {
+            CancellationContext.NONE.await(job.completion(), renderTimeoutSeconds, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to render thumbnails of document " + document.getFileId(), e.getCause());
+        } catch (TimeoutException | CancellationException e) {
+            job.cancel();
+            throw new IOException("Rendering thumbnails of document " + document.getFileId() + " timed out");
+        } catch (InterruptedException e) {
+            job.cancel();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while rendering thumbnails of document " + document.getFileId(), e);
+        }
+
+        try (MemoryGovernor.Reservation ignored = memoryGovernor.reserve(
+                MemoryGovernor.rasterBytes(sheet.getWidth(), sheet.getHeight(), MemoryGovernor.RGB_BYTES_PER_PIXEL))) {
+            BufferedImage image = new BufferedImage(sheet.getWidth(), sheet.getHeight(), BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = image.createGraphics();
+            try {
+                g.setColor(Color.WHITE);
+                g.fillRect(0, 0, sheet.getWidth(), sheet.getHeight());
+                for (ThumbnailSpriteIndex.Sprite sprite : sheet.getPages()) {
+                    BufferedImage thumbnail = ImageIO.read(job.page(sprite.getPageNumber()).join());
+                    if (thumbnail == null) {
+                        throw new IOException("Failed to read thumbnail of page " + sprite.getPageNumber());
+                    }
+                    // A thumbnail never spills into the neighbouring cell
+                    int width = Math.min(sprite.getWidth(), thumbnail.getWidth());
+                    int height = Math.min(sprite.getHeight(), thumbnail.getHeight());
+                    g.drawImage(thumbnail.getSubimage(0, 0, width, height), sprite.getX(), sprite.getY(), null);
+                }
+            } finally {
+                g.dispose();
+            }
+
+            FileUtils.createDirectories(sheetFile.getParentFile());
+            Path tempFile = Files.createTempFile(sheetFile.getParentFile().toPath(), "sheet_", "." + SHEET_FORMAT);
+            try {
+                ImageIO.write(image, SHEET_FORMAT, tempFile.toFile());
+                Files.move(tempFile, sheetFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tempFile);
+            }
+        }
+    }
+
+    private ThumbnailSpriteIndex loadIndex(PdfDocument document) {
+        File file = getIndexFileOf(document);
+        if (!file.exists()) {
+            return null;
+        }
+
+        try {
+            return objectMapper.readValue(file, ThumbnailSpriteIndex.class);
+        } catch (IOException e) {
+            log.warn("Failed to read thumbnail index of document {}: {}", document.getFileId(), e.getMessage());
+            return null;
+        }
+    }
+
+    private void storeIndex(PdfDocument document, ThumbnailSpriteIndex index) throws IOException {
+        File file = getIndexFileOf(document);
+        FileUtils.createDirectories(file.getParentFile());
+        Path tempFile = Files.createTempFile(file.getParentFile().toPath(), "index_", ".json");
+        try {
+            objectMapper.writeValue(tempFile.toFile(), index);
+            Files.move(tempFile, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    private File getIndexFileOf(PdfDocument document) {
+        return Paths.get(document.getThumbnailSpritesPath(getLayout()), INDEX_FILE).toFile();
+    }
+
+    private File getSheetFile(PdfDocument document, int sheetIndex) {
+        return Paths.get(document.getThumbnailSpritesPath(getLayout()), "sheet_" + sheetIndex + "." + SHEET_FORMAT).toFile();
+    }
+}
@@ -2,6 +2,7 @@ package guraa.pdfcompare.task;
 
 import guraa.pdfcompare.model.Comparison;
 import guraa.pdfcompare.repository.ComparisonRepository;
+import guraa.pdfcompare.service.ComparisonJobScheduler;
 import guraa.pdfcompare.service.ComparisonResultStorage;
 import guraa.pdfcompare.service.ComparisonService;
 import lombok.RequiredArgsConstructor;
@@ -27,6 +28,7 @@ public class ComparisonStatusCheckTask {
     private final ComparisonRepository comparisonRepository;
     private final ComparisonResultStorage resultStorage;
     private final ComparisonService comparisonService;
+    private final ComparisonJobScheduler jobScheduler;
 
     // Flag to track if database is initialized
     private boolean databaseInitialized = false;
@@ -56,6 +58,11 @@ public class ComparisonStatusCheckTask {
                 }
             }
 
+            // Interrupted comparisons are resumed at startup; don't fail them before that has run
+            if (!comparisonService.isRecoveryComplete()) {
+                return;
+            }
+
             // Find all comparisons in PROCESSING or PENDING state
             List<Comparison> inProgressComparisons = comparisonRepository.findAll().stream()
                     .filter(c -> c != null && c.getStatus() != null &&
@@ -77,6 +84,9 @@ public class ComparisonStatusCheckTask {
                             comparison.getId(), comparison.getStatus());
                     comparisonService.updateComparisonStatus(comparison.getId(),
                             Comparison.ComparisonStatus.COMPLETED, null);
+                } else if (jobScheduler.isTracked(comparison.getId())) {
+                    // Queued or running in this instance - the scheduler enforces its own timeout
+                    continue;
                 } else {
                     // No result, check if it's been stuck too long
                     LocalDateTime cutoff = LocalDateTime.now().minusMinutes(MAX_PROCESSING_AGE_MINUTES);
@@ -0,0 +1,220 @@
+package guraa.pdfcompare.util;
+
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Cooperative cancellation of one comparison.
+ * The context is passed down explicitly to the matching, rendering, SSIM and text diff work of
+ * the comparison, which checks it between pages and row bands and stops with a
+ * {@link CancellationException}. Cancelling one comparison never affects another.
+ * Its blocking waits are managed blocks, so a CPU pool worker that waits lets the pool start
+ * a spare worker instead of idling one of its threads.
+ */
+public class CancellationContext {
+
+    /**
+     * A context that is never cancelled, for callers without a comparison to cancel.
+     */
+    public static final CancellationContext NONE = new CancellationContext(null) {
+        @Override
+        public void cancel(String reason) {
+            throw new UnsupportedOperationException("The NONE cancellation context cannot be cancelled");
+        }
+    };
+
+    /**
+     * Key of the context in the options map of a {@code DocumentMatchingStrategy}.
+     */
+    public static final String OPTION_KEY = "cancellation";
+
+    // Blocking waits wake up this often to notice a cancellation
+    private static final long POLL_INTERVAL_MS = 100;
+
+    private final CancellationContext parent;
+    private volatile String reason;
+
+    /**
+     * Create a context that is cancelled only through {@link #cancel(String)}.
+     */
+    public CancellationContext() {
+        this(null);
+    }
+
+    private CancellationContext(CancellationContext parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * Create a child context for a part of the work that can be abandoned on its own, e.g. on a timeout.
+     * The child is cancelled when it or this context is cancelled.
+     *
+     * @return The child context
+     */
+    public CancellationContext child() {
+        return new CancellationContext(this);
+    }
+
+    /**
+     * Get the context passed in a matching options map.
+     *
+     * @param options The options map, may be null
+     * @return The context, or {@link #NONE} if the options carry none
+     */
+    public static CancellationContext fromOptions(Map<String, Object> options) {
+        Object context = options != null ? options.get(OPTION_KEY) : null;
+        return context instanceof CancellationContext ? (CancellationContext) context : NONE;
+    }
+
+    /**
+     * Request cancellation. Work sharing this context stops at its next check.
+     *
+     * @param reason Why the work is cancelled
+     */
+    public void cancel(String reason) {
+        if (this.reason == null) {
+            this.reason = reason != null ? reason : "Cancelled";
+        }
+    }
+
+    /**
+     * Check whether cancellation was requested for this context or its parent.
+     *
+     * @return true if cancelled
+     */
+    public boolean isCancelled() {
+        return reason != null || (parent != null && parent.isCancelled());
+    }
+
+    /**
+     * Stop the calling work if cancellation was requested.
+     *
+     * @throws CancellationException If cancelled
+     */
+    public void throwIfCancelled() {
+        if (isCancelled()) {
+            throw new CancellationException(getReason());
+        }
+    }
+
+    /**
+     * Get the reason cancellation was requested.
+     *
+     * @return The reason, or null if not cancelled
+     */
+    public String getReason() {
+        if (reason != null) {
+            return reason;
+        }
+        return parent != null ? parent.getReason() : null;
+    }
+
+    /**
+     * Wait for a future, giving up as soon as this context is cancelled.
+     *
+     * @param future The future
+     * @param timeout The maximum time to wait
+     * @param unit The unit of the timeout
+     * @return The result of the future
+     * @throws CancellationException If this context is cancelled while waiting
+     * @throws InterruptedException If the thread is interrupted
+     * @throws ExecutionException If the future failed
+     * @throws TimeoutException If the future did not complete in time
+     */
+    public <T> T await(Future<T> future, long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        boolean done = block(timeoutMs -> {
+            try {
+                future.get(timeoutMs, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                return false;
+            } catch (ExecutionException | CancellationException e) {
+                // Rethrown by get() below
+            }
+            return true;
+        }, unit.toNanos(timeout));
+        if (!done) {
+            throw new TimeoutException();
+        }
+        return future.get();
+    }
+
+    /**
+     * Wait for a latch, giving up as soon as this context is cancelled.
+     *
+     * @param latch The latch
+     * @param timeout The maximum time to wait
+     * @param unit The unit of the timeout
+     * @return true if the latch reached zero, false if the timeout elapsed
+     * @throws CancellationException If this context is cancelled while waiting
+     * @throws InterruptedException If the thread is interrupted
+     */
+    public boolean await(CountDownLatch latch, long timeout, TimeUnit unit) throws InterruptedException {
+        return block(timeoutMs -> latch.await(timeoutMs, TimeUnit.MILLISECONDS), unit.toNanos(timeout));
+    }
+
+    /**
+     * Acquire a permit of a semaphore, giving up as soon as this context is cancelled.
+     *
+     * @param semaphore The semaphore
+     * @throws CancellationException If this context is cancelled while waiting
+     * @throws InterruptedException If the thread is interrupted
+     */
+    public void acquire(Semaphore semaphore) throws InterruptedException {
+        if (!semaphore.tryAcquire()) {
+            block(timeoutMs -> semaphore.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS), Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Poll in slices of at most {@link #POLL_INTERVAL_MS} inside a managed block until the
+     * wait is over, the timeout elapses or this context is cancelled.
+     *
+     * @return true if the wait is over, false if the timeout elapsed
+     */
+    private boolean block(Poll poll, long timeoutNanos) throws InterruptedException {
+        throwIfCancelled();
+        long start = System.nanoTime();
+        boolean[] done = {false};
+        ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+            @Override
+            public boolean block() throws InterruptedException {
+                while (!done[0] && !isCancelled()) {
+                    long remainingMs = TimeUnit.NANOSECONDS.toMillis(timeoutNanos - (System.nanoTime() - start));
+                    if (remainingMs <= 0) {
+                        break;
+                    }
+                    done[0] = poll.poll(Math.min(remainingMs, POLL_INTERVAL_MS));
+                }
+                return true;
+            }
+
+            @Override
+            public boolean isReleasable() {
+                return done[0] || isCancelled();
+            }
+        });
+        if (!done[0]) {
+            throwIfCancelled();
+        }
+        return done[0];
+    }
+
+    /**
+     * One slice of a blocking wait.
+     */
+    @FunctionalInterface
+    private interface Poll {
+        /**
+         * @return true if the wait is over
+         */
+        boolean poll(long timeoutMs) throws InterruptedException;
+    }
+}
@@ -2,11 +2,19 @@ package guraa.pdfcompare.util;
 
 import lombok.extern.slf4j.Slf4j;
 
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Dimension;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Iterator;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
@@ -21,6 +29,7 @@ public class FileUtils {
     private static final int DEFAULT_LOCK_TIMEOUT_SECONDS = 10;
     private static final int DEFAULT_RETRY_COUNT = 3;
     private static final int DEFAULT_RETRY_DELAY_MS = 100;
+    private static final int STREAM_BUFFER_SIZE = 1024 * 1024;
 
     /**
      * Private constructor to prevent instantiation.
@@ -310,4 +319,83 @@ public class FileUtils {
         tempFile.deleteOnExit();
         return tempFile;
     }
-}
\ No newline at end of file
+
+    /**
+     * Stream an input into a file while feeding every byte to a digest.
+     * The data is read once into a heap buffer that both the digest and the
+     * file write consume, so the content hash is available as soon as the copy
+     * completes without re-reading the file.
+     *
+     * @param input The input stream to copy
+     * @param target The target file (created or truncated)
+     * @param digest The digest to update with the streamed bytes
+     * @return The number of bytes written
+     * @throws IOException If there is an error reading or writing
+     */
+    public static long copyWithDigest(InputStream input, Path target, MessageDigest digest) throws IOException {
+        byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+        long total = 0;
+
+        try (OutputStream out = Files.newOutputStream(target)) {
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+                out.write(buffer, 0, read);
+                total += read;
+            }
+        }
+
+        return total;
+    }
+
+    /**
+     * Feed every byte of a file to a digest.
+     *
+     * @param file The file to digest
+     * @param digest The digest to update with the file content
+     * @return The number of bytes read
+     * @throws IOException If there is an error reading the file
+     */
+    public static long digestFile(Path file, MessageDigest digest) throws IOException {
+        byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+        long total = 0;
+
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+                total += read;
+            }
+        }
+
+        return total;
+    }
+
+    /**
+     * Read the pixel dimensions of an image file from its header, without decoding the pixels.
+     *
+     * @param file The image file
+     * @return The image dimensions, or null if the format is not recognized
+     * @throws IOException If the file cannot be read
+     */
+    public static Dimension readImageSize(File file) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            if (input == null) {
+                return null;
+            }
+
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                return null;
+            }
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                return new Dimension(reader.getWidth(0), reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package guraa.pdfcompare.util;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Utility class for serving immutable files over HTTP with validators.
+ * Handles strong ETags, Last-Modified, conditional requests (304),
+ * single byte-range requests (206) and zero-copy body transfer.
+ */
+@Slf4j
+public class HttpFileUtils {
+
+    /**
+     * Cache-Control value for content that never changes under a given ETag.
+     */
+    public static final String IMMUTABLE_CACHE_CONTROL = "public, max-age=31536000, immutable";
+
+    // Bodies at least this large are handed to the container's sendfile support
+    private static final long SENDFILE_THRESHOLD_BYTES = 48 * 1024;
+
+    // Tomcat request attributes for sendfile
+    private static final String SENDFILE_SUPPORTED_ATTR = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END_ATTR = "org.apache.tomcat.sendfile.end";
+
+    /**
+     * Private constructor to prevent instantiation.
+     */
+    private HttpFileUtils() {
+        // Utility class, no instances allowed
+    }
+
+    /**
+     * Build a strong ETag from the parts that uniquely determine the content.
+     *
+     * @param parts The identifying parts, e.g. content hash, page and DPI
+     * @return The quoted ETag
+     */
+    public static String strongETag(Object... parts) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < parts.length; i++) {
+            if (i > 0) {
+                sb.append('-');
+            }
+            sb.append(String.valueOf(parts[i]).replace("\"", ""));
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * Serve a file, honouring conditional and range request headers.
+     * The response is fully written when this method returns.
+     *
+     * @param request     The HTTP request
+     * @param response    The HTTP response
+     * @param file        The file to serve
+     * @param etag        The strong ETag of the file content
+     * @param contentType The content type
+     * @throws IOException If the file cannot be sent
+     */
+    public static void serveFile(HttpServletRequest request, HttpServletResponse response,
+                                 File file, String etag, String contentType) throws IOException {
+        long length = file.length();
+        long lastModified = file.lastModified() / 1000 * 1000;
+
+        response.setHeader(HttpHeaders.ETAG, etag);
+        response.setDateHeader(HttpHeaders.LAST_MODIFIED, lastModified);
+        response.setHeader(HttpHeaders.CACHE_CONTROL, IMMUTABLE_CACHE_CONTROL);
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+
+        if (isNotModified(request, etag, lastModified)) {
+            response.setStatus(HttpStatus.NOT_MODIFIED.value());
+            return;
+        }
+
+        response.setContentType(contentType);
+
+        long start = 0;
+        long end = length - 1;
+
+        String range = request.getHeader(HttpHeaders.RANGE);
+        if (range != null && isRangeApplicable(request, etag, lastModified)) {
+            long[] bounds = parseRange(range, length);
+            if (bounds == null) {
+                // Unsatisfiable range
+                response.setStatus(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+                response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+                return;
+            }
+            if (bounds.length == 2) {
+                start = bounds[0];
+                end = bounds[1];
+                response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+                response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length);
+            }
+        }
+
+        long contentLength = end - start + 1;
+        response.setContentLengthLong(contentLength);
+
+        if ("HEAD".equalsIgnoreCase(request.getMethod()) || contentLength <= 0) {
+            return;
+        }
+
+        // Let the container stream large bodies with sendfile (FileChannel.transferTo)
+        if (contentLength >= SENDFILE_THRESHOLD_BYTES &&
+                Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED_ATTR))) {
+            request.setAttribute(SENDFILE_FILENAME_ATTR, file.getCanonicalPath());
+            request.setAttribute(SENDFILE_START_ATTR, start);
+            request.setAttribute(SENDFILE_END_ATTR, end + 1);
+            return;
+        }
+
+        transferFile(file, start, contentLength, response);
+    }
+
+    /**
+     * Check the conditional request headers against the current validators.
+     *
+     * @param request      The HTTP request
+     * @param etag         The current ETag
+     * @param lastModified The last modification time in milliseconds
+     * @return true if the client copy is still current
+     */
+    private static boolean isNotModified(HttpServletRequest request, String etag, long lastModified) {
+        String ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            // If-None-Match takes precedence over If-Modified-Since
+            return matchesETag(ifNoneMatch, etag, true);
+        }
+
+        try {
+            long ifModifiedSince = request.getDateHeader(HttpHeaders.IF_MODIFIED_SINCE);
+            return ifModifiedSince != -1 && lastModified <= ifModifiedSince;
+        } catch (IllegalArgumentException e) {
+            // Malformed date header, ignore it
+            return false;
+        }
+    }
+
+    /**
+     * Check the If-Range precondition, if any.
+     *
+     * @param request      The HTTP request
+     * @param etag         The current ETag
+     * @param lastModified The last modification time in milliseconds
+     * @return true if the Range header should be honoured
+     */
+    private static boolean isRangeApplicable(HttpServletRequest request, String etag, long lastModified) {
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return matchesETag(ifRange, etag, false);
+        }
+        try {
+            return lastModified <= request.getDateHeader(HttpHeaders.IF_RANGE);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static boolean matchesETag(String header, String etag, boolean weakComparison) {
+        for (String candidate : header.split(",")) {
+            String value = candidate.trim();
+            if (value.equals("*")) {
+                return true;
+            }
+            if (value.startsWith("W/")) {
+                if (!weakComparison) {
+                    continue;
+                }
+                value = value.substring(2);
+            }
+            if (value.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parse a byte range header. Only single ranges are served as partial
+     * content; multiple, malformed and invalid ranges fall back to the full body.
+     *
+     * @param header The Range header value
+     * @param length The file length
+     * @return {start, end} for a single range, an empty array to serve the full
+     * body, or null if the range is unsatisfiable
+     */
+    private static long[] parseRange(String header, long length) {
+        if (!header.startsWith("bytes=") || header.indexOf(',') >= 0) {
+            return new long[0];
+        }
+
+        String spec = header.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return new long[0];
+        }
+
+        try {
+            String startPart = spec.substring(0, dash).trim();
+            String endPart = spec.substring(dash + 1).trim();
+            long start;
+            long end;
+
+            if (startPart.isEmpty()) {
+                // Suffix range: the last N bytes
+                long suffix = Long.parseLong(endPart);
+                if (suffix <= 0) {
+                    return null;
+                }
+                start = Math.max(0, length - suffix);
+                end = length - 1;
+            } else {
+                start = Long.parseLong(startPart);
+                if (endPart.isEmpty()) {
+                    end = length - 1;
+                } else {
+                    end = Long.parseLong(endPart);
+                    if (end < start) {
+                        // A last byte before the first is an invalid range, which is ignored
+                        return new long[0];
+                    }
+                    end = Math.min(end, length - 1);
+                }
+            }
+
+            if (start >= length) {
+                return null;
+            }
+            return new long[]{start, end};
+        } catch (NumberFormatException e) {
+            return new long[0];
+        }
+    }
+
+    /**
+     * Copy a file region to the response with FileChannel.transferTo.
+     */
+    private static void transferFile(File file, long start, long count, HttpServletResponse response)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+            long position = start;
+            long remaining = count;
+            while (remaining > 0) {
+                long transferred = channel.transferTo(position, remaining, out);
+                if (transferred <= 0) {
+                    break;
+                }
+                position += transferred;
+                remaining -= transferred;
+            }
+        }
+        response.flushBuffer();
+    }
+}
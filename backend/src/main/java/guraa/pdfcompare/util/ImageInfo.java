@@ -1,5 +1,6 @@
 package guraa.pdfcompare.util;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
@@ -37,15 +38,25 @@ public class ImageInfo {
     private int height;
 
     /**
-     * The x-coordinate of the image in the PDF page.
+     * The x-coordinate of the image in the PDF page, in points.
      */
     private double x;
 
     /**
-     * The y-coordinate of the image in the PDF page.
+     * The y-coordinate of the bottom of the image in the PDF page, in points from the bottom.
      */
     private double y;
 
+    /**
+     * The width the image is drawn at on the page, in points.
+     */
+    private double placedWidth;
+
+    /**
+     * The height the image is drawn at on the page, in points.
+     */
+    private double placedHeight;
+
     /**
      * The page number where the image appears (1-based).
      */
@@ -53,9 +64,20 @@ public class ImageInfo {
 
     /**
      * The hash of the image, used for quick comparison.
+     * For extracted images this is the MD5 digest of the encoded image stream.
      */
     private String hash;
 
+    /**
+     * The high 64 bits of the stream digest, for primitive-keyed matching.
+     */
+    private long digestHigh;
+
+    /**
+     * The low 64 bits of the stream digest, for primitive-keyed matching.
+     */
+    private long digestLow;
+
     /**
      * The image format (e.g., JPEG, PNG).
      */
@@ -96,11 +118,22 @@ public class ImageInfo {
      */
     private String compression;
 
+    /**
+     * Check whether two images have the same stream digest.
+     *
+     * @param other The other image
+     * @return true if the encoded images are identical
+     */
+    public boolean sameDigest(ImageInfo other) {
+        return digestHigh == other.digestHigh && digestLow == other.digestLow;
+    }
+
     /**
      * Get the area of the image.
      *
      * @return The area in square pixels
      */
+    @JsonIgnore
     public int getArea() {
         return width * height;
     }
@@ -110,6 +143,7 @@ public class ImageInfo {
      *
      * @return The aspect ratio (width / height)
      */
+    @JsonIgnore
     public double getAspectRatio() {
         return (double) width / height;
     }
@@ -119,6 +153,7 @@ public class ImageInfo {
      *
      * @return true if the image is landscape, false otherwise
      */
+    @JsonIgnore
     public boolean isLandscape() {
         return width > height;
     }
@@ -128,6 +163,7 @@ public class ImageInfo {
      *
      * @return true if the image is portrait, false otherwise
      */
+    @JsonIgnore
     public boolean isPortrait() {
         return height > width;
     }
@@ -137,6 +173,7 @@ public class ImageInfo {
      *
      * @return true if the image is square, false otherwise
      */
+    @JsonIgnore
     public boolean isSquare() {
         return width == height;
     }
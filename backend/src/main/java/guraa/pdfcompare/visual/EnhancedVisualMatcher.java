@@ -1,23 +1,31 @@
 package guraa.pdfcompare.visual;
 
+import guraa.pdfcompare.model.PageSignature;
 import guraa.pdfcompare.model.PdfDocument;
+import guraa.pdfcompare.service.MemoryGovernor;
+import guraa.pdfcompare.service.PageArtifactService;
 import guraa.pdfcompare.service.PagePair;
+import guraa.pdfcompare.service.ParallelPageRenderer;
 import guraa.pdfcompare.service.PdfRenderingService;
+import guraa.pdfcompare.service.RasterCache;
+import guraa.pdfcompare.util.CancellationContext;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.lang.ref.SoftReference;
 import java.util.*;
 import java.util.List;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -30,16 +38,33 @@ public class EnhancedVisualMatcher implements VisualMatcher {
 
     private final SSIMCalculator ssimCalculator;
     private final PdfRenderingService pdfRenderingService;
+    private final MemoryGovernor memoryGovernor;
+    private final PageArtifactService pageArtifactService;
     private final ExecutorService executorService;
 
-    // Cache of rendered pages to avoid repeated file I/O, using SoftReferences to allow GC when memory is low
-    private final ConcurrentHashMap<String, SoftReference<BufferedImage>> imageCache = new ConcurrentHashMap<>();
+    // Shared off-heap cache holding the matching renders of pages
+    private final RasterCache rasterCache;
+
+    private final ParallelPageRenderer parallelPageRenderer;
+
+    // Tile hashes of the cached page images, which are small enough to keep while the images come and go
+    private final ConcurrentHashMap<String, TileHashes> tileCache = new ConcurrentHashMap<>();
 
     // Cache of similarity scores
     private final ConcurrentHashMap<String, Double> similarityCache = new ConcurrentHashMap<>();
 
-    // Map to track cancellation tokens for comparisons
-    private final ConcurrentHashMap<String, AtomicBoolean> cancellationTokens = new ConcurrentHashMap<>();
+    // Page pairs of each running matching whose score was decided on a coarse pyramid level, which
+    // only accepts or rejects a candidate; keyed by the matching's cancellation context and then by
+    // page pair key. These scores are never cached, and accepted pairs are rescored before assignment
+    private final Map<CancellationContext, Map<String, ComparisonTask>> coarseScores = new ConcurrentHashMap<>();
+
+    // Running render jobs of each matching, keyed by its own cancellation context and then by fileId,
+    // so matchings of the same document never wait for or stop each other's jobs
+    private final Map<CancellationContext, Map<String, ParallelPageRenderer.RenderJob>> renderJobs =
+            new ConcurrentHashMap<>();
+
+    // Documents whose cached page images survive the end of a matching, with their retain counts
+    private final ConcurrentHashMap<String, AtomicInteger> retainedDocuments = new ConcurrentHashMap<>();
 
     /**
      * ComparisonTask class for page comparison tasks
@@ -79,15 +104,60 @@ public class EnhancedVisualMatcher implements VisualMatcher {
      *
      * @param ssimCalculator The optimized SSIM calculator for image comparison
      * @param pdfRenderingService The PDF rendering service
-     * @param executorService The executor service for comparison operations
+     * @param memoryGovernor The memory governor for raster budgets
+     * @param pageArtifactService The page artifact service for pre-computed page signatures
+     * @param executorService The work-stealing pool for CPU-bound comparison work
+     * @param rasterCache The shared raster cache for page images
+     * @param parallelPageRenderer The renderer for pre-rendering pages in parallel
      */
     public EnhancedVisualMatcher(
             SSIMCalculator ssimCalculator,
             PdfRenderingService pdfRenderingService,
-            @Qualifier("comparisonExecutor") ExecutorService executorService) {
+            MemoryGovernor memoryGovernor,
+            PageArtifactService pageArtifactService,
+            @Qualifier("cpuExecutor") ExecutorService executorService,
+            RasterCache rasterCache,
+            ParallelPageRenderer parallelPageRenderer) {
         this.ssimCalculator = ssimCalculator;
         this.pdfRenderingService = pdfRenderingService;
+        this.memoryGovernor = memoryGovernor;
+        this.pageArtifactService = pageArtifactService;
         this.executorService = executorService;
+        this.rasterCache = rasterCache;
+        this.parallelPageRenderer = parallelPageRenderer;
+    }
+
+    /**
+     * Reject tiles smaller than an SSIM window, which the tile-aware comparison cannot score.
+     */
+    @PostConstruct
+    public void validateTileSize() {
+        if (tileSize < SSIMCalculator.WINDOW_SIZE) {
+            throw new IllegalStateException("app.matching.tile-size must be at least " +
+                    SSIMCalculator.WINDOW_SIZE + " pixels, was " + tileSize);
+        }
+    }
+
+    /**
+     * Keep the cached page images of a document across matchings until it is released.
+     * Batch comparisons retain a document that several of their comparisons share.
+     *
+     * @param document The document
+     */
+    public void retainDocument(PdfDocument document) {
+        retainedDocuments.computeIfAbsent(document.getFileId(), id -> new AtomicInteger()).incrementAndGet();
+    }
+
+    /**
+     * Release a document retained with {@link #retainDocument(PdfDocument)} and drop its cached
+     * page images once no one retains it any more.
+     *
+     * @param document The document
+     */
+    public void releaseDocument(PdfDocument document) {
+        retainedDocuments.computeIfPresent(document.getFileId(),
+                (id, count) -> count.decrementAndGet() > 0 ? count : null);
+        releasePageImages(document);
     }
 
     @Value("${app.matching.visual-similarity-threshold:0.7}")
@@ -114,55 +184,130 @@ public class EnhancedVisualMatcher implements VisualMatcher {
     @Value("${app.matching.retry-delay-ms:50}")
     private int retryDelayMs;
 
-    @Value("${app.matching.image-scale-factor:0.5}")
-    private float imageScaleFactor = 0.5f;
+    @Value("${app.matching.tile-size:32}")
+    private int tileSize = 32;
+
+    @Value("${app.matching.pyramid-margin:0.1}")
+    private double pyramidMargin = 0.1;
+
+    @Value("${app.matching.page-render-wait-seconds:60}")
+    private long pageRenderWaitSeconds = 60;
 
     @Override
-    public List<PagePair> matchPages(PdfDocument baseDocument, PdfDocument compareDocument) throws IOException {
+    public List<PagePair> matchPages(PdfDocument baseDocument, PdfDocument compareDocument,
+                                     CancellationContext cancellation) throws IOException {
         log.info("Starting visual matching between documents: {} and {}",
                 baseDocument.getFileId(), compareDocument.getFileId());
 
         long startTime = System.currentTimeMillis();
+        // The render jobs of this matching are registered under a context of its own
+        CancellationContext matching = cancellation.child();
 
-        try {
-            // Pre-render some pages in parallel for both documents
-            CompletableFuture<Void> preRenderingFuture = preRenderSomePages(baseDocument, compareDocument);
+        // Pages with identical content are paired up front and never rendered
+        Map<Integer, Integer> identicalPages = findIdenticalPages(baseDocument, 1, baseDocument.getPageCount(),
+                compareDocument, 1, compareDocument.getPageCount());
 
+        // Render the pages in parallel while they are compared; each comparison waits only for its own pages
+        List<ParallelPageRenderer.RenderJob> renderJobs = startRenderJobs(baseDocument, 1, baseDocument.getPageCount(),
+                compareDocument, 1, compareDocument.getPageCount(), identicalPages, matching);
+        coarseScores.put(matching, new ConcurrentHashMap<>());
+        try {
             // Calculate similarity scores for page pairs
             Map<String, Double> similarityScores;
 
             if (useProgressiveMatching) {
-                similarityScores = calculateSimilarityScoresProgressively(baseDocument, compareDocument);
+                similarityScores = calculateSimilarityScoresProgressively(baseDocument, compareDocument,
+                        identicalPages, matching);
             } else {
-                similarityScores = calculateSimilarityScores(baseDocument, compareDocument);
-            }
-
-            // Wait for pre-rendering to complete if it hasn't already (with a timeout)
-            try {
-                preRenderingFuture.get(30, TimeUnit.SECONDS);
-            } catch (Exception e) {
-                log.warn("Timeout waiting for page pre-rendering. Continuing with partial results.");
+                similarityScores = calculateSimilarityScores(baseDocument, compareDocument, identicalPages, matching);
             }
+            refineCoarseScores(similarityScores, matching);
+            putIdenticalScores(baseDocument, compareDocument, identicalPages, similarityScores);
+            matching.throwIfCancelled();
 
             // Match pages using the Hungarian algorithm
             List<PagePair> pagePairs = matchPagesUsingHungarian(baseDocument, compareDocument, similarityScores);
+            finishMatchedPairs(baseDocument, compareDocument, pagePairs, matching);
 
             long endTime = System.currentTimeMillis();
             log.info("Completed visual matching between documents: {} and {} in {}ms",
                     baseDocument.getFileId(), compareDocument.getFileId(), (endTime - startTime));
 
-            // Clear the image cache after matching to free memory
-            clearImageCache();
+            // Release the page images after matching to free memory
+            releasePageImages(baseDocument);
+            releasePageImages(compareDocument);
 
             return pagePairs;
+        } catch (CancellationException e) {
+            log.info("Visual matching between documents {} and {} was cancelled",
+                    baseDocument.getFileId(), compareDocument.getFileId());
+            // Release the cached page rasters right away
+            releasePageImages(baseDocument);
+            releasePageImages(compareDocument);
+            throw e;
         } catch (Exception e) {
             log.error("Error during visual matching: {}", e.getMessage(), e);
             throw new IOException("Visual matching failed", e);
+        } finally {
+            stopRenderJobs(renderJobs, matching);
+            coarseScores.remove(matching);
         }
     }
 
     /**
-     * Match pages using the Hungarian algorithm.
+     * Match the pages of a range of one document to a range of another.
+     * Every page pair of the two ranges is scored, so the work grows with the product of the
+     * range lengths rather than of the document lengths.
+     *
+     * @param baseDocument The base document
+     * @param compareDocument The compare document
+     * @param baseStart The first base page of the range
+     * @param baseEnd The last base page of the range
+     * @param compareStart The first compare page of the range
+     * @param compareEnd The last compare page of the range
+     * @param cancellation The cancellation context of the comparison
+     * @return The page pairs of the ranges, with unmatched pages of either range
+     * @throws IOException If there is an error matching the pages
+     */
+    public List<PagePair> matchPageRange(PdfDocument baseDocument, PdfDocument compareDocument,
+                                         int baseStart, int baseEnd, int compareStart, int compareEnd,
+                                         CancellationContext cancellation) throws IOException {
+        log.debug("Matching base pages {}-{} of {} to compare pages {}-{} of {}",
+                baseStart, baseEnd, baseDocument.getFileId(), compareStart, compareEnd, compareDocument.getFileId());
+        CancellationContext matching = cancellation.child();
+
+        Map<Integer, Integer> identicalPages = findIdenticalPages(baseDocument, baseStart, baseEnd,
+                compareDocument, compareStart, compareEnd);
+        List<ParallelPageRenderer.RenderJob> renderJobs = startRenderJobs(baseDocument, baseStart, baseEnd,
+                compareDocument, compareStart, compareEnd, identicalPages, matching);
+        coarseScores.put(matching, new ConcurrentHashMap<>());
+        try {
+            Map<String, Double> similarityScores = calculateSimilarityScores(baseDocument, compareDocument,
+                    baseStart, baseEnd, compareStart, compareEnd, identicalPages, matching);
+            refineCoarseScores(similarityScores, matching);
+            putIdenticalScores(baseDocument, compareDocument, identicalPages, similarityScores);
+            matching.throwIfCancelled();
+
+            List<PagePair> pagePairs = matchPagesUsingHungarian(baseDocument, compareDocument,
+                    baseStart, baseEnd - baseStart + 1, compareStart, compareEnd - compareStart + 1, similarityScores);
+            finishMatchedPairs(baseDocument, compareDocument, pagePairs, matching);
+            return pagePairs;
+        } catch (CancellationException e) {
+            throw e;
+        } catch (Exception e) {
+            log.error("Error matching page ranges: {}", e.getMessage(), e);
+            throw new IOException("Visual matching of page ranges failed", e);
+        } finally {
+            stopRenderJobs(renderJobs, matching);
+            coarseScores.remove(matching);
+            // Ranges are matched one after another, so their page images are not needed again
+            releasePageImages(baseDocument);
+            releasePageImages(compareDocument);
+        }
+    }
+
+    /**
+     * Match all pages of two documents using the Hungarian algorithm.
      *
      * @param baseDocument The base document
      * @param compareDocument The compare document
@@ -172,9 +317,26 @@ public class EnhancedVisualMatcher implements VisualMatcher {
     private List<PagePair> matchPagesUsingHungarian(
             PdfDocument baseDocument, PdfDocument compareDocument,
             Map<String, Double> similarityScores) {
+        return matchPagesUsingHungarian(baseDocument, compareDocument, 1, baseDocument.getPageCount(),
+                1, compareDocument.getPageCount(), similarityScores);
+    }
 
-        int basePageCount = baseDocument.getPageCount();
-        int comparePageCount = compareDocument.getPageCount();
+    /**
+     * Match the pages of a range of one document to a range of another using the Hungarian algorithm.
+     *
+     * @param baseDocument The base document
+     * @param compareDocument The compare document
+     * @param baseStart The first base page of the range
+     * @param basePageCount The number of base pages in the range
+     * @param compareStart The first compare page of the range
+     * @param comparePageCount The number of compare pages in the range
+     * @param similarityScores The similarity scores for the page pairs of the ranges
+     * @return A list of page pairs
+     */
+    private List<PagePair> matchPagesUsingHungarian(
+            PdfDocument baseDocument, PdfDocument compareDocument,
+            int baseStart, int basePageCount, int compareStart, int comparePageCount,
+            Map<String, Double> similarityScores) {
 
         // Create a cost matrix for the Hungarian algorithm
         double[][] costMatrix = new double[basePageCount][comparePageCount];
@@ -183,8 +345,8 @@ public class EnhancedVisualMatcher implements VisualMatcher {
         // (Hungarian algorithm minimizes cost, but we want to maximize similarity)
         for (int i = 0; i < basePageCount; i++) {
             for (int j = 0; j < comparePageCount; j++) {
-                String key = baseDocument.getFileId() + "_" + (i + 1) + "_" +
-                        compareDocument.getFileId() + "_" + (j + 1);
+                String key = baseDocument.getFileId() + "_" + (baseStart + i) + "_" +
+                        compareDocument.getFileId() + "_" + (compareStart + j);
 
                 double similarity = similarityScores.getOrDefault(key, 0.0);
 
@@ -211,18 +373,18 @@ public class EnhancedVisualMatcher implements VisualMatcher {
             PagePair.PagePairBuilder builder = PagePair.builder()
                     .baseDocumentId(baseDocument.getFileId())
                     .compareDocumentId(compareDocument.getFileId())
-                    .basePageNumber(i + 1);
+                    .basePageNumber(baseStart + i);
 
             // If the page is matched
             if (j != -1 && j < comparePageCount) {
-                String key = baseDocument.getFileId() + "_" + (i + 1) + "_" +
-                        compareDocument.getFileId() + "_" + (j + 1);
+                String key = baseDocument.getFileId() + "_" + (baseStart + i) + "_" +
+                        compareDocument.getFileId() + "_" + (compareStart + j);
 
                 double similarity = similarityScores.getOrDefault(key, 0.0);
 
                 // If the similarity is above the threshold, mark as matched
                 if (similarity >= visualSimilarityThreshold) {
-                    builder.comparePageNumber(j + 1)
+                    builder.comparePageNumber(compareStart + j)
                             .matched(true)
                             .similarityScore(similarity);
                 } else {
@@ -250,7 +412,7 @@ public class EnhancedVisualMatcher implements VisualMatcher {
                 pagePairs.add(PagePair.builder()
                         .baseDocumentId(baseDocument.getFileId())
                         .compareDocumentId(compareDocument.getFileId())
-                        .comparePageNumber(j + 1)
+                        .comparePageNumber(compareStart + j)
                         .matched(false)
                         .build());
             }
@@ -373,79 +535,89 @@ public class EnhancedVisualMatcher implements VisualMatcher {
     }
 
     /**
-     * Pre-render some pages of both documents (first few pages and some samples).
+     * Start rendering the matching renders of two page ranges in parallel, one job per document.
+     * While a job runs, {@link #getPageImage} waits for the page from the job instead of rendering
+     * it on its own, so the first page pairs are compared while later pages are still rendering.
      *
      * @param baseDocument The base document
+     * @param baseStart The first base page
+     * @param baseEnd The last base page
      * @param compareDocument The compare document
-     * @return A CompletableFuture representing the pre-rendering task
+     * @param compareStart The first compare page
+     * @param compareEnd The last compare page
+     * @param identicalPages The pairs of pages with identical content, which are not rendered
+     * @param cancellation The cancellation context of this matching, which the jobs are registered under
+     * @return The started jobs, to be stopped with {@link #stopRenderJobs}
      */
-    private CompletableFuture<Void> preRenderSomePages(PdfDocument baseDocument, PdfDocument compareDocument) {
-        // Submit tasks to pre-render strategically important pages
-        CompletableFuture<Void> baseRenderingFuture = CompletableFuture.runAsync(() -> {
-            try {
-                // Render first few pages and some samples throughout the document
-                preRenderKeyPages(baseDocument);
-            } catch (IOException e) {
-                log.error("Error pre-rendering base document: {}", e.getMessage(), e);
+    private List<ParallelPageRenderer.RenderJob> startRenderJobs(
+            PdfDocument baseDocument, int baseStart, int baseEnd,
+            PdfDocument compareDocument, int compareStart, int compareEnd,
+            Map<Integer, Integer> identicalPages, CancellationContext cancellation) {
+        Set<Integer> identicalComparePages = new HashSet<>(identicalPages.values());
+        Map<String, Set<Integer>> pagesByDocument = new LinkedHashMap<>();
+        Map<String, PdfDocument> documents = new HashMap<>();
+        for (int page = baseStart; page <= baseEnd; page++) {
+            if (!identicalPages.containsKey(page)) {
+                pagesByDocument.computeIfAbsent(baseDocument.getFileId(), id -> new TreeSet<>()).add(page);
             }
-        }, executorService);
-
-        CompletableFuture<Void> compareRenderingFuture = CompletableFuture.runAsync(() -> {
-            try {
-                // Render first few pages and some samples throughout the document
-                preRenderKeyPages(compareDocument);
-            } catch (IOException e) {
-                log.error("Error pre-rendering compare document: {}", e.getMessage(), e);
+        }
+        for (int page = compareStart; page <= compareEnd; page++) {
+            if (!identicalComparePages.contains(page)) {
+                pagesByDocument.computeIfAbsent(compareDocument.getFileId(), id -> new TreeSet<>()).add(page);
             }
-        }, executorService);
-
-        // Combine both futures
-        return CompletableFuture.allOf(baseRenderingFuture, compareRenderingFuture);
+        }
+        documents.put(baseDocument.getFileId(), baseDocument);
+        documents.put(compareDocument.getFileId(), compareDocument);
+
+        List<ParallelPageRenderer.RenderJob> jobs = new ArrayList<>();
+        Map<String, ParallelPageRenderer.RenderJob> jobsByDocument = new HashMap<>();
+        for (Map.Entry<String, Set<Integer>> entry : pagesByDocument.entrySet()) {
+            ParallelPageRenderer.RenderJob job = parallelPageRenderer.render(documents.get(entry.getKey()),
+                    entry.getValue(), ParallelPageRenderer.Target.MATCHING, cancellation);
+            jobsByDocument.put(entry.getKey(), job);
+            jobs.add(job);
+        }
+        renderJobs.put(cancellation, jobsByDocument);
+        return jobs;
     }
 
     /**
-     * Pre-render key pages of a document (first few pages and some samples).
+     * Stop render jobs started by {@link #startRenderJobs}. Pages still queued are not rendered.
      *
-     * @param document The document
-     * @throws IOException If there is an error rendering the pages
+     * @param jobs The jobs
+     * @param cancellation The cancellation context the jobs were started with
      */
-    private void preRenderKeyPages(PdfDocument document) throws IOException {
-        int pageCount = document.getPageCount();
-        Set<Integer> pagesToRender = new HashSet<>();
-
-        // Always render first 3 pages
-        for (int i = 1; i <= Math.min(3, pageCount); i++) {
-            pagesToRender.add(i);
-        }
-
-        // Add a few sample pages throughout the document
-        if (pageCount > 10) {
-            pagesToRender.add(pageCount / 4);
-            pagesToRender.add(pageCount / 2);
-            pagesToRender.add(3 * pageCount / 4);
-            pagesToRender.add(pageCount); // Last page
+    private void stopRenderJobs(List<ParallelPageRenderer.RenderJob> jobs, CancellationContext cancellation) {
+        renderJobs.remove(cancellation);
+        for (ParallelPageRenderer.RenderJob job : jobs) {
+            job.cancel();
         }
+    }
 
-        // Render the selected pages
-        List<CompletableFuture<Void>> renderTasks = new ArrayList<>();
-        for (int pageNumber : pagesToRender) {
-            CompletableFuture<Void> task = CompletableFuture.runAsync(() -> {
-                try {
-                    pdfRenderingService.renderPage(document, pageNumber);
-                } catch (Exception e) {
-                    log.warn("Error pre-rendering page {} of document {}: {}",
-                            pageNumber, document.getFileId(), e.getMessage());
-                }
-            }, executorService);
-            renderTasks.add(task);
+    /**
+     * Wait until a running render job has rendered a page. Pages without a job, and pages whose
+     * job failed or is too slow, are rendered by the caller instead.
+     *
+     * @param document The document
+     * @param pageNumber The page number
+     * @param cancellation The cancellation context of the comparison
+     * @throws CancellationException If the comparison is cancelled
+     */
+    private void awaitRendered(PdfDocument document, int pageNumber, CancellationContext cancellation) {
+        Map<String, ParallelPageRenderer.RenderJob> jobs = renderJobs.get(cancellation);
+        ParallelPageRenderer.RenderJob job = jobs != null ? jobs.get(document.getFileId()) : null;
+        if (job == null || !job.includes(pageNumber)) {
+            return;
         }
-
-        // Wait for all tasks to complete
         try {
-            CompletableFuture.allOf(renderTasks.toArray(new CompletableFuture[0]))
-                    .get(1, TimeUnit.MINUTES);
-        } catch (Exception e) {
-            log.warn("Timeout or error waiting for page pre-rendering: {}", e.getMessage());
+            cancellation.await(job.page(pageNumber), pageRenderWaitSeconds, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted while waiting for page " + pageNumber);
+        } catch (ExecutionException | TimeoutException | CancellationException e) {
+            cancellation.throwIfCancelled();
+            log.debug("Page {} of document {} was not rendered in parallel, rendering it now: {}",
+                    pageNumber, document.getFileId(), e.getMessage());
         }
     }
 
@@ -455,15 +627,20 @@ public class EnhancedVisualMatcher implements VisualMatcher {
      *
      * @param baseDocument The base document
      * @param compareDocument The compare document
+     * @param identicalPages The pairs of pages with identical content, whose pages are not compared
+     * @param cancellation The cancellation context
      * @return A map of page pair keys to similarity scores
      */
     private Map<String, Double> calculateSimilarityScoresProgressively(
-            PdfDocument baseDocument, PdfDocument compareDocument) {
+            PdfDocument baseDocument, PdfDocument compareDocument, Map<Integer, Integer> identicalPages,
+            CancellationContext cancellation) {
 
         Map<String, Double> similarityScores = new ConcurrentHashMap<>();
+        Set<Integer> identicalComparePages = new HashSet<>(identicalPages.values());
 
         // First, try matching pages with the same page numbers
-        Map<String, Double> samePageMatches = calculateSamePageSimilarities(baseDocument, compareDocument);
+        Map<String, Double> samePageMatches = calculateSamePageSimilarities(baseDocument, compareDocument,
+                identicalPages, cancellation);
         similarityScores.putAll(samePageMatches);
 
         // Identify pages that need further matching (similarity below threshold)
@@ -471,6 +648,9 @@ public class EnhancedVisualMatcher implements VisualMatcher {
         Set<Integer> unmatchedComparePages = new HashSet<>();
 
         for (int i = 1; i <= baseDocument.getPageCount(); i++) {
+            if (identicalPages.containsKey(i)) {
+                continue;
+            }
             String key = createKey(baseDocument.getFileId(), i, compareDocument.getFileId(), i);
             if (!similarityScores.containsKey(key) ||
                     similarityScores.get(key) < visualSimilarityThreshold) {
@@ -479,6 +659,9 @@ public class EnhancedVisualMatcher implements VisualMatcher {
         }
 
         for (int i = 1; i <= compareDocument.getPageCount(); i++) {
+            if (identicalComparePages.contains(i)) {
+                continue;
+            }
             String key = createKey(baseDocument.getFileId(), i, compareDocument.getFileId(), i);
             if (!similarityScores.containsKey(key) ||
                     similarityScores.get(key) < visualSimilarityThreshold) {
@@ -492,7 +675,7 @@ public class EnhancedVisualMatcher implements VisualMatcher {
         // For unmatched pages, try nearby pages first
         if (!unmatchedBasePages.isEmpty() && !unmatchedComparePages.isEmpty()) {
             Map<String, Double> nearbyMatches = calculateNearbyPageSimilarities(
-                    baseDocument, compareDocument, unmatchedBasePages, unmatchedComparePages);
+                    baseDocument, compareDocument, unmatchedBasePages, unmatchedComparePages, cancellation);
             similarityScores.putAll(nearbyMatches);
         }
 
@@ -502,7 +685,7 @@ public class EnhancedVisualMatcher implements VisualMatcher {
 
             log.info("Using fallback distant matching for remaining unmatched pages");
             Map<String, Double> distantMatches = calculateDistantPageSimilarities(
-                    baseDocument, compareDocument, unmatchedBasePages, unmatchedComparePages);
+                    baseDocument, compareDocument, unmatchedBasePages, unmatchedComparePages, cancellation);
             similarityScores.putAll(distantMatches);
         }
 
@@ -514,12 +697,16 @@ public class EnhancedVisualMatcher implements VisualMatcher {
      *
      * @param baseDocument The base document
      * @param compareDocument The compare document
+     * @param identicalPages The pairs of pages with identical content, whose pages are not compared
+     * @param cancellation The cancellation context
      * @return A map of page pair keys to similarity scores
      */
     private Map<String, Double> calculateSamePageSimilarities(
-            PdfDocument baseDocument, PdfDocument compareDocument) {
+            PdfDocument baseDocument, PdfDocument compareDocument, Map<Integer, Integer> identicalPages,
+            CancellationContext cancellation) {
 
         Map<String, Double> matches = new ConcurrentHashMap<>();
+        Set<Integer> identicalComparePages = new HashSet<>(identicalPages.values());
 
         int minPages = Math.min(baseDocument.getPageCount(), compareDocument.getPageCount());
 
@@ -532,11 +719,14 @@ public class EnhancedVisualMatcher implements VisualMatcher {
         List<CompletableFuture<Void>> tasks = new ArrayList<>();
         for (int pageNum = 1; pageNum <= minPages; pageNum++) {
             final int pageNumber = pageNum;
+            if (identicalPages.containsKey(pageNumber) || identicalComparePages.contains(pageNumber)) {
+                continue;
+            }
 
             tasks.add(CompletableFuture.runAsync(() -> {
                 try {
                     // Acquire permit
-                    semaphore.acquire();
+                    cancellation.acquire(semaphore);
 
                     try {
                         String key = createKey(baseDocument.getFileId(), pageNumber,
@@ -547,10 +737,10 @@ public class EnhancedVisualMatcher implements VisualMatcher {
                             matches.put(key, similarityCache.get(key));
                         } else {
                             double similarity = calculateSimilarityWithRetry(
-                                    baseDocument, compareDocument, pageNumber, pageNumber);
+                                    baseDocument, compareDocument, pageNumber, pageNumber, cancellation);
 
                             matches.put(key, similarity);
-                            similarityCache.put(key, similarity);
+                            cacheScore(key, similarity, cancellation);
                         }
 
                         // Log progress
@@ -562,6 +752,8 @@ public class EnhancedVisualMatcher implements VisualMatcher {
                         // Always release the permit
                         semaphore.release();
                     }
+                } catch (CancellationException e) {
+                    // Abandoned along with the comparison
                 } catch (Exception e) {
                     log.error("Error in same-page matching for page {}: {}", pageNumber, e.getMessage());
                 }
@@ -570,8 +762,10 @@ public class EnhancedVisualMatcher implements VisualMatcher {
 
         // Wait for all tasks to complete
         try {
-            CompletableFuture.allOf(tasks.toArray(new CompletableFuture[0])).get(
+            cancellation.await(CompletableFuture.allOf(tasks.toArray(new CompletableFuture[0])),
                     timeoutMinutes, TimeUnit.MINUTES);
+        } catch (CancellationException e) {
+            throw e;
         } catch (Exception e) {
             log.warn("Timeout or error in same-page matching: {}", e.getMessage());
         }
@@ -586,11 +780,13 @@ public class EnhancedVisualMatcher implements VisualMatcher {
      * @param compareDocument The compare document
      * @param unmatchedBasePages Set of unmatched base page numbers
      * @param unmatchedComparePages Set of unmatched compare page numbers
+     * @param cancellation The cancellation context
      * @return A map of page pair keys to similarity scores
      */
     private Map<String, Double> calculateNearbyPageSimilarities(
             PdfDocument baseDocument, PdfDocument compareDocument,
-            Set<Integer> unmatchedBasePages, Set<Integer> unmatchedComparePages) {
+            Set<Integer> unmatchedBasePages, Set<Integer> unmatchedComparePages,
+            CancellationContext cancellation) {
 
         Map<String, Double> matches = new ConcurrentHashMap<>();
 
@@ -650,15 +846,17 @@ public class EnhancedVisualMatcher implements VisualMatcher {
 
             completionService.submit(() -> {
                 try {
-                    semaphore.acquire();
+                    cancellation.acquire(semaphore);
                     try {
                         double similarity = calculateSimilarityWithRetry(
                                 task.baseDocument, task.compareDocument,
-                                task.basePageNum, task.comparePageNum);
+                                task.basePageNum, task.comparePageNum, cancellation);
                         return new ComparisonResult(task.key, similarity);
                     } finally {
                         semaphore.release();
                     }
+                } catch (CancellationException e) {
+                    throw e;
                 } catch (Exception e) {
                     log.error("Error calculating similarity: {}", e.getMessage());
                     return new ComparisonResult(task.key, 0.0);
@@ -671,6 +869,7 @@ public class EnhancedVisualMatcher implements VisualMatcher {
         long timeout = TimeUnit.MINUTES.toMillis(timeoutMinutes);
 
         for (int i = 0; i < Math.min(totalTasks, initialBatchSize * 4); i++) {
+            cancellation.throwIfCancelled();
             try {
                 // Check timeout
                 long elapsed = System.currentTimeMillis() - startTime;
@@ -693,7 +892,7 @@ public class EnhancedVisualMatcher implements VisualMatcher {
 
                 // Process result
                 matches.put(result.key, result.similarity);
-                similarityCache.put(result.key, result.similarity);
+                cacheScore(result.key, result.similarity, cancellation);
 
                 int completed = completedTasks.incrementAndGet();
 
@@ -707,15 +906,17 @@ public class EnhancedVisualMatcher implements VisualMatcher {
                 if (nextTask != null) {
                     completionService.submit(() -> {
                         try {
-                            semaphore.acquire();
+                            cancellation.acquire(semaphore);
                             try {
                                 double similarity = calculateSimilarityWithRetry(
                                         nextTask.baseDocument, nextTask.compareDocument,
-                                        nextTask.basePageNum, nextTask.comparePageNum);
+                                        nextTask.basePageNum, nextTask.comparePageNum, cancellation);
                                 return new ComparisonResult(nextTask.key, similarity);
                             } finally {
                                 semaphore.release();
                             }
+                        } catch (CancellationException e) {
+                            throw e;
                         } catch (Exception e) {
                             log.error("Error calculating similarity: {}", e.getMessage());
                             return new ComparisonResult(nextTask.key, 0.0);
@@ -739,11 +940,13 @@ public class EnhancedVisualMatcher implements VisualMatcher {
      * @param compareDocument The compare document
      * @param unmatchedBasePages Set of unmatched base page numbers
      * @param unmatchedComparePages Set of unmatched compare page numbers
+     * @param cancellation The cancellation context
      * @return A map of page pair keys to similarity scores
      */
     private Map<String, Double> calculateDistantPageSimilarities(
             PdfDocument baseDocument, PdfDocument compareDocument,
-            Set<Integer> unmatchedBasePages, Set<Integer> unmatchedComparePages) {
+            Set<Integer> unmatchedBasePages, Set<Integer> unmatchedComparePages,
+            CancellationContext cancellation) {
 
         Map<String, Double> matches = new ConcurrentHashMap<>();
 
@@ -790,16 +993,18 @@ public class EnhancedVisualMatcher implements VisualMatcher {
 
                 tasks.add(CompletableFuture.runAsync(() -> {
                     try {
-                        semaphore.acquire();
+                        cancellation.acquire(semaphore);
                         try {
                             double similarity = calculateSimilarityWithRetry(
-                                    baseDocument, compareDocument, finalBasePageNum, finalComparePageNum);
+                                    baseDocument, compareDocument, finalBasePageNum, finalComparePageNum, cancellation);
 
                             matches.put(finalKey, similarity);
-                            similarityCache.put(finalKey, similarity);
+                            cacheScore(finalKey, similarity, cancellation);
                         } finally {
                             semaphore.release();
                         }
+                    } catch (CancellationException e) {
+                        // Abandoned along with the comparison
                     } catch (Exception e) {
                         log.error("Error in distant page matching: {}", e.getMessage());
                     }
@@ -820,8 +1025,10 @@ public class EnhancedVisualMatcher implements VisualMatcher {
 
         // Wait for all tasks with a timeout
         try {
-            CompletableFuture.allOf(tasks.toArray(new CompletableFuture[0]))
-                    .get(timeoutMinutes / 2, TimeUnit.MINUTES);
+            cancellation.await(CompletableFuture.allOf(tasks.toArray(new CompletableFuture[0])),
+                    timeoutMinutes / 2, TimeUnit.MINUTES);
+        } catch (CancellationException e) {
+            throw e;
         } catch (Exception e) {
             log.warn("Timeout or error in distant page matching: {}", e.getMessage());
         }
@@ -835,10 +1042,38 @@ public class EnhancedVisualMatcher implements VisualMatcher {
      *
      * @param baseDocument The base document
      * @param compareDocument The compare document
+     * @param identicalPages The pairs of pages with identical content, whose pages are not compared
+     * @param cancellation The cancellation context
      * @return A map of page pair keys to similarity scores
      */
-    private Map<String, Double> calculateSimilarityScores(PdfDocument baseDocument, PdfDocument compareDocument) {
+    private Map<String, Double> calculateSimilarityScores(PdfDocument baseDocument, PdfDocument compareDocument,
+                                                          Map<Integer, Integer> identicalPages,
+                                                          CancellationContext cancellation) {
+        return calculateSimilarityScores(baseDocument, compareDocument, 1, baseDocument.getPageCount(),
+                1, compareDocument.getPageCount(), identicalPages, cancellation);
+    }
+
+    /**
+     * Calculate similarity scores for all page pairs of a range of one document and a range of another.
+     *
+     * @param baseDocument The base document
+     * @param compareDocument The compare document
+     * @param baseStart The first base page of the range
+     * @param baseEnd The last base page of the range
+     * @param compareStart The first compare page of the range
+     * @param compareEnd The last compare page of the range
+     * @param identicalPages The pairs of pages with identical content, whose pages are not compared
+     * @param cancellation The cancellation context
+     * @return A map of page pair keys to similarity scores
+     */
+    private Map<String, Double> calculateSimilarityScores(PdfDocument baseDocument, PdfDocument compareDocument,
+                                                          int baseStart, int baseEnd, int compareStart, int compareEnd,
+                                                          Map<Integer, Integer> identicalPages,
+                                                          CancellationContext cancellation) {
+        int basePageCount = baseEnd - baseStart + 1;
+        int comparePageCount = compareEnd - compareStart + 1;
         Map<String, Double> similarityScores = new ConcurrentHashMap<>();
+        Set<Integer> identicalComparePages = new HashSet<>(identicalPages.values());
         List<CompletableFuture<Void>> futures = new ArrayList<>();
 
         // Use a semaphore to limit concurrent comparisons
@@ -846,19 +1081,25 @@ public class EnhancedVisualMatcher implements VisualMatcher {
 
         // Track progress for logging
         AtomicInteger completedComparisons = new AtomicInteger(0);
-        int totalComparisons = baseDocument.getPageCount() * compareDocument.getPageCount();
+        int totalComparisons = basePageCount * comparePageCount;
 
-        // For each page in the base document
-        for (int basePageNumber = 1; basePageNumber <= baseDocument.getPageCount(); basePageNumber++) {
+        // For each page in the base range
+        for (int basePageNumber = baseStart; basePageNumber <= baseEnd; basePageNumber++) {
             final int basePageNum = basePageNumber;
 
-            // For each page in the compare document
-            for (int comparePageNumber = 1; comparePageNumber <= compareDocument.getPageCount(); comparePageNumber++) {
+            // For each page in the compare range
+            for (int comparePageNumber = compareStart; comparePageNumber <= compareEnd; comparePageNumber++) {
                 final int comparePageNum = comparePageNumber;
 
-                // Skip pages that are too far apart for large documents (optimization)
-                if (baseDocument.getPageCount() > 30 && compareDocument.getPageCount() > 30) {
-                    if (Math.abs(basePageNum - comparePageNum) > maxComparisonDistance) {
+                // Pages with identical content are already paired
+                if (identicalPages.containsKey(basePageNum) || identicalComparePages.contains(comparePageNum)) {
+                    completedComparisons.incrementAndGet();
+                    continue;
+                }
+
+                // Skip pages that are too far apart for large ranges (optimization)
+                if (basePageCount > 30 && comparePageCount > 30) {
+                    if (Math.abs((basePageNum - baseStart) - (comparePageNum - compareStart)) > maxComparisonDistance) {
                         completedComparisons.incrementAndGet();
                         continue;
                     }
@@ -879,13 +1120,14 @@ public class EnhancedVisualMatcher implements VisualMatcher {
                 CompletableFuture<Void> future = CompletableFuture.runAsync(() -> {
                     try {
                         // Acquire permit from semaphore to limit concurrent operations
-                        semaphore.acquire();
+                        cancellation.acquire(semaphore);
 
                         try {
-                            double similarity = calculateSimilarityWithRetry(baseDocument, compareDocument, basePageNum, comparePageNum);
+                            double similarity = calculateSimilarityWithRetry(
+                                    baseDocument, compareDocument, basePageNum, comparePageNum, cancellation);
 
                             // Cache the score
-                            similarityCache.put(key, similarity);
+                            cacheScore(key, similarity, cancellation);
                             similarityScores.put(key, similarity);
 
                             // Log progress periodically
@@ -901,6 +1143,8 @@ public class EnhancedVisualMatcher implements VisualMatcher {
                     } catch (InterruptedException e) {
                         Thread.currentThread().interrupt();
                         log.error("Thread interrupted while waiting for semaphore", e);
+                    } catch (CancellationException e) {
+                        // Abandoned along with the comparison
                     } catch (Exception e) {
                         log.error("Error calculating similarity for pages {} and {}: {}",
                                 basePageNum, comparePageNum, e.getMessage());
@@ -916,8 +1160,10 @@ public class EnhancedVisualMatcher implements VisualMatcher {
 
         // Wait for all tasks to complete or timeout
         try {
-            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
-                    .get(timeoutMinutes, TimeUnit.MINUTES);
+            cancellation.await(CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])),
+                    timeoutMinutes, TimeUnit.MINUTES);
+        } catch (CancellationException e) {
+            throw e;
         } catch (Exception e) {
             log.warn("Timeout or error waiting for similarity calculations: {}", e.getMessage());
             // Continue with partial results rather than failing completely
@@ -933,32 +1179,32 @@ public class EnhancedVisualMatcher implements VisualMatcher {
      * @param compareDocument The compare document
      * @param basePageNum The base page number
      * @param comparePageNum The compare page number
+     * @param cancellation The cancellation context, checked before each page pair is rendered
      * @return The similarity score
      * @throws IOException If all retry attempts fail
+     * @throws CancellationException If the comparison is cancelled
      */
     private double calculateSimilarityWithRetry(
             PdfDocument baseDocument, PdfDocument compareDocument,
-            int basePageNum, int comparePageNum) throws IOException {
+            int basePageNum, int comparePageNum, CancellationContext cancellation) throws IOException {
+
+        // Pages whose content digests match draw the same streams with the same resources, so they
+        // render identically; near duplicates with equal text and visual hashes are still rendered
+        if (isSameContent(baseDocument, compareDocument, basePageNum, comparePageNum)) {
+            return 1.0;
+        }
 
         IOException lastException = null;
 
         for (int attempt = 0; attempt < retryCount; attempt++) {
+            cancellation.throwIfCancelled();
             try {
-                // Get the rendered page images
-                BufferedImage baseImage = getPageImage(baseDocument, basePageNum);
-                BufferedImage compareImage = getPageImage(compareDocument, comparePageNum);
-
-                // Check if images were loaded successfully
-                if (baseImage == null) {
-                    throw new IOException("Failed to load base image for page " + basePageNum);
+                // Both page images stay pinned in the raster cache while they are compared
+                try (RasterCache.Pin basePage = getPageImage(baseDocument, basePageNum, cancellation);
+                     RasterCache.Pin comparePage = getPageImage(compareDocument, comparePageNum, cancellation)) {
+                    return calculatePageSimilarity(baseDocument, basePageNum, basePage,
+                            compareDocument, comparePageNum, comparePage, cancellation);
                 }
-
-                if (compareImage == null) {
-                    throw new IOException("Failed to load compare image for page " + comparePageNum);
-                }
-
-                // Calculate the similarity score with optimized SSIM calculator
-                return ssimCalculator.calculate(baseImage, compareImage);
             } catch (IOException e) {
                 lastException = e;
                 log.warn("Attempt {} failed for pages {} and {}: {}",
@@ -981,75 +1227,401 @@ public class EnhancedVisualMatcher implements VisualMatcher {
     }
 
     /**
-     * Get the rendered page image with caching and optimized memory usage.
+     * Calculate the similarity of two page images.
+     * Identical tiles settle identical pages at once. Otherwise the page pyramids are compared
+     * coarse to fine until the score is clearly on one side of the similarity threshold, and only
+     * ambiguous pairs get the full-resolution SSIM, which is computed around the changed tiles.
+     * A score decided on a pyramid level is on a different scale than full-resolution SSIM, so
+     * the pair is recorded with its matching and {@link #refineCoarseScores} rescores it if it was
+     * accepted. Outside of a matching the pyramids are not used.
+     */
+    private double calculatePageSimilarity(
+            PdfDocument baseDocument, int basePageNum, RasterCache.Pin basePage,
+            PdfDocument compareDocument, int comparePageNum, RasterCache.Pin comparePage,
+            CancellationContext cancellation) {
+        BufferedImage baseImage = basePage.getImage();
+        BufferedImage compareImage = comparePage.getImage();
+        TileHashes baseTiles = getTileHashes(baseDocument, basePageNum, baseImage);
+        TileHashes compareTiles = getTileHashes(compareDocument, comparePageNum, compareImage);
+        if (baseTiles.sameLayout(compareTiles) && baseTiles.changedTiles(compareTiles).isEmpty()) {
+            return 1.0;
+        }
+
+        Map<String, ComparisonTask> coarsePairs = coarseScores.get(cancellation);
+        if (pyramidMargin > 0 && coarsePairs != null) {
+            OptionalDouble coarse = ssimCalculator.calculateCoarseToFine(
+                    getPyramid(basePage), getPyramid(comparePage),
+                    visualSimilarityThreshold, pyramidMargin, cancellation);
+            if (coarse.isPresent()) {
+                String key = createKey(baseDocument.getFileId(), basePageNum,
+                        compareDocument.getFileId(), comparePageNum);
+                coarsePairs.put(key, new ComparisonTask(baseDocument, compareDocument, basePageNum, comparePageNum, key));
+                return coarse.getAsDouble();
+            }
+        }
+
+        return ssimCalculator.calculate(baseImage, baseTiles, compareImage, compareTiles, cancellation);
+    }
+
+    /**
+     * Cache the score of a page pair unless a coarse pyramid level decided it, since such a score
+     * is only valid as an accept or reject decision of the matching that computed it.
      *
-     * @param document   The document
-     * @param pageNumber The page number
-     * @return The rendered page image
-     * @throws IOException If there is an error loading the image
+     * @param key The page pair key
+     * @param similarity The score
+     * @param cancellation The cancellation context of the matching
      */
-    private BufferedImage getPageImage(PdfDocument document, int pageNumber) throws IOException {
-        String cacheKey = document.getFileId() + "_" + pageNumber;
+    private void cacheScore(String key, double similarity, CancellationContext cancellation) {
+        Map<String, ComparisonTask> coarsePairs = coarseScores.get(cancellation);
+        if (coarsePairs == null || !coarsePairs.containsKey(key)) {
+            similarityCache.put(key, similarity);
+        }
+    }
 
-        // Check if the image is already in the cache and not garbage collected
-        SoftReference<BufferedImage> cachedRef = imageCache.get(cacheKey);
-        if (cachedRef != null) {
-            BufferedImage cachedImage = cachedRef.get();
-            if (cachedImage != null) {
-                return cachedImage;
-            } else {
-                // Reference was cleared by GC, remove from cache
-                imageCache.remove(cacheKey);
+    /**
+     * Replace the coarse pyramid scores that accepted a page pair with the full-resolution SSIM,
+     * so the assignment and the reported similarities only see scores on one scale. A refined
+     * score below the threshold no longer matches the pair. Coarse rejections stay below the
+     * threshold, where the assignment gives every score the same cost. A pair that cannot be
+     * rescored in time scores 0.
+     *
+     * @param similarityScores The scores of the matching, updated in place
+     * @param cancellation The cancellation context of the matching
+     * @throws CancellationException If the comparison is cancelled
+     */
+    private void refineCoarseScores(Map<String, Double> similarityScores, CancellationContext cancellation) {
+        List<ComparisonTask> accepted = new ArrayList<>();
+        for (ComparisonTask task : coarseScores.getOrDefault(cancellation, Collections.emptyMap()).values()) {
+            if (similarityScores.getOrDefault(task.key, 0.0) >= visualSimilarityThreshold) {
+                accepted.add(task);
             }
         }
+        if (accepted.isEmpty()) {
+            return;
+        }
 
-        // Get the rendered page
-        File pageFile = pdfRenderingService.renderPage(document, pageNumber);
+        Map<String, Double> refined = new ConcurrentHashMap<>();
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (ComparisonTask task : accepted) {
+            futures.add(CompletableFuture.runAsync(() -> {
+                try (RasterCache.Pin basePage = getPageImage(task.baseDocument, task.basePageNum, cancellation);
+                     RasterCache.Pin comparePage = getPageImage(task.compareDocument, task.comparePageNum, cancellation)) {
+                    BufferedImage baseImage = basePage.getImage();
+                    BufferedImage compareImage = comparePage.getImage();
+                    double similarity = ssimCalculator.calculate(
+                            baseImage, getTileHashes(task.baseDocument, task.basePageNum, baseImage),
+                            compareImage, getTileHashes(task.compareDocument, task.comparePageNum, compareImage),
+                            cancellation);
+                    refined.put(task.key, similarity);
+                    similarityCache.put(task.key, similarity);
+                } catch (IOException e) {
+                    log.warn("Failed to rescore pages {} and {}: {}",
+                            task.basePageNum, task.comparePageNum, e.getMessage());
+                }
+            }, executorService));
+        }
 
-        // Ensure file exists and is readable
-        if (!pageFile.exists() || !pageFile.canRead()) {
-            throw new IOException("Page file does not exist or is not readable: " + pageFile.getPath());
+        try {
+            cancellation.await(CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])),
+                    timeoutMinutes, TimeUnit.MINUTES);
+        } catch (CancellationException e) {
+            throw e;
+        } catch (Exception e) {
+            log.warn("Timeout or error rescoring coarse page scores: {}", e.getMessage());
+        }
+
+        for (ComparisonTask task : accepted) {
+            similarityScores.put(task.key, refined.getOrDefault(task.key, 0.0));
+        }
+    }
+
+    /**
+     * Complete the matched page pairs with the regions in which their renders differ.
+     *
+     * @param baseDocument The base document
+     * @param compareDocument The compare document
+     * @param pagePairs The page pairs from the assignment
+     * @param cancellation The cancellation context of the comparison
+     * @throws CancellationException If the comparison is cancelled
+     */
+    private void finishMatchedPairs(PdfDocument baseDocument, PdfDocument compareDocument,
+                                    List<PagePair> pagePairs, CancellationContext cancellation) {
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (PagePair pair : pagePairs) {
+            if (!pair.isMatched() || pair.getSimilarityScore() >= 1.0) {
+                continue;
+            }
+
+            futures.add(CompletableFuture.runAsync(() -> {
+                int basePageNum = pair.getBasePageNumber();
+                int comparePageNum = pair.getComparePageNumber();
+                TileHashes baseTiles = tileCache.get(baseDocument.getFileId() + "_" + basePageNum);
+                TileHashes compareTiles = tileCache.get(compareDocument.getFileId() + "_" + comparePageNum);
+                if (baseTiles == null || compareTiles == null) {
+                    try (RasterCache.Pin basePage = getPageImage(baseDocument, basePageNum, cancellation);
+                         RasterCache.Pin comparePage = getPageImage(compareDocument, comparePageNum, cancellation)) {
+                        baseTiles = getTileHashes(baseDocument, basePageNum, basePage.getImage());
+                        compareTiles = getTileHashes(compareDocument, comparePageNum, comparePage.getImage());
+                    } catch (IOException e) {
+                        log.warn("Failed to finish matched pages {} and {}: {}",
+                                basePageNum, comparePageNum, e.getMessage());
+                        return;
+                    }
+                }
+                // The regions come from the tile hashes alone
+                if (baseTiles.sameLayout(compareTiles)) {
+                    setChangedRegions(pair, baseTiles, baseTiles.changedRegions(baseTiles.changedTiles(compareTiles)));
+                }
+            }, executorService));
         }
 
-        // Check file size to avoid empty files
-        if (pageFile.length() == 0) {
-            throw new IOException("Page file is empty: " + pageFile.getPath());
+        try {
+            cancellation.await(CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])),
+                    timeoutMinutes, TimeUnit.MINUTES);
+        } catch (CancellationException e) {
+            throw e;
+        } catch (Exception e) {
+            log.warn("Timeout or error finishing matched pages: {}", e.getMessage());
         }
+    }
 
-        // Load and scale the image for faster processing
-        BufferedImage fullImage = ImageIO.read(pageFile);
+    /**
+     * Set the changed regions of a page pair as fractions of the base page.
+     */
+    private void setChangedRegions(PagePair pair, TileHashes tiles, List<Rectangle> regions) {
+        List<PagePair.ChangedRegion> changedRegions = new ArrayList<>(regions.size());
+        for (Rectangle region : regions) {
+            changedRegions.add(new PagePair.ChangedRegion(
+                    (double) region.x / tiles.getWidth(), (double) region.y / tiles.getHeight(),
+                    (double) region.width / tiles.getWidth(), (double) region.height / tiles.getHeight()));
+        }
+        pair.setChangedRegions(changedRegions);
+    }
 
-        // Check if the image was loaded successfully
-        if (fullImage == null) {
-            throw new IOException("Failed to load image: " + pageFile.getPath());
+    /**
+     * Pair the pages of two ranges whose content digests are identical, so they are matched
+     * without being rendered. Each page is paired at most once; a base page takes the free compare
+     * page of the same digest nearest to its own position relative to the start of the ranges.
+     *
+     * @param baseDocument The base document
+     * @param baseStart The first base page of the range
+     * @param baseEnd The last base page of the range
+     * @param compareDocument The compare document
+     * @param compareStart The first compare page of the range
+     * @param compareEnd The last compare page of the range
+     * @return The identical compare page of each paired base page
+     */
+    private Map<Integer, Integer> findIdenticalPages(PdfDocument baseDocument, int baseStart, int baseEnd,
+                                                     PdfDocument compareDocument, int compareStart, int compareEnd) {
+        List<PageSignature> baseSignatures = pageArtifactService.getSignatures(baseDocument);
+        List<PageSignature> compareSignatures = pageArtifactService.getSignatures(compareDocument);
+
+        Map<String, TreeSet<Integer>> comparePagesByDigest = new HashMap<>();
+        for (int page = compareStart; page <= Math.min(compareEnd, compareSignatures.size()); page++) {
+            String digest = compareSignatures.get(page - 1).getContentDigest();
+            if (digest != null) {
+                comparePagesByDigest.computeIfAbsent(digest, d -> new TreeSet<>()).add(page);
+            }
         }
 
-        // Scale down the image for faster comparison if needed
-        BufferedImage scaledImage;
-        if (imageScaleFactor < 0.99f) {
-            scaledImage = scaleImage(fullImage, imageScaleFactor);
-        } else {
-            scaledImage = fullImage;
+        Map<Integer, Integer> identicalPages = new HashMap<>();
+        for (int page = baseStart; page <= Math.min(baseEnd, baseSignatures.size()); page++) {
+            TreeSet<Integer> candidates = comparePagesByDigest.get(baseSignatures.get(page - 1).getContentDigest());
+            if (candidates == null || candidates.isEmpty()) {
+                continue;
+            }
+            int target = compareStart + (page - baseStart);
+            Integer above = candidates.ceiling(target);
+            Integer below = candidates.floor(target);
+            int match = above == null ? below : below == null ? above
+                    : above - target <= target - below ? above : below;
+            candidates.remove(match);
+            identicalPages.put(page, match);
         }
 
-        // Cache the scaled image with a SoftReference to allow GC when memory is low
-        imageCache.put(cacheKey, new SoftReference<>(scaledImage));
+        if (!identicalPages.isEmpty()) {
+            log.debug("{} page pairs of {} and {} have identical content", identicalPages.size(),
+                    baseDocument.getFileId(), compareDocument.getFileId());
+        }
+        return identicalPages;
+    }
 
-        return scaledImage;
+    /**
+     * Score the pairs of pages with identical content as identical.
+     *
+     * @param baseDocument The base document
+     * @param compareDocument The compare document
+     * @param identicalPages The pairs of pages with identical content
+     * @param similarityScores The scores of the matching, updated in place
+     */
+    private void putIdenticalScores(PdfDocument baseDocument, PdfDocument compareDocument,
+                                    Map<Integer, Integer> identicalPages, Map<String, Double> similarityScores) {
+        for (Map.Entry<Integer, Integer> pair : identicalPages.entrySet()) {
+            similarityScores.put(createKey(baseDocument.getFileId(), pair.getKey(),
+                    compareDocument.getFileId(), pair.getValue()), 1.0);
+        }
     }
 
     /**
-     * Scale an image to reduce processing time and memory usage.
+     * Check the pre-computed signatures of two pages for identical content.
+     * Only the content digests, which cover the content streams and the resources they draw, decide.
      *
-     * @param image       The original image
-     * @param scaleFactor The scale factor (0.0-1.0)
+     * @param baseDocument The base document
+     * @param compareDocument The compare document
+     * @param basePageNum The base page number
+     * @param comparePageNum The compare page number
+     * @return true if both pages have signatures and they describe the same content
+     */
+    private boolean isSameContent(PdfDocument baseDocument, PdfDocument compareDocument,
+                                  int basePageNum, int comparePageNum) {
+        List<PageSignature> baseSignatures = pageArtifactService.getSignatures(baseDocument);
+        List<PageSignature> compareSignatures = pageArtifactService.getSignatures(compareDocument);
+        if (basePageNum > baseSignatures.size() || comparePageNum > compareSignatures.size()) {
+            return false;
+        }
+        return baseSignatures.get(basePageNum - 1).isSameContent(compareSignatures.get(comparePageNum - 1));
+    }
+
+    /**
+     * Get the matching render of a page from the raster cache, loading it on a miss.
+     * A page that a running render job covers is awaited from the job first.
+     *
+     * @param document   The document
+     * @param pageNumber The page number
+     * @param cancellation The cancellation context of the comparison
+     * @return The pinned page image, to be closed when the comparison is done with it
+     * @throws IOException If there is an error loading the image
+     */
+    private RasterCache.Pin getPageImage(PdfDocument document, int pageNumber, CancellationContext cancellation)
+            throws IOException {
+        String cacheKey = document.getFileId() + "_" + pageNumber;
+        awaitRendered(document, pageNumber, cancellation);
+
+        return rasterCache.acquire(pdfRenderingService.getMatchingRasterKey(document, pageNumber), () -> {
+            // Get the page rendered at matching resolution, never the full display render.
+            // A page rendered just now is used as it is instead of being decoded from its file
+            BufferedImage[] rendered = new BufferedImage[1];
+            File pageFile = pdfRenderingService.renderMatchingPage(document, pageNumber, image -> rendered[0] = image);
+
+            BufferedImage pageImage = rendered[0];
+            if (pageImage == null) {
+                // Ensure file exists and is readable
+                if (!pageFile.exists() || !pageFile.canRead()) {
+                    throw new IOException("Page file does not exist or is not readable: " + pageFile.getPath());
+                }
+
+                // Check file size to avoid empty files
+                if (pageFile.length() == 0) {
+                    throw new IOException("Page file is empty: " + pageFile.getPath());
+                }
+
+                // Load the image within the memory budget
+                pageImage = readPageImage(pageFile);
+            }
+
+            // The image may differ from an earlier decoding of the page, so its tiles are hashed anew
+            tileCache.put(cacheKey, TileHashes.of(pageImage, tileSize));
+            return pageImage;
+        });
+    }
+
+    /**
+     * Get the tile hashes of a page image, which are computed whenever the page is loaded.
+     *
+     * @param document   The document
+     * @param pageNumber The page number
+     * @param image      The page image from {@link #getPageImage}
+     * @return The tile hashes
+     */
+    private TileHashes getTileHashes(PdfDocument document, int pageNumber, BufferedImage image) {
+        String cacheKey = document.getFileId() + "_" + pageNumber;
+        TileHashes hashes = tileCache.get(cacheKey);
+        if (hashes == null || hashes.getWidth() != image.getWidth() || hashes.getHeight() != image.getHeight()) {
+            // Released while the image stayed cached, or the page was cached by pre-rendering
+            hashes = TileHashes.of(image, tileSize);
+            tileCache.put(cacheKey, hashes);
+        }
+        return hashes;
+    }
+
+    /**
+     * Get the luminance pyramid of a page image, building it the first time it is needed.
+     * The pyramid is attached to the cached image, so it is counted in the attached bytes of the
+     * raster cache and is evicted together with the image.
+     *
+     * @param page The pinned page image from {@link #getPageImage}
+     * @return The pyramid
+     */
+    private LuminancePyramid getPyramid(RasterCache.Pin page) {
+        return page.attachment(LuminancePyramid.class, pin -> LuminancePyramid.of(pin.getImage()),
+                LuminancePyramid::getEstimatedBytes);
+    }
+
+    /**
+     * Decode a matching render within the memory budget.
+     * When the budget for the full raster is not available in time, the page is decoded with
+     * source subsampling instead, so only a fraction of the pixels are ever held in memory.
+     *
+     * @param pageFile The rendered page file
      * @return The scaled image
+     * @throws IOException If the image cannot be decoded
      */
-    private BufferedImage scaleImage(BufferedImage image, float scaleFactor) {
-        int scaledWidth = Math.max(1, (int) (image.getWidth() * scaleFactor));
-        int scaledHeight = Math.max(1, (int) (image.getHeight() * scaleFactor));
+    private BufferedImage readPageImage(File pageFile) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(pageFile)) {
+            Iterator<ImageReader> readers = input != null ? ImageIO.getImageReaders(input) : Collections.emptyIterator();
+            if (!readers.hasNext()) {
+                throw new IOException("Failed to load image: " + pageFile.getPath());
+            }
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                long fullBytes = MemoryGovernor.rasterBytes(width, height, 1);
+
+                int subsampling = 1;
+                MemoryGovernor.Reservation reservation = memoryGovernor.tryReserve(fullBytes);
+                if (reservation == null) {
+                    // Decode every n-th pixel; the result is scaled to the same target size below
+                    long available = Math.max(1, memoryGovernor.getAvailableBytes());
+                    subsampling = Math.max(2, (int) Math.ceil(Math.sqrt((double) fullBytes / available)));
+                    memoryGovernor.recordDegradation();
+                    log.debug("Memory budget exhausted, decoding {} with subsampling {}", pageFile.getName(), subsampling);
+                    reservation = memoryGovernor.reserve(fullBytes / ((long) subsampling * subsampling));
+                }
+
+                try (MemoryGovernor.Reservation ignored = reservation) {
+                    ImageReadParam param = reader.getDefaultReadParam();
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                    BufferedImage image = reader.read(0, param);
+                    if (image == null) {
+                        throw new IOException("Failed to load image: " + pageFile.getPath());
+                    }
 
-        BufferedImage scaledImage = new BufferedImage(scaledWidth, scaledHeight, image.getType());
+                    // A subsampled page is scaled back up so it still lines up with the other pages
+                    if (image.getWidth() == width && image.getHeight() == height) {
+                        return image;
+                    }
+                    return scaleImage(image, width, height);
+                }
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Scale an image to reduce processing time and memory usage.
+     *
+     * @param image        The original image
+     * @param scaledWidth  The target width
+     * @param scaledHeight The target height
+     * @return The scaled image
+     */
+    private BufferedImage scaleImage(BufferedImage image, int scaledWidth, int scaledHeight) {
+        int type = image.getType() == BufferedImage.TYPE_CUSTOM ? BufferedImage.TYPE_INT_RGB : image.getType();
+        BufferedImage scaledImage = new BufferedImage(scaledWidth, scaledHeight, type);
         Graphics2D g = scaledImage.createGraphics();
 
         try {
@@ -1065,11 +1637,19 @@ public class EnhancedVisualMatcher implements VisualMatcher {
     }
 
     /**
-     * Clear the image cache to free memory.
+     * Drop the cached page images of a document unless it is retained.
+     * The raster cache is bounded on its own; this only frees it early for documents whose
+     * matching is done.
+     *
+     * @param document The document
      */
-    private void clearImageCache() {
-        imageCache.clear();
-        log.info("Cleared image cache to free memory");
+    private void releasePageImages(PdfDocument document) {
+        if (retainedDocuments.containsKey(document.getFileId())) {
+            return;
+        }
+        String prefix = document.getFileId() + "_";
+        rasterCache.invalidatePrefix(pdfRenderingService.getMatchingRasterPrefix(document));
+        tileCache.keySet().removeIf(key -> key.startsWith(prefix));
     }
 
     /**
@@ -0,0 +1,97 @@
+package guraa.pdfcompare.visual;
+
+/**
+ * Fingerprints of images held as primitives.
+ * The exact fingerprint is the 128-bit stream digest split into two longs, which identifies an
+ * image without decoding it. The perceptual fingerprint is a 64-bit difference hash of the
+ * luminance plane, which stays close under re-encoding and resampling, so the Hamming distance
+ * of two hashes rules out clearly different images before SSIM is computed.
+ */
+public final class ImageFingerprint {
+
+    // The difference hash compares neighbouring cells of a 9 x 8 grid
+    private static final int HASH_COLUMNS = 9;
+    private static final int HASH_ROWS = 8;
+
+    private ImageFingerprint() {
+    }
+
+    /**
+     * Read one half of a 128-bit digest.
+     *
+     * @param digest The 16 digest bytes
+     * @param half   0 for the high half, 1 for the low half
+     * @return The half as a long, big-endian
+     */
+    public static long digestHalf(byte[] digest, int half) {
+        long value = 0;
+        for (int i = half * 8; i < half * 8 + 8; i++) {
+            value = (value << 8) | (digest[i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * Format a 128-bit digest as hexadecimal.
+     *
+     * @param digest The 16 digest bytes
+     * @return The 32 hex digits
+     */
+    public static String toHex(byte[] digest) {
+        char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            hex[2 * i] = Character.forDigit((digest[i] >> 4) & 0xF, 16);
+            hex[2 * i + 1] = Character.forDigit(digest[i] & 0xF, 16);
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Calculate the difference hash of an 8-bit luminance plane.
+     * Each bit tells whether a cell of the grid is darker than its right neighbour.
+     *
+     * @param pixels The luminance values, row by row
+     * @param width  The width of the plane in pixels, at least 9
+     * @param height The height of the plane in pixels, at least 8
+     * @return The 64-bit hash
+     */
+    public static long differenceHash(byte[] pixels, int width, int height) {
+        long[] cellSums = new long[HASH_ROWS * HASH_COLUMNS];
+        for (int y = 0; y < height; y++) {
+            int cellRow = (int) ((long) y * HASH_ROWS / height);
+            int row = y * width;
+            for (int x = 0; x < width; x++) {
+                cellSums[cellRow * HASH_COLUMNS + (int) ((long) x * HASH_COLUMNS / width)] += pixels[row + x] & 0xFF;
+            }
+        }
+
+        // Cells of a row have the same height, so sums compare like means up to their widths
+        long hash = 0;
+        for (int r = 0; r < HASH_ROWS; r++) {
+            for (int c = 0; c < HASH_COLUMNS - 1; c++) {
+                double left = (double) cellSums[r * HASH_COLUMNS + c] / cellWidth(c, width);
+                double right = (double) cellSums[r * HASH_COLUMNS + c + 1] / cellWidth(c + 1, width);
+                hash = (hash << 1) | (left < right ? 1 : 0);
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Get the number of differing bits of two perceptual hashes.
+     *
+     * @param hash1 The first hash
+     * @param hash2 The second hash
+     * @return The Hamming distance (0 to 64)
+     */
+    public static int distance(long hash1, long hash2) {
+        return Long.bitCount(hash1 ^ hash2);
+    }
+
+    private static int cellWidth(int column, int width) {
+        // The columns x with x * HASH_COLUMNS / width == column
+        int start = (column * width + HASH_COLUMNS - 1) / HASH_COLUMNS;
+        int end = ((column + 1) * width + HASH_COLUMNS - 1) / HASH_COLUMNS;
+        return Math.max(1, end - start);
+    }
+}
@@ -0,0 +1,249 @@
+package guraa.pdfcompare.visual;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.Arrays;
+
+/**
+ * An image normalized for similarity comparison: an 8-bit luminance plane with the mean and
+ * variance of every SSIM window precomputed.
+ * Planes of the same dimensions share their window grid, so comparing them needs no decoding,
+ * resizing or per-image statistics, only the covariance of each window pair. Embedded images
+ * are normalized to a fixed square size; page images keep their aspect ratio, see {@link LuminancePyramid}.
+ */
+public final class LuminancePlane {
+
+    /**
+     * The side of an SSIM window in pixels.
+     */
+    public static final int WINDOW_SIZE = 8;
+
+    /**
+     * The distance between neighbouring SSIM windows in pixels.
+     */
+    public static final int WINDOW_STEP = 4;
+
+    private final int width;
+    private final int height;
+    private final byte[] pixels;
+    private final int windowsPerRow;
+    private final int windowsPerColumn;
+    private final float[] windowMeans;
+    private final float[] windowVariances;
+    private final double mean;
+    private final long differenceHash;
+
+    /**
+     * Constructor.
+     *
+     * @param width  The width in pixels, larger than {@link #WINDOW_SIZE}
+     * @param height The height in pixels, larger than {@link #WINDOW_SIZE}
+     * @param pixels The luminance values, row by row; the plane takes ownership of the array
+     */
+    public LuminancePlane(int width, int height, byte[] pixels) {
+        if (width <= WINDOW_SIZE || height <= WINDOW_SIZE || pixels.length != width * height) {
+            throw new IllegalArgumentException("Invalid luminance plane of " + width + "x" + height +
+                    " with " + pixels.length + " pixels");
+        }
+        this.width = width;
+        this.height = height;
+        this.pixels = pixels;
+        this.windowsPerRow = (width - WINDOW_SIZE) / WINDOW_STEP + 1;
+        this.windowsPerColumn = (height - WINDOW_SIZE) / WINDOW_STEP + 1;
+        this.windowMeans = new float[windowsPerRow * windowsPerColumn];
+        this.windowVariances = new float[windowsPerRow * windowsPerColumn];
+
+        int n = WINDOW_SIZE * WINDOW_SIZE;
+        for (int wy = 0; wy < windowsPerColumn; wy++) {
+            for (int wx = 0; wx < windowsPerRow; wx++) {
+                long sum = 0;
+                long sumSquares = 0;
+                for (int y = wy * WINDOW_STEP; y < wy * WINDOW_STEP + WINDOW_SIZE; y++) {
+                    int row = y * width;
+                    for (int x = wx * WINDOW_STEP; x < wx * WINDOW_STEP + WINDOW_SIZE; x++) {
+                        int value = pixels[row + x] & 0xFF;
+                        sum += value;
+                        sumSquares += value * value;
+                    }
+                }
+                double windowMean = (double) sum / n;
+                windowMeans[wy * windowsPerRow + wx] = (float) windowMean;
+                windowVariances[wy * windowsPerRow + wx] = (float) ((double) sumSquares / n - windowMean * windowMean);
+            }
+        }
+
+        long total = 0;
+        for (byte pixel : pixels) {
+            total += pixel & 0xFF;
+        }
+        this.mean = (double) total / pixels.length;
+        this.differenceHash = ImageFingerprint.differenceHash(pixels, width, height);
+    }
+
+    /**
+     * Create the plane of an image. Transparent areas are flattened onto white, like on a page.
+     *
+     * @param image The decoded image
+     * @param size  The side of the plane in pixels, larger than {@link #WINDOW_SIZE}
+     * @return The luminance plane
+     */
+    public static LuminancePlane fromImage(BufferedImage image, int size) {
+        BufferedImage gray = normalize(image, size);
+        return new LuminancePlane(gray.getWidth(), gray.getHeight(),
+                ((DataBufferByte) gray.getRaster().getDataBuffer()).getData());
+    }
+
+    /**
+     * Scale an image to the square gray image a plane of the given size is made of.
+     * Transparent areas are flattened onto white, like on a page.
+     *
+     * @param image The decoded image
+     * @param size  The side of the plane in pixels, larger than {@link #WINDOW_SIZE}
+     * @return The normalized image of type {@link BufferedImage#TYPE_BYTE_GRAY}
+     */
+    public static BufferedImage normalize(BufferedImage image, int size) {
+        return normalize(image, size, BufferedImage.TYPE_BYTE_GRAY);
+    }
+
+    /**
+     * Scale an image to a square image of the given type, such as
+     * {@link BufferedImage#TYPE_3BYTE_BGR} to keep its colour.
+     * Transparent areas are flattened onto white, like on a page.
+     *
+     * @param image     The decoded image
+     * @param size      The side of the plane in pixels, larger than {@link #WINDOW_SIZE}
+     * @param imageType The type of the normalized image
+     * @return The normalized image
+     */
+    public static BufferedImage normalize(BufferedImage image, int size, int imageType) {
+        int side = Math.max(WINDOW_SIZE + 1, size);
+        BufferedImage normalized = new BufferedImage(side, side, imageType);
+        Graphics2D g = normalized.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, side, side);
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(image, 0, 0, side, side, null);
+        g.dispose();
+        return normalized;
+    }
+
+    /**
+     * Check whether an image holds 8-bit gray samples, whose values are luminance as they are.
+     *
+     * @param image The image
+     * @return true for 8-bit single-band gray images of any type
+     */
+    public static boolean isGrayscale(BufferedImage image) {
+        return image.getRaster().getNumBands() == 1 &&
+                image.getColorModel().getColorSpace().getType() == ColorSpace.TYPE_GRAY &&
+                image.getSampleModel().getSampleSize(0) == 8;
+    }
+
+    /**
+     * Create a plane of half the width and height, each pixel the mean of a 2x2 block.
+     *
+     * @return The downsampled plane, or null if it would not be larger than a window
+     */
+    public LuminancePlane downsample() {
+        int halfWidth = width / 2;
+        int halfHeight = height / 2;
+        if (halfWidth <= WINDOW_SIZE || halfHeight <= WINDOW_SIZE) {
+            return null;
+        }
+
+        byte[] half = new byte[halfWidth * halfHeight];
+        for (int y = 0; y < halfHeight; y++) {
+            int top = 2 * y * width;
+            int bottom = top + width;
+            for (int x = 0; x < halfWidth; x++) {
+                int sum = (pixels[top + 2 * x] & 0xFF) + (pixels[top + 2 * x + 1] & 0xFF) +
+                        (pixels[bottom + 2 * x] & 0xFF) + (pixels[bottom + 2 * x + 1] & 0xFF);
+                half[y * halfWidth + x] = (byte) ((sum + 2) >> 2);
+            }
+        }
+        return new LuminancePlane(halfWidth, halfHeight, half);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getWindowsPerRow() {
+        return windowsPerRow;
+    }
+
+    public int getWindowsPerColumn() {
+        return windowsPerColumn;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    /**
+     * Get the perceptual hash of the plane, see {@link ImageFingerprint#differenceHash}.
+     *
+     * @return The 64-bit difference hash
+     */
+    public long getDifferenceHash() {
+        return differenceHash;
+    }
+
+    /**
+     * Get the luminance of a pixel.
+     *
+     * @param x The column
+     * @param y The row
+     * @return The luminance (0-255)
+     */
+    public int luminance(int x, int y) {
+        return pixels[y * width + x] & 0xFF;
+    }
+
+    /**
+     * Get the mean luminance of a window.
+     *
+     * @param window The window index, row by row
+     * @return The mean
+     */
+    public float windowMean(int window) {
+        return windowMeans[window];
+    }
+
+    /**
+     * Get the luminance variance of a window.
+     *
+     * @param window The window index, row by row
+     * @return The variance
+     */
+    public float windowVariance(int window) {
+        return windowVariances[window];
+    }
+
+    /**
+     * Check whether two planes have exactly the same pixels.
+     *
+     * @param other The other plane
+     * @return true if the planes are identical
+     */
+    public boolean samePixels(LuminancePlane other) {
+        return Arrays.equals(pixels, other.pixels);
+    }
+
+    /**
+     * Get the approximate heap size of the plane, for cache accounting.
+     *
+     * @return The size in bytes
+     */
+    public long getEstimatedBytes() {
+        return pixels.length + 8L * windowMeans.length;
+    }
+}
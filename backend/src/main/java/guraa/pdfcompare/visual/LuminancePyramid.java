@@ -0,0 +1,128 @@
+package guraa.pdfcompare.visual;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A box-filtered luminance pyramid of a page image, for comparing pages coarse to fine.
+ * Level 0 has half the resolution of the image and every further level halves it again, down to
+ * a few dozen pixels. Each level is a {@link LuminancePlane}, so its window statistics are computed
+ * once per page however many candidate pages it is compared against.
+ */
+public final class LuminancePyramid {
+
+    // Levels are not halved below this many pixels in either dimension
+    private static final int MIN_LEVEL_SIZE = 48;
+
+    private final int imageWidth;
+    private final int imageHeight;
+    private final List<LuminancePlane> levels;
+
+    private LuminancePyramid(int imageWidth, int imageHeight, List<LuminancePlane> levels) {
+        this.imageWidth = imageWidth;
+        this.imageHeight = imageHeight;
+        this.levels = Collections.unmodifiableList(levels);
+    }
+
+    /**
+     * Build the pyramid of an image, reading it two rows at a time.
+     *
+     * @param image The page image
+     * @return The pyramid, without levels if the image is too small to halve
+     */
+    public static LuminancePyramid of(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int halfWidth = width / 2;
+        int halfHeight = height / 2;
+        List<LuminancePlane> levels = new ArrayList<>();
+        if (halfWidth <= LuminancePlane.WINDOW_SIZE || halfHeight <= LuminancePlane.WINDOW_SIZE) {
+            return new LuminancePyramid(width, height, levels);
+        }
+
+        byte[] half = new byte[halfWidth * halfHeight];
+        int[] top = new int[width];
+        int[] bottom = new int[width];
+        for (int y = 0; y < halfHeight; y++) {
+            readLuminance(image, 2 * y, top);
+            readLuminance(image, 2 * y + 1, bottom);
+            for (int x = 0; x < halfWidth; x++) {
+                int sum = top[2 * x] + top[2 * x + 1] + bottom[2 * x] + bottom[2 * x + 1];
+                half[y * halfWidth + x] = (byte) ((sum + 2) >> 2);
+            }
+        }
+
+        LuminancePlane level = new LuminancePlane(halfWidth, halfHeight, half);
+        levels.add(level);
+        while (Math.min(level.getWidth(), level.getHeight()) / 2 >= MIN_LEVEL_SIZE) {
+            level = level.downsample();
+            if (level == null) {
+                break;
+            }
+            levels.add(level);
+        }
+        return new LuminancePyramid(width, height, levels);
+    }
+
+    /**
+     * Get the number of levels.
+     *
+     * @return The number of levels; the coarsest level is the last
+     */
+    public int getLevelCount() {
+        return levels.size();
+    }
+
+    /**
+     * Get a level of the pyramid.
+     *
+     * @param level The level, 0 being the finest
+     * @return The luminance plane of the level
+     */
+    public LuminancePlane getLevel(int level) {
+        return levels.get(level);
+    }
+
+    /**
+     * Check whether the levels of two pyramids have the same dimensions, so they can be compared.
+     *
+     * @param other The other pyramid
+     * @return true if both pyramids were built from images of the same size
+     */
+    public boolean sameLayout(LuminancePyramid other) {
+        return imageWidth == other.imageWidth && imageHeight == other.imageHeight;
+    }
+
+    /**
+     * Get the approximate heap size of the pyramid.
+     *
+     * @return The size in bytes
+     */
+    public long getEstimatedBytes() {
+        long bytes = 0;
+        for (LuminancePlane level : levels) {
+            bytes += level.getEstimatedBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Read the luminance of a row like the SSIM calculator does: gray samples as they are,
+     * other images with the same RGB weights.
+     */
+    private static void readLuminance(BufferedImage image, int y, int[] row) {
+        int width = row.length;
+        if (LuminancePlane.isGrayscale(image)) {
+            image.getRaster().getSamples(0, y, width, 1, 0, row);
+            return;
+        }
+
+        image.getRGB(0, y, width, 1, row, 0, width);
+        for (int x = 0; x < width; x++) {
+            int rgb = row[x];
+            row[x] = (((rgb >> 16) & 0xFF) * 76 + ((rgb >> 8) & 0xFF) * 150 + (rgb & 0xFF) * 29) >> 8;
+        }
+    }
+}
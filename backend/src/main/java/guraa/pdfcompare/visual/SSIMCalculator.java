@@ -1,16 +1,23 @@
 package guraa.pdfcompare.visual;
 
+import guraa.pdfcompare.service.MemoryGovernor;
+import guraa.pdfcompare.util.CancellationContext;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Component;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBuffer;
 import java.awt.image.Raster;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.OptionalDouble;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * Optimized calculator for Structural Similarity Index (SSIM) between images.
@@ -25,7 +32,7 @@ public class SSIMCalculator {
     // Constants for SSIM calculation
     private static final double K1 = 0.01;
     private static final double K2 = 0.03;
-    private static final int WINDOW_SIZE = 8;
+    static final int WINDOW_SIZE = 8;
     private static final double C1 = Math.pow(255 * K1, 2);
     private static final double C2 = Math.pow(255 * K2, 2);
 
@@ -36,26 +43,32 @@ public class SSIMCalculator {
     // Maximum number of sample points for quick comparison
     private static final int MAX_SAMPLE_POINTS = 100;
 
-    // Thread pool for parallel processing of large images
-    private final ExecutorService executor;
+    // Working memory per pixel: two double luminance arrays plus the int RGB scan line buffer
+    private static final int WORKING_BYTES_PER_PIXEL = 2 * Double.BYTES + Integer.BYTES;
+
+    // Work-stealing pool for parallel processing of large images when not already running in one
+    private final ForkJoinPool cpuPool;
+
+    private final MemoryGovernor memoryGovernor;
 
     // Threshold for using parallel calculation
     private static final int PARALLEL_THRESHOLD = 1000 * 1000; // 1M pixels
 
+    // Row band below which a parallel SSIM task is computed directly instead of split
+    private static final int ROWS_PER_TASK = 32;
+
+    // Above this fraction of changed tiles the full raster is compared instead
+    private static final double MAX_CHANGED_TILE_FRACTION = 0.5;
+
     /**
      * Constructor.
+     *
+     * @param memoryGovernor The memory governor for working buffer budgets
+     * @param cpuPool The work-stealing pool for CPU-bound work
      */
-    public SSIMCalculator() {
-        // Create a thread pool with the number of available processors
-        this.executor = Executors.newFixedThreadPool(
-                Math.max(1, Runtime.getRuntime().availableProcessors() - 1),
-                r -> {
-                    Thread t = new Thread(r);
-                    t.setDaemon(true);
-                    t.setName("ssim-worker-" + t.getId());
-                    return t;
-                }
-        );
+    public SSIMCalculator(MemoryGovernor memoryGovernor, @Qualifier("cpuExecutor") ForkJoinPool cpuPool) {
+        this.memoryGovernor = memoryGovernor;
+        this.cpuPool = cpuPool;
     }
 
     /**
@@ -66,6 +79,21 @@ public class SSIMCalculator {
      * @return The SSIM value (0.0 to 1.0)
      */
     public double calculate(BufferedImage img1, BufferedImage img2) {
+        return calculate(img1, img2, CancellationContext.NONE);
+    }
+
+    /**
+     * Calculate the SSIM between two images, checking for cancellation between row bands.
+     *
+     * @param img1 The first image
+     * @param img2 The second image
+     * @param cancellation The cancellation context of the comparison
+     * @return The SSIM value (0.0 to 1.0)
+     * @throws CancellationException If the comparison is cancelled
+     */
+    public double calculate(BufferedImage img1, BufferedImage img2, CancellationContext cancellation) {
+        cancellation.throwIfCancelled();
+
         // Resize images to the same dimensions if needed
         if (img1.getWidth() != img2.getWidth() || img1.getHeight() != img2.getHeight()) {
             img2 = resizeImage(img2, img1.getWidth(), img1.getHeight());
@@ -84,15 +112,246 @@ public class SSIMCalculator {
             return quickSimilarity;
         }
 
-        // For small images, or when we have very few processors, use sequential calculation
-        if (img1.getWidth() * img1.getHeight() < PARALLEL_THRESHOLD ||
-                Runtime.getRuntime().availableProcessors() <= 2) {
-            return calculateSSIMSequential(img1, img2);
-        } else {
-            return calculateSSIMParallel(img1, img2);
+        return calculateWindows(img1, img2, cancellation);
+    }
+
+    /**
+     * Calculate the SSIM over every window without the sampling shortcuts, so scores of the
+     * tile-aware comparison do not depend on which path produced them.
+     *
+     * @param img1 The first image
+     * @param img2 The second image
+     * @param cancellation The cancellation context of the comparison
+     * @return The SSIM value (0.0 to 1.0)
+     * @throws CancellationException If the comparison is cancelled
+     */
+    private double calculateWindows(BufferedImage img1, BufferedImage img2, CancellationContext cancellation) {
+        if (img1.getWidth() != img2.getWidth() || img1.getHeight() != img2.getHeight()) {
+            img2 = resizeImage(img2, img1.getWidth(), img1.getHeight());
+        }
+
+        MemoryGovernor.Reservation reservation = memoryGovernor.tryReserve(
+                MemoryGovernor.rasterBytes(img1.getWidth(), img1.getHeight(), WORKING_BYTES_PER_PIXEL));
+        if (reservation == null) {
+            // Budget exhausted: compare half-resolution copies, which need a quarter of the memory.
+            // This does not wait again, since the caller may itself hold a reservation for the images.
+            int width = Math.max(WINDOW_SIZE, img1.getWidth() / 2);
+            int height = Math.max(WINDOW_SIZE, img1.getHeight() / 2);
+            img1 = resizeImage(img1, width, height);
+            img2 = resizeImage(img2, width, height);
+            memoryGovernor.recordDegradation();
+            reservation = memoryGovernor.tryReserve(
+                    MemoryGovernor.rasterBytes(width, height, WORKING_BYTES_PER_PIXEL), 0);
+        }
+
+        try {
+            // For small images, or when we have very few processors, use sequential calculation
+            if (img1.getWidth() * img1.getHeight() < PARALLEL_THRESHOLD ||
+                    Runtime.getRuntime().availableProcessors() <= 2) {
+                return calculateSSIMSequential(img1, img2, cancellation);
+            } else {
+                return calculateSSIMParallel(img1, img2, cancellation);
+            }
+        } finally {
+            if (reservation != null) {
+                reservation.close();
+            }
         }
     }
 
+    /**
+     * Calculate the SSIM between two images, computing windows only around the tiles that differ.
+     * Windows that lie entirely in identical tiles have an SSIM of 1 and are counted without being
+     * computed. When most tiles changed, or the tiles do not fit the images, every window is computed
+     * instead; both ways score the same windows, and neither takes the sampling shortcuts of
+     * {@link #calculate(BufferedImage, BufferedImage, CancellationContext)}.
+     *
+     * @param img1 The first image
+     * @param tiles1 The tile hashes of the first image
+     * @param img2 The second image
+     * @param tiles2 The tile hashes of the second image
+     * @param cancellation The cancellation context of the comparison
+     * @return The SSIM value (0.0 to 1.0)
+     * @throws CancellationException If the comparison is cancelled
+     */
+    public double calculate(BufferedImage img1, TileHashes tiles1, BufferedImage img2, TileHashes tiles2,
+                            CancellationContext cancellation) {
+        return compare(img1, tiles1, img2, tiles2, cancellation).getSimilarity();
+    }
+
+    /**
+     * Calculate the SSIM between two images like
+     * {@link #calculate(BufferedImage, TileHashes, BufferedImage, TileHashes, CancellationContext)},
+     * and also return the bounding boxes of the changed tiles.
+     *
+     * @param img1 The first image
+     * @param tiles1 The tile hashes of the first image
+     * @param img2 The second image
+     * @param tiles2 The tile hashes of the second image
+     * @param cancellation The cancellation context of the comparison
+     * @return The SSIM value (0.0 to 1.0) and the changed regions in pixels
+     * @throws CancellationException If the comparison is cancelled
+     */
+    public TileSimilarity compare(BufferedImage img1, TileHashes tiles1, BufferedImage img2, TileHashes tiles2,
+                                  CancellationContext cancellation) {
+        cancellation.throwIfCancelled();
+
+        if (!tiles1.sameLayout(tiles2) || tiles1.getWidth() != img1.getWidth() ||
+                tiles1.getHeight() != img1.getHeight() ||
+                img1.getWidth() < WINDOW_SIZE || img1.getHeight() < WINDOW_SIZE) {
+            return new TileSimilarity(calculateWindows(img1, img2, cancellation), Collections.emptyList());
+        }
+
+        BitSet changed = tiles1.changedTiles(tiles2);
+        if (changed.isEmpty()) {
+            return new TileSimilarity(1.0, Collections.emptyList());
+        }
+        List<Rectangle> regions = tiles1.changedRegions(changed);
+        if (changed.cardinality() > tiles1.getTileCount() * MAX_CHANGED_TILE_FRACTION) {
+            return new TileSimilarity(calculateWindows(img1, img2, cancellation), regions);
+        }
+
+        log.debug("{} of {} tiles changed in {} regions", changed.cardinality(), tiles1.getTileCount(), regions.size());
+
+        int width = img1.getWidth();
+        int height = img1.getHeight();
+        int tileSize = tiles1.getTileSize();
+        int numWindowsX = width - WINDOW_SIZE + 1;
+        int numWindowsY = height - WINDOW_SIZE + 1;
+        int stride = windowStride(width, height);
+
+        // Only the rows of windows that can overlap a changed tile are converted to luminance
+        int firstTileRow = changed.nextSetBit(0) / tiles1.getTilesX();
+        int lastTileRow = changed.previousSetBit(tiles1.getTileCount() - 1) / tiles1.getTilesX();
+        int bandTop = Math.max(0, firstTileRow * tileSize - WINDOW_SIZE + 1);
+        int bandBottom = Math.min(height, (lastTileRow + 1) * tileSize + WINDOW_SIZE - 1);
+
+        MemoryGovernor.Reservation reservation = memoryGovernor.tryReserve(
+                MemoryGovernor.rasterBytes(width, bandBottom - bandTop, WORKING_BYTES_PER_PIXEL));
+        if (reservation == null) {
+            return new TileSimilarity(calculateWindows(img1, img2, cancellation), regions);
+        }
+
+        try (MemoryGovernor.Reservation ignored = reservation) {
+            double[][] gray1 = imageToLuminanceArray(img1.getSubimage(0, bandTop, width, bandBottom - bandTop));
+            double[][] gray2 = imageToLuminanceArray(img2.getSubimage(0, bandTop, width, bandBottom - bandTop));
+
+            double ssimSum = 0.0;
+            int numWindows = 0;
+            for (int y = 0; y < numWindowsY; y += stride) {
+                if (y % ROWS_PER_TASK == 0) {
+                    cancellation.throwIfCancelled();
+                }
+                int topTile = y / tileSize;
+                int bottomTile = (y + WINDOW_SIZE - 1) / tileSize;
+
+                for (int x = 0; x < numWindowsX; x += stride) {
+                    int leftTile = x / tileSize;
+                    int rightTile = (x + WINDOW_SIZE - 1) / tileSize;
+
+                    if (tiles1.isChanged(changed, leftTile, topTile) || tiles1.isChanged(changed, rightTile, topTile) ||
+                            tiles1.isChanged(changed, leftTile, bottomTile) || tiles1.isChanged(changed, rightTile, bottomTile)) {
+                        ssimSum += calculateWindowSSIM(
+                                extractWindow(gray1, x, y - bandTop), extractWindow(gray2, x, y - bandTop));
+                    } else {
+                        ssimSum += 1.0;
+                    }
+                    numWindows++;
+                }
+            }
+
+            return new TileSimilarity(numWindows > 0 ? ssimSum / numWindows : 0.0, regions);
+        }
+    }
+
+    /**
+     * Calculate the SSIM of two page pyramids from the coarsest level up, stopping at the first
+     * level whose score is clearly outside the band around a decision threshold.
+     * The band starts at the given margin and halves with every finer level, since finer levels
+     * are closer to the full-resolution score.
+     *
+     * @param pyramid1 The pyramid of the first page
+     * @param pyramid2 The pyramid of the second page, with the same layout
+     * @param threshold The score the caller decides on
+     * @param margin The half-width of the band at the coarsest level
+     * @param cancellation The cancellation context of the comparison
+     * @return The score of the deciding level, or empty if every level is ambiguous and the
+     *         full-resolution score is needed
+     * @throws CancellationException If the comparison is cancelled
+     */
+    public OptionalDouble calculateCoarseToFine(LuminancePyramid pyramid1, LuminancePyramid pyramid2,
+                                                double threshold, double margin, CancellationContext cancellation) {
+        if (!pyramid1.sameLayout(pyramid2)) {
+            return OptionalDouble.empty();
+        }
+
+        double band = margin;
+        for (int level = pyramid1.getLevelCount() - 1; level >= 0; level--) {
+            double ssim = calculate(pyramid1.getLevel(level), pyramid2.getLevel(level), cancellation);
+            if (ssim < threshold - band || ssim > threshold + band) {
+                log.trace("Decided at pyramid level {} of {} with SSIM {}", level, pyramid1.getLevelCount(), ssim);
+                return OptionalDouble.of(ssim);
+            }
+            band /= 2;
+        }
+        return OptionalDouble.empty();
+    }
+
+    /**
+     * Calculate the SSIM between two luminance planes.
+     * The planes carry their window means and variances, so only the covariance of each
+     * window pair is computed here, without allocation.
+     *
+     * @param plane1 The first plane
+     * @param plane2 The second plane, of the same dimensions
+     * @param cancellation The cancellation context, checked once per row of windows
+     * @return The SSIM value (0.0 to 1.0)
+     * @throws CancellationException If the comparison is cancelled
+     */
+    public double calculate(LuminancePlane plane1, LuminancePlane plane2, CancellationContext cancellation) {
+        if (plane1.getWidth() != plane2.getWidth() || plane1.getHeight() != plane2.getHeight()) {
+            throw new IllegalArgumentException("Luminance planes differ in size: " +
+                    plane1.getWidth() + "x" + plane1.getHeight() + " and " +
+                    plane2.getWidth() + "x" + plane2.getHeight());
+        }
+        if (plane1.samePixels(plane2)) {
+            return 1.0;
+        }
+
+        int windowsPerRow = plane1.getWindowsPerRow();
+        int windowsPerColumn = plane1.getWindowsPerColumn();
+        int n = LuminancePlane.WINDOW_SIZE * LuminancePlane.WINDOW_SIZE;
+        double ssimSum = 0.0;
+
+        for (int wy = 0; wy < windowsPerColumn; wy++) {
+            cancellation.throwIfCancelled();
+            int top = wy * LuminancePlane.WINDOW_STEP;
+
+            for (int wx = 0; wx < windowsPerRow; wx++) {
+                int left = wx * LuminancePlane.WINDOW_STEP;
+                int window = wy * windowsPerRow + wx;
+
+                long products = 0;
+                for (int y = top; y < top + LuminancePlane.WINDOW_SIZE; y++) {
+                    for (int x = left; x < left + LuminancePlane.WINDOW_SIZE; x++) {
+                        products += plane1.luminance(x, y) * plane2.luminance(x, y);
+                    }
+                }
+
+                double mean1 = plane1.windowMean(window);
+                double mean2 = plane2.windowMean(window);
+                double covariance = (double) products / n - mean1 * mean2;
+
+                double numerator = (2 * mean1 * mean2 + C1) * (2 * covariance + C2);
+                double denominator = (mean1 * mean1 + mean2 * mean2 + C1) *
+                        (plane1.windowVariance(window) + plane2.windowVariance(window) + C2);
+                ssimSum += Math.max(0.0, Math.min(1.0, numerator / denominator));
+            }
+        }
+
+        return ssimSum / (windowsPerRow * windowsPerColumn);
+    }
+
     /**
      * Quick comparison of two images by sampling pixels.
      * This is much faster than full SSIM and can quickly identify obviously
@@ -158,15 +417,16 @@ public class SSIMCalculator {
      *
      * @param img1 The first image
      * @param img2 The second image
+     * @param cancellation The cancellation context
      * @return The SSIM value
      */
-    private double calculateSSIMSequential(BufferedImage img1, BufferedImage img2) {
+    private double calculateSSIMSequential(BufferedImage img1, BufferedImage img2, CancellationContext cancellation) {
         // Convert images to luminance arrays for faster processing
         double[][] gray1 = imageToLuminanceArray(img1);
         double[][] gray2 = imageToLuminanceArray(img2);
 
         // Calculate SSIM
-        return calculateSSIM(gray1, gray2);
+        return calculateSSIM(gray1, gray2, cancellation);
     }
 
     /**
@@ -174,9 +434,10 @@ public class SSIMCalculator {
      *
      * @param img1 The first image
      * @param img2 The second image
+     * @param cancellation The cancellation context
      * @return The SSIM value
      */
-    private double calculateSSIMParallel(BufferedImage img1, BufferedImage img2) {
+    private double calculateSSIMParallel(BufferedImage img1, BufferedImage img2, CancellationContext cancellation) {
         int height = img1.getHeight();
         int width = img1.getWidth();
 
@@ -184,69 +445,20 @@ public class SSIMCalculator {
         double[][] gray1 = imageToLuminanceArray(img1);
         double[][] gray2 = imageToLuminanceArray(img2);
 
-        // Calculate the number of rows per task
-        int numProcessors = Runtime.getRuntime().availableProcessors();
-        int rowsPerTask = Math.max(1, height / numProcessors);
-
-        // Create tasks for parallel processing
-        Future<Double>[] tasks = new Future[numProcessors];
-        double[] results = new double[numProcessors];
-        int[] rowCounts = new int[numProcessors];
-
-        for (int i = 0; i < numProcessors; i++) {
-            final int taskIndex = i;
-            final int startRow = i * rowsPerTask;
-            final int endRow = (i == numProcessors - 1) ? height : (i + 1) * rowsPerTask;
-
-            // Submit task for this section of the image
-            tasks[i] = executor.submit(() -> {
-                double ssimSum = 0.0;
-                int count = 0;
-
-                // Calculate SSIM for this section
-                for (int y = startRow; y < endRow; y++) {
-                    if (y + WINDOW_SIZE > height) continue;
-
-                    for (int x = 0; x < width; x++) {
-                        if (x + WINDOW_SIZE > width) continue;
-
-                        // Extract window
-                        double[] window1 = extractWindow(gray1, x, y);
-                        double[] window2 = extractWindow(gray2, x, y);
-
-                        // Calculate SSIM for this window
-                        double ssim = calculateWindowSSIM(window1, window2);
-                        ssimSum += ssim;
-                        count++;
-                    }
-                }
-
-                // Store row count for weighted average
-                rowCounts[taskIndex] = count;
-                return ssimSum;
-            });
-        }
-
-        // Collect results
+        // Split the rows recursively; when called from a pool worker (e.g. a parallel page
+        // comparison) the bands are forked into that same pool instead of a second one
+        SSIMRowTask task = new SSIMRowTask(gray1, gray2, 0, height, width, height, cancellation);
+        double[] result;
         try {
-            for (int i = 0; i < numProcessors; i++) {
-                results[i] = tasks[i].get(2, TimeUnit.SECONDS);
-            }
-        } catch (Exception e) {
+            result = ForkJoinTask.inForkJoinPool() ? task.invoke() : cpuPool.invoke(task);
+        } catch (CancellationException e) {
+            throw e;
+        } catch (RuntimeException e) {
             log.error("Error in parallel SSIM calculation: {}", e.getMessage());
-            return calculateSSIMSequential(img1, img2); // Fallback to sequential
-        }
-
-        // Calculate weighted average
-        double ssimSum = 0.0;
-        int totalCount = 0;
-
-        for (int i = 0; i < numProcessors; i++) {
-            ssimSum += results[i];
-            totalCount += rowCounts[i];
+            return calculateSSIMSequential(img1, img2, cancellation); // Fallback to sequential
         }
 
-        return totalCount > 0 ? ssimSum / totalCount : 0.0;
+        return result[1] > 0 ? result[0] / result[1] : 0.0;
     }
 
     /**
@@ -283,7 +495,7 @@ public class SSIMCalculator {
         DataBuffer buffer = raster.getDataBuffer();
 
         // Check if the image is grayscale
-        boolean isGray = img.getType() == BufferedImage.TYPE_BYTE_GRAY;
+        boolean isGray = LuminancePlane.isGrayscale(img);
 
         // For faster conversion, process data based on image type
         if (isGray) {
@@ -319,9 +531,10 @@ public class SSIMCalculator {
      *
      * @param img1 The first grayscale matrix
      * @param img2 The second grayscale matrix
+     * @param cancellation The cancellation context, checked once per band of rows
      * @return The SSIM value (0.0 to 1.0)
      */
-    private double calculateSSIM(double[][] img1, double[][] img2) {
+    private double calculateSSIM(double[][] img1, double[][] img2, CancellationContext cancellation) {
         int height = img1.length;
         int width = img1[0].length;
 
@@ -338,13 +551,13 @@ public class SSIMCalculator {
         int numWindows = 0;
 
         // Skip some windows to speed up processing for large images
-        int stride = 1;
-        if (width * height > 1000000) { // > 1MP
-            stride = 2; // Skip every other window
-        }
+        int stride = windowStride(width, height);
 
         // Iterate over windows with stride
         for (int y = 0; y < numWindowsY; y += stride) {
+            if (y % ROWS_PER_TASK == 0) {
+                cancellation.throwIfCancelled();
+            }
             for (int x = 0; x < numWindowsX; x += stride) {
                 // Extract window
                 double[] window1 = extractWindow(img1, x, y);
@@ -361,6 +574,18 @@ public class SSIMCalculator {
         return numWindows > 0 ? ssimSum / numWindows : 0.0;
     }
 
+    /**
+     * Distance between the origins of neighbouring windows, shared by every path that averages
+     * window SSIM values so that they score an image alike.
+     *
+     * @param width The image width
+     * @param height The image height
+     * @return 2 to skip every other window of images above one megapixel, 1 otherwise
+     */
+    private static int windowStride(int width, int height) {
+        return width * height > 1000000 ? 2 : 1;
+    }
+
     /**
      * Compare small images that are smaller than the window size.
      *
@@ -469,9 +694,57 @@ public class SSIMCalculator {
     }
 
     /**
-     * Shut down the executor service.
+     * Sum of window SSIM values over a band of rows, split in halves until the band is small.
+     * The result holds the SSIM sum and the number of windows.
      */
-    public void shutdown() {
-        executor.shutdown();
+    private class SSIMRowTask extends RecursiveTask<double[]> {
+        private final double[][] gray1;
+        private final double[][] gray2;
+        private final int startRow;
+        private final int endRow;
+        private final int width;
+        private final int height;
+        private final CancellationContext cancellation;
+
+        SSIMRowTask(double[][] gray1, double[][] gray2, int startRow, int endRow, int width, int height,
+                    CancellationContext cancellation) {
+            this.gray1 = gray1;
+            this.gray2 = gray2;
+            this.startRow = startRow;
+            this.endRow = endRow;
+            this.width = width;
+            this.height = height;
+            this.cancellation = cancellation;
+        }
+
+        @Override
+        protected double[] compute() {
+            if (endRow - startRow > ROWS_PER_TASK) {
+                int middle = (startRow + endRow) >>> 1;
+                SSIMRowTask top = new SSIMRowTask(gray1, gray2, startRow, middle, width, height, cancellation);
+                SSIMRowTask bottom = new SSIMRowTask(gray1, gray2, middle, endRow, width, height, cancellation);
+                top.fork();
+                double[] bottomResult = bottom.compute();
+                double[] topResult = top.join();
+                return new double[]{topResult[0] + bottomResult[0], topResult[1] + bottomResult[1]};
+            }
+
+            // Each band of rows is a cancellation point
+            cancellation.throwIfCancelled();
+
+            int stride = windowStride(width, height);
+            double ssimSum = 0.0;
+            int count = 0;
+            for (int y = startRow; y < endRow; y++) {
+                if (y + WINDOW_SIZE > height || y % stride != 0) continue;
+
+                for (int x = 0; x + WINDOW_SIZE <= width; x += stride) {
+                    // Calculate SSIM for this window
+                    ssimSum += calculateWindowSSIM(extractWindow(gray1, x, y), extractWindow(gray2, x, y));
+                    count++;
+                }
+            }
+            return new double[]{ssimSum, count};
+        }
     }
-}
\ No newline at end of file
+}
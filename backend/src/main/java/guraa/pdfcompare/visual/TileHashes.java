@@ -0,0 +1,183 @@
+package guraa.pdfcompare.visual;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Hashes of the fixed-size tiles of a raster, for finding the parts of two rasters that differ
+ * without comparing their pixels. Tiles with equal hashes are taken to be identical, so SSIM only
+ * needs to look at the tiles whose hashes differ, and those tiles directly give the changed regions.
+ */
+public final class TileHashes {
+
+    private static final long SEED = 0xCBF29CE484222325L;
+    private static final long MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    private final int width;
+    private final int height;
+    private final int tileSize;
+    private final int tilesX;
+    private final int tilesY;
+    private final long[] hashes;
+
+    private TileHashes(int width, int height, int tileSize, long[] hashes) {
+        this.width = width;
+        this.height = height;
+        this.tileSize = tileSize;
+        this.tilesX = (width + tileSize - 1) / tileSize;
+        this.tilesY = (height + tileSize - 1) / tileSize;
+        this.hashes = hashes;
+    }
+
+    /**
+     * Hash the tiles of an image, reading the samples of one row at a time.
+     *
+     * @param image    The image
+     * @param tileSize The side of a tile in pixels
+     * @return The tile hashes, row by row
+     */
+    public static TileHashes of(BufferedImage image, int tileSize) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int tilesX = (width + tileSize - 1) / tileSize;
+        int tilesY = (height + tileSize - 1) / tileSize;
+        long[] hashes = new long[tilesX * tilesY];
+        Arrays.fill(hashes, SEED);
+
+        Raster raster = image.getRaster();
+        int bands = raster.getNumBands();
+        int[] row = new int[width * bands];
+        for (int y = 0; y < height; y++) {
+            raster.getPixels(0, y, width, 1, row);
+            int offset = (y / tileSize) * tilesX;
+            for (int i = 0; i < row.length; i++) {
+                int tile = offset + i / bands / tileSize;
+                hashes[tile] = (hashes[tile] ^ row[i]) * MULTIPLIER;
+            }
+        }
+
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] ^= hashes[i] >>> 29;
+        }
+        return new TileHashes(width, height, tileSize, hashes);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public int getTilesX() {
+        return tilesX;
+    }
+
+    public int getTilesY() {
+        return tilesY;
+    }
+
+    public int getTileCount() {
+        return hashes.length;
+    }
+
+    /**
+     * Check whether the tiles of two rasters line up, so they can be compared.
+     *
+     * @param other The tile hashes of the other raster
+     * @return true if both rasters have the same size and tile size
+     */
+    public boolean sameLayout(TileHashes other) {
+        return width == other.width && height == other.height && tileSize == other.tileSize;
+    }
+
+    /**
+     * Find the tiles that differ from the same tiles of another raster.
+     *
+     * @param other The tile hashes of the other raster, with the same layout
+     * @return The indexes of the differing tiles, row by row
+     */
+    public BitSet changedTiles(TileHashes other) {
+        BitSet changed = new BitSet(hashes.length);
+        for (int i = 0; i < hashes.length; i++) {
+            if (hashes[i] != other.hashes[i]) {
+                changed.set(i);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Check whether a tile is set, treating tiles outside the grid as unchanged.
+     *
+     * @param changed The changed tiles
+     * @param tileX   The tile column
+     * @param tileY   The tile row
+     * @return true if the tile is in the grid and changed
+     */
+    public boolean isChanged(BitSet changed, int tileX, int tileY) {
+        return tileX >= 0 && tileX < tilesX && tileY >= 0 && tileY < tilesY && changed.get(tileY * tilesX + tileX);
+    }
+
+    /**
+     * Merge touching changed tiles, including diagonal neighbours, into bounding boxes.
+     *
+     * @param changed The changed tiles
+     * @return The bounding boxes of the changed regions in pixels, clipped to the raster
+     */
+    public List<Rectangle> changedRegions(BitSet changed) {
+        List<Rectangle> regions = new ArrayList<>();
+        BitSet visited = new BitSet(hashes.length);
+        Deque<Integer> pending = new ArrayDeque<>();
+
+        for (int start = changed.nextSetBit(0); start >= 0; start = changed.nextSetBit(start + 1)) {
+            if (visited.get(start)) {
+                continue;
+            }
+
+            int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = -1, maxY = -1;
+            visited.set(start);
+            pending.push(start);
+            while (!pending.isEmpty()) {
+                int tile = pending.pop();
+                int tileX = tile % tilesX;
+                int tileY = tile / tilesX;
+                minX = Math.min(minX, tileX);
+                minY = Math.min(minY, tileY);
+                maxX = Math.max(maxX, tileX);
+                maxY = Math.max(maxY, tileY);
+
+                for (int dy = -1; dy <= 1; dy++) {
+                    for (int dx = -1; dx <= 1; dx++) {
+                        if (isChanged(changed, tileX + dx, tileY + dy)) {
+                            int neighbour = (tileY + dy) * tilesX + tileX + dx;
+                            if (!visited.get(neighbour)) {
+                                visited.set(neighbour);
+                                pending.push(neighbour);
+                            }
+                        }
+                    }
+                }
+            }
+
+            int left = minX * tileSize;
+            int top = minY * tileSize;
+            regions.add(new Rectangle(left, top,
+                    Math.min(width, (maxX + 1) * tileSize) - left,
+                    Math.min(height, (maxY + 1) * tileSize) - top));
+        }
+        return regions;
+    }
+}
@@ -0,0 +1,34 @@
+package guraa.pdfcompare.visual;
+
+import java.awt.Rectangle;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The SSIM of two rasters together with the regions in which they differ, as found by their
+ * tile hashes.
+ */
+public final class TileSimilarity {
+
+    private final double similarity;
+    private final List<Rectangle> changedRegions;
+
+    TileSimilarity(double similarity, List<Rectangle> changedRegions) {
+        this.similarity = similarity;
+        this.changedRegions = Collections.unmodifiableList(changedRegions);
+    }
+
+    public double getSimilarity() {
+        return similarity;
+    }
+
+    /**
+     * Get the bounding boxes of the changed regions.
+     *
+     * @return The regions in pixels of the first raster, empty if the rasters are identical or
+     *         their tiles do not line up
+     */
+    public List<Rectangle> getChangedRegions() {
+        return changedRegions;
+    }
+}
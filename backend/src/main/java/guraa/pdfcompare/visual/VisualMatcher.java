@@ -2,6 +2,7 @@ package guraa.pdfcompare.visual;
 
 import guraa.pdfcompare.model.PdfDocument;
 import guraa.pdfcompare.service.PagePair;
+import guraa.pdfcompare.util.CancellationContext;
 
 import java.io.IOException;
 import java.util.List;
@@ -21,5 +22,20 @@ public interface VisualMatcher {
      * @return A list of page pairs
      * @throws IOException If there is an error matching the pages
      */
-    List<PagePair> matchPages(PdfDocument baseDocument, PdfDocument compareDocument) throws IOException;
+    default List<PagePair> matchPages(PdfDocument baseDocument, PdfDocument compareDocument) throws IOException {
+        return matchPages(baseDocument, compareDocument, CancellationContext.NONE);
+    }
+
+    /**
+     * Match pages between two PDF documents as part of a comparison that can be cancelled.
+     *
+     * @param baseDocument The base document
+     * @param compareDocument The document to compare against the base
+     * @param cancellation The cancellation context of the comparison
+     * @return A list of page pairs
+     * @throws IOException If there is an error matching the pages
+     * @throws java.util.concurrent.CancellationException If the comparison is cancelled
+     */
+    List<PagePair> matchPages(PdfDocument baseDocument, PdfDocument compareDocument,
+                              CancellationContext cancellation) throws IOException;
 }
\ No newline at end of file
@@ -34,10 +34,14 @@ CREATE TABLE IF NOT EXISTS comparisons (
                                            current_phase VARCHAR(100) DEFAULT 'Initializing',
                                            created_at TIMESTAMP NOT NULL,
                                            updated_at TIMESTAMP NOT NULL,
+                                           batch_id VARCHAR(255),
                                            FOREIGN KEY (base_document_id) REFERENCES pdf_documents(file_id),
                                            FOREIGN KEY (compare_document_id) REFERENCES pdf_documents(file_id)
 );
 
+-- Add columns introduced after the first release
+ALTER TABLE comparisons ADD COLUMN IF NOT EXISTS batch_id VARCHAR(255);
+
 -- Create indexes for better performance
 CREATE INDEX IF NOT EXISTS idx_pdf_docs_content_hash ON pdf_documents(content_hash);
 CREATE INDEX IF NOT EXISTS idx_comparisons_base_doc ON comparisons(base_document_id);
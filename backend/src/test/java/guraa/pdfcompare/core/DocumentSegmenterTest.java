@@ -0,0 +1,140 @@
+package guraa.pdfcompare.core;
+
+import guraa.pdfcompare.model.DocumentPair;
+import guraa.pdfcompare.model.DocumentSegment;
+import guraa.pdfcompare.model.PageSignature;
+import guraa.pdfcompare.model.PdfDocument;
+import guraa.pdfcompare.service.PageArtifactService;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class DocumentSegmenterTest {
+
+    private static final long LAYOUT = 0x0F0F0F0F0F0F0F0FL;
+
+    private final PageArtifactService pageArtifactService = mock(PageArtifactService.class);
+    private final DocumentSegmenter segmenter = new DocumentSegmenter(pageArtifactService);
+
+    @Test
+    void blankVersoStartsANewSegment() {
+        PdfDocument document = document(signatures(8, 4));
+
+        List<DocumentSegment> segments = segmenter.segment(document);
+
+        assertEquals(2, segments.size());
+        assertEquals(1, segments.get(0).getStartPage());
+        assertEquals(4, segments.get(0).getEndPage());
+        assertEquals(5, segments.get(1).getStartPage());
+        assertEquals(8, segments.get(1).getEndPage());
+    }
+
+    @Test
+    void boundaryFoundInOneFileOnlyComparesTheFilesWhole() {
+        PdfDocument base = document(signatures(8, 4));
+        PdfDocument compare = document(signatures(8, 0));
+
+        List<DocumentPair> pairs = segmenter.matchSegments(
+                base, segmenter.segment(base), compare, segmenter.segment(compare));
+
+        assertTrue(pairs.isEmpty());
+    }
+
+    @Test
+    void unmatchedSegmentIsMergedIntoThePrecedingPair() {
+        PdfDocument base = document(new ArrayList<>());
+        PdfDocument compare = document(new ArrayList<>());
+        List<DocumentSegment> baseSegments = Arrays.asList(
+                segment(1, 3, LAYOUT, 1, 2, 3),
+                segment(4, 6, ~LAYOUT, 4, 5, 6),
+                segment(7, 10, 0, 7, 8, 9, 10));
+        List<DocumentSegment> compareSegments = Arrays.asList(
+                segment(1, 6, LAYOUT, 1, 2, 3, 4, 5, 6),
+                segment(7, 10, 0, 7, 8, 9, 10));
+
+        List<DocumentPair> pairs = segmenter.matchSegments(base, baseSegments, compare, compareSegments);
+
+        assertEquals(2, pairs.size());
+        assertPair(pairs.get(0), 1, 6, 1, 6);
+        assertPair(pairs.get(1), 7, 10, 7, 10);
+        assertEquals(1.0, pairs.get(0).getSimilarityScore(), 1e-9);
+    }
+
+    @Test
+    void leadingUnmatchedSegmentIsMergedIntoTheFollowingPair() {
+        PdfDocument base = document(new ArrayList<>());
+        PdfDocument compare = document(new ArrayList<>());
+        List<DocumentSegment> baseSegments = Arrays.asList(
+                segment(1, 2, ~LAYOUT, 100, 101),
+                segment(3, 6, LAYOUT, 1, 2, 3, 4),
+                segment(7, 10, 0, 7, 8, 9, 10));
+        List<DocumentSegment> compareSegments = Arrays.asList(
+                segment(1, 4, LAYOUT, 1, 2, 3, 4),
+                segment(5, 8, 0, 7, 8, 9, 10));
+
+        List<DocumentPair> pairs = segmenter.matchSegments(base, baseSegments, compare, compareSegments);
+
+        assertEquals(2, pairs.size());
+        assertPair(pairs.get(0), 1, 6, 1, 4);
+        assertPair(pairs.get(1), 7, 10, 5, 8);
+    }
+
+    private PdfDocument document(List<PageSignature> signatures) {
+        PdfDocument document = PdfDocument.builder()
+                .fileId(UUID.randomUUID().toString())
+                .pageCount(signatures.size())
+                .build();
+        when(pageArtifactService.getSignatures(document)).thenReturn(signatures);
+        return document;
+    }
+
+    /**
+     * Letter-sized pages with text and one layout, optionally with a blank page.
+     */
+    private static List<PageSignature> signatures(int pageCount, int blankPage) {
+        List<PageSignature> signatures = new ArrayList<>();
+        for (int pageNumber = 1; pageNumber <= pageCount; pageNumber++) {
+            boolean blank = pageNumber == blankPage;
+            signatures.add(PageSignature.builder()
+                    .pageNumber(pageNumber)
+                    .width(612)
+                    .height(792)
+                    .textHash(blank ? 0 : pageNumber)
+                    .textLength(blank ? 0 : 1000)
+                    .visualHash(blank ? 0 : LAYOUT)
+                    .build());
+        }
+        return signatures;
+    }
+
+    private static DocumentSegment segment(int startPage, int endPage, long firstPageVisualHash, long... tokens) {
+        Set<Long> pageTokens = new HashSet<>();
+        for (long token : tokens) {
+            pageTokens.add(token);
+        }
+        return DocumentSegment.builder()
+                .startPage(startPage)
+                .endPage(endPage)
+                .firstPageVisualHash(firstPageVisualHash)
+                .pageTokens(pageTokens)
+                .build();
+    }
+
+    private static void assertPair(DocumentPair pair, int baseStart, int baseEnd, int compareStart, int compareEnd) {
+        assertTrue(pair.isMatched());
+        assertEquals(baseStart, pair.getBaseStartPage());
+        assertEquals(baseEnd, pair.getBaseEndPage());
+        assertEquals(compareStart, pair.getCompareStartPage());
+        assertEquals(compareEnd, pair.getCompareEndPage());
+    }
+}
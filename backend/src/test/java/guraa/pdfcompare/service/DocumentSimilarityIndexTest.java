@@ -0,0 +1,170 @@
+package guraa.pdfcompare.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import guraa.pdfcompare.extraction.TextDifferenceExtractor.TextElement;
+import guraa.pdfcompare.model.PdfDocument;
+import guraa.pdfcompare.model.SimilarDocument;
+import guraa.pdfcompare.repository.PdfRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyIterable;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class DocumentSimilarityIndexTest {
+
+    @TempDir
+    Path indexPath;
+
+    private final PdfRepository pdfRepository = mock(PdfRepository.class);
+    private final PageArtifactService pageArtifactService = mock(PageArtifactService.class);
+    private final Map<String, PdfDocument> documents = new HashMap<>();
+    private final Map<String, String> texts = new HashMap<>();
+
+    @BeforeEach
+    void mockServices() throws IOException {
+        when(pageArtifactService.getSignatures(any())).thenReturn(Collections.emptyList());
+        when(pageArtifactService.getTextElements(any(), anyInt())).thenAnswer(invocation -> {
+            PdfDocument document = invocation.getArgument(0);
+            return Collections.singletonList(
+                    new TextElement(texts.get(document.getFileId()), 0, 0, 0, 0, "Helvetica", 12));
+        });
+        when(pdfRepository.findAllById(anyIterable())).thenAnswer(invocation -> {
+            Iterable<String> ids = invocation.getArgument(0);
+            List<PdfDocument> found = new ArrayList<>();
+            ids.forEach(id -> {
+                if (documents.containsKey(id)) {
+                    found.add(documents.get(id));
+                }
+            });
+            return found;
+        });
+    }
+
+    @Test
+    void nearDuplicatesShareABandAndUnrelatedDocumentsDoNot() throws IOException {
+        DocumentSimilarityIndex index = newIndex();
+        String original = randomText(1, 3000);
+        PdfDocument query = document("query", original);
+        PdfDocument nearDuplicate = document("near", edit(original, 10));
+        PdfDocument unrelated = document("unrelated", randomText(2, 3000));
+        index.indexDocument(nearDuplicate);
+        index.indexDocument(unrelated);
+        index.indexDocument(query);
+
+        List<SimilarDocument> similar = index.findSimilar(query, 10, 0.0);
+
+        assertEquals(Collections.singletonList("near"),
+                similar.stream().map(SimilarDocument::getFileId).collect(Collectors.toList()));
+        assertTrue(similar.get(0).getTextSimilarity() > 0.7);
+    }
+
+    @Test
+    void reindexedDocumentLeavesItsOldBands() throws IOException {
+        DocumentSimilarityIndex index = newIndex();
+        String original = randomText(1, 3000);
+        PdfDocument query = document("query", original);
+        PdfDocument changing = document("changing", original);
+        index.indexDocument(query);
+        index.indexDocument(changing);
+        assertEquals(1, index.findSimilar(query, 10, 0.0).size());
+
+        texts.put("changing", randomText(3, 3000));
+        index.indexDocument(changing);
+
+        assertTrue(index.findSimilar(query, 10, 0.0).isEmpty());
+    }
+
+    @Test
+    void unindexedQueryHasNoResults() throws IOException {
+        DocumentSimilarityIndex index = newIndex();
+        String original = randomText(1, 3000);
+        index.indexDocument(document("near", edit(original, 5)));
+
+        assertTrue(index.findSimilar(document("query", original), 10, 0.0).isEmpty());
+    }
+
+    @Test
+    void persistedShardsRestoreTheBands() throws IOException {
+        String original = randomText(1, 3000);
+        DocumentSimilarityIndex index = newIndex();
+        index.indexDocument(document("near", edit(original, 5)));
+        index.indexDocument(document("query", original));
+
+        DocumentSimilarityIndex reloaded = newIndex();
+        reloaded.loadShards();
+
+        assertTrue(reloaded.isIndexed("near"));
+        assertEquals("near", reloaded.findSimilar(documents.get("query"), 10, 0.0).get(0).getFileId());
+    }
+
+    @Test
+    void journalReplaysReindexedSketchesAcrossCompaction() throws IOException {
+        String original = randomText(1, 3000);
+        DocumentSimilarityIndex index = newIndex();
+        ReflectionTestUtils.setField(index, "compactAfter", 2);
+        index.indexDocument(document("query", original));
+        index.indexDocument(document("changing", original));
+        texts.put("changing", randomText(3, 3000));
+        index.indexDocument(documents.get("changing"));
+
+        DocumentSimilarityIndex reloaded = newIndex();
+        reloaded.loadShards();
+
+        assertTrue(reloaded.isIndexed("query"));
+        assertTrue(reloaded.findSimilar(documents.get("query"), 10, 0.0).isEmpty());
+    }
+
+    private DocumentSimilarityIndex newIndex() {
+        DocumentSimilarityIndex index = new DocumentSimilarityIndex(
+                pdfRepository, pageArtifactService, new ObjectMapper(), mock(ExecutorService.class));
+        ReflectionTestUtils.setField(index, "indexPath", indexPath.toString());
+        return index;
+    }
+
+    private PdfDocument document(String fileId, String text) {
+        PdfDocument document = PdfDocument.builder().fileId(fileId).pageCount(1).build();
+        documents.put(fileId, document);
+        texts.put(fileId, text);
+        return document;
+    }
+
+    private static String randomText(long seed, int length) {
+        Random random = new Random(seed);
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append((char) ('a' + random.nextInt(26)));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Replace evenly spread characters, which changes the shingles covering them.
+     */
+    private static String edit(String text, int edits) {
+        char[] chars = text.toCharArray();
+        for (int i = 1; i <= edits; i++) {
+            int position = i * chars.length / (edits + 1);
+            chars[position] = chars[position] == 'z' ? 'y' : 'z';
+        }
+        return new String(chars);
+    }
+}
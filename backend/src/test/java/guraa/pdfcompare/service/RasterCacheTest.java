@@ -0,0 +1,112 @@
+package guraa.pdfcompare.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class RasterCacheTest {
+
+    private static final int PIXELS = 100 * 100;
+
+    private final RasterCache cache = new RasterCache(new SimpleMeterRegistry(), 1);
+
+    @Test
+    void attachmentsAreCountedApartFromUsedBytes() throws IOException {
+        try (RasterCache.Pin pin = cache.acquire("doc/1", () -> image(100, 100, 10))) {
+            AtomicInteger builds = new AtomicInteger();
+            Object first = pin.attachment(String.class, p -> "stats" + builds.incrementAndGet(), s -> 500L);
+            Object second = pin.attachment(String.class, p -> "stats" + builds.incrementAndGet(), s -> 500L);
+
+            assertSame(first, second);
+            assertEquals(1, builds.get());
+            assertEquals(PIXELS, cache.getUsedBytes());
+            assertEquals(500, cache.getAttachedBytes());
+        }
+
+        cache.invalidatePrefix("doc/");
+        assertEquals(0, cache.getUsedBytes());
+        assertEquals(0, cache.getAttachedBytes());
+    }
+
+    @Test
+    void colourRastersKeepTheirBands() throws IOException {
+        BufferedImage colour = new BufferedImage(100, 100, BufferedImage.TYPE_INT_RGB);
+        colour.setRGB(5, 5, 0xFF0000);
+        colour.setRGB(6, 5, 0x0000FF);
+
+        try (RasterCache.Pin pin = cache.acquire("doc/1", () -> colour)) {
+            assertEquals(3, pin.getBands());
+            assertEquals(3 * PIXELS, cache.getUsedBytes());
+            assertEquals(0xFF0000, pin.getImage().getRGB(5, 5) & 0xFFFFFF);
+            assertEquals(0x0000FF, pin.getImage().getRGB(6, 5) & 0xFFFFFF);
+
+            byte[] luminance = pin.copyLuminance();
+            assertEquals(PIXELS, luminance.length);
+            assertEquals(255 * 76 >> 8, luminance[5 * 100 + 5] & 0xFF);
+        }
+    }
+
+    @Test
+    void invalidatedPinnedRasterStaysReadableWithoutBeingCounted() throws IOException {
+        try (RasterCache.Pin pin = cache.acquire("doc/1", () -> image(100, 100, 10))) {
+            cache.invalidatePrefix("doc/");
+            assertEquals(0, cache.getUsedBytes());
+            assertEquals(0, cache.size());
+
+            // Attached after the raster was dropped, so never part of the used bytes
+            pin.attachment(String.class, p -> "stats", s -> 500L);
+            assertEquals(0, cache.getUsedBytes());
+            assertEquals(10, pin.getImage().getRaster().getSample(5, 5, 0));
+        }
+        assertEquals(0, cache.getUsedBytes());
+
+        AtomicInteger loads = new AtomicInteger();
+        try (RasterCache.Pin pin = cache.acquire("doc/1", () -> {
+            loads.incrementAndGet();
+            return image(100, 100, 20);
+        })) {
+            assertEquals(1, loads.get());
+            assertEquals(20, pin.getImage().getRaster().getSample(5, 5, 0));
+            assertEquals(PIXELS, cache.getUsedBytes());
+        }
+    }
+
+    @Test
+    void pinnedRastersAreEvictedOnlyOnceUnpinned() throws IOException {
+        int side = 800;
+        RasterCache.Pin pin = cache.acquire("doc/1", () -> image(side, side, 10));
+        cache.put("doc/2", image(side, side, 20));
+
+        // The pinned raster is least recently used, but the unpinned one goes
+        assertEquals(side * side, cache.getUsedBytes());
+        assertEquals(1, cache.size());
+
+        pin.close();
+        cache.put("doc/2", image(side, side, 20));
+        assertEquals(side * side, cache.getUsedBytes());
+
+        AtomicInteger loads = new AtomicInteger();
+        try (RasterCache.Pin reloaded = cache.acquire("doc/1", () -> {
+            loads.incrementAndGet();
+            return image(side, side, 10);
+        })) {
+            assertEquals(1, loads.get());
+        }
+    }
+
+    private static BufferedImage image(int width, int height, int value) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.getRaster().setSample(x, y, 0, value);
+            }
+        }
+        return image;
+    }
+}
@@ -0,0 +1,122 @@
+package guraa.pdfcompare.util;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class HttpFileUtilsTest {
+
+    private static final String ETAG = "\"abc-1\"";
+
+    @TempDir
+    Path tempDir;
+
+    private File file;
+    private byte[] content;
+
+    @BeforeEach
+    void writeFile() throws IOException {
+        content = new byte[100];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        file = tempDir.resolve("page.png").toFile();
+        Files.write(file.toPath(), content);
+    }
+
+    @Test
+    void closedRangeIsServedPartially() throws IOException {
+        MockHttpServletResponse response = serve("bytes=10-19");
+
+        assertEquals(206, response.getStatus());
+        assertEquals("bytes 10-19/100", response.getHeader(HttpHeaders.CONTENT_RANGE));
+        assertArrayEquals(Arrays.copyOfRange(content, 10, 20), response.getContentAsByteArray());
+    }
+
+    @Test
+    void openAndOverlongRangesEndAtTheLastByte() throws IOException {
+        assertEquals("bytes 90-99/100", serve("bytes=90-").getHeader(HttpHeaders.CONTENT_RANGE));
+        assertEquals("bytes 95-99/100", serve("bytes=95-500").getHeader(HttpHeaders.CONTENT_RANGE));
+    }
+
+    @Test
+    void suffixRangeServesTheLastBytes() throws IOException {
+        MockHttpServletResponse response = serve("bytes=-10");
+
+        assertEquals("bytes 90-99/100", response.getHeader(HttpHeaders.CONTENT_RANGE));
+        assertArrayEquals(Arrays.copyOfRange(content, 90, 100), response.getContentAsByteArray());
+        assertEquals("bytes 0-99/100", serve("bytes=-500").getHeader(HttpHeaders.CONTENT_RANGE));
+    }
+
+    @Test
+    void unsatisfiableRangesAreRejected() throws IOException {
+        for (String range : new String[]{"bytes=100-", "bytes=-0"}) {
+            MockHttpServletResponse response = serve(range);
+
+            assertEquals(416, response.getStatus(), range);
+            assertEquals("bytes */100", response.getHeader(HttpHeaders.CONTENT_RANGE), range);
+        }
+    }
+
+    @Test
+    void multipleMalformedOrInvalidRangesServeTheWholeFile() throws IOException {
+        for (String range : new String[]{"bytes=0-1,5-6", "bytes=abc", "items=0-1", "bytes=5", "bytes=50-40"}) {
+            MockHttpServletResponse response = serve(range);
+
+            assertEquals(200, response.getStatus(), range);
+            assertNull(response.getHeader(HttpHeaders.CONTENT_RANGE), range);
+            assertArrayEquals(content, response.getContentAsByteArray(), range);
+        }
+    }
+
+    @Test
+    void staleIfRangeServesTheWholeFile() throws IOException {
+        MockHttpServletRequest request = request("bytes=0-9");
+        request.addHeader(HttpHeaders.IF_RANGE, "\"other\"");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        HttpFileUtils.serveFile(request, response, file, ETAG, "image/png");
+
+        assertEquals(200, response.getStatus());
+        assertEquals(100, response.getContentAsByteArray().length);
+    }
+
+    @Test
+    void matchingETagIsNotModified() throws IOException {
+        MockHttpServletRequest request = request(null);
+        request.addHeader(HttpHeaders.IF_NONE_MATCH, ETAG);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        HttpFileUtils.serveFile(request, response, file, ETAG, "image/png");
+
+        assertEquals(304, response.getStatus());
+        assertEquals(0, response.getContentAsByteArray().length);
+    }
+
+    private MockHttpServletResponse serve(String range) throws IOException {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        HttpFileUtils.serveFile(request(range), response, file, ETAG, "image/png");
+        return response;
+    }
+
+    private static MockHttpServletRequest request(String range) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/page");
+        if (range != null) {
+            request.addHeader(HttpHeaders.RANGE, range);
+        }
+        return request;
+    }
+}
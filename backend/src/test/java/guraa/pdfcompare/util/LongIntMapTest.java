@@ -0,0 +1,58 @@
+package guraa.pdfcompare.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class LongIntMapTest {
+
+    @Test
+    void putReplacesAndReturnsPreviousValue() {
+        LongIntMap map = new LongIntMap(4);
+
+        assertEquals(LongIntMap.MISSING, map.put(42L, 1));
+        assertEquals(1, map.put(42L, 2));
+        assertEquals(2, map.get(42L));
+        assertEquals(LongIntMap.MISSING, map.get(43L));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    void growsFromTheSmallestCapacityWithoutLosingEntries() {
+        LongIntMap map = new LongIntMap(0);
+        for (int i = 0; i < 5000; i++) {
+            map.put(key(i), i);
+        }
+
+        assertEquals(5000, map.size());
+        for (int i = 0; i < 5000; i++) {
+            assertEquals(i, map.get(key(i)), "key " + i);
+        }
+    }
+
+    @Test
+    void walksCollisionChainsToFindAndMissKeys() {
+        // Keys that differ only in their high bits, plus the extremes, crowd a map that is kept
+        // at its load limit, so lookups have to walk past occupied slots
+        LongIntMap map = new LongIntMap(1024);
+        for (int i = 0; i < 1024; i++) {
+            map.put((long) i << 40, i);
+        }
+        map.put(0L, -2);
+        map.put(Long.MIN_VALUE, 7);
+        map.put(Long.MAX_VALUE, 8);
+
+        assertEquals(1026, map.size());
+        assertEquals(-2, map.get(0L));
+        for (int i = 1; i < 1024; i++) {
+            assertEquals(i, map.get((long) i << 40), "key " + i);
+            assertEquals(LongIntMap.MISSING, map.get(((long) i << 40) + 1), "absent key " + i);
+        }
+        assertEquals(7, map.get(Long.MIN_VALUE));
+        assertEquals(8, map.get(Long.MAX_VALUE));
+    }
+
+    private static long key(int i) {
+        return i * 0x100000001L - 3;
+    }
+}
@@ -0,0 +1,42 @@
+package guraa.pdfcompare.visual;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ImageFingerprintTest {
+
+    @Test
+    void differenceHashComparesCellMeansForEveryPlaneWidth() {
+        // Each cell holds one value, one step brighter than the cell to its left. Cells of
+        // different widths only compare right if the sums are divided by the actual widths.
+        for (int width = 9; width <= 100; width++) {
+            for (int height = 8; height <= 24; height += 8) {
+                assertEquals(-1L, ImageFingerprint.differenceHash(plane(width, height, 1), width, height),
+                        "brightening " + width + "x" + height);
+                assertEquals(0L, ImageFingerprint.differenceHash(plane(width, height, -1), width, height),
+                        "darkening " + width + "x" + height);
+            }
+        }
+    }
+
+    @Test
+    void differenceHashIgnoresUniformPlanes() {
+        byte[] pixels = new byte[17 * 11];
+        Arrays.fill(pixels, (byte) 200);
+
+        assertEquals(0L, ImageFingerprint.differenceHash(pixels, 17, 11));
+    }
+
+    private static byte[] plane(int width, int height, int step) {
+        byte[] pixels = new byte[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                pixels[y * width + x] = (byte) (100 + step * (x * 9 / width));
+            }
+        }
+        return pixels;
+    }
+}
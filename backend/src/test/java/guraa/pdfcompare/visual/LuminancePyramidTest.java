@@ -0,0 +1,74 @@
+package guraa.pdfcompare.visual;
+
+import guraa.pdfcompare.service.MemoryGovernor;
+import guraa.pdfcompare.util.CancellationContext;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.OptionalDouble;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LuminancePyramidTest {
+
+    private final SSIMCalculator calculator = new SSIMCalculator(
+            new MemoryGovernor(new SimpleMeterRegistry(), 64, 0), ForkJoinPool.commonPool());
+
+    @Test
+    void levelsHalveDownToTheMinimumSize() {
+        LuminancePyramid pyramid = LuminancePyramid.of(pattern(400, 300, false));
+
+        assertEquals(2, pyramid.getLevelCount());
+        assertEquals(200, pyramid.getLevel(0).getWidth());
+        assertEquals(150, pyramid.getLevel(0).getHeight());
+        assertEquals(100, pyramid.getLevel(1).getWidth());
+        assertEquals(75, pyramid.getLevel(1).getHeight());
+    }
+
+    @Test
+    void levelsAverageFourPixels() {
+        BufferedImage image = new BufferedImage(200, 200, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, 0x646464);
+        image.setRGB(1, 1, 0x646464);
+
+        assertEquals(50, LuminancePyramid.of(image).getLevel(0).luminance(0, 0));
+    }
+
+    @Test
+    void clearlyDifferentPagesAreDecidedOnACoarseLevel() {
+        LuminancePyramid base = LuminancePyramid.of(pattern(400, 300, false));
+        LuminancePyramid same = LuminancePyramid.of(pattern(400, 300, false));
+        LuminancePyramid inverted = LuminancePyramid.of(pattern(400, 300, true));
+
+        OptionalDouble identical = calculator.calculateCoarseToFine(base, same, 0.7, 0.1, CancellationContext.NONE);
+        OptionalDouble different = calculator.calculateCoarseToFine(base, inverted, 0.7, 0.1, CancellationContext.NONE);
+
+        assertEquals(1.0, identical.getAsDouble());
+        assertTrue(different.getAsDouble() < 0.6);
+    }
+
+    @Test
+    void pyramidsOfDifferentSizesAreLeftToTheFullResolution() {
+        LuminancePyramid base = LuminancePyramid.of(pattern(400, 300, false));
+        LuminancePyramid other = LuminancePyramid.of(pattern(300, 400, false));
+
+        assertFalse(base.sameLayout(other));
+        assertFalse(calculator.calculateCoarseToFine(base, other, 0.7, 0.1, CancellationContext.NONE).isPresent());
+        assertEquals(0, LuminancePyramid.of(pattern(16, 16, false)).getLevelCount());
+    }
+
+    private static BufferedImage pattern(int width, int height, boolean inverted) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int value = ((x / 20) + (y / 20)) % 2 == 0 ? 30 : 220;
+                image.getRaster().setSample(x, y, 0, inverted ? 255 - value : value);
+            }
+        }
+        return image;
+    }
+}
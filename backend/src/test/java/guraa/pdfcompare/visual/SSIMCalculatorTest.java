@@ -0,0 +1,96 @@
+package guraa.pdfcompare.visual;
+
+import guraa.pdfcompare.service.MemoryGovernor;
+import guraa.pdfcompare.util.CancellationContext;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SSIMCalculatorTest {
+
+    private static final int SIZE = 128;
+
+    private final SSIMCalculator calculator = new SSIMCalculator(
+            new MemoryGovernor(new SimpleMeterRegistry(), 64, 0), ForkJoinPool.commonPool());
+
+    @Test
+    void identicalTilesGiveFullSimilarity() {
+        BufferedImage image = pattern();
+
+        TileSimilarity similarity = compare(image, copy(image), 16);
+
+        assertEquals(1.0, similarity.getSimilarity());
+        assertTrue(similarity.getChangedRegions().isEmpty());
+    }
+
+    @Test
+    void windowsReachingIntoChangedTilesAreComputedForEveryTileSize() {
+        // A changed pixel is seen by windows whose origin lies in up to three other tiles, and
+        // which tiles those are depends on the tile size
+        BufferedImage base = pattern();
+        BufferedImage changed = copy(base);
+        changed.getRaster().setSample(40, 72, 0, 255);
+        changed.getRaster().setSample(84, 20, 0, 0);
+        changed.getRaster().setSample(SIZE - 1, SIZE - 1, 0, 0);
+
+        double expected = compare(base, changed, 8).getSimilarity();
+        assertTrue(expected < 1.0);
+        assertEquals(expected, compare(base, changed, 16).getSimilarity(), 1e-12);
+        assertEquals(expected, compare(base, changed, 32).getSimilarity(), 1e-12);
+    }
+
+    @Test
+    void fullRasterFallbackScoresLikeTheTilePath() {
+        // A single changed pixel passes the sampling shortcut of calculate(), which must not
+        // leak into the tile comparison when it falls back to the full raster
+        BufferedImage base = pattern();
+        BufferedImage changed = copy(base);
+        changed.getRaster().setSample(40, 72, 0, 255);
+
+        double tiled = compare(base, changed, 16).getSimilarity();
+        double fallback = calculator.compare(base, TileHashes.of(base, 16), changed, TileHashes.of(changed, 32),
+                CancellationContext.NONE).getSimilarity();
+
+        assertTrue(tiled < 1.0);
+        assertEquals(tiled, fallback, 1e-12);
+    }
+
+    @Test
+    void changedRegionsCoverTheChangedTiles() {
+        BufferedImage base = pattern();
+        BufferedImage changed = copy(base);
+        changed.getRaster().setSample(40, 70, 0, 255);
+
+        TileSimilarity similarity = compare(base, changed, 16);
+
+        assertEquals(1, similarity.getChangedRegions().size());
+        assertEquals(new Rectangle(32, 64, 16, 16), similarity.getChangedRegions().get(0));
+    }
+
+    private TileSimilarity compare(BufferedImage img1, BufferedImage img2, int tileSize) {
+        return calculator.compare(img1, TileHashes.of(img1, tileSize), img2, TileHashes.of(img2, tileSize),
+                CancellationContext.NONE);
+    }
+
+    private static BufferedImage pattern() {
+        BufferedImage image = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_BYTE_GRAY);
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                image.getRaster().setSample(x, y, 0, (x * 7 + y * 13 + (x * y) % 11) % 256);
+            }
+        }
+        return image;
+    }
+
+    private static BufferedImage copy(BufferedImage image) {
+        BufferedImage copy = new BufferedImage(image.getWidth(), image.getHeight(), image.getType());
+        copy.setData(image.getData());
+        return copy;
+    }
+}
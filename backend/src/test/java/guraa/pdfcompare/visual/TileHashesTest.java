@@ -0,0 +1,58 @@
+package guraa.pdfcompare.visual;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.BitSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TileHashesTest {
+
+    @Test
+    void onlyTilesWithChangedPixelsDiffer() {
+        BufferedImage base = new BufferedImage(70, 50, BufferedImage.TYPE_BYTE_GRAY);
+        BufferedImage changed = new BufferedImage(70, 50, BufferedImage.TYPE_BYTE_GRAY);
+        changed.getRaster().setSample(69, 49, 0, 1);
+
+        TileHashes tiles = TileHashes.of(base, 32);
+        BitSet differing = tiles.changedTiles(TileHashes.of(changed, 32));
+
+        assertEquals(3, tiles.getTilesX());
+        assertEquals(2, tiles.getTilesY());
+        assertEquals(1, differing.cardinality());
+        assertTrue(tiles.isChanged(differing, 2, 1));
+        assertFalse(tiles.isChanged(differing, 3, 1));
+    }
+
+    @Test
+    void diagonalNeighboursMergeIntoOneRegionClippedToTheRaster() {
+        TileHashes tiles = TileHashes.of(new BufferedImage(70, 50, BufferedImage.TYPE_BYTE_GRAY), 32);
+        BitSet differing = new BitSet();
+        differing.set(0);
+        differing.set(4);
+
+        List<Rectangle> regions = tiles.changedRegions(differing);
+
+        assertEquals(1, regions.size());
+        assertEquals(new Rectangle(0, 0, 64, 50), regions.get(0));
+    }
+
+    @Test
+    void separatedTilesFormSeparateRegions() {
+        TileHashes tiles = TileHashes.of(new BufferedImage(70, 50, BufferedImage.TYPE_BYTE_GRAY), 32);
+        BitSet differing = new BitSet();
+        differing.set(0);
+        differing.set(5);
+
+        List<Rectangle> regions = tiles.changedRegions(differing);
+
+        assertEquals(2, regions.size());
+        assertEquals(new Rectangle(0, 0, 32, 32), regions.get(0));
+        assertEquals(new Rectangle(64, 32, 6, 18), regions.get(1));
+    }
+}